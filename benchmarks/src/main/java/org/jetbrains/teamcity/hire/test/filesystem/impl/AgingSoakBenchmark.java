@@ -0,0 +1,177 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AllocationStrategy;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DirectoryEntry;
+import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemsManager;
+import org.jetbrains.teamcity.hire.test.filesystem.api.LoadOptions;
+import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Soak benchmark of the container aging. Runs a seeded churn of files creating, growing past the capacity,
+ * overwriting and removing against one container and samples the layout every {@code sampleInterval} operations.
+ * The output is a CSV time series: the throughput of the last interval, the average data chain length,
+ * the free blocks count, the largest free block and the fragmentation, so the runs of two allocators or two
+ * releases with the same seed can be plotted together.
+ * <p>
+ * Parameters are system properties: {@code containerSize}, {@code operations}, {@code sampleInterval}, {@code seed},
+ * {@code allocationStrategy} (the formatted one if not set) and {@code output} (the standard output if not set).
+ * <pre>
+ *   mvn -f benchmarks/pom.xml compile exec:java -Dbenchmark.mainClass=org.jetbrains.teamcity.hire.test.filesystem.impl.AgingSoakBenchmark
+ * </pre>
+ */
+public class AgingSoakBenchmark {
+
+    private static final long CONTAINER_SIZE = Long.getLong("containerSize", 256L * 1024 * 1024);
+    private static final long OPERATIONS = Long.getLong("operations", 2_000_000L);
+    private static final long SAMPLE_INTERVAL = Long.getLong("sampleInterval", 20_000L);
+    private static final long SEED = Long.getLong("seed", 0L);
+    private static final String ALLOCATION_STRATEGY = System.getProperty("allocationStrategy");
+    private static final String OUTPUT = System.getProperty("output");
+
+    private static final int MAX_FILES = 1500; // less than max files in directory
+    private static final int MAX_CREATE_SIZE = 256 * 1024;
+    private static final int MAX_WRITE_SIZE = 16 * 1024;
+
+    // Workload mix in percents: create, grow, overwrite, the rest is remove.
+    private static final int CREATE_PERCENT = 30;
+    private static final int GROW_PERCENT = 25;
+    private static final int OVERWRITE_PERCENT = 25;
+
+    public static void main(String[] args) throws IOException {
+        Path path = Files.createTempFile("aging-soak", ".fs");
+        try (PrintStream output = OUTPUT == null ? System.out : new PrintStream(Files.newOutputStream(Paths.get(OUTPUT)))) {
+            FileSystemsManager fileSystemsManager = new FileSystemsManagerImpl();
+            fileSystemsManager.createAndFormat(path, CONTAINER_SIZE);
+            LoadOptions options = ALLOCATION_STRATEGY == null
+                    ? LoadOptions.defaults()
+                    : LoadOptions.defaults().withAllocationStrategy(AllocationStrategy.valueOf(ALLOCATION_STRATEGY));
+            try (RootDirectory root = fileSystemsManager.load(path, options)) {
+                output.println(String.format("# container %d bytes, %d operations, seed %d, allocation strategy %s",
+                        CONTAINER_SIZE, OPERATIONS, SEED, ALLOCATION_STRATEGY == null ? "formatted" : ALLOCATION_STRATEGY));
+                output.println("operations,ops_per_sec,failures,files,avg_chain,max_chain,free_blocks,largest_free,fragmentation");
+                new AgingSoakBenchmark(root, output).run();
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private final RootDirectory root;
+    private final PrintStream output;
+    private final DataBlock anchor; // any data block to reach the container blocks
+    private final Random random = new Random(SEED);
+    private final List<String> names = new ArrayList<>();
+    private int counter;
+    private long failures;
+
+    private AgingSoakBenchmark(RootDirectory root, PrintStream output) throws IOException {
+        this.root = root;
+        this.output = output;
+        this.anchor = ((FileImpl) root.createFile("Anchor", 0)).getDataBlock();
+    }
+
+    private void run() throws IOException {
+        for (long done = 0; done < OPERATIONS; ) {
+            long batch = Math.min(SAMPLE_INTERVAL, OPERATIONS - done);
+            long batchFailures = failures;
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                step();
+            }
+            double opsPerSecond = batch * 1e9 / (System.nanoTime() - start);
+            done += batch;
+            output.println(sample(done, opsPerSecond, failures - batchFailures));
+            output.flush();
+        }
+    }
+
+    private void step() throws IOException {
+        int operation = random.nextInt(100);
+        try {
+            if (names.isEmpty() || operation < CREATE_PERCENT && names.size() < MAX_FILES) {
+                String name = "File " + counter++;
+                File file = root.createFile(name, randomSize(MAX_CREATE_SIZE));
+                names.add(name);
+                file.write(new byte[randomSize(MAX_WRITE_SIZE)]);
+            } else if (operation < CREATE_PERCENT + GROW_PERCENT) {
+                File file = getFile(names.get(random.nextInt(names.size())));
+                // the write starts at the end, so the file grows past its capacity sooner or later
+                file.write((int) file.getFileSize(), new byte[randomSize(MAX_WRITE_SIZE)]);
+            } else if (operation < CREATE_PERCENT + GROW_PERCENT + OVERWRITE_PERCENT) {
+                File file = getFile(names.get(random.nextInt(names.size())));
+                byte[] data = new byte[(int) Math.min(file.getFileSize(), randomSize(MAX_WRITE_SIZE))];
+                random.nextBytes(data);
+                file.write(random.nextInt((int) file.getFileSize() - data.length + 1), data);
+            } else {
+                root.removeFile(names.remove(random.nextInt(names.size())));
+            }
+        } catch (NotEnoughFreeSpaceException e) {
+            failures++;
+            if (!names.isEmpty()) {
+                root.removeFile(names.remove(random.nextInt(names.size())));
+            }
+        }
+    }
+
+    private int randomSize(int maxSize) {
+        // log-uniform: small sizes are much more frequent than big ones
+        return (int) Math.exp(random.nextDouble() * Math.log(maxSize));
+    }
+
+    private File getFile(String name) throws IOException {
+        File file = root.getFile(name);
+        if (file == null) {
+            throw new IllegalStateException("File not found: " + name);
+        }
+        return file;
+    }
+
+    /**
+     * Walks the chains of the listed files and all the blocks of the container.
+     */
+    private String sample(long operations, double opsPerSecond, long intervalFailures) throws IOException {
+        long chainsLength = 0;
+        int chains = 0;
+        int maxChainLength = 0;
+        Iterator<DirectoryEntry> entries = root.listEntries();
+        while (entries.hasNext()) {
+            DirectoryEntry entry = entries.next();
+            if (entry.isDirectory() || entry.getPosition() == 0) {
+                continue;
+            }
+            int chainLength = new DataBlock(anchor, entry.getPosition()).getDataChainLength();
+            chainsLength += chainLength;
+            chains++;
+            maxChainLength = Math.max(maxChainLength, chainLength);
+        }
+        int freeBlocks = 0;
+        long freeSpace = 0;
+        long largestFreeBlock = 0;
+        Optional<Block> block = Optional.of(new Block(anchor, anchor.firstBlockPosition));
+        while (block.isPresent()) {
+            if (block.get().isFree()) {
+                freeBlocks++;
+                freeSpace += block.get().getLength();
+                largestFreeBlock = Math.max(largestFreeBlock, block.get().getLength());
+            }
+            block = block.get().getNext();
+        }
+        // external fragmentation: the share of free space which is not in the largest free block
+        double fragmentation = freeSpace == 0 ? 0 : 1 - (double) largestFreeBlock / freeSpace;
+        return String.format("%d,%.0f,%d,%d,%.3f,%d,%d,%d,%.4f", operations, opsPerSecond, intervalFailures, names.size(),
+                chains == 0 ? 0 : (double) chainsLength / chains, maxChainLength, freeBlocks, largestFreeBlock, fragmentation);
+    }
+
+}
@@ -0,0 +1,160 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AllocationStrategy;
+import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemsManager;
+import org.jetbrains.teamcity.hire.test.filesystem.api.LoadOptions;
+import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Aging benchmark of the allocation strategies. Replays the same seeded churn of files creating, growing and removing
+ * for every strategy, reports the resulting fragmentation, the average data chain length and the throughput.
+ * <p>
+ * It is placed into the impl package to inspect blocks. Parameters are system properties:
+ * {@code containerSize}, {@code operations} and {@code seed}.
+ */
+public class AllocationPoliciesBenchmark {
+
+    private static final long CONTAINER_SIZE = Long.getLong("containerSize", 64L * 1024 * 1024);
+    private static final int OPERATIONS = Integer.getInteger("operations", 10_000);
+    private static final long SEED = Long.getLong("seed", 0L);
+
+    private static final int MAX_FILES = 1500; // less than max files in directory
+    private static final int MAX_CREATE_SIZE = 128 * 1024;
+    private static final int MAX_GROW_SIZE = 16 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        Path path = Files.createTempFile("allocation-policies", ".fs");
+        try {
+            System.out.println(String.format("Container %d bytes, %d operations, seed %d", CONTAINER_SIZE, OPERATIONS, SEED));
+            System.out.println(String.format("%-10s %10s %10s %12s %8s %14s %10s %10s",
+                    "strategy", "ops/sec", "failures", "free blocks", "frag %", "largest free", "avg chain", "max chain"));
+            for (AllocationStrategy strategy : AllocationStrategy.values()) {
+                System.out.println(run(path, strategy));
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static Result run(Path path, AllocationStrategy strategy) throws IOException {
+        FileSystemsManager fileSystemsManager = new FileSystemsManagerImpl();
+        fileSystemsManager.createAndFormat(path, CONTAINER_SIZE);
+        Result result = new Result(strategy);
+        Random random = new Random(SEED);
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> writtenBytes = new HashMap<>();
+        int counter = 0;
+        try (RootDirectory root = fileSystemsManager.load(path, LoadOptions.defaults().withAllocationStrategy(strategy))) {
+            long start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS; i++) {
+                int operation = random.nextInt(10);
+                try {
+                    if (names.isEmpty() || operation < 4 && names.size() < MAX_FILES) {
+                        String name = "File " + counter++;
+                        byte[] data = new byte[randomSize(random, MAX_CREATE_SIZE)];
+                        File file = root.createFile(name, data.length);
+                        names.add(name);
+                        writtenBytes.put(name, 0);
+                        file.write(data);
+                        writtenBytes.put(name, data.length);
+                    } else if (operation < 7) {
+                        String name = names.get(random.nextInt(names.size()));
+                        byte[] data = new byte[randomSize(random, MAX_GROW_SIZE)];
+                        getFile(root, name).write(writtenBytes.get(name), data);
+                        writtenBytes.put(name, writtenBytes.get(name) + data.length);
+                    } else {
+                        removeRandomFile(root, random, names, writtenBytes);
+                    }
+                } catch (NotEnoughFreeSpaceException e) {
+                    result.failures++;
+                    if (!names.isEmpty()) {
+                        removeRandomFile(root, random, names, writtenBytes);
+                    }
+                }
+            }
+            result.opsPerSecond = OPERATIONS * 1e9 / (System.nanoTime() - start);
+            inspect(root, names, result);
+        }
+        return result;
+    }
+
+    private static int randomSize(Random random, int maxSize) {
+        // log-uniform: small files are much more frequent than big ones
+        return (int) Math.exp(random.nextDouble() * Math.log(maxSize));
+    }
+
+    private static File getFile(RootDirectory root, String name) throws IOException {
+        File file = root.getFile(name);
+        if (file == null) {
+            throw new IllegalStateException("File not found: " + name);
+        }
+        return file;
+    }
+
+    private static void removeRandomFile(RootDirectory root, Random random, List<String> names,
+                                         Map<String, Integer> writtenBytes) throws IOException {
+        String name = names.remove(random.nextInt(names.size()));
+        root.removeFile(name);
+        writtenBytes.remove(name);
+    }
+
+    private static void inspect(RootDirectory root, List<String> names, Result result) throws IOException {
+        long chainsLength = 0;
+        DataBlock anyDataBlock = null;
+        for (String name : names) {
+            anyDataBlock = ((FileImpl) getFile(root, name)).getDataBlock();
+            int chainLength = anyDataBlock.getDataChainLength();
+            chainsLength += chainLength;
+            result.maxChainLength = Math.max(result.maxChainLength, chainLength);
+        }
+        result.averageChainLength = names.isEmpty() ? 0 : (double) chainsLength / names.size();
+        if (anyDataBlock == null) {
+            return;
+        }
+        long freeSpace = 0;
+        Optional<Block> block = Optional.of(new Block(anyDataBlock, anyDataBlock.firstBlockPosition));
+        while (block.isPresent()) {
+            if (block.get().isFree()) {
+                result.freeBlocks++;
+                freeSpace += block.get().getLength();
+                result.largestFreeBlock = Math.max(result.largestFreeBlock, block.get().getLength());
+            }
+            block = block.get().getNext();
+        }
+        // external fragmentation: the share of free space which is not in the largest free block
+        result.fragmentation = freeSpace == 0 ? 0 : 1 - (double) result.largestFreeBlock / freeSpace;
+    }
+
+    private static class Result {
+        final AllocationStrategy strategy;
+        double opsPerSecond;
+        int failures;
+        int freeBlocks;
+        double fragmentation;
+        long largestFreeBlock;
+        double averageChainLength;
+        int maxChainLength;
+
+        Result(AllocationStrategy strategy) {
+            this.strategy = strategy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s %10.0f %10d %12d %8.1f %14d %10.2f %10d", strategy, opsPerSecond, failures,
+                    freeBlocks, fragmentation * 100, largestFreeBlock, averageChainLength, maxChainLength);
+        }
+    }
+
+}
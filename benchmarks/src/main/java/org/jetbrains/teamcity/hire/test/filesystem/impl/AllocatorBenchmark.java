@@ -0,0 +1,75 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The free blocks search and the chains removing with coalescing on the fresh and on the aged containers.
+ * It calls the blocks directly, so the benchmark is single threaded and does not take the lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocatorBenchmark {
+
+    /**
+     * Operations of the seeded churn before the measurement, 0 is the fresh container.
+     */
+    @Param({"0", "5000"})
+    public int agingOperations;
+
+    @Param({"1024", "262144"})
+    public int chainCapacity;
+
+    private Path path;
+    private RootDirectory root;
+    private DataBlock anyBlock;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        path = BenchmarkFileSystems.createTempPath("allocator-benchmark");
+        root = BenchmarkFileSystems.create(path, 64L * 1024 * 1024);
+        BenchmarkFileSystems.age(root, agingOperations, 0);
+        anyBlock = ((FileImpl) root.createFile("Anchor", 0)).getDataBlock();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFileSystems.close(root, path);
+    }
+
+    @Benchmark
+    public FreeBlock findFirstFreeBlock() throws IOException {
+        return anyBlock.findFirstFreeBlock();
+    }
+
+    /**
+     * Allocates a chain by the container policy and removes it, the removing merges the freed blocks with the free
+     * neighbours, so the container is the same for the next invocation.
+     */
+    @Benchmark
+    public DataBlock allocateAndRemoveChain() throws IOException {
+        DataBlock chain = anyBlock.allocateChain(chainCapacity);
+        chain.removeChain();
+        return chain;
+    }
+
+}
@@ -0,0 +1,102 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.jetbrains.teamcity.hire.test.filesystem.api.Directory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemsManager;
+import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Preparing of the file systems for the JMH benchmarks: temporary files, fragmented and aged containers.
+ */
+class BenchmarkFileSystems {
+
+    private static final int MAX_AGING_FILES = 1500; // less than max files in directory
+    private static final int MAX_AGING_SIZE = 64 * 1024;
+
+    private BenchmarkFileSystems() {
+    }
+
+    /**
+     * Formats a temporary file system file and loads it.
+     */
+    static RootDirectory create(Path path, long size) throws IOException {
+        FileSystemsManager fileSystemsManager = new FileSystemsManagerImpl();
+        fileSystemsManager.createAndFormat(path, size);
+        return fileSystemsManager.load(path);
+    }
+
+    static Path createTempPath(String prefix) throws IOException {
+        Path path = Files.createTempFile(prefix, ".fs");
+        Files.delete(path);
+        return path;
+    }
+
+    static void close(RootDirectory root, Path path) throws IOException {
+        root.close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Fills all the free space with files of {@code holeSize} bytes and removes every other one, so the free space
+     * is split to the holes and a file bigger than a hole is stored in a chain of them.
+     */
+    static void fragment(Directory directory, int holeSize) throws IOException {
+        List<String> names = new ArrayList<>();
+        try {
+            while (true) {
+                String name = "Filler " + names.size();
+                directory.createFile(name, holeSize);
+                names.add(name);
+            }
+        } catch (NotEnoughFreeSpaceException e) {
+            // the free space is filled
+        }
+        for (int i = 0; i < names.size(); i += 2) {
+            directory.removeFile(names.get(i));
+        }
+    }
+
+    /**
+     * Replays a seeded churn of files creating, growing and removing, the same as {@code AllocationPoliciesBenchmark} does.
+     */
+    static void age(Directory directory, int operations, long seed) throws IOException {
+        Random random = new Random(seed);
+        List<String> names = new ArrayList<>();
+        int counter = 0;
+        for (int i = 0; i < operations; i++) {
+            int operation = random.nextInt(10);
+            try {
+                if (names.isEmpty() || operation < 4 && names.size() < MAX_AGING_FILES) {
+                    String name = "Aged " + counter++;
+                    directory.createFile(name, randomSize(random));
+                    names.add(name);
+                } else if (operation < 7) {
+                    File file = directory.getFile(names.get(random.nextInt(names.size())));
+                    if (file == null) {
+                        throw new IllegalStateException("Aged file is not found");
+                    }
+                    file.write((int) file.getFileSize(), new byte[randomSize(random) / 4 + 1]);
+                } else {
+                    directory.removeFile(names.remove(random.nextInt(names.size())));
+                }
+            } catch (NotEnoughFreeSpaceException e) {
+                if (!names.isEmpty()) {
+                    directory.removeFile(names.remove(random.nextInt(names.size())));
+                }
+            }
+        }
+    }
+
+    private static int randomSize(Random random) {
+        // log-uniform: small files are much more frequent than big ones
+        return (int) Math.exp(random.nextDouble() * Math.log(MAX_AGING_SIZE));
+    }
+
+}
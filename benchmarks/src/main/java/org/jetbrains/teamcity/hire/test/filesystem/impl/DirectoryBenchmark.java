@@ -0,0 +1,76 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Files creating and lookups in the empty and in the nearly full root directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirectoryBenchmark {
+
+    /**
+     * Files in the directory before the measurement, the default max files in directory is 2048.
+     */
+    @Param({"0", "2000"})
+    public int filesCount;
+
+    private Path path;
+    private RootDirectory root;
+    private final Random random = new Random(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        path = BenchmarkFileSystems.createTempPath("directory-benchmark");
+        root = BenchmarkFileSystems.create(path, 16L * 1024 * 1024);
+        for (int i = 0; i < filesCount; i++) {
+            root.createFile("File " + i, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFileSystems.close(root, path);
+    }
+
+    /**
+     * Creates a file and removes it to keep the directory size, the removing frees the record for the next creating.
+     */
+    @Benchmark
+    public File createFile() throws IOException {
+        File file = root.createFile("Created", 1024);
+        root.removeFile("Created");
+        return file;
+    }
+
+    /**
+     * Finds a random existing file, a missing one for the empty directory.
+     */
+    @Benchmark
+    public File getFile() throws IOException {
+        return root.getFile("File " + random.nextInt(Math.max(filesCount, 1)));
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Sequential and random reads and writes of a file stored in one data block or in a chain of small fragments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileBenchmark {
+
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int FRAGMENT_SIZE = 4096;
+
+    /**
+     * Is the file stored in the chain of {@value #FRAGMENT_SIZE} bytes fragments.
+     */
+    @Param({"false", "true"})
+    public boolean fragmented;
+
+    @Param({"4096", "65536"})
+    public int chunkSize;
+
+    private Path path;
+    private RootDirectory root;
+    private File file;
+    private byte[] chunk;
+    private final Random random = new Random(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        path = BenchmarkFileSystems.createTempPath("file-benchmark");
+        root = BenchmarkFileSystems.create(path, 4L * FILE_SIZE);
+        if (fragmented) {
+            BenchmarkFileSystems.fragment(root, FRAGMENT_SIZE);
+        }
+        file = root.createFile("Benchmarked", FILE_SIZE);
+        chunk = new byte[chunkSize];
+        random.nextBytes(chunk);
+        for (int offset = 0; offset < FILE_SIZE; offset += chunkSize) {
+            file.write(offset, chunk);
+        }
+        int chainLength = ((FileImpl) file).getDataBlock().getDataChainLength();
+        if (fragmented != chainLength > 1) {
+            throw new IllegalStateException("Unexpected data chain length: " + chainLength);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFileSystems.close(root, path);
+    }
+
+    @Benchmark
+    public void sequentialRead(Blackhole blackhole) throws IOException {
+        byte[] destination = new byte[chunkSize];
+        for (int offset = 0; offset < FILE_SIZE; offset += chunkSize) {
+            file.read(offset, destination);
+            blackhole.consume(destination);
+        }
+    }
+
+    @Benchmark
+    public byte[] randomRead() throws IOException {
+        byte[] destination = new byte[chunkSize];
+        file.read(random.nextInt(FILE_SIZE - chunkSize + 1), destination);
+        return destination;
+    }
+
+    @Benchmark
+    public void sequentialWrite() throws IOException {
+        for (int offset = 0; offset < FILE_SIZE; offset += chunkSize) {
+            file.write(offset, chunk);
+        }
+    }
+
+    @Benchmark
+    public void randomWrite() throws IOException {
+        file.write(random.nextInt(FILE_SIZE - chunkSize + 1), chunk);
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * Defines how the file data space is placed in the file system file.
+ * By default the data is allocated starting from the first free block and can be chained across many fragments.
+ */
+public enum AllocationOption implements CreateFileOption {
+
+    /**
+     * The data is placed into one extent (the first fitting free block).
+     * File creation fails with {@link org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException}
+     * if there is no single free block to fit the data.
+     */
+    CONTIGUOUS,
+
+    /**
+     * The data is placed into one extent (the first fitting free block) if it is possible,
+     * otherwise it is allocated as by default.
+     */
+    PREFER_CONTIGUOUS,
+
+    /**
+     * The data is placed into the smallest free block which fits it, otherwise it is allocated as by default.
+     */
+    BEST_FIT,
+
+    /**
+     * The data is placed into the fitting free block nearest to the directory content, otherwise it is allocated as by default.
+     * Takes precedence over {@link #BEST_FIT}.
+     */
+    NEAR_PARENT
+
+}
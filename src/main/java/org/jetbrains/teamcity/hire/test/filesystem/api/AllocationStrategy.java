@@ -0,0 +1,31 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * Defines how free blocks are chosen for the file system file data allocation.
+ * Persisted by ordinal, new strategies should be added to the end.
+ */
+public enum AllocationStrategy {
+
+    /**
+     * The data is allocated from the first free block, the chain is continued with the next free blocks.
+     */
+    FIRST_FIT,
+
+    /**
+     * The same as {@link #FIRST_FIT}, but the free blocks search continues from the place where the previous one stopped.
+     */
+    NEXT_FIT,
+
+    /**
+     * The data is allocated from the smallest free block which fits it. If there is no such block,
+     * the data is chained across the biggest free blocks.
+     */
+    BEST_FIT,
+
+    /**
+     * The same as {@link #BEST_FIT}, but the blocks lengths are rounded up to powers of two,
+     * so freed blocks can be reused for the data of the same size class.
+     */
+    BUDDY
+
+}
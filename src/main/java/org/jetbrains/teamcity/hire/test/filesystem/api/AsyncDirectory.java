@@ -0,0 +1,81 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking facade of {@link Directory}, see {@link RootDirectory#async(AsyncOptions)}. Every operation is run by
+ * the executor of the options and the returned future is completed with its result or with the exception
+ * thrown by the same {@link Directory} operation.
+ */
+public interface AsyncDirectory {
+
+    /**
+     * The name of the directory.
+     *
+     * @return the name of the directory starting with slash.
+     */
+    String getName();
+
+    /**
+     * Creates a file, see {@link Directory#createFile(String, int, CreateFileOption...)}.
+     *
+     * @param name    the name of the file.
+     * @param size    non-negative value - required file size.
+     * @param options file creation options.
+     *
+     * @return the future of the created file.
+     */
+    CompletableFuture<AsyncFile> createFile(String name, int size, CreateFileOption... options);
+
+    /**
+     * Creates a directory, see {@link Directory#createDirectory(String)}.
+     *
+     * @param name the name of the directory starting with slash.
+     *
+     * @return the future of the created directory.
+     */
+    CompletableFuture<AsyncDirectory> createDirectory(String name);
+
+    /**
+     * Returns the number of files and directories in the directory, see {@link Directory#getFilesCount()}.
+     *
+     * @return the future of the number of files and directories.
+     */
+    CompletableFuture<Integer> getFilesCount();
+
+    /**
+     * Provides files and directories names list in the directory, see {@link Directory#getFileNames()}.
+     *
+     * @return the future of the names list. Directory names are started with slash.
+     */
+    CompletableFuture<List<String>> getFileNames();
+
+    /**
+     * Returns a file with the provided {@code name}, see {@link Directory#getFile(String)}.
+     *
+     * @param name a name of file.
+     *
+     * @return the future of the file, it is completed with {@code null} if such file not found.
+     */
+    CompletableFuture<AsyncFile> getFile(String name);
+
+    /**
+     * Returns a directory with the provided {@code name}, see {@link Directory#getDirectory(String)}.
+     *
+     * @param name a name of directory starting with slash.
+     *
+     * @return the future of the directory, it is completed with {@code null} if such directory not found.
+     */
+    CompletableFuture<AsyncDirectory> getDirectory(String name);
+
+    /**
+     * Removes a file or an empty directory, see {@link Directory#removeFile(String)}.
+     *
+     * @param name the name of file or directory.
+     *
+     * @return the future completed after the removal.
+     */
+    CompletableFuture<Void> removeFile(String name);
+
+}
@@ -0,0 +1,46 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking facade of {@link File}, see {@link AsyncDirectory}.
+ */
+public interface AsyncFile {
+
+    /**
+     * The name of the file.
+     *
+     * @return the name of the file.
+     */
+    String getName();
+
+    /**
+     * The size of the file data space in bytes, see {@link File#getFileSize()}.
+     *
+     * @return the future of the size of the file data space in bytes.
+     */
+    CompletableFuture<Long> getFileSize();
+
+    /**
+     * Reads {@code length} bytes from the file starting with byte number {@code offset}, see {@link File#read(int, byte[])}.
+     * The buffer is allocated by the operation, so it is not shared with the caller while the operation is in flight.
+     *
+     * @param offset an offset in the file starting from which the data is read.
+     * @param length the count of the read bytes.
+     *
+     * @return the future of the read bytes.
+     */
+    CompletableFuture<byte[]> read(int offset, int length);
+
+    /**
+     * Writes {@code data.length} bytes into the file starting at offset {@code offset}, see {@link File#write(int, byte[])}.
+     * The data should not be changed before the returned future completion.
+     *
+     * @param offset an offset in the file starting from which the data is written.
+     * @param data   the data.
+     *
+     * @return the future completed after the writing.
+     */
+    CompletableFuture<Void> write(int offset, byte[] data);
+
+}
@@ -0,0 +1,80 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+
+/**
+ * Options of the asynchronous access to the file system, see {@link RootDirectory#async(AsyncOptions)}.
+ * Immutable, use {@code with...} methods to get the changed options.
+ */
+public final class AsyncOptions {
+
+    private static final AsyncOptions DEFAULTS = new AsyncOptions(null, Integer.getInteger("asyncMaxInFlight", 64));
+
+    @Nullable
+    private final Executor executor;
+    private final int maxInFlight;
+
+    private AsyncOptions(@Nullable Executor executor, int maxInFlight) {
+        this.executor = executor;
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive, but is " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * The default options: the shared executor running every operation in a virtual thread where they are available
+     * (Java 21+) and in a pooled daemon thread otherwise, 64 operations in flight (can be changed with
+     * {@code asyncMaxInFlight} system property).
+     *
+     * @return the default options.
+     */
+    public static AsyncOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * The executor running the blocking file system operations.
+     *
+     * @return the executor or {@code null} if the shared default one is used.
+     */
+    @Nullable
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Max count of the operations submitted to the executor at the same time, the rest are queued. The limit is
+     * shared by all the facades of a loaded file system, so all of them must be created with the same one.
+     *
+     * @return the max count of the operations in flight.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Returns the options with the provided executor. The executor is not shut down by the file system.
+     *
+     * @param executor the executor running the blocking file system operations.
+     *
+     * @return the changed options.
+     */
+    public AsyncOptions withExecutor(Executor executor) {
+        return new AsyncOptions(Objects.requireNonNull(executor, "executor must be not null"), maxInFlight);
+    }
+
+    /**
+     * Returns the options with the provided limit of the operations in flight.
+     *
+     * @param maxInFlight max count of the operations submitted to the executor at the same time, positive.
+     *
+     * @return the changed options.
+     */
+    public AsyncOptions withMaxInFlight(int maxInFlight) {
+        return new AsyncOptions(executor, maxInFlight);
+    }
+
+}
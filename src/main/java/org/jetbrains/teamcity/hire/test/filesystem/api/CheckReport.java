@@ -0,0 +1,76 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Result of the file system file consistency check, see {@link FileSystemsManager#check(java.nio.file.Path, boolean)}.
+ */
+public final class CheckReport {
+
+    private final List<String> problems;
+    private final List<Long> leakedBlocks;
+    private final List<Long> crossLinkedBlocks;
+    private final boolean repaired;
+
+    public CheckReport(List<String> problems, List<Long> leakedBlocks, List<Long> crossLinkedBlocks, boolean repaired) {
+        this.problems = Collections.unmodifiableList(Objects.requireNonNull(problems, "problems must be not null"));
+        this.leakedBlocks = Collections.unmodifiableList(Objects.requireNonNull(leakedBlocks, "leakedBlocks must be not null"));
+        this.crossLinkedBlocks = Collections.unmodifiableList(
+                Objects.requireNonNull(crossLinkedBlocks, "crossLinkedBlocks must be not null"));
+        this.repaired = repaired;
+    }
+
+    /**
+     * Returns {@code true} if no problems were found.
+     *
+     * @return {@code true} if the file is consistent.
+     */
+    public boolean isConsistent() {
+        return problems.isEmpty();
+    }
+
+    /**
+     * Human readable descriptions of all the found problems.
+     *
+     * @return found problems, empty if the file is consistent.
+     */
+    public List<String> getProblems() {
+        return problems;
+    }
+
+    /**
+     * Positions of the data blocks which are not reachable from any directory record.
+     *
+     * @return leaked blocks positions in ascending order.
+     */
+    public List<Long> getLeakedBlocks() {
+        return leakedBlocks;
+    }
+
+    /**
+     * Positions of the data blocks which are reachable from more than one directory record or more than once from the same record.
+     *
+     * @return cross-linked blocks positions in ascending order.
+     */
+    public List<Long> getCrossLinkedBlocks() {
+        return crossLinkedBlocks;
+    }
+
+    /**
+     * Returns {@code true} if the repair was requested and after it the file is consistent.
+     *
+     * @return {@code true} if the found problems were repaired.
+     */
+    public boolean isRepaired() {
+        return repaired;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CheckReport{problems=%s, leakedBlocks=%s, crossLinkedBlocks=%s, repaired=%s}",
+                problems, leakedBlocks, crossLinkedBlocks, repaired);
+    }
+
+}
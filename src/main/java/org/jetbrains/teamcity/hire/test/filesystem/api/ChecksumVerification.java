@@ -0,0 +1,26 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * Defines how the data blocks checksums are verified, see {@link LoadOptions#withChecksumVerification(ChecksumVerification)}.
+ * The checksums are maintained only if the file is formatted with {@link FormatOptions#withBlockChecksums(boolean)}.
+ */
+public enum ChecksumVerification {
+
+    /**
+     * The checksums are maintained, but not verified.
+     */
+    OFF,
+
+    /**
+     * The checksum of every data block is verified when the block is read. A block is verified once per loading:
+     * by its first read and by the first read after its change, the next reads do not read the whole block again.
+     */
+    ON_READ,
+
+    /**
+     * The checksums are verified by a background scrubber walking all the blocks with the limited speed,
+     * see {@link LoadOptions#withScrubRate(int)}.
+     */
+    BACKGROUND
+
+}
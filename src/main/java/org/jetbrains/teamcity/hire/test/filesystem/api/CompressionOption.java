@@ -0,0 +1,16 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * Defines how the file data is compressed. By default the data is stored as is.
+ * The compression is transparent: the file is read and written the same way, only the stored bytes are changed.
+ */
+public enum CompressionOption implements CreateFileOption {
+
+    /**
+     * The data is split into fixed size chunks (32 KB by default, can be changed with {@code compressionChunkSize} system property),
+     * every chunk is compressed by {@link java.util.zip.Deflater} with the best speed level.
+     * Reading or writing a range of the file decompresses only the chunks which the range touches.
+     */
+    DEFLATE
+
+}
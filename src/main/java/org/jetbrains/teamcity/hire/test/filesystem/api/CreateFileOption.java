@@ -0,0 +1,8 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * An option of file creation, see {@link Directory#createFile(String, int, CreateFileOption...)}.
+ */
+public interface CreateFileOption {
+
+}
@@ -0,0 +1,17 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * Defines whether the file data is deduplicated with the data of other files. By default every file stores its own copy.
+ * The deduplication is transparent: the file is read and written the same way, only the data placement is changed.
+ */
+public enum DeduplicationOption implements CreateFileOption {
+
+    /**
+     * The data is split into fixed size chunks (4 KB by default, can be changed with {@code deduplicationChunkSize} system property)
+     * identified by their SHA-256 hash. A chunk which is already stored by any deduplicated file is not written again, the file
+     * refers to the stored extent. Shared extents are reference counted and copied on write.
+     * Cannot be combined with {@link CompressionOption}.
+     */
+    DEDUPLICATE
+
+}
@@ -1,7 +1,10 @@
 package org.jetbrains.teamcity.hire.test.filesystem.api;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import javax.annotation.Nullable;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.IllegalFileNameException;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEmptyDirectoryException;
@@ -35,6 +38,46 @@ public interface Directory {
     File createFile(String name, int size)
             throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException;
 
+    /**
+     * Creates a file with the provided {@code name} at least {@code size} bytes size, the same as {@link #createFile(String, int)}.
+     * The file data placement can be controlled with {@link AllocationOption}s,
+     * the data can be stored compressed with {@link CompressionOption} or deduplicated with {@link DeduplicationOption}.
+     *
+     * @param name    the name of the file. Cannot be longer than 42 symbols by default.
+     *                Should contain only letters, digits, underscore and space, cannot start or end with space.
+     * @param size    non-negative value - required file size.
+     *                Really created file can be a little bit greater (to reduce fragmentation).
+     * @param options file creation options.
+     *
+     * @return created file.
+     *
+     * @throws IOException                 if some I/O error occurs.
+     * @throws IllegalFileNameException    if the provided file name is illegal.
+     * @throws NotEnoughFreeSpaceException if there are no enough free space in the file system file
+     *                                     or there is no single free block for {@link AllocationOption#CONTIGUOUS} file.
+     * @throws TooManyFilesException       if the directory reached its maximum capacity (2048 files by default).
+     */
+    File createFile(String name, int size, CreateFileOption... options)
+            throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException;
+
+    /**
+     * Creates several files at once, the same as {@link #createFile(String, int, CreateFileOption...)} for every one of them,
+     * but the directory records are read once and all the new records are written by one write. The data blocks chains
+     * of the files are allocated together in one pass over the free blocks. Either all the files are created or none of them.
+     *
+     * @param sizes   the names of the files to create with their required sizes.
+     * @param options file creation options of all the files.
+     *
+     * @return the created files by their names in the iteration order of {@code sizes}.
+     *
+     * @throws IOException                 if some I/O error occurs.
+     * @throws IllegalFileNameException    if any of the file names is illegal.
+     * @throws NotEnoughFreeSpaceException if there are no enough free space in the file system file for all the files.
+     * @throws TooManyFilesException       if the directory cannot contain all the files (2048 files by default).
+     */
+    Map<String, File> createFiles(Map<String, Integer> sizes, CreateFileOption... options)
+            throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException;
+
     /**
      * Creates a directory with the provided {@code name}.
      *
@@ -78,6 +121,111 @@ public interface Directory {
      */
     List<String> getFileNames() throws IOException;
 
+    /**
+     * Lists files and directories of the directory with their attributes, the same as {@link #listEntries(int)} with
+     * the page size defined by {@code listingPageSize} system property (256 records by default).
+     *
+     * @return iterator over the entries of the directory.
+     */
+    Iterator<DirectoryEntry> listEntries();
+
+    /**
+     * Lists files and directories of the directory with their attributes lazily. The directory records are read
+     * sequentially by pages of {@code pageSize} records when the iterator reaches them, so the listing does not load
+     * the whole directory and does not search every entry by its name. The entries changed after the page reading
+     * are not reflected by the iterator.
+     *
+     * @param pageSize count of directory records read at once.
+     *
+     * @return iterator over the entries of the directory, it throws {@link java.io.UncheckedIOException} if some
+     * I/O error occurs.
+     */
+    Iterator<DirectoryEntry> listEntries(int pageSize);
+
+    /**
+     * Finds files and directories with names starting with the {@code prefix} in ascending order of the names.
+     * The names are taken from a sorted index of the directory which is built by the first search in the loaded file
+     * system and then is maintained by the directory changes, so a search costs O(log n) plus the found names.
+     * The index is kept in memory only, so the first search in the directory after every loading reads all its
+     * records and costs O(n).
+     * The names are provided lazily, the names changed after the search can be reflected by the iterator or not.
+     *
+     * @param prefix the prefix of the names, directory names start with slash.
+     *
+     * @return iterator over the found names.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    Iterator<String> find(String prefix) throws IOException;
+
+    /**
+     * Finds files and directories with names matching the glob {@code pattern} in ascending order of the names, the
+     * same way as {@link #find(String)}. {@code *} matches any characters, {@code ?} matches one character,
+     * {@code [abc]}, {@code [a-z]} and {@code [!abc]} match one character of the class, backslash escapes the next
+     * character. Only the names starting with the literal beginning of the pattern are checked.
+     *
+     * @param pattern the glob pattern.
+     *
+     * @return iterator over the found names.
+     *
+     * @throws IOException              if some I/O error occurs.
+     * @throws IllegalArgumentException if the pattern is illegal.
+     */
+    Iterator<String> glob(String pattern) throws IOException;
+
+    /**
+     * Walks all the files and directories of the subtree of this directory. The file system opened read-only by
+     * {@link FileSystemsManager#loadReadOnly(java.nio.file.Path)} is read without the lock, so every its subdirectory is
+     * walked by its own fork/join task of the common pool as soon as its entry is read, and the subtrees are read in
+     * parallel with the rest of the directory. Other file systems serialize the reads by the lock, so they are walked
+     * sequentially in the calling thread.
+     *
+     * @param visitor the thread-safe visitor of the entries.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    void walk(DirectoryVisitor visitor) throws IOException;
+
+    /**
+     * Computes the total size of the subtree of this directory, walking it the same way as {@link #walk(DirectoryVisitor)}.
+     *
+     * @return the size and the entries count of the subtree.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    DiskUsage diskUsage() throws IOException;
+
+    /**
+     * Returns the usage of the subtree of this directory without a walk: it is read from the usage table updated by
+     * every change of the files sizes and of the tree. For a snapshot the usage is computed by {@link #diskUsage()}.
+     *
+     * @return the size and the entries count of the subtree, the same as {@link #diskUsage()} returns.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    DiskUsage getUsage() throws IOException;
+
+    /**
+     * Returns the quota of this directory set by {@link #setQuota(long)}.
+     *
+     * @return the maximum size of the subtree files in bytes, 0 if there is no quota.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    long getQuota() throws IOException;
+
+    /**
+     * Sets the maximum total size of the files of the subtree of this directory. The quota is checked before the
+     * space allocation by the files creating, writing and moving into the subtree, it is not checked for the
+     * already stored files, so the quota lesser than the current usage only prevents the growth.
+     *
+     * @param bytes the maximum size in bytes, 0 removes the quota.
+     *
+     * @throws IOException                 if some I/O error occurs.
+     * @throws NotEnoughFreeSpaceException if the usage table cannot be enlarged due to enough free space absence.
+     */
+    void setQuota(long bytes) throws IOException, NotEnoughFreeSpaceException;
+
     /**
      * Returns a file with the provided {@code name} or {@code null} if such file does not exist.
      *
@@ -114,4 +262,62 @@ public interface Directory {
      */
     void removeFile(String name) throws IOException, NotEmptyDirectoryException;
 
+    /**
+     * Removes a file or a directory with all its subtree by its {@code name} if it is presented in the directory.
+     * The data blocks chains of the whole subtree are collected first and are freed together, so the adjacent blocks
+     * are coalesced once. Removing a file is the same as {@link #removeFile(String)}.
+     *
+     * @param name the name of file or directory, directory name should start with slash.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    void removeRecursively(String name) throws IOException;
+
+    /**
+     * Renames a file or a directory, the same as {@link #move(String, Directory, String)} to this directory.
+     * Only the name in the directory record is rewritten.
+     *
+     * @param name    the name of file or directory.
+     * @param newName the new name, directory names should start with slash.
+     *
+     * @throws IOException                 if some I/O error occurs.
+     * @throws IllegalFileNameException    if the new name is illegal or is already presented.
+     * @throws NotEnoughFreeSpaceException never for the renaming in the same directory.
+     * @throws TooManyFilesException       never for the renaming in the same directory.
+     * @throws IllegalArgumentException    if there is no file or directory with such name.
+     */
+    void rename(String name, String newName)
+            throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException;
+
+    /**
+     * Moves a file or a directory with its subtree to the {@code target} directory of the same file system under the
+     * {@code newName}. The data is not copied: the directory record is moved, the data blocks stay in place.
+     * File objects obtained before the moving keep the old name. Files stored inline or in slabs are stored in the
+     * directory records, so their file objects obtained before the moving cannot be used after it.
+     *
+     * @param name    the name of file or directory in this directory.
+     * @param target  the directory to move to, can be this one.
+     * @param newName the name in the target directory, directory names should start with slash.
+     *
+     * @throws IOException                 if some I/O error occurs.
+     * @throws IllegalFileNameException    if the new name is illegal or is already presented in the target directory.
+     * @throws NotEnoughFreeSpaceException if the target directory records cannot be enlarged.
+     * @throws TooManyFilesException       if the target directory reached its maximum capacity (2048 files by default).
+     * @throws IllegalArgumentException    if there is no file or directory with such name, the target directory
+     *                                     belongs to another file system or is inside the moved directory.
+     */
+    void move(String name, Directory target, String newName)
+            throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException;
+
+    /**
+     * Removes several files and directories at once, the same as {@link #removeFile(String)} for every one of them,
+     * but the directory records are read once and are cleared by one write. Not presented names are skipped.
+     *
+     * @param names the names of files or directories.
+     *
+     * @throws IOException                if some I/O error occurs.
+     * @throws NotEmptyDirectoryException if any of the directories is not empty, then nothing is removed.
+     */
+    void removeFiles(Collection<String> names) throws IOException, NotEmptyDirectoryException;
+
 }
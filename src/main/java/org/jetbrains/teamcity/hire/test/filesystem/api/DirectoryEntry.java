@@ -0,0 +1,62 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * A file or a directory with its attributes read from the directory record, see {@link Directory#listEntries(int)}.
+ */
+public final class DirectoryEntry {
+
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long position;
+
+    public DirectoryEntry(String name, boolean directory, long size, long position) {
+        this.name = name;
+        this.directory = directory;
+        this.size = size;
+        this.position = position;
+    }
+
+    /**
+     * Name of the file or the directory, directory names start with slash.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Is the entry a directory.
+     *
+     * @return true for a directory, false for a file.
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * Size of the file as {@link File#getFileSize()} returns it, for a directory it is the size of its records space.
+     *
+     * @return size in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Position of the first data block storing the entry in the file system file. Files stored in a slab share
+     * the position of the slab, files stored inline in the directory record do not have a position.
+     *
+     * @return the position or 0 for inline files.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DirectoryEntry{name=%s, directory=%b, size=%d, position=%d}", name, directory, size, position);
+    }
+
+}
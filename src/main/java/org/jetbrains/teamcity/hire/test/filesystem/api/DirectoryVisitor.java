@@ -0,0 +1,21 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * Receives the entries of a directory subtree, see {@link Directory#walk(DirectoryVisitor)}.
+ * The subdirectories of a file system opened by {@link FileSystemsManager#loadReadOnly(java.nio.file.Path)} are walked
+ * in parallel, so the visitor is called by several threads at the same time. Other file systems are walked sequentially
+ * in the calling thread.
+ */
+@FunctionalInterface
+public interface DirectoryVisitor {
+
+    /**
+     * Visits a file or a directory of the subtree.
+     *
+     * @param parentPath the path of the directory containing the entry relative to the walked directory:
+     *                   the names of the nested directories joined together, empty for the walked directory itself.
+     * @param entry      the file or the directory.
+     */
+    void visit(String parentPath, DirectoryEntry entry);
+
+}
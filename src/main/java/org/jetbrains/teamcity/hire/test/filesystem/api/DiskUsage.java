@@ -0,0 +1,50 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * Total size and entries count of a directory subtree, see {@link Directory#diskUsage()} and {@link Directory#getUsage()}.
+ */
+public final class DiskUsage {
+
+    private final long size;
+    private final long filesCount;
+    private final long directoriesCount;
+
+    public DiskUsage(long size, long filesCount, long directoriesCount) {
+        this.size = size;
+        this.filesCount = filesCount;
+        this.directoriesCount = directoriesCount;
+    }
+
+    /**
+     * Sum of {@link File#getFileSize()} of all the files of the subtree, the space of the directory records is not counted.
+     *
+     * @return size in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Count of files in all the directories of the subtree.
+     *
+     * @return files count.
+     */
+    public long getFilesCount() {
+        return filesCount;
+    }
+
+    /**
+     * Count of directories of the subtree except the walked one.
+     *
+     * @return directories count.
+     */
+    public long getDirectoriesCount() {
+        return directoriesCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DiskUsage{size=%d, filesCount=%d, directoriesCount=%d}", size, filesCount, directoriesCount);
+    }
+
+}
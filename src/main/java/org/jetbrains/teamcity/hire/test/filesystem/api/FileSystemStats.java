@@ -0,0 +1,82 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+/**
+ * Space usage and entries count of the file system, see {@link RootDirectory#getStats()}.
+ */
+public final class FileSystemStats {
+
+    private final long totalSpace;
+    private final long usedSpace;
+    private final long blocksCount;
+    private final long filesCount;
+    private final long directoriesCount;
+
+    public FileSystemStats(long totalSpace, long usedSpace, long blocksCount, long filesCount, long directoriesCount) {
+        this.totalSpace = totalSpace;
+        this.usedSpace = usedSpace;
+        this.blocksCount = blocksCount;
+        this.filesCount = filesCount;
+        this.directoriesCount = directoriesCount;
+    }
+
+    /**
+     * Bytes of the file system file available for blocks.
+     *
+     * @return total space in bytes.
+     */
+    public long getTotalSpace() {
+        return totalSpace;
+    }
+
+    /**
+     * Bytes occupied by files and directories including their blocks service data.
+     *
+     * @return used space in bytes.
+     */
+    public long getUsedSpace() {
+        return usedSpace;
+    }
+
+    /**
+     * Bytes of free blocks. Take a note that free space can be fragmented.
+     *
+     * @return free space in bytes.
+     */
+    public long getFreeSpace() {
+        return totalSpace - usedSpace;
+    }
+
+    /**
+     * Count of all the data and free blocks.
+     *
+     * @return blocks count.
+     */
+    public long getBlocksCount() {
+        return blocksCount;
+    }
+
+    /**
+     * Count of files in all the directories.
+     *
+     * @return files count.
+     */
+    public long getFilesCount() {
+        return filesCount;
+    }
+
+    /**
+     * Count of directories except the root one.
+     *
+     * @return directories count.
+     */
+    public long getDirectoriesCount() {
+        return directoriesCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileSystemStats{totalSpace=%d, usedSpace=%d, blocksCount=%d, filesCount=%d, directoriesCount=%d}",
+                totalSpace, usedSpace, blocksCount, filesCount, directoriesCount);
+    }
+
+}
@@ -2,6 +2,7 @@ package org.jetbrains.teamcity.hire.test.filesystem.api;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.ReadOnlyFileSystemException;
 
 /**
  * Manages file system in a file creation, format and loading {@link RootDirectory} from properly formatted file.
@@ -19,6 +20,18 @@ public interface FileSystemsManager {
      */
     void createAndFormat(Path path, long fileSize) throws IOException;
 
+    /**
+     * Creates and formats a file at the {@code path} with the provided format {@code options}, the same as {@link #createAndFormat(Path, long)}.
+     * The options are persisted in the file.
+     *
+     * @param path     the path to the formatting file.
+     * @param fileSize file system full size. Cannot be lesser than 1000 by default.
+     * @param options  the format options.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    void createAndFormat(Path path, long fileSize, FormatOptions options) throws IOException;
+
     /**
      * Returns {@code true} if a file by the {@code path} is formatted according with the file system in a file format.
      *
@@ -43,4 +56,62 @@ public interface FileSystemsManager {
      */
     RootDirectory load(Path path) throws IOException;
 
+    /**
+     * Loads the previously formatted file with the provided {@code options}, the same as {@link #load(Path)}.
+     *
+     * @param path    the path to the formatted file.
+     * @param options the loading options.
+     *
+     * @return {@link RootDirectory} to operate with files. Take a note that {@link RootDirectory} should be closed after using!
+     *
+     * @throws IOException if the formatted file is already loaded or some another I/O error occurs.
+     */
+    RootDirectory load(Path path, LoadOptions options) throws IOException;
+
+    /**
+     * Loads the previously formatted file read-only, the same as {@link #load(Path)}, but the file is locked shared,
+     * so several processes can read it at the same time. The file cannot be loaded for writing before all of them
+     * will close it. Any modification of the obtained {@link RootDirectory} throws {@link ReadOnlyFileSystemException}.
+     * The file is memory mapped and is read without locking, so the obtained {@link RootDirectory} can be read
+     * by any count of threads in parallel.
+     *
+     * @param path the path to the formatted file.
+     *
+     * @return read-only {@link RootDirectory}. Take a note that {@link RootDirectory} should be closed after using!
+     *
+     * @throws IOException if the file is loaded for writing or by this process or some another I/O error occurs.
+     */
+    RootDirectory loadReadOnly(Path path) throws IOException;
+
+    /**
+     * Mounts the snapshot of the previously formatted file read-only, see {@link RootDirectory#snapshot(String)}.
+     * Any modification of the obtained {@link RootDirectory} throws {@link ReadOnlyFileSystemException}.
+     * If the file is loaded, the snapshot shares it with the loaded {@link RootDirectory}, so the snapshot can be read
+     * while the file system is written. Such snapshot can be used until the loaded {@link RootDirectory} is closed.
+     * Otherwise the file is locked shared, so it cannot be loaded before the snapshot will be closed.
+     *
+     * @param path         the path to the formatted file.
+     * @param snapshotName the name of the snapshot.
+     *
+     * @return read-only {@link RootDirectory} of the snapshot. Take a note that {@link RootDirectory} should be closed after using!
+     *
+     * @throws IOException              if some I/O error occurs.
+     * @throws IllegalArgumentException if there is no snapshot with such name.
+     */
+    RootDirectory loadSnapshot(Path path, String snapshotName) throws IOException;
+
+    /**
+     * Checks consistency of the not loaded formatted file: duplicated block lengths, data chains reachability from
+     * exactly one directory record and the superblock counters. Directory subtrees are checked in parallel.
+     *
+     * @param path   the path to the formatted file.
+     * @param repair {@code true} to repair the found problems: leaked blocks are freed, cross-linked and broken chains are cut,
+     *               adjacent free blocks are merged and the superblock counters are recalculated.
+     *
+     * @return the check report.
+     *
+     * @throws IOException if the file is loaded or some another I/O error occurs.
+     */
+    CheckReport check(Path path, boolean repair) throws IOException;
+
 }
@@ -0,0 +1,223 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+import java.util.Objects;
+
+/**
+ * Options of the file system file formatting, see {@link FileSystemsManager#createAndFormat(java.nio.file.Path, long, FormatOptions)}.
+ * The options are persisted in the file and are used by every loading of it.
+ * Immutable, use {@code with...} methods to get the changed options.
+ */
+public final class FormatOptions {
+
+    private static final int MAX_INLINE_FILE_SIZE = 1024;
+    private static final int MIN_SLAB_SLOT_SIZE = 64;
+    private static final int MAX_SLAB_SLOT_SIZE = 4096;
+
+    private static final FormatOptions DEFAULTS = new FormatOptions(
+            Integer.getInteger("fileNameSize", 42),
+            Integer.getInteger("maxFilesInDirectory", 2048),
+            Integer.getInteger("initialRootDirectoryCapacity", 16),
+            AllocationStrategy.FIRST_FIT,
+            Boolean.getBoolean("blockChecksums"),
+            Integer.getInteger("inlineFileSize", 0),
+            Integer.getInteger("slabMaxSlotSize", 0));
+
+    private final int fileNameSize;
+    private final int maxFilesInDirectory;
+    private final int initialDirectoryCapacity;
+    private final AllocationStrategy allocationStrategy;
+    private final boolean blockChecksums;
+    private final int inlineFileSize;
+    private final int slabMaxSlotSize;
+
+    private FormatOptions(int fileNameSize, int maxFilesInDirectory, int initialDirectoryCapacity,
+                          AllocationStrategy allocationStrategy, boolean blockChecksums, int inlineFileSize, int slabMaxSlotSize) {
+        if (fileNameSize < 2) {
+            throw new IllegalArgumentException("fileNameSize cannot be less than 2, but is " + fileNameSize);
+        }
+        this.fileNameSize = fileNameSize;
+        if (maxFilesInDirectory < 1) {
+            throw new IllegalArgumentException("maxFilesInDirectory must be positive, but is " + maxFilesInDirectory);
+        }
+        this.maxFilesInDirectory = maxFilesInDirectory;
+        if (initialDirectoryCapacity < 1) {
+            throw new IllegalArgumentException("initialDirectoryCapacity must be positive, but is " + initialDirectoryCapacity);
+        }
+        this.initialDirectoryCapacity = initialDirectoryCapacity;
+        this.allocationStrategy = Objects.requireNonNull(allocationStrategy, "allocationStrategy must be not null");
+        this.blockChecksums = blockChecksums;
+        if (inlineFileSize < 0 || inlineFileSize > MAX_INLINE_FILE_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "inlineFileSize must be between 0 and %d, but is %d", MAX_INLINE_FILE_SIZE, inlineFileSize));
+        }
+        this.inlineFileSize = inlineFileSize;
+        if (slabMaxSlotSize != 0 && (slabMaxSlotSize < MIN_SLAB_SLOT_SIZE || slabMaxSlotSize > MAX_SLAB_SLOT_SIZE
+                || Integer.bitCount(slabMaxSlotSize) != 1)) {
+            throw new IllegalArgumentException(String.format("slabMaxSlotSize must be 0 or a power of two between %d and %d, but is %d",
+                    MIN_SLAB_SLOT_SIZE, MAX_SLAB_SLOT_SIZE, slabMaxSlotSize));
+        }
+        this.slabMaxSlotSize = slabMaxSlotSize;
+    }
+
+    /**
+     * The default options: 42 bytes file names, 2048 files in directory, 16 files initial directory capacity, first fit allocation,
+     * no block checksums, no inline files, no slabs. The values can be changed with {@code fileNameSize}, {@code maxFilesInDirectory},
+     * {@code initialRootDirectoryCapacity}, {@code blockChecksums}, {@code inlineFileSize} and {@code slabMaxSlotSize} system properties.
+     *
+     * @return the default options.
+     */
+    public static FormatOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Max length of file and directory names (including the leading slash of directory names).
+     *
+     * @return max length of names.
+     */
+    public int getFileNameSize() {
+        return fileNameSize;
+    }
+
+    /**
+     * Max count of files and directories in one directory.
+     *
+     * @return max count of files in directory.
+     */
+    public int getMaxFilesInDirectory() {
+        return maxFilesInDirectory;
+    }
+
+    /**
+     * Count of files and directories which a new directory can store before its growing.
+     *
+     * @return initial files capacity of directory.
+     */
+    public int getInitialDirectoryCapacity() {
+        return initialDirectoryCapacity;
+    }
+
+    /**
+     * The allocation strategy used if it is not overridden by {@link LoadOptions}.
+     *
+     * @return the default allocation strategy of the file.
+     */
+    public AllocationStrategy getAllocationStrategy() {
+        return allocationStrategy;
+    }
+
+    /**
+     * Whether every data block stores the checksum of its data, see {@link LoadOptions#withChecksumVerification(ChecksumVerification)}.
+     *
+     * @return {@code true} if the data blocks checksums are maintained.
+     */
+    public boolean isBlockChecksums() {
+        return blockChecksums;
+    }
+
+    /**
+     * Max size of a file which is stored inside its directory record instead of a separate data block.
+     * Every directory record is wider by this size, a file is moved to a data block when it grows beyond it.
+     *
+     * @return max size of inline files, 0 if files are never stored inline.
+     */
+    public int getInlineFileSize() {
+        return inlineFileSize;
+    }
+
+    /**
+     * Max size of a file which is stored in a slot of a shared slab block instead of a separate data block.
+     * Slabs of one size class have equal slots of a power of two size from 64 bytes to this size, a file is moved
+     * to a data block when it grows beyond its slot.
+     *
+     * @return max size of slab files, 0 if slabs are not used.
+     */
+    public int getSlabMaxSlotSize() {
+        return slabMaxSlotSize;
+    }
+
+    /**
+     * Returns the options with the provided {@code fileNameSize}.
+     *
+     * @param fileNameSize max length of file and directory names, at least 2.
+     *
+     * @return the changed options.
+     */
+    public FormatOptions withFileNameSize(int fileNameSize) {
+        return new FormatOptions(fileNameSize, maxFilesInDirectory, initialDirectoryCapacity, allocationStrategy, blockChecksums,
+                inlineFileSize, slabMaxSlotSize);
+    }
+
+    /**
+     * Returns the options with the provided {@code maxFilesInDirectory}.
+     *
+     * @param maxFilesInDirectory max count of files and directories in one directory, positive.
+     *
+     * @return the changed options.
+     */
+    public FormatOptions withMaxFilesInDirectory(int maxFilesInDirectory) {
+        return new FormatOptions(fileNameSize, maxFilesInDirectory, initialDirectoryCapacity, allocationStrategy, blockChecksums,
+                inlineFileSize, slabMaxSlotSize);
+    }
+
+    /**
+     * Returns the options with the provided {@code initialDirectoryCapacity}.
+     *
+     * @param initialDirectoryCapacity count of files which a new directory can store before its growing, positive.
+     *
+     * @return the changed options.
+     */
+    public FormatOptions withInitialDirectoryCapacity(int initialDirectoryCapacity) {
+        return new FormatOptions(fileNameSize, maxFilesInDirectory, initialDirectoryCapacity, allocationStrategy, blockChecksums,
+                inlineFileSize, slabMaxSlotSize);
+    }
+
+    /**
+     * Returns the options with the provided {@code allocationStrategy}.
+     *
+     * @param allocationStrategy the allocation strategy used if it is not overridden by {@link LoadOptions}.
+     *
+     * @return the changed options.
+     */
+    public FormatOptions withAllocationStrategy(AllocationStrategy allocationStrategy) {
+        return new FormatOptions(fileNameSize, maxFilesInDirectory, initialDirectoryCapacity, allocationStrategy, blockChecksums,
+                inlineFileSize, slabMaxSlotSize);
+    }
+
+    /**
+     * Returns the options with the provided {@code blockChecksums}.
+     *
+     * @param blockChecksums {@code true} to maintain the checksum of every data block, it costs a read of the overwritten bytes.
+     *
+     * @return the changed options.
+     */
+    public FormatOptions withBlockChecksums(boolean blockChecksums) {
+        return new FormatOptions(fileNameSize, maxFilesInDirectory, initialDirectoryCapacity, allocationStrategy, blockChecksums,
+                inlineFileSize, slabMaxSlotSize);
+    }
+
+    /**
+     * Returns the options with the provided {@code inlineFileSize}.
+     *
+     * @param inlineFileSize max size of a file stored inside its directory record, from 0 (disabled) to 1024.
+     *
+     * @return the changed options.
+     */
+    public FormatOptions withInlineFileSize(int inlineFileSize) {
+        return new FormatOptions(fileNameSize, maxFilesInDirectory, initialDirectoryCapacity, allocationStrategy, blockChecksums,
+                inlineFileSize, slabMaxSlotSize);
+    }
+
+    /**
+     * Returns the options with the provided {@code slabMaxSlotSize}.
+     *
+     * @param slabMaxSlotSize max size of a file stored in a slab slot, 0 (disabled) or a power of two from 64 to 4096.
+     *
+     * @return the changed options.
+     */
+    public FormatOptions withSlabMaxSlotSize(int slabMaxSlotSize) {
+        return new FormatOptions(fileNameSize, maxFilesInDirectory, initialDirectoryCapacity, allocationStrategy, blockChecksums,
+                inlineFileSize, slabMaxSlotSize);
+    }
+
+}
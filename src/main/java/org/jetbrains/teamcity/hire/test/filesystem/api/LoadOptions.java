@@ -0,0 +1,101 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/**
+ * Options of the file system file loading, see {@link FileSystemsManager#load(java.nio.file.Path, LoadOptions)}.
+ * Immutable, use {@code with...} methods to get the changed options.
+ */
+public final class LoadOptions {
+
+    private static final LoadOptions DEFAULTS = new LoadOptions(null, ChecksumVerification.OFF, Integer.getInteger("scrubRate", 10));
+
+    @Nullable
+    private final AllocationStrategy allocationStrategy;
+    private final ChecksumVerification checksumVerification;
+    private final int scrubRate;
+
+    private LoadOptions(@Nullable AllocationStrategy allocationStrategy, ChecksumVerification checksumVerification, int scrubRate) {
+        this.allocationStrategy = allocationStrategy;
+        this.checksumVerification = Objects.requireNonNull(checksumVerification, "checksumVerification must be not null");
+        if (scrubRate < 1) {
+            throw new IllegalArgumentException("scrubRate must be positive, but is " + scrubRate);
+        }
+        this.scrubRate = scrubRate;
+    }
+
+    /**
+     * The default options: the allocation strategy provided by the file formatting, no checksums verification,
+     * 10 MB/s scrub rate (can be changed with {@code scrubRate} system property).
+     *
+     * @return the default options.
+     */
+    public static LoadOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * How free blocks are chosen for the data allocation.
+     *
+     * @return the allocation strategy or {@code null} if the strategy provided by the file formatting is used.
+     */
+    @Nullable
+    public AllocationStrategy getAllocationStrategy() {
+        return allocationStrategy;
+    }
+
+    /**
+     * How the data blocks checksums are verified.
+     *
+     * @return the checksums verification mode.
+     */
+    public ChecksumVerification getChecksumVerification() {
+        return checksumVerification;
+    }
+
+    /**
+     * Max speed of the background checksums verification, see {@link ChecksumVerification#BACKGROUND}.
+     *
+     * @return the scrub rate in megabytes per second.
+     */
+    public int getScrubRate() {
+        return scrubRate;
+    }
+
+    /**
+     * Returns the options with the provided allocation strategy.
+     *
+     * @param allocationStrategy how free blocks are chosen for the data allocation.
+     *
+     * @return the changed options.
+     */
+    public LoadOptions withAllocationStrategy(AllocationStrategy allocationStrategy) {
+        return new LoadOptions(Objects.requireNonNull(allocationStrategy, "allocationStrategy must be not null"),
+                checksumVerification, scrubRate);
+    }
+
+    /**
+     * Returns the options with the provided checksums verification mode.
+     * Only the files formatted with {@link FormatOptions#withBlockChecksums(boolean)} can be loaded with verification.
+     *
+     * @param checksumVerification how the data blocks checksums are verified.
+     *
+     * @return the changed options.
+     */
+    public LoadOptions withChecksumVerification(ChecksumVerification checksumVerification) {
+        return new LoadOptions(allocationStrategy, checksumVerification, scrubRate);
+    }
+
+    /**
+     * Returns the options with the provided scrub rate.
+     *
+     * @param scrubRate max speed of the background checksums verification in megabytes per second, positive.
+     *
+     * @return the changed options.
+     */
+    public LoadOptions withScrubRate(int scrubRate) {
+        return new LoadOptions(allocationStrategy, checksumVerification, scrubRate);
+    }
+
+}
@@ -1,6 +1,11 @@
 package org.jetbrains.teamcity.hire.test.filesystem.api;
 
 import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.IllegalFileNameException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.ReadOnlyFileSystemException;
 
 /**
  * The root directory of the file system.
@@ -9,4 +14,86 @@ import java.io.Closeable;
  */
 public interface RootDirectory extends Directory, Closeable {
 
+    /**
+     * Returns space usage and entries count of the whole file system. Does not scan blocks or directories.
+     *
+     * @return the file system statistics.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    FileSystemStats getStats() throws IOException;
+
+    /**
+     * Returns positions of the data blocks whose checksum mismatch was found by reads or by the background scrubber,
+     * see {@link ChecksumVerification}.
+     *
+     * @return corrupted blocks positions in ascending order, empty if no corruption was found.
+     */
+    List<Long> getCorruptedBlocks();
+
+    /**
+     * Returns the layout of the blocks in the file system file: the free blocks lengths histogram, the data chains
+     * lengths of the files, the most fragmented files and the compact space map for an offline visualization.
+     * The blocks are walked once sequentially and the directories are walked under the lock, so the file system
+     * is blocked for a time proportional to the blocks and entries count.
+     *
+     * @return the space map.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    SpaceMap spaceMap() throws IOException;
+
+    /**
+     * Returns the non-blocking facade of this root directory: every operation of it and of the files and directories
+     * obtained from it is run by the executor of the {@code options}. All the facades of the loaded file system share
+     * one limit of the operations in flight, it is taken from the options of the first facade. The facade can be used
+     * until this root directory is closed.
+     *
+     * @param options the executor and the limit of the operations in flight.
+     *
+     * @return the asynchronous root directory.
+     *
+     * @throws IllegalArgumentException if the limit of the operations in flight differs from the limit of the first
+     *                                  facade.
+     */
+    AsyncDirectory async(AsyncOptions options);
+
+    /**
+     * Takes a consistent point-in-time snapshot of the whole file system. Nothing is copied at the moment: the data is
+     * shared by the file system and the snapshot, and every data blocks chain is copied for the snapshot at its first change.
+     * The whole chain is copied, so the first small write to a big file after a snapshot costs the copy of the whole file
+     * and needs as much free space.
+     * The snapshot can be mounted read-only with {@link FileSystemsManager#loadSnapshot(java.nio.file.Path, String)}.
+     *
+     * @param name the name of the snapshot. Cannot be longer than the file name.
+     *             Should contain only letters, digits, underscore and space, cannot start or end with space.
+     *
+     * @throws IOException                 if some I/O error occurs.
+     * @throws IllegalFileNameException    if the name is illegal or a snapshot with such name is already presented.
+     * @throws NotEnoughFreeSpaceException if there are no enough free space for the snapshot tables.
+     * @throws ReadOnlyFileSystemException if this root directory is a mounted snapshot.
+     */
+    void snapshot(String name) throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException;
+
+    /**
+     * Returns the names of the snapshots of the file system, see {@link #snapshot(String)}.
+     *
+     * @return the snapshot names in the order of creation, the order is changed by a snapshot removal.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    List<String> getSnapshotNames() throws IOException;
+
+    /**
+     * Removes the snapshot and frees the data copied only for it.
+     *
+     * @param name the name of the snapshot.
+     *
+     * @throws IOException                 if some I/O error occurs.
+     * @throws IllegalArgumentException    if there is no snapshot with such name.
+     * @throws IllegalStateException       if the snapshot is mounted and not closed.
+     * @throws ReadOnlyFileSystemException if this root directory is a mounted snapshot.
+     */
+    void removeSnapshot(String name) throws IOException;
+
 }
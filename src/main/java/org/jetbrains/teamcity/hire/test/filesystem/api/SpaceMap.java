@@ -0,0 +1,139 @@
+package org.jetbrains.teamcity.hire.test.filesystem.api;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Layout of the blocks in the file system file, see {@link RootDirectory#spaceMap()}. Lengths of the extents are
+ * the full lengths of the blocks, the biggest file which can be stored without chaining is smaller by the block
+ * service data.
+ */
+public final class SpaceMap {
+
+    private final long totalSpace;
+    private final long freeSpace;
+    private final long largestFreeExtent;
+    private final SortedMap<Long, Long> freeExtents;
+    private final SortedMap<Integer, Long> chainLengths;
+    private final Map<String, Integer> mostFragmentedFiles;
+    private final long firstPosition;
+    private final long[] runs;
+
+    /**
+     * @param runs lengths of the runs of the adjacent used and free blocks starting from the {@code firstPosition},
+     *             the used and the free runs alternate, the first run is the used one.
+     */
+    public SpaceMap(long totalSpace, long freeSpace, long largestFreeExtent, SortedMap<Long, Long> freeExtents,
+                    SortedMap<Integer, Long> chainLengths, Map<String, Integer> mostFragmentedFiles,
+                    long firstPosition, long[] runs) {
+        this.totalSpace = totalSpace;
+        this.freeSpace = freeSpace;
+        this.largestFreeExtent = largestFreeExtent;
+        this.freeExtents = Collections.unmodifiableSortedMap(
+                new TreeMap<>(Objects.requireNonNull(freeExtents, "freeExtents must be not null")));
+        this.chainLengths = Collections.unmodifiableSortedMap(
+                new TreeMap<>(Objects.requireNonNull(chainLengths, "chainLengths must be not null")));
+        this.mostFragmentedFiles = Collections.unmodifiableMap(
+                new LinkedHashMap<>(Objects.requireNonNull(mostFragmentedFiles, "mostFragmentedFiles must be not null")));
+        this.firstPosition = firstPosition;
+        this.runs = Objects.requireNonNull(runs, "runs must be not null").clone();
+    }
+
+    /**
+     * Bytes of the file system file available for blocks.
+     *
+     * @return total space in bytes.
+     */
+    public long getTotalSpace() {
+        return totalSpace;
+    }
+
+    /**
+     * Bytes of free blocks.
+     *
+     * @return free space in bytes.
+     */
+    public long getFreeSpace() {
+        return freeSpace;
+    }
+
+    /**
+     * Length of the biggest free block, a bigger allocation is stored in a chain of blocks.
+     *
+     * @return largest free extent in bytes, 0 if there is no free space.
+     */
+    public long getLargestFreeExtent() {
+        return largestFreeExtent;
+    }
+
+    /**
+     * Share of the free space which is not in the largest free block: 0 if all the free space is in one block,
+     * close to 1 if it is split to many small ones.
+     *
+     * @return external fragmentation between 0 and 1.
+     */
+    public double getFragmentation() {
+        return freeSpace == 0 ? 0 : 1 - (double) largestFreeExtent / freeSpace;
+    }
+
+    /**
+     * Histogram of the free blocks lengths by powers of two: the key {@code 2^n} counts the free blocks
+     * from {@code 2^n} to {@code 2^(n+1) - 1} bytes long.
+     *
+     * @return free blocks count by the lowest length of the range in ascending order.
+     */
+    public SortedMap<Long, Long> getFreeExtents() {
+        return freeExtents;
+    }
+
+    /**
+     * Distribution of the data chains lengths of the files. Files stored inline or in a slab have no own chains
+     * and are not counted.
+     *
+     * @return files count by the data blocks count of their chains in ascending order.
+     */
+    public SortedMap<Integer, Long> getChainLengths() {
+        return chainLengths;
+    }
+
+    /**
+     * Files with the longest data chains, they are the first to be rewritten by a compaction.
+     *
+     * @return data blocks count of the chains by the paths of the files starting from the root one,
+     *         the longest chains first.
+     */
+    public Map<String, Integer> getMostFragmentedFiles() {
+        return mostFragmentedFiles;
+    }
+
+    /**
+     * Writes the compact space map in CSV for an offline visualization: a {@code position,length,state} line for
+     * every run of the adjacent used or free blocks in the order of positions, the state is {@code used} or {@code free}.
+     *
+     * @param out the destination of the lines.
+     *
+     * @throws IOException if the destination throws it.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        Objects.requireNonNull(out, "out must be not null");
+        out.append("position,length,state\n");
+        long position = firstPosition;
+        for (int i = 0; i < runs.length; i++) {
+            out.append(String.format("%d,%d,%s\n", position, runs[i], i % 2 == 0 ? "used" : "free"));
+            position += runs[i];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SpaceMap{totalSpace=%d, freeSpace=%d, largestFreeExtent=%d, freeExtents=%s, chainLengths=%s, "
+                        + "mostFragmentedFiles=%s, runsCount=%d}", totalSpace, freeSpace, largestFreeExtent, freeExtents,
+                chainLengths, mostFragmentedFiles, runs.length);
+    }
+
+}
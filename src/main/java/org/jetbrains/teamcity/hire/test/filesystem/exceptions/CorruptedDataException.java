@@ -0,0 +1,14 @@
+package org.jetbrains.teamcity.hire.test.filesystem.exceptions;
+
+/**
+ * The data read from the file system file does not match the checksum of its block.
+ */
+public class CorruptedDataException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CorruptedDataException(long blockPosition) {
+        super(String.format("Checksum mismatch of the data block at %d!", blockPosition));
+    }
+
+}
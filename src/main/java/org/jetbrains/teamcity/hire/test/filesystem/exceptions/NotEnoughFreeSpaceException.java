@@ -11,4 +11,8 @@ public class NotEnoughFreeSpaceException extends RuntimeException {
         super("Not enough free space in the file!");
     }
 
+    protected NotEnoughFreeSpaceException(String message) {
+        super(message);
+    }
+
 }
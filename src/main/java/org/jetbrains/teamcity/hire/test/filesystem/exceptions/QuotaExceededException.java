@@ -0,0 +1,15 @@
+package org.jetbrains.teamcity.hire.test.filesystem.exceptions;
+
+/**
+ * The files of a directory subtree would exceed the quota of the directory. It is a kind of not enough free space,
+ * so the operations throwing {@link NotEnoughFreeSpaceException} throw it for the quotas.
+ */
+public class QuotaExceededException extends NotEnoughFreeSpaceException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QuotaExceededException(long quota, long requiredBytes) {
+        super(String.format("The directory quota %d bytes is exceeded: %d bytes are required", quota, requiredBytes));
+    }
+
+}
@@ -0,0 +1,14 @@
+package org.jetbrains.teamcity.hire.test.filesystem.exceptions;
+
+/**
+ * Attempt to modify a file system which is mounted read-only, for example a snapshot.
+ */
+public class ReadOnlyFileSystemException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ReadOnlyFileSystemException() {
+        super("The file system is mounted read-only!");
+    }
+
+}
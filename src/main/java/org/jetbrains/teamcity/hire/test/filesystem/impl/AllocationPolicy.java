@@ -0,0 +1,52 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AllocationStrategy;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Chooses free blocks for the data allocation. One instance serves one loaded file system file.
+ */
+interface AllocationPolicy {
+
+    /**
+     * Finds the free block to start a new chain of {@code dataCapacity} bytes from.
+     *
+     * @param anyBlock any block of the file system file.
+     */
+    FreeBlock findFreeBlock(Block anyBlock, long dataCapacity) throws IOException, NotEnoughFreeSpaceException;
+
+    /**
+     * Finds the free block to continue the chain ending with {@code previous}, {@code dataCapacity} bytes are still required.
+     */
+    FreeBlock findNextFreeBlock(DataBlock previous, long dataCapacity) throws IOException, NotEnoughFreeSpaceException;
+
+    /**
+     * Full length of a data block cut from a bigger free block to store {@code dataCapacity} bytes.
+     */
+    default long getDataBlockLength(long dataCapacity) {
+        return Math.max(Block.SERVICE_DATA_BYTES + dataCapacity, Block.MIN_BLOCK_LENGTH);
+    }
+
+    /**
+     * Is called when a block starting at {@code startPosition} gets new {@code length}: created, split or merged.
+     */
+    default void blockLengthChanged(long startPosition, long length) {
+    }
+
+    static AllocationPolicy create(AllocationStrategy strategy) {
+        switch (strategy) {
+            case FIRST_FIT:
+                return new FirstFitAllocationPolicy();
+            case NEXT_FIT:
+                return new NextFitAllocationPolicy();
+            case BEST_FIT:
+                return new BestFitAllocationPolicy();
+            case BUDDY:
+                return new BuddyAllocationPolicy();
+            default:
+                throw new IllegalArgumentException("Unexpected allocation strategy: " + strategy);
+        }
+    }
+
+}
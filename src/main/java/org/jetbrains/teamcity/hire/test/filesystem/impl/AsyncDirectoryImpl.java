@@ -0,0 +1,85 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AsyncDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AsyncFile;
+import org.jetbrains.teamcity.hire.test.filesystem.api.CreateFileOption;
+import org.jetbrains.teamcity.hire.test.filesystem.api.Directory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+
+class AsyncDirectoryImpl implements AsyncDirectory {
+
+    private final Directory directory;
+    private final AsyncOperations operations;
+    private final Executor executor;
+
+    AsyncDirectoryImpl(Directory directory, AsyncOperations operations, Executor executor) {
+        this.directory = Objects.requireNonNull(directory, "directory must be not null");
+        this.operations = Objects.requireNonNull(operations, "operations must be not null");
+        this.executor = Objects.requireNonNull(executor, "executor must be not null");
+    }
+
+    @Override
+    public String getName() {
+        return directory.getName();
+    }
+
+    @Override
+    public CompletableFuture<AsyncFile> createFile(String name, int size, CreateFileOption... options) {
+        Objects.requireNonNull(name, "name must be not null");
+        Objects.requireNonNull(options, "options must be not null");
+        return operations.submit(executor, () -> toAsync(directory.createFile(name, size, options.clone())));
+    }
+
+    @Override
+    public CompletableFuture<AsyncDirectory> createDirectory(String name) {
+        Objects.requireNonNull(name, "name must be not null");
+        return operations.submit(executor, () -> toAsync(directory.createDirectory(name)));
+    }
+
+    @Override
+    public CompletableFuture<Integer> getFilesCount() {
+        return operations.submit(executor, directory::getFilesCount);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getFileNames() {
+        return operations.submit(executor, directory::getFileNames);
+    }
+
+    @Override
+    public CompletableFuture<AsyncFile> getFile(String name) {
+        Objects.requireNonNull(name, "name must be not null");
+        return operations.submit(executor, () -> toAsync(directory.getFile(name)));
+    }
+
+    @Override
+    public CompletableFuture<AsyncDirectory> getDirectory(String name) {
+        Objects.requireNonNull(name, "name must be not null");
+        return operations.submit(executor, () -> toAsync(directory.getDirectory(name)));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeFile(String name) {
+        Objects.requireNonNull(name, "name must be not null");
+        return operations.submit(executor, () -> {
+            directory.removeFile(name);
+            return null;
+        });
+    }
+
+    @Nullable
+    private AsyncFile toAsync(@Nullable File file) {
+        return file == null ? null : new AsyncFileImpl(file, operations, executor);
+    }
+
+    @Nullable
+    private AsyncDirectory toAsync(@Nullable Directory directory) {
+        return directory == null ? null : new AsyncDirectoryImpl(directory, operations, executor);
+    }
+
+}
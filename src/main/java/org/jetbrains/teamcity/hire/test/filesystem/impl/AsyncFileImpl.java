@@ -0,0 +1,52 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AsyncFile;
+import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+
+class AsyncFileImpl implements AsyncFile {
+
+    private final File file;
+    private final AsyncOperations operations;
+    private final Executor executor;
+
+    AsyncFileImpl(File file, AsyncOperations operations, Executor executor) {
+        this.file = Objects.requireNonNull(file, "file must be not null");
+        this.operations = Objects.requireNonNull(operations, "operations must be not null");
+        this.executor = Objects.requireNonNull(executor, "executor must be not null");
+    }
+
+    @Override
+    public String getName() {
+        return file.getName();
+    }
+
+    @Override
+    public CompletableFuture<Long> getFileSize() {
+        return operations.submit(executor, file::getFileSize);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> read(int offset, int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length must be >= 0");
+        }
+        return operations.submit(executor, () -> {
+            byte[] destination = new byte[length];
+            file.read(offset, destination);
+            return destination;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> write(int offset, byte[] data) {
+        Objects.requireNonNull(data, "data must be not null");
+        return operations.submit(executor, () -> {
+            file.write(offset, data);
+            return null;
+        });
+    }
+
+}
@@ -0,0 +1,120 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AsyncOptions;
+
+/**
+ * Runs the blocking file system operations of all the asynchronous facades of a loaded file system, so they share
+ * one limit of the operations in flight: the {@link AsyncOptions#getMaxInFlight()} of the first facade. At most that
+ * many operations are submitted to the executors of their facades at the same time, the rest wait in the queue,
+ * so the submitting thread is never blocked.
+ */
+class AsyncOperations {
+
+    private final int maxInFlight;
+    private final Queue<Operation<?>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    AsyncOperations(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return the executor of the {@code options} or the shared default one.
+     */
+    static Executor getExecutor(AsyncOptions options) {
+        return options.getExecutor() != null ? options.getExecutor() : DefaultExecutor.INSTANCE;
+    }
+
+    <T> CompletableFuture<T> submit(Executor executor, Action<T> action) {
+        Operation<T> operation = new Operation<>(executor, action);
+        pending.add(operation);
+        runPending();
+        return operation.future;
+    }
+
+    private void runPending() {
+        while (!pending.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return; // the completion of an operation in flight runs the pending ones
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Operation<?> operation = pending.poll();
+            if (operation == null) {
+                inFlight.decrementAndGet(); // taken by another thread
+                continue;
+            }
+            try {
+                operation.executor.execute(() -> {
+                    try {
+                        operation.run();
+                    } finally {
+                        inFlight.decrementAndGet();
+                        runPending();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+                operation.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A blocking file system operation.
+     */
+    interface Action<T> {
+        T run() throws Exception;
+    }
+
+    private static class Operation<T> {
+        final Executor executor;
+        final Action<T> action;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Operation(Executor executor, Action<T> action) {
+            this.executor = Objects.requireNonNull(executor, "executor must be not null");
+            this.action = Objects.requireNonNull(action, "action must be not null");
+        }
+
+        void run() {
+            try {
+                future.complete(action.run());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class DefaultExecutor {
+        static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                // the sources are compiled for Java 8, so the virtual threads of Java 21+ are found by reflection
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "file system async operation");
+                    thread.setDaemon(true); // the shared executor is never shut down
+                    return thread;
+                });
+            }
+        }
+    }
+
+}
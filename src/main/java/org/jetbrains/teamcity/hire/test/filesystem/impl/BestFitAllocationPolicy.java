@@ -0,0 +1,27 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.util.Optional;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Takes the smallest free block which fits the data. If there is no such block, takes the biggest one to keep the chain short.
+ */
+class BestFitAllocationPolicy implements AllocationPolicy {
+
+    @Override
+    public FreeBlock findFreeBlock(Block anyBlock, long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        long blockDataCapacity = getDataBlockLength(dataCapacity) - Block.SERVICE_DATA_BYTES;
+        Optional<FreeBlock> bestFitting = anyBlock.findBestFittingFreeBlock(blockDataCapacity);
+        if (bestFitting.isPresent()) {
+            return bestFitting.get();
+        }
+        return anyBlock.findLargestFreeBlock();
+    }
+
+    @Override
+    public FreeBlock findNextFreeBlock(DataBlock previous, long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        return findFreeBlock(previous, dataCapacity);
+    }
+
+}
@@ -2,36 +2,49 @@ package org.jetbrains.teamcity.hire.test.filesystem.impl;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.ReadOnlyFileSystemException;
 
 class Block {
 
-    // Structure: TYPE_BYTES, LENGTH_BYTES, POSITION_BYTES, something, LENGTH_BYTES.
+    // Structure: TYPE_BYTES, LENGTH_BYTES, POSITION_BYTES, CHECKSUM_BYTES, HIGH_WATER_MARK_BYTES, something, LENGTH_BYTES.
 
     static final int TYPE_BYTES = 1; // is it free or data
     static final int LENGTH_BYTES = 8; // full length of the block: long
     static final int POSITION_BYTES = 8; // position of the next data block in chain: long
-    static final int SERVICE_DATA_BYTES = TYPE_BYTES + LENGTH_BYTES + POSITION_BYTES + LENGTH_BYTES;
+    static final int CHECKSUM_BYTES = 4; // CRC32 of the data space bytes up to the high-water mark: int
+    static final int HIGH_WATER_MARK_BYTES = 8; // count of data space bytes which were ever written: long
+    static final int SERVICE_DATA_BYTES =
+            TYPE_BYTES + LENGTH_BYTES + POSITION_BYTES + CHECKSUM_BYTES + HIGH_WATER_MARK_BYTES + LENGTH_BYTES;
 
     static final int LENGTH_FIRST_OFFSET = TYPE_BYTES;
     static final int POSITION_OFFSET = LENGTH_FIRST_OFFSET + LENGTH_BYTES;
-    static final int DATA_OFFSET = POSITION_OFFSET + POSITION_BYTES;
+    static final int CHECKSUM_OFFSET = POSITION_OFFSET + POSITION_BYTES;
+    static final int HIGH_WATER_MARK_OFFSET = CHECKSUM_OFFSET + CHECKSUM_BYTES;
+    static final int DATA_OFFSET = HIGH_WATER_MARK_OFFSET + HIGH_WATER_MARK_BYTES;
 
-    // To avoid too little block creation that can lead to fragmentation
-    static final int MIN_DATA_CAPACITY = Integer.getInteger("minDataCapacity", 20);
+    // To avoid too little block creation that can lead to fragmentation (45 bytes min block length by default)
+    static final int MIN_DATA_CAPACITY = Integer.getInteger("minDataCapacity", 8);
     static final int MIN_BLOCK_LENGTH = SERVICE_DATA_BYTES + MIN_DATA_CAPACITY;
 
     // To avoid loading too big data into memory
     static final int MAX_BYTE_ARRAY_SIZE = Integer.getInteger("maxByteArraySize", 1_000_000);
 
-    private static final byte FREE_BLOCK = 0;
-    private static final byte DATA_BLOCK = 1;
+    static final byte FREE_BLOCK = 0;
+    static final byte DATA_BLOCK = 1;
+    static final byte COMPRESSED_DATA_BLOCK = 2; // the first block of a compressed file chain, see CompressedContent
+    static final byte SLAB_DATA_BLOCK = 3; // the first block of a slab chain, see SlabAllocator
+    static final byte DEDUPLICATED_DATA_BLOCK = 4; // the first block of a deduplicated file chain, see DeduplicatedContent
+    static final byte EXTENT_DATA_BLOCK = 5; // the first block of a shared extent chain, see DeduplicatedContent
 
     private static final int UNKNOWN_TYPE = -1;
     private static final long UNKNOWN_LENGTH = -1L;
 
+    final Container container;
     final RandomAccessFile file;
     final long firstBlockPosition;
     final long fileSize;
@@ -40,17 +53,11 @@ class Block {
     private int type = UNKNOWN_TYPE;
     private long length = UNKNOWN_LENGTH;
 
-    // Transfer file length to avoid IO operations in constructor
-    Block(RandomAccessFile file, long firstBlockPosition, long fileSize, long startPosition) {
-        this.file = Objects.requireNonNull(file, "file must be not null");
-        if (firstBlockPosition < 0) {
-            throw new IllegalArgumentException("firstBlockPosition should not be negative");
-        }
-        this.firstBlockPosition = firstBlockPosition;
-        if (fileSize <= 0) {
-            throw new IllegalArgumentException("fileSize should be positive");
-        }
-        this.fileSize = fileSize;
+    Block(Container container, long startPosition) {
+        this.container = Objects.requireNonNull(container, "container must be not null");
+        this.file = container.file;
+        this.firstBlockPosition = container.firstBlockPosition;
+        this.fileSize = container.fileSize;
         if (startPosition < firstBlockPosition || startPosition >= fileSize) {
             throw new IllegalArgumentException(String.format(
                     "Illegal startPosition value %s, must be between %s and %s", startPosition, firstBlockPosition, fileSize));
@@ -59,59 +66,114 @@ class Block {
     }
 
     Block(Block base) {
-        this(base.file, base.firstBlockPosition, base.fileSize, base.startPosition);
+        this(base.container, base.startPosition);
     }
 
     Block(Block base, long newPosition) {
-        this(base.file, base.firstBlockPosition, base.fileSize, newPosition);
+        this(base.container, newPosition);
     }
 
     boolean isFree() throws IOException {
         if (type == UNKNOWN_TYPE) {
-            file.seek(startPosition);
-            type = file.readByte();
+            type = readByte(startPosition);
         }
         return type == FREE_BLOCK;
     }
 
+    /**
+     * Rejects changes of a read-only container, e.g. of a mounted snapshot.
+     */
+    void checkWritable() {
+        if (container.readOnly) {
+            throw new ReadOnlyFileSystemException();
+        }
+    }
+
+    byte getType() throws IOException {
+        isFree(); // loads the type
+        return (byte) type;
+    }
+
+    void setType(byte type) throws IOException {
+        seek(startPosition);
+        file.writeByte(type);
+        this.type = type;
+    }
+
     void setFree() throws IOException {
-        file.seek(startPosition);
+        seek(startPosition);
         file.writeByte(FREE_BLOCK);
         type = FREE_BLOCK;
     }
 
     void setData() throws IOException {
-        file.seek(startPosition);
+        seek(startPosition);
         file.writeByte(DATA_BLOCK);
         type = DATA_BLOCK;
     }
 
+    boolean isCompressed() throws IOException {
+        isFree(); // loads the type
+        return type == COMPRESSED_DATA_BLOCK;
+    }
+
+    void setCompressed() throws IOException {
+        seek(startPosition);
+        file.writeByte(COMPRESSED_DATA_BLOCK);
+        type = COMPRESSED_DATA_BLOCK;
+    }
+
+    boolean isSlab() throws IOException {
+        isFree(); // loads the type
+        return type == SLAB_DATA_BLOCK;
+    }
+
+    void setSlab() throws IOException {
+        seek(startPosition);
+        file.writeByte(SLAB_DATA_BLOCK);
+        type = SLAB_DATA_BLOCK;
+    }
+
+    boolean isDeduplicated() throws IOException {
+        isFree(); // loads the type
+        return type == DEDUPLICATED_DATA_BLOCK;
+    }
+
+    void setDeduplicated() throws IOException {
+        seek(startPosition);
+        file.writeByte(DEDUPLICATED_DATA_BLOCK);
+        type = DEDUPLICATED_DATA_BLOCK;
+    }
+
+    void setExtent() throws IOException {
+        seek(startPosition);
+        file.writeByte(EXTENT_DATA_BLOCK);
+        type = EXTENT_DATA_BLOCK;
+    }
+
     long getLength() throws IOException {
         if (length == UNKNOWN_LENGTH) {
-            file.seek(startPosition + LENGTH_FIRST_OFFSET);
-            length = file.readLong();
+            length = readLong(startPosition + LENGTH_FIRST_OFFSET);
         }
         return length;
     }
 
     void setLength(long length) throws IOException {
-        file.seek(startPosition + LENGTH_FIRST_OFFSET);
+        seek(startPosition + LENGTH_FIRST_OFFSET);
         file.writeLong(length);
-        file.seek(startPosition + length - LENGTH_BYTES);
+        seek(startPosition + length - LENGTH_BYTES);
         // length duplicating in the end allows to find the beginning of the previous block, see getPrevious()
         file.writeLong(length);
         this.length = length;
-    }
-
-    void fillDataSpaceAsEmpty() throws IOException {
-        fillWithZeros(startPosition + DATA_OFFSET, getDataCapacity());
+        container.layoutVersion++;
+        container.allocationPolicy.blockLengthChanged(startPosition, length);
     }
 
     void fillWithZeros(long position, long bytes) throws IOException {
         long bytesLeft = bytes;
         int bytesToWriteAtOnce = (int) Math.min(bytesLeft, MAX_BYTE_ARRAY_SIZE);
         byte[] emptyArray = new byte[bytesToWriteAtOnce];
-        file.seek(position);
+        seek(position);
         while (bytesLeft > 0) {
             file.write(emptyArray, 0, bytesToWriteAtOnce);
             bytesLeft -= bytesToWriteAtOnce;
@@ -119,6 +181,46 @@ class Block {
         }
     }
 
+    void seek(long position) throws IOException {
+        container.metrics.seek();
+        file.seek(position);
+    }
+
+    // Positional reads of the file: from the mapping if the container is mapped, so they need no lock
+
+    byte readByte(long position) throws IOException {
+        if (container.mapped != null) {
+            return container.mapped.readByte(position);
+        }
+        seek(position);
+        return file.readByte();
+    }
+
+    int readInt(long position) throws IOException {
+        if (container.mapped != null) {
+            return container.mapped.readInt(position);
+        }
+        seek(position);
+        return file.readInt();
+    }
+
+    long readLong(long position) throws IOException {
+        if (container.mapped != null) {
+            return container.mapped.readLong(position);
+        }
+        seek(position);
+        return file.readLong();
+    }
+
+    void readFully(long position, byte[] destination, int offset, int length) throws IOException {
+        if (container.mapped != null) {
+            container.mapped.readFully(position, destination, offset, length);
+            return;
+        }
+        seek(position);
+        file.readFully(destination, offset, length);
+    }
+
     long getStartPosition() {
         return startPosition;
     }
@@ -139,11 +241,61 @@ class Block {
         if (startPosition == firstBlockPosition) {
             return Optional.empty();
         }
-        file.seek(startPosition - LENGTH_BYTES);
-        long previousBlockLength = file.readLong();
+        long previousBlockLength = readLong(startPosition - LENGTH_BYTES);
         return Optional.of(new Block(this, startPosition - previousBlockLength));
     }
 
+    /**
+     * Allocates a chain of data blocks with at least {@code dataCapacity} free space according to the allocation policy.
+     */
+    DataBlock allocateChain(long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        return container.allocationPolicy.findFreeBlock(this, dataCapacity).allocate(dataCapacity);
+    }
+
+    /**
+     * Allocates data blocks with at least {@code dataCapacity} free space which are not a new chain,
+     * see {@link FreeBlock#allocateBlocks(long)}.
+     */
+    DataBlock allocateBlocks(long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        return container.allocationPolicy.findFreeBlock(this, dataCapacity).allocateBlocks(dataCapacity);
+    }
+
+    /**
+     * Allocates a chain for every one of {@code dataCapacities}. The allocation policy chooses the free block for all
+     * of them together, then the chains are cut one after another from the rest of it, so the free blocks are searched
+     * again only when the rest is too small. If there is not enough free space, already allocated chains are freed back.
+     *
+     * @return the first blocks of the chains in the order of the capacities.
+     */
+    List<DataBlock> allocateChains(long[] dataCapacities) throws IOException, NotEnoughFreeSpaceException {
+        AllocationPolicy allocationPolicy = container.allocationPolicy;
+        long remainingLength = 0;
+        for (long dataCapacity : dataCapacities) {
+            remainingLength += allocationPolicy.getDataBlockLength(dataCapacity);
+        }
+        List<DataBlock> chains = new ArrayList<>(dataCapacities.length);
+        try {
+            FreeBlock free = null;
+            for (long dataCapacity : dataCapacities) {
+                if (free == null || free.getDataCapacity() < dataCapacity) {
+                    free = allocationPolicy.findFreeBlock(this, remainingLength - SERVICE_DATA_BYTES);
+                }
+                DataBlock chain = free.allocate(dataCapacity);
+                chains.add(chain);
+                remainingLength -= allocationPolicy.getDataBlockLength(dataCapacity);
+                // the rest of the split free block follows the cut data block
+                Optional<Block> next = chain.getNext();
+                free = next.isPresent() && next.get().isFree() ? new FreeBlock(next.get()) : null;
+            }
+        } catch (NotEnoughFreeSpaceException e) {
+            for (DataBlock chain : chains) {
+                chain.freeChain();
+            }
+            throw e;
+        }
+        return chains;
+    }
+
     FreeBlock findFirstFreeBlock() throws IOException, NotEnoughFreeSpaceException {
         Block first = new Block(this, firstBlockPosition);
         if (first.isFree()) {
@@ -152,12 +304,93 @@ class Block {
         return first.findNextFreeBlock();
     }
 
+    /**
+     * Finds the first free block which can store {@code dataCapacity} bytes without chaining.
+     */
+    Optional<FreeBlock> findFirstFittingFreeBlock(long dataCapacity) throws IOException {
+        Optional<Block> block = Optional.of(new Block(this, firstBlockPosition));
+        while (block.isPresent()) {
+            if (block.get().isFree() && block.get().getDataCapacity() >= dataCapacity) {
+                return Optional.of(new FreeBlock(block.get()));
+            }
+            block = block.get().getNext();
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Finds the smallest free block which can store {@code dataCapacity} bytes without chaining.
+     */
+    Optional<FreeBlock> findBestFittingFreeBlock(long dataCapacity) throws IOException {
+        Block bestFitting = null;
+        Optional<Block> block = Optional.of(new Block(this, firstBlockPosition));
+        while (block.isPresent()) {
+            Block current = block.get();
+            if (current.isFree() && current.getDataCapacity() >= dataCapacity
+                    && (bestFitting == null || current.getLength() < bestFitting.getLength())) {
+                bestFitting = current;
+                if (current.getDataCapacity() == dataCapacity) {
+                    break; // cannot be better
+                }
+            }
+            block = current.getNext();
+        }
+        return Optional.ofNullable(bestFitting).map(FreeBlock::new);
+    }
+
+    /**
+     * Finds the free block nearest to the {@code position} which can store {@code dataCapacity} bytes without chaining.
+     */
+    Optional<FreeBlock> findNearestFittingFreeBlock(long dataCapacity, long position) throws IOException {
+        Block nearest = null;
+        long nearestDistance = Long.MAX_VALUE;
+        Optional<Block> block = Optional.of(new Block(this, firstBlockPosition));
+        while (block.isPresent()) {
+            Block current = block.get();
+            long distance = Math.abs(current.getStartPosition() - position);
+            if (current.getStartPosition() > position && distance >= nearestDistance) {
+                break; // blocks are going away from the position
+            }
+            if (current.isFree() && current.getDataCapacity() >= dataCapacity && distance < nearestDistance) {
+                nearest = current;
+                nearestDistance = distance;
+            }
+            block = current.getNext();
+        }
+        return Optional.ofNullable(nearest).map(FreeBlock::new);
+    }
+
+    /**
+     * Finds the biggest free block.
+     */
+    FreeBlock findLargestFreeBlock() throws IOException, NotEnoughFreeSpaceException {
+        Block largest = null;
+        Optional<Block> block = Optional.of(new Block(this, firstBlockPosition));
+        while (block.isPresent()) {
+            Block current = block.get();
+            if (current.isFree() && (largest == null || current.getLength() > largest.getLength())) {
+                largest = current;
+            }
+            block = current.getNext();
+        }
+        if (largest == null) {
+            throw new NotEnoughFreeSpaceException();
+        }
+        return new FreeBlock(largest);
+    }
+
     // Rather slow when there are a lot of blocks. Can be optimized with first free block position caching.
     FreeBlock findNextFreeBlock() throws IOException, NotEnoughFreeSpaceException {
         Block block = this;
-        do {
-            block = block.getNext().orElseThrow(NotEnoughFreeSpaceException::new);
-        } while (!block.isFree());
+        long scanLength = 0;
+        try {
+            do {
+                block = block.getNext().orElseThrow(NotEnoughFreeSpaceException::new);
+                scanLength++;
+            } while (!block.isFree());
+        } finally {
+            container.metrics.freeBlockScanned(scanLength);
+        }
         return new FreeBlock(block);
     }
 
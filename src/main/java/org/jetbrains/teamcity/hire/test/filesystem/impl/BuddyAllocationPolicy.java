@@ -0,0 +1,17 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+/**
+ * Best fit with the data blocks lengths rounded up to powers of two.
+ * Blocks are not address aligned as in the classic buddy system, the blocks layout is arbitrary,
+ * but the size classes make freed blocks suitable for the next allocations of the same class.
+ */
+class BuddyAllocationPolicy extends BestFitAllocationPolicy {
+
+    @Override
+    public long getDataBlockLength(long dataCapacity) {
+        long length = super.getDataBlockLength(dataCapacity);
+        long highestOneBit = Long.highestOneBit(length);
+        return highestOneBit == length ? length : highestOneBit << 1;
+    }
+
+}
@@ -0,0 +1,107 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+
+/**
+ * Background verification of the data blocks checksums. Walks all the blocks in cycle, one block at a time under
+ * the file system lock, and sleeps between the blocks to keep the configured rate. Mismatches are collected
+ * to {@link Container#corruptedBlocks}.
+ */
+class ChecksumScrubber implements Runnable {
+
+    private static final long PASS_PAUSE_MILLIS = 1000; // to not spin on empty file systems
+
+    private final Container container;
+    private final long bytesPerSecond;
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    ChecksumScrubber(Container container, int megabytesPerSecond) {
+        this.container = Objects.requireNonNull(container, "container must be not null");
+        this.bytesPerSecond = megabytesPerSecond * 1024L * 1024L;
+        this.thread = new Thread(this, "checksum-scrubber");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the scrubbing and waits until the current block verification is finished, so the file can be closed.
+     */
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long position = container.firstBlockPosition;
+        long layoutVersion = container.layoutVersion;
+        try {
+            while (!stopped) {
+                long verifiedBytes;
+                synchronized (RootDirectory.class) {
+                    if (stopped) {
+                        return;
+                    }
+                    if (layoutVersion != container.layoutVersion) {
+                        // blocks could be merged or split, the position can be in the middle of a block now
+                        position = findBlockStart(position);
+                        layoutVersion = container.layoutVersion;
+                    }
+                    if (position >= container.fileSize) {
+                        position = container.firstBlockPosition;
+                        verifiedBytes = -1;
+                    } else {
+                        Block block = new Block(container, position);
+                        verifiedBytes = Block.DATA_OFFSET;
+                        if (!block.isFree()) {
+                            DataBlock dataBlock = new DataBlock(block);
+                            verifiedBytes += dataBlock.getHighWaterMark();
+                            if (!dataBlock.isChecksumValid()) {
+                                container.corruptedBlocks.add(position);
+                            }
+                        }
+                        position += block.getLength();
+                    }
+                }
+                if (verifiedBytes < 0) {
+                    Thread.sleep(PASS_PAUSE_MILLIS);
+                } else {
+                    TimeUnit.NANOSECONDS.sleep((long) ((double) verifiedBytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond));
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            if (!stopped) {
+                throw new IllegalStateException("Checksum scrubbing failed", e);
+            }
+        }
+    }
+
+    private long findBlockStart(long position) throws IOException {
+        long start = container.firstBlockPosition;
+        while (start < position) {
+            start += new Block(container, start).getLength();
+        }
+        return start;
+    }
+
+}
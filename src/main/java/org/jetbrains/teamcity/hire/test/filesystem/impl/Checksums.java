@@ -0,0 +1,96 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 arithmetic which allows to update the checksum of the data without reading all of it.
+ * Uses the linearity of CRC: appending zero bytes to the data is a multiplication of the checksum by a matrix
+ * over GF(2), the same way as {@code crc32_combine} of zlib does.
+ */
+final class Checksums {
+
+    private static final int POLYNOMIAL = 0xEDB88320; // reversed CRC32 polynomial
+    private static final int[][] ZERO_BYTES_OPERATORS = new int[64][]; // i-th appends 2^i zero bytes
+
+    static {
+        int[] oneBit = new int[32];
+        oneBit[0] = POLYNOMIAL;
+        for (int n = 1; n < 32; n++) {
+            oneBit[n] = 1 << (n - 1);
+        }
+        int[] operator = oneBit;
+        for (int i = 0; i < 3; i++) {
+            operator = square(operator); // 2, 4, 8 zero bits
+        }
+        ZERO_BYTES_OPERATORS[0] = operator;
+        for (int i = 1; i < ZERO_BYTES_OPERATORS.length; i++) {
+            ZERO_BYTES_OPERATORS[i] = square(ZERO_BYTES_OPERATORS[i - 1]);
+        }
+    }
+
+    private Checksums() {
+    }
+
+    static int compute(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the checksum of the data followed by {@code zeroBytes} zeros.
+     *
+     * @param checksum the checksum of the data.
+     */
+    static int appendZeros(int checksum, long zeroBytes) {
+        if (zeroBytes == 0) {
+            return checksum;
+        }
+        return shift(checksum, zeroBytes) ^ ofZeros(zeroBytes);
+    }
+
+    /**
+     * Returns the checksum of the {@code length} bytes data after changing its bytes beginning from {@code offset}.
+     *
+     * @param checksum the checksum of the data before the change.
+     * @param delta    XOR of the old and new bytes of the changed range.
+     */
+    static int replace(int checksum, long length, long offset, byte[] delta) {
+        // CRC of the delta without initial and final inversions, zeros before the delta do not change it
+        int deltaChecksum = compute(delta, 0, delta.length) ^ ofZeros(delta.length);
+        return checksum ^ shift(deltaChecksum, length - offset - delta.length);
+    }
+
+    private static int ofZeros(long length) {
+        return shift(0xFFFFFFFF, length) ^ 0xFFFFFFFF;
+    }
+
+    private static int shift(int checksum, long zeroBytes) {
+        int result = checksum;
+        for (int i = 0; zeroBytes >>> i != 0; i++) {
+            if ((zeroBytes >>> i & 1) != 0) {
+                result = multiply(ZERO_BYTES_OPERATORS[i], result);
+            }
+        }
+        return result;
+    }
+
+    private static int multiply(int[] matrix, int vector) {
+        int result = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                result ^= matrix[i];
+            }
+        }
+        return result;
+    }
+
+    private static int[] square(int[] matrix) {
+        int[] result = new int[32];
+        for (int n = 0; n < 32; n++) {
+            result[n] = multiply(matrix, matrix[n]);
+        }
+        return result;
+    }
+
+}
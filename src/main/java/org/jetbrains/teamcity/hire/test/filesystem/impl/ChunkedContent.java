@@ -0,0 +1,245 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Content of a file split into fixed size logical chunks stored out of the file chain, see {@link CompressedContent}
+ * and {@link DeduplicatedContent}. The file chain (index chain) stores the header and an entry for every chunk.
+ * Chunks which were never written or contain only zeros are not stored at all.
+ * A write is applied only when all its chunks are stored, see {@link ChunksChange}, so a write failed for lack of
+ * free space leaves the file unchanged.
+ */
+abstract class ChunkedContent {
+
+    // Structure of the index chain: SIZE, CHUNK_SIZE, reserved, then a chunk entry for every chunk.
+
+    static final int HEADER_BYTES = 16;
+    private static final int SIZE_OFFSET = 0; // logical size of the file: long
+    private static final int CHUNK_SIZE_OFFSET = 8; // logical size of a chunk: int
+
+    final DataBlock indexBlock;
+    private final int entryBytes;
+
+    ChunkedContent(DataBlock indexBlock, int entryBytes) {
+        this.indexBlock = Objects.requireNonNull(indexBlock, "indexBlock must be not null");
+        this.entryBytes = entryBytes;
+    }
+
+    /**
+     * Data capacity of the index chain for a new file of {@code size} bytes.
+     */
+    static long getIndexCapacity(long size, int chunkSize, int entryBytes) {
+        return HEADER_BYTES + getChunksCount(size, chunkSize) * entryBytes;
+    }
+
+    /**
+     * Writes the header of a new file with {@code size} bytes of zeros to the allocated index chain.
+     */
+    static void writeHeader(DataBlock indexBlock, long size, int chunkSize) throws IOException, NotEnoughFreeSpaceException {
+        indexBlock.write(SIZE_OFFSET, ByteBuffer.allocate(HEADER_BYTES).putLong(size).putInt(chunkSize).array());
+    }
+
+    private static long getChunksCount(long size, int chunkSize) {
+        return (size + chunkSize - 1) / chunkSize;
+    }
+
+    long getSize() throws IOException {
+        return readHeader().getLong(SIZE_OFFSET);
+    }
+
+    /**
+     * Reads {@code destination.length} bytes starting from {@code offset} of the file data into {@code destination}.
+     */
+    void read(long offset, byte[] destination) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must be >= 0");
+        }
+        Objects.requireNonNull(destination, "destination must be not null");
+        if (destination.length == 0) {
+            return;
+        }
+        ByteBuffer header = readHeader();
+        long size = header.getLong(SIZE_OFFSET);
+        int chunkSize = header.getInt(CHUNK_SIZE_OFFSET);
+        if (offset + destination.length > size) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot read %d bytes starting from %d: the file size is %s bytes!", destination.length, offset, size));
+        }
+        long end = offset + destination.length;
+        int firstChunk = (int) (offset / chunkSize);
+        int lastChunk = (int) ((end - 1) / chunkSize);
+        ByteBuffer entries = readEntries(firstChunk, lastChunk);
+        for (int chunk = firstChunk; chunk <= lastChunk; chunk++) {
+            long chunkStart = (long) chunk * chunkSize;
+            long from = Math.max(offset, chunkStart);
+            long to = Math.min(end, chunkStart + chunkSize);
+            readChunk(entries, (chunk - firstChunk) * entryBytes, (int) Math.min(chunkSize, size - chunkStart),
+                    (int) (from - chunkStart), destination, (int) (from - offset), (int) (to - from));
+        }
+    }
+
+    /**
+     * Writes {@code source.length} bytes starting from {@code offset} of the file data from {@code source}.
+     * The file size is extended to at least {@code offset + source.length}. Every touched chunk is stored again,
+     * partially written ones are loaded before.
+     */
+    void write(long offset, byte[] source) throws IOException, NotEnoughFreeSpaceException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must be >= 0");
+        }
+        Objects.requireNonNull(source, "source must be not null");
+        if (source.length == 0) {
+            return;
+        }
+        ByteBuffer header = readHeader();
+        long size = header.getLong(SIZE_OFFSET);
+        int chunkSize = header.getInt(CHUNK_SIZE_OFFSET);
+        long end = offset + source.length;
+        long newSize = Math.max(size, end);
+        // new entries are beyond the high-water mark, so they are read as not stored chunks
+        indexBlock.enlarge(HEADER_BYTES + getChunksCount(newSize, chunkSize) * entryBytes);
+        indexBlock.prepareChange();
+        int firstChunk = (int) (offset / chunkSize);
+        int lastChunk = (int) ((end - 1) / chunkSize);
+        ByteBuffer entries = readEntries(firstChunk, lastChunk);
+        ChunksChange change = new ChunksChange();
+        try {
+            for (int chunk = firstChunk; chunk <= lastChunk; chunk++) {
+                long chunkStart = (long) chunk * chunkSize;
+                int chunkLength = (int) Math.min(chunkSize, newSize - chunkStart);
+                int entryOffset = (chunk - firstChunk) * entryBytes;
+                byte[] data;
+                if (offset <= chunkStart && end >= chunkStart + chunkLength) {
+                    data = Arrays.copyOfRange(source, (int) (chunkStart - offset), (int) (chunkStart - offset + chunkLength));
+                } else {
+                    data = new byte[chunkLength];
+                    readChunk(entries, entryOffset, chunkLength, 0, data, 0, chunkLength);
+                    long from = Math.max(offset, chunkStart);
+                    long to = Math.min(end, chunkStart + chunkLength);
+                    System.arraycopy(source, (int) (from - offset), data, (int) (from - chunkStart), (int) (to - from));
+                }
+                storeChunk(entries, entryOffset, data, change);
+            }
+        } catch (NotEnoughFreeSpaceException e) {
+            for (long position : change.acquired) {
+                releaseChunk(position);
+            }
+            throw e;
+        }
+        // nothing below allocates: the rewritten chains and the index chain are prepared, the entries are inside it
+        for (int i = 0; i < change.rewritten.size(); i++) {
+            change.rewritten.get(i).write(0, change.rewrites.get(i));
+        }
+        indexBlock.write(getEntryOffset(firstChunk), entries.array());
+        for (long position : change.replaced) {
+            releaseChunk(position);
+        }
+        if (newSize > size) {
+            indexBlock.write(SIZE_OFFSET, newSize);
+        }
+    }
+
+    /**
+     * Releases all the stored chunks, the index chain itself is not removed.
+     */
+    void removeChunks() throws IOException {
+        ByteBuffer header = readHeader();
+        long chunksCount = getChunksCount(header.getLong(SIZE_OFFSET), header.getInt(CHUNK_SIZE_OFFSET));
+        if (chunksCount == 0) {
+            return;
+        }
+        ByteBuffer entries = readEntries(0, (int) chunksCount - 1);
+        for (int i = 0; i < chunksCount; i++) {
+            long position = entries.getLong(i * entryBytes);
+            if (position != 0) {
+                releaseChunk(position);
+            }
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes starting from {@code chunkOffset} of the chunk into {@code destination}.
+     *
+     * @param entryOffset the offset of the chunk entry in the {@code entries}, the entry starts with the chunk position.
+     * @param chunkLength the logical length of the chunk, the last chunk of the file can be shorter than the others.
+     */
+    abstract void readChunk(ByteBuffer entries, int entryOffset, int chunkLength, int chunkOffset,
+                            byte[] destination, int destinationOffset, int length) throws IOException;
+
+    /**
+     * Stores the chunk and puts its entry to the {@code entries}. The stored chunks and the index are not changed:
+     * the new chains are acquired, the rewritten and the replaced ones are added to the {@code change}.
+     */
+    abstract void storeChunk(ByteBuffer entries, int entryOffset, byte[] data, ChunksChange change)
+            throws IOException, NotEnoughFreeSpaceException;
+
+    /**
+     * Releases the chunk chain referred by an entry: the replaced chunk, the acquired one of the failed write
+     * or a chunk of the removed file.
+     */
+    abstract void releaseChunk(long position) throws IOException;
+
+    private ByteBuffer readHeader() throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        indexBlock.read(0, header);
+        return ByteBuffer.wrap(header);
+    }
+
+    private ByteBuffer readEntries(int firstChunk, int lastChunk) throws IOException {
+        byte[] entries = new byte[(lastChunk - firstChunk + 1) * entryBytes];
+        indexBlock.read(getEntryOffset(firstChunk), entries);
+        return ByteBuffer.wrap(entries);
+    }
+
+    private long getEntryOffset(int chunk) {
+        return HEADER_BYTES + (long) chunk * entryBytes;
+    }
+
+    static boolean isAllZeros(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Changes of the chunks chains collected by a write. The acquired chains are written by the chunks storing,
+     * they are released if the write fails. The existing chains are rewritten and the replaced ones are released
+     * only after all the chunks are stored: the entries are written between them, then the size of the file is
+     * written last.
+     */
+    static class ChunksChange {
+        private final List<Long> acquired = new ArrayList<>();
+        private final List<DataBlock> rewritten = new ArrayList<>();
+        private final List<byte[]> rewrites = new ArrayList<>(); // the stored bytes of the rewritten chains
+        private final List<Long> replaced = new ArrayList<>();
+
+        /**
+         * @param position the new chain or the chain which got a new reference.
+         */
+        void acquired(long position) {
+            acquired.add(position);
+        }
+
+        /**
+         * @param chain the chain prepared for the change, see {@link DataBlock#prepareChange()}.
+         */
+        void rewrite(DataBlock chain, byte[] bytes) {
+            rewritten.add(chain);
+            rewrites.add(bytes);
+        }
+
+        void replaced(long position) {
+            replaced.add(position);
+        }
+    }
+
+}
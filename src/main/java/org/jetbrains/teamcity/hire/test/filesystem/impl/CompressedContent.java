@@ -0,0 +1,160 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.CorruptedDataException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Content of a compressed file. The data is split into fixed size logical chunks, every chunk is compressed
+ * with {@link Deflater} and stored in its own data blocks chain. The file chain (index chain) stores the header and
+ * the chunks index, so reading a range decompresses only the chunks which it touches, see {@link ChunkedContent}.
+ */
+class CompressedContent extends ChunkedContent {
+
+    // Structure of chunk entry: chunk chain position (0 if the chunk is not stored): long, stored bytes: int, flags: int.
+    static final int CHUNK_ENTRY_BYTES = 16;
+    private static final int STORED_LENGTH_OFFSET = 8;
+    private static final int FLAGS_OFFSET = 12;
+    private static final int RAW_FLAG = 1; // the chunk is stored not compressed because it does not shrink
+
+    private static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("compressionChunkSize", 32 * 1024);
+
+    @Nullable
+    private Deflater deflater; // not null while writing
+
+    CompressedContent(DataBlock indexBlock) {
+        super(indexBlock, CHUNK_ENTRY_BYTES);
+    }
+
+    /**
+     * Data capacity of the index chain for a new compressed file of {@code size} bytes.
+     */
+    static long getIndexCapacity(long size) {
+        return getIndexCapacity(size, DEFAULT_CHUNK_SIZE, CHUNK_ENTRY_BYTES);
+    }
+
+    /**
+     * Marks the allocated index chain as a compressed file with {@code size} bytes of zeros.
+     */
+    static CompressedContent initialize(DataBlock indexBlock, long size) throws IOException, NotEnoughFreeSpaceException {
+        indexBlock.setCompressed();
+        writeHeader(indexBlock, size, DEFAULT_CHUNK_SIZE);
+        return new CompressedContent(indexBlock);
+    }
+
+    /**
+     * Every touched chunk is compressed again, partially written ones are decompressed before.
+     */
+    @Override
+    void write(long offset, byte[] source) throws IOException, NotEnoughFreeSpaceException {
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            super.write(offset, source);
+        } finally {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    @Override
+    void readChunk(ByteBuffer entries, int entryOffset, int chunkLength, int chunkOffset,
+                   byte[] destination, int destinationOffset, int length) throws IOException {
+        byte[] data = loadChunk(entries, entryOffset, chunkLength);
+        System.arraycopy(data, chunkOffset, destination, destinationOffset, length);
+    }
+
+    private byte[] loadChunk(ByteBuffer entries, int entryOffset, int chunkLength) throws IOException {
+        byte[] data = new byte[chunkLength];
+        long position = entries.getLong(entryOffset);
+        if (position == 0) {
+            return data;
+        }
+        byte[] stored = new byte[entries.getInt(entryOffset + STORED_LENGTH_OFFSET)];
+        indexBlock.container.getChain(position).read(0, stored);
+        if ((entries.getInt(entryOffset + FLAGS_OFFSET) & RAW_FLAG) != 0) {
+            // the file could be extended after the chunk storing, the rest is zeros
+            System.arraycopy(stored, 0, data, 0, Math.min(stored.length, chunkLength));
+            return data;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            int inflated = 0;
+            while (inflated < chunkLength && !inflater.finished()) {
+                int bytes = inflater.inflate(data, inflated, chunkLength - inflated);
+                if (bytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new CorruptedDataException(position);
+                }
+                inflated += bytes;
+            }
+        } catch (DataFormatException e) {
+            throw new CorruptedDataException(position);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    /**
+     * The compressed chunk is stored to a new chain or rewritten in its chain if it fits there.
+     */
+    @Override
+    void storeChunk(ByteBuffer entries, int entryOffset, byte[] data, ChunksChange change)
+            throws IOException, NotEnoughFreeSpaceException {
+        long position = entries.getLong(entryOffset);
+        if (isAllZeros(data)) {
+            if (position != 0) {
+                change.replaced(position);
+            }
+            entries.putLong(entryOffset, 0).putInt(entryOffset + STORED_LENGTH_OFFSET, 0).putInt(entryOffset + FLAGS_OFFSET, 0);
+            return;
+        }
+        byte[] stored = compress(data);
+        int flags = 0;
+        if (stored.length >= data.length) {
+            stored = data;
+            flags = RAW_FLAG;
+        }
+        DataBlock chunkBlock;
+        if (position != 0 && new DataBlock(indexBlock, position).getDataChainCapacity() >= stored.length) {
+            chunkBlock = new DataBlock(indexBlock, position);
+            chunkBlock.prepareChange();
+            change.rewrite(chunkBlock, stored);
+        } else {
+            chunkBlock = indexBlock.allocateChain(stored.length);
+            change.acquired(chunkBlock.getStartPosition());
+            chunkBlock.write(0, stored);
+            if (position != 0) {
+                change.replaced(position);
+            }
+        }
+        entries.putLong(entryOffset, chunkBlock.getStartPosition())
+                .putInt(entryOffset + STORED_LENGTH_OFFSET, stored.length)
+                .putInt(entryOffset + FLAGS_OFFSET, flags);
+    }
+
+    @Override
+    void releaseChunk(long position) throws IOException {
+        new DataBlock(indexBlock, position).removeChain();
+    }
+
+    private byte[] compress(byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        // the output is not needed if it is not smaller than the data
+        byte[] buffer = new byte[data.length];
+        int length = 0;
+        while (!deflater.finished() && length < buffer.length) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return deflater.finished() ? Arrays.copyOf(buffer, length) : data;
+    }
+
+}
@@ -0,0 +1,199 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.api.ChecksumVerification;
+import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+
+/**
+ * The file system file and the state shared by all its blocks.
+ */
+class Container {
+
+    final RandomAccessFile file;
+    final Superblock superblock;
+    final long firstBlockPosition;
+    final long fileSize;
+    final AllocationPolicy allocationPolicy;
+    final ChecksumVerification checksumVerification;
+    // Data blocks with checksum mismatch found by reads or by the scrubber
+    final Set<Long> corruptedBlocks = ConcurrentHashMap.newKeySet();
+    // Data blocks whose checksum is verified by a read since the loading or the last checksum change
+    final Set<Long> verifiedBlocks;
+    final SlabAllocator slabAllocator;
+    final Snapshots snapshots;
+    // The mounted snapshot or null for the live file system
+    @Nullable
+    final Snapshots.Snapshot snapshot;
+    final boolean readOnly;
+    // Not null if the file is shared read-only with other processes, then nobody changes it and it is read without the lock
+    @Nullable
+    final MappedFile mapped;
+    final UsageTable usageTable = new UsageTable(this);
+    final Metrics metrics;
+    // Sorted names of the searched directories by their content chain positions, see NameIndex
+    final Map<Long, NameIndex> nameIndexes = new ConcurrentHashMap<>();
+    // Data blocks chain position of a file moved to another directory -> the directory content chain position and the record
+    // offset, so the file objects obtained before the moving find the record, see DirectoryImpl#move
+    final Map<Long, long[]> movedRecords = new ConcurrentHashMap<>();
+    // The limiter of all the asynchronous facades, created by the first one, see AsyncOperations
+    final AtomicReference<AsyncOperations> asyncOperations;
+    // Incremented on every block length change, so the blocks walk can detect that its position is stale
+    long layoutVersion;
+
+    Container(RandomAccessFile file, Superblock superblock, AllocationPolicy allocationPolicy) {
+        this(file, superblock, allocationPolicy, ChecksumVerification.OFF);
+    }
+
+    Container(RandomAccessFile file, Superblock superblock, AllocationPolicy allocationPolicy,
+              ChecksumVerification checksumVerification) {
+        this.file = Objects.requireNonNull(file, "file must be not null");
+        this.superblock = Objects.requireNonNull(superblock, "superblock must be not null");
+        this.firstBlockPosition = Superblock.SIZE;
+        // Use formatted file length to avoid IO operations in constructor
+        this.fileSize = superblock.fileSize;
+        this.allocationPolicy = Objects.requireNonNull(allocationPolicy, "allocationPolicy must be not null");
+        this.checksumVerification = Objects.requireNonNull(checksumVerification, "checksumVerification must be not null");
+        this.verifiedBlocks = ConcurrentHashMap.newKeySet();
+        this.slabAllocator = new SlabAllocator(this);
+        this.snapshots = new Snapshots(this);
+        this.snapshot = null;
+        this.readOnly = false;
+        this.mapped = null;
+        this.metrics = new Metrics();
+        this.asyncOperations = new AtomicReference<>();
+    }
+
+    /**
+     * Read-only container of the file shared with other processes, all the blocks are read from the {@code mapped} file.
+     */
+    Container(RandomAccessFile file, Superblock superblock, MappedFile mapped) {
+        this.file = Objects.requireNonNull(file, "file must be not null");
+        this.superblock = Objects.requireNonNull(superblock, "superblock must be not null");
+        this.firstBlockPosition = Superblock.SIZE;
+        this.fileSize = superblock.fileSize;
+        this.allocationPolicy = AllocationPolicy.create(superblock.allocationStrategy);
+        this.checksumVerification = ChecksumVerification.OFF;
+        this.verifiedBlocks = ConcurrentHashMap.newKeySet();
+        this.slabAllocator = new SlabAllocator(this);
+        this.snapshots = new Snapshots(this);
+        this.snapshot = null;
+        this.readOnly = true;
+        this.mapped = Objects.requireNonNull(mapped, "mapped must be not null");
+        this.metrics = new Metrics();
+        this.asyncOperations = new AtomicReference<>();
+    }
+
+    /**
+     * Read-only view of the {@code snapshot} sharing the file and the snapshots state with the {@code live} container.
+     */
+    Container(Container live, Snapshots.Snapshot snapshot) {
+        this.file = live.file;
+        this.superblock = live.superblock;
+        this.firstBlockPosition = live.firstBlockPosition;
+        this.fileSize = live.fileSize;
+        this.allocationPolicy = live.allocationPolicy;
+        this.checksumVerification = live.checksumVerification;
+        this.verifiedBlocks = live.verifiedBlocks; // the live writes change the checksums of the shared blocks
+        this.slabAllocator = live.slabAllocator;
+        this.snapshots = live.snapshots;
+        this.snapshot = Objects.requireNonNull(snapshot, "snapshot must be not null");
+        this.readOnly = true;
+        this.mapped = null; // the live container is written, so the snapshot is read under the lock
+        this.metrics = live.metrics;
+        this.asyncOperations = live.asyncOperations;
+    }
+
+    /**
+     * Performs the {@code reading} under the file systems lock. The mapped container is never changed,
+     * so it is read without the lock and the reading threads do not wait for each other.
+     */
+    <T> T read(Reading<T> reading) throws IOException {
+        if (mapped != null) {
+            return reading.read();
+        }
+        return locked(reading);
+    }
+
+    /**
+     * The same as {@link #read(Reading)}, but the latency of the {@code operation} is recorded by the metrics.
+     */
+    <T> T read(String operation, String name, @Nullable String argument, Reading<T> reading) throws IOException {
+        return timed(operation, name, argument, () -> read(reading));
+    }
+
+    /**
+     * The same as {@link #locked(Reading)}, but the latency of the {@code operation} is recorded by the metrics.
+     */
+    <T> T locked(String operation, String name, @Nullable String argument, Reading<T> reading) throws IOException {
+        return timed(operation, name, argument, () -> locked(reading));
+    }
+
+    /**
+     * Performs the {@code operation} of the file or the directory {@code name} with its entry {@code argument},
+     * the latency is recorded by the metrics.
+     */
+    <T> T timed(String operation, String name, @Nullable String argument, Reading<T> reading) throws IOException {
+        long start = metrics.operationStarted();
+        try {
+            return reading.read();
+        } finally {
+            metrics.operationFinished(operation, start, name, argument);
+        }
+    }
+
+    /**
+     * Performs the {@code operation} under the file systems lock, the lock waiting and holding time is counted by the metrics.
+     * The lock is counted once by the outermost operation of the thread holding it.
+     */
+    <T> T locked(Reading<T> operation) throws IOException {
+        if (Thread.holdsLock(RootDirectory.class)) {
+            return operation.read(); // a nested operation, the outer one counts the lock
+        }
+        long waitStart = System.nanoTime();
+        synchronized (RootDirectory.class) {
+            long acquired = System.nanoTime();
+            try {
+                return operation.read();
+            } finally {
+                metrics.locked(waitStart, acquired);
+            }
+        }
+    }
+
+    /**
+     * The chain which this container sees at the live chain {@code position}: the live chain itself or its copy
+     * preserved for the mounted snapshot.
+     */
+    DataBlock getChain(long position) {
+        return new DataBlock(this, snapshot == null ? position : snapshot.resolve(position));
+    }
+
+    /**
+     * The same as {@link #getChain(long)}, but the live chain instance is returned as is.
+     */
+    DataBlock resolve(DataBlock chain) {
+        if (snapshot == null || snapshot.resolve(chain.getStartPosition()) == chain.getStartPosition()) {
+            return chain;
+        }
+        return getChain(chain.getStartPosition());
+    }
+
+    /**
+     * The data capacity of the live chain {@code chain} as this container sees it.
+     */
+    long getDataChainCapacity(DataBlock chain) throws IOException {
+        return snapshot == null ? chain.getDataChainCapacity() : snapshot.getDataChainCapacity(chain);
+    }
+
+    interface Reading<T> {
+        T read() throws IOException;
+    }
+
+}
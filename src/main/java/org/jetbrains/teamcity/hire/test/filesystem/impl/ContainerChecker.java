@@ -0,0 +1,866 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.COMPRESSED_DATA_BLOCK;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.DATA_OFFSET;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.DEDUPLICATED_DATA_BLOCK;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.EXTENT_DATA_BLOCK;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.FREE_BLOCK;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.HIGH_WATER_MARK_OFFSET;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.LENGTH_BYTES;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.LENGTH_FIRST_OFFSET;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.MIN_BLOCK_LENGTH;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.POSITION_BYTES;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.POSITION_OFFSET;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.SERVICE_DATA_BYTES;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.SLAB_DATA_BLOCK;
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.DataBlock.LAST_BLOCK_IN_DATA_CHAIN;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AllocationStrategy;
+import org.jetbrains.teamcity.hire.test.filesystem.api.CheckReport;
+
+/**
+ * Consistency checker of the not loaded file system file.
+ * At first all the blocks are walked sequentially to validate their structure, then directory subtrees are walked
+ * in parallel with positional reads, and every data block is claimed by the chain which refers to it.
+ * Found problems are repaired sequentially with the usual blocks operations.
+ */
+class ContainerChecker {
+
+    private static final int PARALLELISM = Integer.getInteger("checkParallelism", Runtime.getRuntime().availableProcessors());
+    private static final String ROOT_DIRECTORY_PATH = "/root";
+    private static final long NO_BLOCK = -1L;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Superblock superblock;
+    private final int fileRecordSize;
+    private final int sizeOffset;
+
+    ContainerChecker(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.superblock = Superblock.read(file);
+        this.fileRecordSize = DirectoryImpl.getFileRecordSize(superblock.fileNameSize, superblock.inlineFileSize);
+        this.sizeOffset = DirectoryImpl.getSizeOffset(superblock.fileNameSize, superblock.inlineFileSize);
+    }
+
+    CheckReport check(boolean repair) throws IOException {
+        Scan scan = new Scan();
+        scan.run();
+        List<String> problems = scan.getProblems();
+        if (!repair || problems.isEmpty() || !scan.structureValid) {
+            return new CheckReport(problems, scan.leakedBlocks, scan.getCrossLinkedBlocks(), false);
+        }
+        repair(scan);
+        Scan rescan = new Scan();
+        rescan.run();
+        if (rescan.structureValid && !rescan.wrongRecordSizes.isEmpty()) {
+            // the chains cut by the repair are shorter, so the sizes in the records of their files are repaired once more
+            repairRecordSizes(createContainer(), rescan);
+            rescan = new Scan();
+            rescan.run();
+        }
+        if (rescan.structureValid) {
+            superblock.setCounters(rescan.usedBytes, rescan.blocksCount,
+                    rescan.filesCount.get(), rescan.directoriesCount.get());
+        }
+        boolean repaired = rescan.structureValid && rescan.problems.isEmpty();
+        return new CheckReport(problems, scan.leakedBlocks, scan.getCrossLinkedBlocks(), repaired);
+    }
+
+    private Container createContainer() {
+        return new Container(file, superblock, AllocationPolicy.create(AllocationStrategy.FIRST_FIT));
+    }
+
+    private void repair(Scan scan) throws IOException {
+        Container container = createContainer();
+        // end lengths are fixed at first: merging blocks reads the end length of the previous block
+        for (long position : scan.wrongEndLengths) {
+            Block block = new Block(container, position);
+            block.setLength(block.getLength());
+        }
+        for (long position : scan.wrongHighWaterMarks) {
+            DataBlock block = new DataBlock(container, position);
+            block.setHighWaterMark(block.getDataCapacity());
+            block.recalculateChecksum();
+        }
+        // the sizes are written before the records clearing, so a cleared record stays all zeros
+        repairRecordSizes(container, scan);
+        for (Claim brokenLink : scan.brokenLinks) {
+            cut(container, brokenLink);
+        }
+        for (ReferenceLocation record : scan.brokenSlotReferences) {
+            clear(container, record);
+        }
+        for (Map.Entry<Long, Long> slab : scan.wrongSlabBitmaps.entrySet()) {
+            repairBitmap(new DataBlock(container, slab.getKey()), slab.getValue());
+        }
+        for (ReferenceLocation chunkEntry : scan.brokenExtentReferences) {
+            clear(container, chunkEntry);
+        }
+        for (Map.Entry<Long, Long> extent : scan.wrongExtentReferences.entrySet()) {
+            new DataBlock(container, extent.getKey()).write(DeduplicatedContent.EXTENT_REFERENCES_OFFSET, extent.getValue());
+        }
+        for (List<Claim> claims : scan.getCrossLinks().values()) {
+            // the root directory always wins, then the smallest path to keep the result deterministic
+            claims.sort(Comparator.comparing((Claim claim) -> claim.record != null).thenComparing(claim -> claim.owner));
+            for (Claim loser : claims.subList(1, claims.size())) {
+                cut(container, loser);
+            }
+        }
+        for (long position : scan.leakedBlocks) {
+            DataBlock leaked = new DataBlock(container, position);
+            leaked.setLastBlockInDataChain();
+            leaked.freeChain();
+        }
+        if (scan.extentIndexWrong) {
+            long oldIndexPosition = superblock.getExtentIndexPosition();
+            ExtentIndex.rebuild(container, scan.validExtents);
+            if (scan.extentIndexClaimed) {
+                new DataBlock(container, oldIndexPosition).freeChain();
+            }
+        }
+        if (scan.usageTableWrong) {
+            long oldTablePosition = superblock.getUsageTablePosition();
+            superblock.setUsageTablePosition(0);
+            if (scan.usageTableClaimed) {
+                new DataBlock(container, oldTablePosition).freeChain();
+            }
+        }
+        // the repaired tree can differ from the counted one, the usage is recounted by the next loading
+        superblock.setFilesBytes(-1);
+        mergeFreeBlocks(container);
+    }
+
+    /**
+     * Detaches the block from the chain of the {@code claim} owner: the chain is ended at the previous block,
+     * or the reference to the chain is removed if the block is the first in the chain.
+     */
+    private void cut(Container container, Claim claim) throws IOException {
+        if (claim.previous != NO_BLOCK) {
+            new DataBlock(container, claim.previous).setLastBlockInDataChain();
+        } else if (claim.record != null) {
+            clear(container, claim.record);
+        }
+    }
+
+    private void clear(Container container, ReferenceLocation record) throws IOException {
+        new DataBlock(container, record.chainPosition).write(record.offset, new byte[record.length]);
+    }
+
+    private void repairRecordSizes(Container container, Scan scan) throws IOException {
+        for (Map.Entry<ReferenceLocation, Long> size : scan.wrongRecordSizes.entrySet()) {
+            ReferenceLocation location = size.getKey();
+            new DataBlock(container, location.chainPosition).write((int) location.offset, size.getValue());
+        }
+    }
+
+    /**
+     * Writes the bitmap of the referenced slots, the released slots are cleared to keep free slots zeros.
+     */
+    private void repairBitmap(DataBlock slab, long bitmap) throws IOException {
+        long released = SlabAllocator.readBitmap(slab) & ~bitmap;
+        int slotSize = SlabAllocator.readSlotSize(slab);
+        for (int slot = 0; slot < SlabAllocator.SLOTS_COUNT; slot++) {
+            if ((released >>> slot & 1) != 0) {
+                slab.write(SlabAllocator.getSlotOffset(slotSize, slot), new byte[slotSize]);
+            }
+        }
+        slab.write(SlabAllocator.BITMAP_OFFSET, bitmap);
+    }
+
+    private void mergeFreeBlocks(Container container) throws IOException {
+        Block previousFree = null;
+        long position = container.firstBlockPosition;
+        while (position < container.fileSize) {
+            Block block = new Block(container, position);
+            long length = block.getLength();
+            if (!block.isFree()) {
+                previousFree = null;
+            } else if (previousFree == null) {
+                previousFree = block;
+            } else {
+                new FreeBlock(previousFree).initialize(previousFree.getLength() + length);
+            }
+            position += length;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException(String.format("Unexpected end of file reading %d bytes at %d", length, position));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private long readLong(long position) throws IOException {
+        return read(position, Long.BYTES).getLong();
+    }
+
+    @Nullable
+    private String findHeaderError(long position, ByteBuffer header) {
+        byte type = header.get(0);
+        if (type < FREE_BLOCK || type > EXTENT_DATA_BLOCK) { // the block types are numbered in a row
+            return String.format("Block %d: unknown type %d", position, type);
+        }
+        long length = header.getLong(LENGTH_FIRST_OFFSET);
+        if (length < MIN_BLOCK_LENGTH || length > superblock.fileSize - position) {
+            return String.format("Block %d: invalid length %d", position, length);
+        }
+        return null;
+    }
+
+    /**
+     * Location of a reference to a chain: a directory record or a compressed file chunk entry.
+     * The reference is {@code length} bytes at {@code offset} of the chain beginning from {@code chainPosition}.
+     */
+    private static class ReferenceLocation {
+        private final long chainPosition;
+        private final long offset;
+        private final int length;
+
+        ReferenceLocation(long chainPosition, long offset, int length) {
+            this.chainPosition = chainPosition;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Reference to a data block from the chain of the {@code owner}.
+     */
+    private static class Claim {
+        private final long position;
+        private final String owner;
+        private final long previous; // the previous block in the chain or NO_BLOCK if the block is the first one
+        @Nullable
+        private final ReferenceLocation record; // null for the root directory
+
+        Claim(long position, String owner, long previous, @Nullable ReferenceLocation record) {
+            this.position = position;
+            this.owner = owner;
+            this.previous = previous;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Reference to a slab slot from the directory record of the {@code owner}.
+     */
+    private static class SlotClaim {
+        private final String owner;
+        private final ReferenceLocation record;
+        private final ReferenceLocation size; // the file size in the record
+        private final long recordSize;
+
+        SlotClaim(String owner, ReferenceLocation record, ReferenceLocation size, long recordSize) {
+            this.owner = owner;
+            this.record = record;
+            this.size = size;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private class Scan {
+        private final Queue<String> problems = new ConcurrentLinkedQueue<>();
+        private final List<String> counterProblems = new ArrayList<>();
+        private boolean structureValid = true;
+
+        private long[] dataBlocks;
+        private long usedBytes;
+        private long blocksCount;
+        private final List<Long> wrongEndLengths = new ArrayList<>();
+        private final List<Long> wrongHighWaterMarks = new ArrayList<>();
+
+        private final Map<Long, Claim> claims = new ConcurrentHashMap<>();
+        private final Queue<Claim> conflicts = new ConcurrentLinkedQueue<>();
+        private final Queue<Claim> brokenLinks = new ConcurrentLinkedQueue<>();
+        private final AtomicLong filesCount = new AtomicLong();
+        private final AtomicLong directoriesCount = new AtomicLong();
+        private final List<Long> leakedBlocks = new ArrayList<>();
+        // Slab position -> slot -> the record referring to it
+        private final Map<Long, Map<Integer, SlotClaim>> slotClaims = new ConcurrentHashMap<>();
+        private final Queue<ReferenceLocation> brokenSlotReferences = new ConcurrentLinkedQueue<>();
+        private final Map<Long, Long> wrongSlabBitmaps = new TreeMap<>();
+        // Extent position -> the chunk entries referring to it
+        private final Map<Long, Queue<ReferenceLocation>> extentReferences = new ConcurrentHashMap<>();
+        private final List<ReferenceLocation> brokenExtentReferences = new ArrayList<>();
+        private final Map<Long, Long> wrongExtentReferences = new TreeMap<>();
+        private final Map<Long, byte[]> validExtents = new TreeMap<>(); // extent position -> hash
+        // The file sizes in the records differing from the actual ones -> the actual sizes
+        private final Map<ReferenceLocation, Long> wrongRecordSizes = new ConcurrentHashMap<>();
+        private boolean extentIndexClaimed;
+        private boolean extentIndexWrong;
+        private boolean usageTableClaimed;
+        private boolean usageTableWrong;
+
+        void run() throws IOException {
+            checkBlocks();
+            if (!structureValid) {
+                return;
+            }
+            if (Arrays.binarySearch(dataBlocks, Superblock.SIZE) < 0) {
+                problems.add(String.format("Block %d: root directory block is not a data block", Superblock.SIZE));
+                structureValid = false;
+                return;
+            }
+            ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+            try {
+                List<Long> rootChain = claimChain(ROOT_DIRECTORY_PATH, Superblock.SIZE, null);
+                pool.invoke(new DirectoryCheck(ROOT_DIRECTORY_PATH, rootChain));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+            checkSnapshots();
+            checkSlabs();
+            checkExtents();
+            checkUsageTable();
+            for (long position : dataBlocks) {
+                if (!claims.containsKey(position)) {
+                    leakedBlocks.add(position);
+                    problems.add(String.format("Block %d: leaked, not reachable from any directory record", position));
+                }
+            }
+            checkCounter("used bytes", superblock.getStats().getUsedSpace(), usedBytes);
+            checkCounter("blocks count", superblock.getStats().getBlocksCount(), blocksCount);
+            checkCounter("files count", superblock.getStats().getFilesCount(), filesCount.get());
+            checkCounter("directories count", superblock.getStats().getDirectoriesCount(), directoriesCount.get());
+        }
+
+        List<String> getProblems() {
+            List<String> result = new ArrayList<>(problems);
+            Collections.sort(result);
+            result.addAll(counterProblems);
+            return result;
+        }
+
+        List<Long> getCrossLinkedBlocks() {
+            return new ArrayList<>(getCrossLinks().keySet());
+        }
+
+        Map<Long, List<Claim>> getCrossLinks() {
+            Map<Long, List<Claim>> crossLinks = new TreeMap<>();
+            for (Claim conflict : conflicts) {
+                crossLinks.computeIfAbsent(conflict.position, position -> new ArrayList<>(Collections.singleton(claims.get(position))))
+                        .add(conflict);
+            }
+            return crossLinks;
+        }
+
+        private void checkCounter(String name, long stored, long actual) {
+            if (stored != actual) {
+                counterProblems.add(String.format("Superblock: %s is %d, but actually %d", name, stored, actual));
+            }
+        }
+
+        private void checkBlocks() throws IOException {
+            List<Long> dataBlockPositions = new ArrayList<>();
+            boolean previousFree = false;
+            long position = Superblock.SIZE;
+            while (position < superblock.fileSize) {
+                if (superblock.fileSize - position < MIN_BLOCK_LENGTH) {
+                    problems.add(String.format("Block %d: %d trailing bytes cannot be a block", position, superblock.fileSize - position));
+                    structureValid = false;
+                    return;
+                }
+                ByteBuffer header = read(position, DATA_OFFSET);
+                String headerError = findHeaderError(position, header);
+                if (headerError != null) {
+                    problems.add(headerError);
+                    structureValid = false;
+                    return;
+                }
+                long length = header.getLong(LENGTH_FIRST_OFFSET);
+                long endLength = readLong(position + length - LENGTH_BYTES);
+                if (endLength != length) {
+                    problems.add(String.format("Block %d: start length %d differs from end length %d", position, length, endLength));
+                    long next = position + length;
+                    if (next < superblock.fileSize && (superblock.fileSize - next < MIN_BLOCK_LENGTH
+                            || findHeaderError(next, read(next, DATA_OFFSET)) != null)) {
+                        structureValid = false;
+                        return;
+                    }
+                    wrongEndLengths.add(position);
+                }
+                blocksCount++;
+                boolean free = header.get(0) == FREE_BLOCK;
+                if (free) {
+                    if (previousFree) {
+                        problems.add(String.format("Block %d: free block is not merged with the previous free block", position));
+                    }
+                } else {
+                    usedBytes += length;
+                    dataBlockPositions.add(position);
+                    long highWaterMark = header.getLong(HIGH_WATER_MARK_OFFSET);
+                    if (highWaterMark < 0 || highWaterMark > length - SERVICE_DATA_BYTES) {
+                        problems.add(String.format("Block %d: invalid high-water mark %d", position, highWaterMark));
+                        wrongHighWaterMarks.add(position);
+                    }
+                }
+                previousFree = free;
+                position += length;
+            }
+            dataBlocks = dataBlockPositions.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        /**
+         * Claims all the blocks of the chain beginning from {@code first}.
+         *
+         * @return claimed blocks, empty if the first block cannot be claimed.
+         */
+        private List<Long> claimChain(String owner, long first, @Nullable ReferenceLocation record) throws IOException {
+            List<Long> chain = new ArrayList<>();
+            long previous = NO_BLOCK;
+            long position = first;
+            while (true) {
+                Claim claim = new Claim(position, owner, previous, record);
+                if (Arrays.binarySearch(dataBlocks, position) < 0) {
+                    problems.add(String.format("%s: chain refers to %d which is not a data block", owner, position));
+                    brokenLinks.add(claim);
+                    return chain;
+                }
+                Claim existing = claims.putIfAbsent(position, claim);
+                if (existing != null) {
+                    problems.add(String.format("Block %d: cross-linked by %s and %s", position, existing.owner, owner));
+                    conflicts.add(claim);
+                    return chain;
+                }
+                chain.add(position);
+                long next = readLong(position + POSITION_OFFSET);
+                if (next == LAST_BLOCK_IN_DATA_CHAIN) {
+                    return chain;
+                }
+                previous = position;
+                position = next;
+            }
+        }
+
+        /**
+         * Claims the snapshots table, the remap chains and the chains preserved for the snapshots, see {@link Snapshots}.
+         * The preserved chains are not checked deeper: they refer to the live chains or to the other preserved ones.
+         * The problems of the snapshots are not repaired, the preserved chains would be freed as leaked ones.
+         */
+        private void checkSnapshots() throws IOException {
+            long position = superblock.getSnapshotsPosition();
+            if (position == 0) {
+                return;
+            }
+            ByteBuffer table = readServiceChain("Snapshots table", position);
+            int entryBytes = Snapshots.REMAP_POSITION_BYTES + superblock.fileNameSize;
+            long count = table == null || table.capacity() < Snapshots.HEADER_BYTES ? -1 : table.getLong(Snapshots.COUNT_OFFSET);
+            if (count <= 0 || Snapshots.HEADER_BYTES + count * entryBytes > table.capacity()) {
+                problems.add(String.format("Snapshots table: %d cannot be read", position));
+                structureValid = false;
+                return;
+            }
+            Set<Long> preserved = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                int offset = Snapshots.HEADER_BYTES + i * entryBytes;
+                String name = new String(table.array(), offset + Snapshots.REMAP_POSITION_BYTES, superblock.fileNameSize,
+                        StandardCharsets.US_ASCII).trim();
+                String owner = "snapshot " + name;
+                ByteBuffer remap = readServiceChain(owner, table.getLong(offset));
+                long entries = remap == null || remap.capacity() < Snapshots.HEADER_BYTES ? -1 : remap.getLong(Snapshots.COUNT_OFFSET);
+                if (entries < 0 || Snapshots.HEADER_BYTES + entries * Snapshots.REMAP_ENTRY_BYTES > remap.capacity()) {
+                    problems.add(String.format("%s: remap table cannot be read", owner));
+                    structureValid = false;
+                    continue;
+                }
+                for (int entry = 0; entry < entries; entry++) {
+                    int entryOffset = Snapshots.HEADER_BYTES + entry * Snapshots.REMAP_ENTRY_BYTES;
+                    long copy = remap.getLong(entryOffset + Long.BYTES);
+                    if (copy != Snapshots.NOT_SEEN && preserved.add(copy) && claimChain(owner + ":copy of " + remap.getLong(entryOffset), copy, null).isEmpty()) {
+                        structureValid = false;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Claims the service chain and reads its content.
+         *
+         * @return the content or {@code null} if the chain cannot be claimed.
+         */
+        @Nullable
+        private ByteBuffer readServiceChain(String owner, long position) throws IOException {
+            List<Long> chain = claimChain(owner, position, null);
+            if (chain.isEmpty()) {
+                structureValid = false;
+                return null;
+            }
+            return ByteBuffer.wrap(readContent(chain, Block.MAX_BYTE_ARRAY_SIZE));
+        }
+
+        /**
+         * Claims the chains of the slabs referred by the directory records and compares their bitmaps with the referred slots.
+         */
+        private void checkSlabs() throws IOException {
+            for (Map.Entry<Long, Map<Integer, SlotClaim>> entry : new TreeMap<>(slotClaims).entrySet()) {
+                long position = entry.getKey();
+                Map<Integer, SlotClaim> slots = new TreeMap<>(entry.getValue());
+                String slabError = null;
+                List<Long> chain = Collections.emptyList();
+                if (Arrays.binarySearch(dataBlocks, position) < 0 || read(position, 1).get() != SLAB_DATA_BLOCK) {
+                    slabError = "which is not a slab";
+                } else {
+                    chain = claimChain("slab " + position, position, null);
+                }
+                ByteBuffer header = ByteBuffer.wrap(chain.isEmpty() ? new byte[0] : readContent(chain, Block.MAX_BYTE_ARRAY_SIZE));
+                if (slabError == null && header.capacity() >= SlabAllocator.HEADER_BYTES) {
+                    int slotSize = header.getInt(SlabAllocator.SLOT_SIZE_OFFSET);
+                    if (slotSize < SlabAllocator.MIN_SLOT_SIZE || Integer.bitCount(slotSize) != 1
+                            || SlabAllocator.getSlotOffset(slotSize, SlabAllocator.SLOTS_COUNT) > header.capacity()) {
+                        slabError = "with invalid slot size " + slotSize;
+                    }
+                } else if (slabError == null) {
+                    slabError = "which cannot be read";
+                }
+                if (slabError != null) {
+                    for (Map.Entry<Integer, SlotClaim> slot : slots.entrySet()) {
+                        problems.add(String.format("%s: refers to slab %d %s", slot.getValue().owner, position, slabError));
+                        brokenSlotReferences.add(slot.getValue().record);
+                    }
+                    continue;
+                }
+                long referred = 0;
+                for (int slot : slots.keySet()) {
+                    referred |= 1L << slot;
+                }
+                long bitmap = header.getLong(SlabAllocator.BITMAP_OFFSET);
+                if (bitmap != referred) {
+                    for (int slot = 0; slot < SlabAllocator.SLOTS_COUNT; slot++) {
+                        if ((referred >>> slot & 1) != 0 && (bitmap >>> slot & 1) == 0) {
+                            problems.add(String.format("Slab %d: slot %d is referred by %s, but marked free",
+                                    position, slot, slots.get(slot).owner));
+                        } else if ((referred >>> slot & 1) == 0 && (bitmap >>> slot & 1) != 0) {
+                            problems.add(String.format("Slab %d: slot %d is marked occupied, but not referred", position, slot));
+                        }
+                    }
+                    wrongSlabBitmaps.put(position, referred);
+                }
+                int slotSize = header.getInt(SlabAllocator.SLOT_SIZE_OFFSET);
+                for (SlotClaim claim : slots.values()) {
+                    checkRecordSize(claim.owner, claim.size, claim.recordSize, slotSize);
+                }
+            }
+        }
+
+        private void checkRecordSize(String owner, ReferenceLocation location, long recordSize, long actualSize) {
+            if (recordSize != actualSize) {
+                problems.add(String.format("%s: the size in the record is %d, but actually %d", owner, recordSize, actualSize));
+                wrongRecordSizes.put(location, actualSize);
+            }
+        }
+
+        /**
+         * Claims the extents referred by the deduplicated files and the extent index, compares the references counters
+         * with the found references and the index entries with the referred extents.
+         */
+        private void checkExtents() throws IOException {
+            Map<Long, byte[]> indexed = readExtentIndex();
+            for (Map.Entry<Long, Queue<ReferenceLocation>> entry : new TreeMap<>(extentReferences).entrySet()) {
+                long position = entry.getKey();
+                int references = entry.getValue().size();
+                List<Long> chain = Collections.emptyList();
+                if (Arrays.binarySearch(dataBlocks, position) >= 0 && read(position, 1).get() == EXTENT_DATA_BLOCK) {
+                    chain = claimChain("extent " + position, position, null);
+                }
+                ByteBuffer header = ByteBuffer.wrap(chain.isEmpty()
+                        ? new byte[0] : readContent(chain, DeduplicatedContent.EXTENT_DATA_OFFSET));
+                if (header.capacity() < DeduplicatedContent.EXTENT_DATA_OFFSET) {
+                    problems.add(String.format("Extent %d: referred %d times, but it is not a valid extent", position, references));
+                    brokenExtentReferences.addAll(entry.getValue());
+                    continue;
+                }
+                long storedReferences = header.getLong(DeduplicatedContent.EXTENT_REFERENCES_OFFSET);
+                if (storedReferences != references) {
+                    problems.add(String.format("Extent %d: references count is %d, but actually %d",
+                            position, storedReferences, references));
+                    wrongExtentReferences.put(position, (long) references);
+                }
+                validExtents.put(position, Arrays.copyOfRange(header.array(),
+                        DeduplicatedContent.EXTENT_HASH_OFFSET, DeduplicatedContent.EXTENT_DATA_OFFSET));
+            }
+            boolean indexMatches = indexed != null && indexed.size() == validExtents.size();
+            for (Map.Entry<Long, byte[]> extent : validExtents.entrySet()) {
+                indexMatches = indexMatches && Arrays.equals(extent.getValue(), indexed.get(extent.getKey()));
+            }
+            if (!indexMatches) {
+                problems.add("Extent index: the entries do not match the referred extents");
+                extentIndexWrong = true;
+            }
+        }
+
+        /**
+         * Claims the usage table chain and checks its header, see {@link UsageTable}. The counters are not compared
+         * with the tree: a wrong table is dropped by the repair, the usage is recounted by the next loading.
+         */
+        private void checkUsageTable() throws IOException {
+            long position = superblock.getUsageTablePosition();
+            if (position == 0) {
+                return;
+            }
+            if (Arrays.binarySearch(dataBlocks, position) < 0) {
+                problems.add(String.format("Usage table: refers to %d which is not a data block", position));
+                usageTableWrong = true;
+                return;
+            }
+            List<Long> chain = claimChain("usage table", position, null);
+            usageTableClaimed = !chain.isEmpty();
+            ByteBuffer table = ByteBuffer.wrap(chain.isEmpty() ? new byte[0] : readContent(chain, Block.MAX_BYTE_ARRAY_SIZE));
+            long capacity = table.capacity() < UsageTable.HEADER_BYTES ? 0 : table.getLong(UsageTable.CAPACITY_OFFSET);
+            long count = capacity == 0 ? 0 : table.getLong(UsageTable.COUNT_OFFSET);
+            if (capacity <= 0 || Long.bitCount(capacity) != 1 || count < 0 || count > capacity) {
+                problems.add(String.format("Usage table: %d cannot be read", position));
+                usageTableWrong = true;
+            }
+        }
+
+        /**
+         * Claims the extent index chain and reads its entries.
+         *
+         * @return extent position -> hash, or {@code null} if the index is broken.
+         */
+        @Nullable
+        private Map<Long, byte[]> readExtentIndex() throws IOException {
+            Map<Long, byte[]> indexed = new TreeMap<>();
+            long position = superblock.getExtentIndexPosition();
+            if (position == 0) {
+                return indexed;
+            }
+            if (Arrays.binarySearch(dataBlocks, position) < 0) {
+                problems.add(String.format("Extent index: refers to %d which is not a data block", position));
+                return null;
+            }
+            List<Long> chain = claimChain("extent index", position, null);
+            if (chain.isEmpty()) {
+                return null;
+            }
+            extentIndexClaimed = true;
+            ByteBuffer table = ByteBuffer.wrap(readContent(chain, Integer.MAX_VALUE - Long.BYTES));
+            if (table.capacity() < ExtentIndex.HEADER_BYTES) {
+                return null;
+            }
+            long count = table.getLong(ExtentIndex.COUNT_OFFSET);
+            long capacity = table.getLong(ExtentIndex.CAPACITY_OFFSET);
+            if (capacity <= 0 || ExtentIndex.HEADER_BYTES + capacity * ExtentIndex.ENTRY_BYTES > table.capacity()) {
+                return null;
+            }
+            for (int place = 0; place < capacity; place++) {
+                int offset = ExtentIndex.HEADER_BYTES + place * ExtentIndex.ENTRY_BYTES;
+                long extent = table.getLong(offset + ExtentIndex.HASH_BYTES);
+                if (extent != 0) {
+                    byte[] hash = Arrays.copyOfRange(table.array(), offset, offset + ExtentIndex.HASH_BYTES);
+                    if (indexed.put(extent, hash) != null) {
+                        return null; // the same extent is indexed twice
+                    }
+                }
+            }
+            return indexed.size() == count ? indexed : null;
+        }
+
+        /**
+         * Counts the extent references of the deduplicated file with the index {@code chain}, see {@link DeduplicatedContent}.
+         */
+        private void countExtentReferences(String owner, List<Long> chain) throws IOException {
+            byte[] index = readContent(chain, Block.MAX_BYTE_ARRAY_SIZE);
+            if (index.length < DeduplicatedContent.HEADER_BYTES) {
+                return;
+            }
+            ByteBuffer header = ByteBuffer.wrap(index);
+            long size = header.getLong(0);
+            int chunkSize = header.getInt(Long.BYTES);
+            if (size < 0 || chunkSize <= 0) {
+                problems.add(String.format("%s: invalid deduplicated file size %d or chunk size %d", owner, size, chunkSize));
+                return;
+            }
+            long chunksCount = Math.min((size + chunkSize - 1) / chunkSize,
+                    (index.length - DeduplicatedContent.HEADER_BYTES) / DeduplicatedContent.CHUNK_ENTRY_BYTES);
+            for (int chunk = 0; chunk < chunksCount; chunk++) {
+                int entryOffset = DeduplicatedContent.HEADER_BYTES + chunk * DeduplicatedContent.CHUNK_ENTRY_BYTES;
+                long position = header.getLong(entryOffset);
+                if (position != 0) {
+                    extentReferences.computeIfAbsent(position, extent -> new ConcurrentLinkedQueue<>())
+                            .add(new ReferenceLocation(chain.get(0), entryOffset, DeduplicatedContent.CHUNK_ENTRY_BYTES));
+                }
+            }
+        }
+
+        /**
+         * Claims the chunk chains of the compressed file with the index {@code chain}, see {@link CompressedContent}.
+         */
+        private void claimChunks(String owner, List<Long> chain) throws IOException {
+            byte[] index = readContent(chain, Block.MAX_BYTE_ARRAY_SIZE);
+            if (index.length < CompressedContent.HEADER_BYTES) {
+                return;
+            }
+            ByteBuffer header = ByteBuffer.wrap(index);
+            long size = header.getLong(0);
+            int chunkSize = header.getInt(Long.BYTES);
+            if (size < 0 || chunkSize <= 0) {
+                problems.add(String.format("%s: invalid compressed file size %d or chunk size %d", owner, size, chunkSize));
+                return;
+            }
+            long chunksCount = Math.min((size + chunkSize - 1) / chunkSize,
+                    (index.length - CompressedContent.HEADER_BYTES) / CompressedContent.CHUNK_ENTRY_BYTES);
+            for (int chunk = 0; chunk < chunksCount; chunk++) {
+                int entryOffset = CompressedContent.HEADER_BYTES + chunk * CompressedContent.CHUNK_ENTRY_BYTES;
+                long position = header.getLong(entryOffset);
+                if (position != 0) {
+                    claimChain(owner + ":chunk " + chunk, position,
+                            new ReferenceLocation(chain.get(0), entryOffset, CompressedContent.CHUNK_ENTRY_BYTES));
+                }
+            }
+        }
+
+        private void claimSlot(String owner, long reference, ReferenceLocation record, ReferenceLocation size, long recordSize) {
+            long slab = SlabAllocator.getSlabPosition(reference);
+            int slot = SlabAllocator.getSlot(reference);
+            slotClaims.computeIfAbsent(slab, position -> new ConcurrentHashMap<>()).merge(slot,
+                    new SlotClaim(owner, record, size, recordSize),
+                    (existing, claim) -> {
+                        // the smallest path wins to keep the result deterministic
+                        SlotClaim winner = existing.owner.compareTo(claim.owner) <= 0 ? existing : claim;
+                        SlotClaim loser = winner == existing ? claim : existing;
+                        problems.add(String.format("Slab %d: slot %d is cross-linked by %s and %s",
+                                slab, slot, winner.owner, loser.owner));
+                        brokenSlotReferences.add(loser.record);
+                        return winner;
+                    });
+        }
+
+        private byte[] readContent(List<Long> chain, long maxContentSize) throws IOException {
+            List<ByteBuffer> headers = new ArrayList<>();
+            long capacity = 0;
+            for (long position : chain) {
+                ByteBuffer header = read(position, DATA_OFFSET);
+                headers.add(header);
+                capacity += header.getLong(LENGTH_FIRST_OFFSET) - SERVICE_DATA_BYTES;
+            }
+            byte[] content = new byte[(int) Math.min(capacity, maxContentSize)];
+            int offset = 0;
+            for (int i = 0; i < chain.size() && offset < content.length; i++) {
+                ByteBuffer header = headers.get(i);
+                long dataCapacity = header.getLong(LENGTH_FIRST_OFFSET) - SERVICE_DATA_BYTES;
+                long written = Math.max(0, Math.min(header.getLong(HIGH_WATER_MARK_OFFSET), dataCapacity));
+                int bytes = (int) Math.min(written, content.length - offset);
+                read(chain.get(i) + DATA_OFFSET, bytes).get(content, offset, bytes);
+                offset += (int) Math.min(dataCapacity, content.length - offset);
+            }
+            return content;
+        }
+
+        /**
+         * The logical size of the file stored in the claimed part of its chain: the size in the header of a compressed
+         * or deduplicated file or the data capacity of the claimed blocks, the chain is cut to them by the repair.
+         */
+        private long getFileSize(byte type, List<Long> chain) throws IOException {
+            if (type == COMPRESSED_DATA_BLOCK || type == DEDUPLICATED_DATA_BLOCK) {
+                return readLong(chain.get(0) + DATA_OFFSET);
+            }
+            long dataCapacity = 0;
+            for (long position : chain) {
+                dataCapacity += readLong(position + LENGTH_FIRST_OFFSET) - SERVICE_DATA_BYTES;
+            }
+            return dataCapacity;
+        }
+
+        private class DirectoryCheck extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final String path;
+            private final List<Long> chain; // claimed blocks of the directory content chain
+
+            DirectoryCheck(String path, List<Long> chain) {
+                this.path = path;
+                this.chain = chain;
+            }
+
+            @Override
+            protected void compute() {
+                try {
+                    long position = chain.get(0);
+                    long maxContentSize = Math.min(Block.MAX_BYTE_ARRAY_SIZE, 4L * superblock.maxFilesInDirectory * fileRecordSize);
+                    byte[] content = readContent(chain, maxContentSize);
+                    List<DirectoryCheck> subdirectories = new ArrayList<>();
+                    for (int index = 0; index < content.length / fileRecordSize; index++) {
+                        long first = ByteBuffer.wrap(content, index * fileRecordSize, POSITION_BYTES).getLong();
+                        if (first == 0) {
+                            continue;
+                        }
+                        String name = new String(content, index * fileRecordSize + POSITION_BYTES,
+                                superblock.fileNameSize, StandardCharsets.US_ASCII).trim();
+                        boolean directory = !name.isEmpty() && name.charAt(0) == '/';
+                        String childPath = directory ? path + name : path + "/" + name;
+                        if (directory) {
+                            directoriesCount.incrementAndGet();
+                        } else {
+                            filesCount.incrementAndGet();
+                        }
+                        ReferenceLocation size = new ReferenceLocation(position, (long) index * fileRecordSize + sizeOffset,
+                                DirectoryImpl.SIZE_BYTES);
+                        long recordSize = ByteBuffer.wrap(content).getLong(index * fileRecordSize + sizeOffset);
+                        if (first == InlineContent.INLINE_POSITION) {
+                            checkRecordSize(childPath, size, recordSize, superblock.inlineFileSize);
+                            continue;
+                        }
+                        ReferenceLocation record = new ReferenceLocation(position, (long) index * fileRecordSize, fileRecordSize);
+                        if (SlabAllocator.isSlabReference(first)) {
+                            claimSlot(childPath, first, record, size, recordSize);
+                            continue;
+                        }
+                        List<Long> claimed = claimChain(childPath, first, record);
+                        if (claimed.isEmpty()) {
+                            continue;
+                        }
+                        if (directory) {
+                            checkRecordSize(childPath, size, recordSize, 0);
+                            subdirectories.add(new DirectoryCheck(childPath, claimed));
+                            continue;
+                        }
+                        byte type = read(first, 1).get();
+                        if (type == COMPRESSED_DATA_BLOCK) {
+                            claimChunks(childPath, claimed);
+                        } else if (type == DEDUPLICATED_DATA_BLOCK) {
+                            countExtentReferences(childPath, claimed);
+                        }
+                        checkRecordSize(childPath, size, recordSize, getFileSize(type, claimed));
+                    }
+                    invokeAll(subdirectories);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+}
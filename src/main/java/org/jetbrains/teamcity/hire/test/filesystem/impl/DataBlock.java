@@ -1,21 +1,33 @@
 package org.jetbrains.teamcity.hire.test.filesystem.impl;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.zip.CRC32;
+import org.jetbrains.teamcity.hire.test.filesystem.api.ChecksumVerification;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.CorruptedDataException;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
 
 class DataBlock extends Block {
 
-    private static final long LAST_BLOCK_IN_DATA_CHAIN = -2L;
+    static final long LAST_BLOCK_IN_DATA_CHAIN = -2L;
     private static final long UNKNOWN_POSITION = -1L;
+    private static final long UNKNOWN_HIGH_WATER_MARK = -1L;
+    private static final int EMPTY_DATA_CHECKSUM = 0;
 
     private long nextDataBlockPosition = UNKNOWN_POSITION;
+    // Data space bytes beyond the high-water mark were never written and are read as zeros without disk access
+    private long highWaterMark = UNKNOWN_HIGH_WATER_MARK;
+    private Integer checksum; // null if unknown
 
-    DataBlock(RandomAccessFile file, long fileBegin, long fileSize, long startPosition) {
-        super(file, fileBegin, fileSize, startPosition);
+    DataBlock(Container container, long startPosition) {
+        super(container, startPosition);
     }
 
     DataBlock(Block base) {
@@ -27,7 +39,7 @@ class DataBlock extends Block {
     }
 
     /**
-     * White all the required system fields, initialize data space with zeros.
+     * White all the required system fields. Data space is not written, it is read as zeros up to the first write.
      *
      * @param length full length of the block.
      */
@@ -42,7 +54,9 @@ class DataBlock extends Block {
         setData();
         setLength(length);
         setLastBlockInDataChain();
-        fillDataSpaceAsEmpty();
+        setHighWaterMark(0);
+        setChecksum(EMPTY_DATA_CHECKSUM);
+        container.superblock.addUsedBytes(length);
         return this;
     }
 
@@ -62,18 +76,26 @@ class DataBlock extends Block {
                     "Cannot read %d bytes starting from %d: the chain capacity is %s bytes!",
                     destination.length, offset, getDataChainCapacity()));
         }
+        container.metrics.read(destination.length);
         long offsetInBlock = offset;
         DataBlock dataBlock = this;
         while (offsetInBlock >= dataBlock.getDataCapacity()) {
             offsetInBlock -= dataBlock.getDataCapacity();
             dataBlock = dataBlock.getNextDataBlock()
                     .orElseThrow(() -> new IllegalStateException("There is no enough space in chain!"));
+            container.metrics.chainHop();
         }
         int bytesRead = 0;
         while (destination.length - bytesRead > 0) {
             int readBytesInThisBlock = (int) Math.min(destination.length - bytesRead, dataBlock.getDataCapacity() - offsetInBlock);
-            file.seek(dataBlock.getStartPosition() + DATA_OFFSET + offsetInBlock);
-            file.read(destination, bytesRead, readBytesInThisBlock);
+            if (container.checksumVerification == ChecksumVerification.ON_READ) {
+                dataBlock.verifyChecksum();
+            }
+            int initializedBytes = (int) Math.max(0, Math.min(readBytesInThisBlock, dataBlock.getHighWaterMark() - offsetInBlock));
+            if (initializedBytes > 0) {
+                readFully(dataBlock.getStartPosition() + DATA_OFFSET + offsetInBlock, destination, bytesRead, initializedBytes);
+            }
+            Arrays.fill(destination, bytesRead + initializedBytes, bytesRead + readBytesInThisBlock, (byte) 0);
             bytesRead += readBytesInThisBlock;
             if (bytesRead == destination.length) {
                 break;
@@ -81,6 +103,7 @@ class DataBlock extends Block {
             offsetInBlock = 0; // can be > 0 only in the first block in chain
             dataBlock = dataBlock.getNextDataBlock()
                     .orElseThrow(() -> new IllegalStateException("There is not enough space in chain!"));
+            container.metrics.chainHop();
         }
     }
 
@@ -96,21 +119,36 @@ class DataBlock extends Block {
         if (source.length == 0) {
             return;
         }
+        checkWritable();
+        container.snapshots.beforeChange(this);
         if (offset + source.length > getDataChainCapacity()) {
             enlarge(offset + source.length);
         }
+        container.metrics.written(source.length);
         long offsetInBlock = offset;
         DataBlock dataBlock = this;
         while (offsetInBlock >= dataBlock.getDataCapacity()) {
             offsetInBlock -= dataBlock.getDataCapacity();
             dataBlock = dataBlock.getNextDataBlock()
                     .orElseThrow(() -> new IllegalStateException("There is not enough space in chain!"));
+            container.metrics.chainHop();
         }
         int bytesWritten = 0;
         while (source.length - bytesWritten > 0) {
             int writeBytesInThisBlock = (int) Math.min(source.length - bytesWritten, dataBlock.getDataCapacity() - offsetInBlock);
-            file.seek(dataBlock.getStartPosition() + DATA_OFFSET + offsetInBlock);
+            if (container.superblock.blockChecksums) {
+                dataBlock.updateChecksum(offsetInBlock, source, bytesWritten, writeBytesInThisBlock);
+            }
+            long highWaterMark = dataBlock.getHighWaterMark();
+            if (offsetInBlock > highWaterMark) {
+                // only the skipped gap is zeroed, the rest of not initialized space is still not touched
+                fillWithZeros(dataBlock.getStartPosition() + DATA_OFFSET + highWaterMark, offsetInBlock - highWaterMark);
+            }
+            seek(dataBlock.getStartPosition() + DATA_OFFSET + offsetInBlock);
             file.write(source, bytesWritten, writeBytesInThisBlock);
+            if (offsetInBlock + writeBytesInThisBlock > highWaterMark) {
+                dataBlock.setHighWaterMark(offsetInBlock + writeBytesInThisBlock);
+            }
             bytesWritten += writeBytesInThisBlock;
             if (bytesWritten == source.length) {
                 break;
@@ -118,6 +156,7 @@ class DataBlock extends Block {
             offsetInBlock = 0; // can be > 0 only in the first block in chain
             dataBlock = dataBlock.getNextDataBlock()
                     .orElseThrow(() -> new IllegalStateException("There is not enough space in chain!"));
+            container.metrics.chainHop();
         }
     }
 
@@ -127,9 +166,19 @@ class DataBlock extends Block {
 
 
     /**
-     * Removes all the data blocks chain starting from this.
+     * Removes all the data blocks chain starting from this. The chain is kept for the snapshots still referring to it.
      */
     void removeChain() throws IOException {
+        checkWritable();
+        if (!container.snapshots.retain(this)) {
+            freeChain();
+        }
+    }
+
+    /**
+     * Frees all the data blocks chain starting from this.
+     */
+    void freeChain() throws IOException {
         if (startPosition == firstBlockPosition) {
             throw new IllegalStateException("Cannot remove first (root directory) block!");
         }
@@ -138,16 +187,20 @@ class DataBlock extends Block {
             Optional<DataBlock> nextDataBlock = current.getNextDataBlock();
             Block previous = current.getPrevious()
                     .orElseThrow(() -> new IllegalStateException("Must not happen due to check above"));
-            DataBlock next = current.getNextDataBlock().orElse(null);
+            Block next = current.getNext().orElse(null); // physically next, not the next in chain
+            container.superblock.addUsedBytes(-current.getLength());
             if (previous.isFree()) {
                 if (next != null && next.isFree()) {
                     new FreeBlock(previous).initialize(previous.getLength() + current.getLength() + next.getLength());
+                    container.superblock.addBlocks(-2);
                 } else {
                     new FreeBlock(previous).initialize(previous.getLength() + current.getLength());
+                    container.superblock.addBlocks(-1);
                 }
             } else {
                 if (next != null && next.isFree()) {
                     new FreeBlock(current).initialize(current.getLength() + next.getLength());
+                    container.superblock.addBlocks(-1);
                 } else {
                     new FreeBlock(current).initialize(current.getLength());
                 }
@@ -156,6 +209,66 @@ class DataBlock extends Block {
         }
     }
 
+    /**
+     * Removes several data blocks chains at once, the same as {@link #removeChain()} for every one of them.
+     * The blocks of all the chains are sorted by position, every run of adjacent blocks becomes one free block
+     * which is coalesced with its free neighbours once, instead of coalescing every block separately.
+     */
+    static void removeChains(Container container, Collection<DataBlock> chains) throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        for (DataBlock chain : chains) {
+            chain.checkWritable();
+            if (chain.getStartPosition() == container.firstBlockPosition) {
+                throw new IllegalStateException("Cannot remove first (root directory) block!");
+            }
+            if (container.snapshots.retain(chain)) {
+                continue;
+            }
+            for (DataBlock block = chain; block != null; block = block.getNextDataBlock().orElse(null)) {
+                blocks.add(block);
+            }
+        }
+        blocks.sort(Comparator.comparingLong(Block::getStartPosition));
+        int i = 0;
+        while (i < blocks.size()) {
+            Block first = blocks.get(i);
+            long start = first.getStartPosition();
+            long end = start;
+            int mergedBlocks = 0;
+            while (i < blocks.size() && blocks.get(i).getStartPosition() == end) {
+                end += blocks.get(i).getLength();
+                mergedBlocks++;
+                i++;
+            }
+            container.superblock.addUsedBytes(-(end - start));
+            // the previous block can be the free block just initialized for an earlier run merged with the free block
+            // between the runs, so this run is merged into it: do not skip the merge for the previous runs
+            Optional<Block> previous = first.getPrevious();
+            if (previous.isPresent() && previous.get().isFree()) {
+                start = previous.get().getStartPosition();
+                mergedBlocks++;
+            }
+            if (end < container.fileSize) {
+                Block next = new Block(container, end);
+                if (next.isFree()) {
+                    end += next.getLength();
+                    mergedBlocks++;
+                }
+            }
+            new FreeBlock(container, start).initialize(end - start);
+            container.superblock.addBlocks(-(mergedBlocks - 1));
+        }
+    }
+
+    /**
+     * Preserves the chain for the snapshots seeing it before a change, so the following writes inside the data chain
+     * capacity do not allocate blocks and do not fail for lack of free space.
+     */
+    void prepareChange() throws IOException, NotEnoughFreeSpaceException {
+        checkWritable();
+        container.snapshots.beforeChange(this);
+    }
+
     /**
      * Adds {@code newDataSize} bytes to the data blocks chain.
      */
@@ -164,6 +277,8 @@ class DataBlock extends Block {
         if (newDataSize <= dataChainCapacity) {
             return;
         }
+        checkWritable();
+        container.snapshots.beforeChange(this);
         long bytesToAdd = newDataSize - dataChainCapacity;
         DataBlock lastInChain = getLastDataBlock();
         Optional<Block> next = lastInChain.getNext();
@@ -174,6 +289,7 @@ class DataBlock extends Block {
                 if (nextFree.getLength() - bytesToAdd < MIN_BLOCK_LENGTH) {
                     // add the whole block
                     lastInChain.extendIntoNext(nextFree.getLength());
+                    container.superblock.addBlocks(-1);
                 } else {
                     lastInChain.extendIntoNext(bytesToAdd);
                     new FreeBlock(this, nextFree.getStartPosition() + bytesToAdd)
@@ -182,22 +298,135 @@ class DataBlock extends Block {
                 return;
             }
             lastInChain.extendIntoNext(nextFree.getLength());
+            container.superblock.addBlocks(-1);
             bytesToAdd -= nextFree.getLength();
         }
-        DataBlock nextData = findFirstFreeBlock().allocate(bytesToAdd);
+        DataBlock nextData = allocateBlocks(bytesToAdd);
         lastInChain.setNextDataBlock(nextData);
     }
 
-    private long getNextDataBlockPosition() throws IOException {
+    /**
+     * Copies the data blocks chain starting from this to a new chain with at least the same data capacity.
+     * The type of the first block is copied too. Only the written data is copied, so the rest is read as zeros in the copy too.
+     * The snapshots copy on write by whole chains with this, so it costs the written bytes of the whole chain.
+     *
+     * @return the first block of the copy.
+     */
+    DataBlock copyChain() throws IOException, NotEnoughFreeSpaceException {
+        DataBlock copy = allocateBlocks(getDataChainCapacity());
+        copy.setType(getType());
+        long offset = 0;
+        for (DataBlock block = this; block != null; block = block.getNextDataBlock().orElse(null)) {
+            long written = block.getHighWaterMark();
+            for (long copied = 0; copied < written; copied += MAX_BYTE_ARRAY_SIZE) {
+                byte[] bytes = new byte[(int) Math.min(written - copied, MAX_BYTE_ARRAY_SIZE)];
+                readFully(block.getStartPosition() + DATA_OFFSET + copied, bytes, 0, bytes.length);
+                copy.write(offset + copied, bytes);
+            }
+            offset += block.getDataCapacity();
+        }
+        return copy;
+    }
+
+    long getNextDataBlockPosition() throws IOException {
         if (nextDataBlockPosition == UNKNOWN_POSITION) {
-            file.seek(startPosition + POSITION_OFFSET);
-            nextDataBlockPosition = file.readLong();
+            nextDataBlockPosition = readLong(startPosition + POSITION_OFFSET);
         }
         return nextDataBlockPosition;
     }
 
-    private void setLastBlockInDataChain() throws IOException {
-        file.seek(startPosition + POSITION_OFFSET);
+    long getHighWaterMark() throws IOException {
+        if (highWaterMark == UNKNOWN_HIGH_WATER_MARK) {
+            highWaterMark = readLong(startPosition + HIGH_WATER_MARK_OFFSET);
+        }
+        return highWaterMark;
+    }
+
+    void setHighWaterMark(long highWaterMark) throws IOException {
+        seek(startPosition + HIGH_WATER_MARK_OFFSET);
+        file.writeLong(highWaterMark);
+        this.highWaterMark = highWaterMark;
+    }
+
+    private int getChecksum() throws IOException {
+        if (checksum == null) {
+            checksum = readInt(startPosition + CHECKSUM_OFFSET);
+        }
+        return checksum;
+    }
+
+    private void setChecksum(int checksum) throws IOException {
+        container.verifiedBlocks.remove(startPosition);
+        seek(startPosition + CHECKSUM_OFFSET);
+        file.writeInt(checksum);
+        this.checksum = checksum;
+    }
+
+    /**
+     * Updates the checksum before writing {@code length} bytes from {@code source} at {@code offset} of this block data space.
+     * Only the overwritten bytes are read: the checksum is changed by the difference of the old and new bytes.
+     */
+    private void updateChecksum(long offset, byte[] source, int sourceOffset, int length) throws IOException {
+        long highWaterMark = getHighWaterMark();
+        long newHighWaterMark = Math.max(highWaterMark, offset + length);
+        // the data beyond the high-water mark is zeros, so the old bytes there are zeros too
+        byte[] delta = new byte[length];
+        int oldBytes = (int) Math.max(0, Math.min(length, highWaterMark - offset));
+        if (oldBytes > 0) {
+            readFully(startPosition + DATA_OFFSET + offset, delta, 0, oldBytes);
+        }
+        for (int i = 0; i < length; i++) {
+            delta[i] ^= source[sourceOffset + i];
+        }
+        int extendedChecksum = Checksums.appendZeros(getChecksum(), newHighWaterMark - highWaterMark);
+        setChecksum(Checksums.replace(extendedChecksum, newHighWaterMark, offset, delta));
+    }
+
+    /**
+     * Reads all the written data of the block and compares its checksum with the stored one.
+     */
+    boolean isChecksumValid() throws IOException {
+        return computeChecksum() == getChecksum();
+    }
+
+    /**
+     * Verifies the checksum of this block once per loading: the whole written data is read only by the first read
+     * after the loading or after the checksum change.
+     *
+     * @throws CorruptedDataException if the checksum does not match.
+     */
+    private void verifyChecksum() throws IOException {
+        if (container.verifiedBlocks.contains(startPosition)) {
+            return;
+        }
+        if (!isChecksumValid()) {
+            container.corruptedBlocks.add(startPosition);
+            throw new CorruptedDataException(startPosition);
+        }
+        container.verifiedBlocks.add(startPosition);
+    }
+
+    void recalculateChecksum() throws IOException {
+        setChecksum(computeChecksum());
+    }
+
+    private int computeChecksum() throws IOException {
+        CRC32 crc = new CRC32();
+        long bytesLeft = getHighWaterMark();
+        byte[] buffer = new byte[(int) Math.min(bytesLeft, MAX_BYTE_ARRAY_SIZE)];
+        long position = startPosition + DATA_OFFSET;
+        while (bytesLeft > 0) {
+            int bytes = (int) Math.min(bytesLeft, buffer.length);
+            readFully(position, buffer, 0, bytes);
+            crc.update(buffer, 0, bytes);
+            position += bytes;
+            bytesLeft -= bytes;
+        }
+        return (int) crc.getValue();
+    }
+
+    void setLastBlockInDataChain() throws IOException {
+        seek(startPosition + POSITION_OFFSET);
         file.writeLong(LAST_BLOCK_IN_DATA_CHAIN);
         nextDataBlockPosition = LAST_BLOCK_IN_DATA_CHAIN;
     }
@@ -211,7 +440,7 @@ class DataBlock extends Block {
     }
 
     void setNextDataBlock(DataBlock next) throws IOException {
-        file.seek(startPosition + POSITION_OFFSET);
+        seek(startPosition + POSITION_OFFSET);
         file.writeLong(next.getStartPosition());
         nextDataBlockPosition = next.getStartPosition();
     }
@@ -226,6 +455,16 @@ class DataBlock extends Block {
         return dataChainCapacity;
     }
 
+    int getDataChainLength() throws IOException {
+        int dataChainLength = 1;
+        Optional<DataBlock> nextDataBlock = getNextDataBlock();
+        while (nextDataBlock.isPresent()) {
+            dataChainLength++;
+            nextDataBlock = nextDataBlock.get().getNextDataBlock();
+        }
+        return dataChainLength;
+    }
+
     private DataBlock getLastDataBlock() throws IOException {
         DataBlock block = this;
         Optional<DataBlock> next = getNextDataBlock();
@@ -240,11 +479,9 @@ class DataBlock extends Block {
         if (getNextDataBlock().isPresent()) {
             throw new IllegalStateException("Only last block in the chain can be extended");
         }
-        long oldLength = getLength();
-        long newLength = oldLength + additionalSize;
-        setLength(newLength);
-        // It is important to fill the extended space with zeros but not touch the existing data
-        fillWithZeros(startPosition + oldLength - LENGTH_BYTES, additionalSize);
+        setLength(getLength() + additionalSize);
+        container.superblock.addUsedBytes(additionalSize);
+        // The extended space is beyond the high-water mark, so it is read as zeros without filling
     }
 
 }
@@ -0,0 +1,164 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Content of a deduplicated file. The data is split into fixed size logical chunks, every chunk is stored in an extent:
+ * a data blocks chain shared by all the chunks with the same SHA-256 hash, see {@link ExtentIndex}.
+ * The file chain (index chain) stores the header and the extent positions of the chunks, see {@link ChunkedContent}.
+ * Writing a chunk which is already stored only adds a reference to the extent. A changed chunk is stored to a new
+ * extent, the extent of the replaced chunk loses its reference only after the write, so it is not rewritten in place
+ * even if it has the single reference: a failed write does not change the extents which the index refers to.
+ */
+class DeduplicatedContent extends ChunkedContent {
+
+    static final int CHUNK_ENTRY_BYTES = 8; // extent chain position, 0 if the chunk is not stored: long
+
+    // Structure of the extent chain data: REFERENCES, LENGTH, reserved, HASH, then LENGTH bytes of the chunk.
+
+    static final int EXTENT_REFERENCES_OFFSET = 0; // count of the chunk entries referring to the extent: long
+    static final int EXTENT_LENGTH_OFFSET = 8; // length of the stored chunk: int
+    static final int EXTENT_HASH_OFFSET = 16; // SHA-256 of the stored chunk
+    static final int EXTENT_DATA_OFFSET = EXTENT_HASH_OFFSET + ExtentIndex.HASH_BYTES;
+
+    private static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("deduplicationChunkSize", 4 * 1024);
+
+    private final ExtentIndex extentIndex;
+    private final MessageDigest digest = createDigest();
+
+    DeduplicatedContent(DataBlock indexBlock) {
+        super(indexBlock, CHUNK_ENTRY_BYTES);
+        this.extentIndex = new ExtentIndex(indexBlock.container);
+    }
+
+    /**
+     * Data capacity of the index chain for a new deduplicated file of {@code size} bytes.
+     */
+    static long getIndexCapacity(long size) {
+        return getIndexCapacity(size, DEFAULT_CHUNK_SIZE, CHUNK_ENTRY_BYTES);
+    }
+
+    /**
+     * Marks the allocated index chain as a deduplicated file with {@code size} bytes of zeros.
+     */
+    static DeduplicatedContent initialize(DataBlock indexBlock, long size) throws IOException, NotEnoughFreeSpaceException {
+        indexBlock.setDeduplicated();
+        writeHeader(indexBlock, size, DEFAULT_CHUNK_SIZE);
+        return new DeduplicatedContent(indexBlock);
+    }
+
+    /**
+     * Only the requested range of the extent is read.
+     */
+    @Override
+    void readChunk(ByteBuffer entries, int entryOffset, int chunkLength, int chunkOffset,
+                   byte[] destination, int destinationOffset, int length) throws IOException {
+        long position = entries.getLong(entryOffset);
+        // the file could be extended after the chunk storing, the rest is zeros
+        int storedLength = position == 0 ? 0 : Math.max(0, Math.min(length, readExtentLength(position) - chunkOffset));
+        if (storedLength > 0) {
+            byte[] stored = new byte[storedLength];
+            indexBlock.container.getChain(position).read(EXTENT_DATA_OFFSET + chunkOffset, stored);
+            System.arraycopy(stored, 0, destination, destinationOffset, storedLength);
+        }
+        Arrays.fill(destination, destinationOffset + storedLength, destinationOffset + length, (byte) 0);
+    }
+
+    /**
+     * The chunk refers to the extent with the same hash or is stored to a new extent.
+     */
+    @Override
+    void storeChunk(ByteBuffer entries, int entryOffset, byte[] data, ChunksChange change)
+            throws IOException, NotEnoughFreeSpaceException {
+        long position = entries.getLong(entryOffset);
+        if (isAllZeros(data)) {
+            if (position != 0) {
+                replace(position, change);
+            }
+            entries.putLong(entryOffset, 0);
+            return;
+        }
+        byte[] hash = digest.digest(data);
+        if (position != 0 && Arrays.equals(hash, readExtentHash(position))) {
+            return; // the chunk is not changed
+        }
+        long existing = extentIndex.find(hash);
+        if (existing != 0) {
+            // the references counters are changed by the write and by its failure without allocations
+            new DataBlock(indexBlock, existing).prepareChange();
+            addReferences(existing, 1);
+            change.acquired(existing);
+        } else {
+            DataBlock extent = indexBlock.allocateChain(EXTENT_DATA_OFFSET + data.length);
+            change.acquired(extent.getStartPosition());
+            extent.setExtent();
+            extent.write(EXTENT_REFERENCES_OFFSET, ByteBuffer.allocate(EXTENT_DATA_OFFSET + data.length)
+                    .putLong(1).putInt(data.length).putInt(0).put(hash).put(data).array());
+            extentIndex.put(hash, extent.getStartPosition());
+            existing = extent.getStartPosition();
+        }
+        if (position != 0) {
+            replace(position, change);
+        }
+        entries.putLong(entryOffset, existing);
+    }
+
+    private void replace(long position, ChunksChange change) throws IOException, NotEnoughFreeSpaceException {
+        new DataBlock(indexBlock, position).prepareChange();
+        change.replaced(position);
+    }
+
+    /**
+     * Removes a reference to the extent, the extent is removed with its last reference.
+     */
+    @Override
+    void releaseChunk(long position) throws IOException {
+        long references = readReferences(position);
+        if (references > 1) {
+            addReferences(position, -1);
+            return;
+        }
+        extentIndex.remove(readExtentHash(position));
+        new DataBlock(indexBlock, position).removeChain();
+    }
+
+    private long readReferences(long position) throws IOException {
+        byte[] references = new byte[Long.BYTES];
+        new DataBlock(indexBlock, position).read(EXTENT_REFERENCES_OFFSET, references);
+        return ByteBuffer.wrap(references).getLong();
+    }
+
+    private void addReferences(long position, long delta) throws IOException {
+        try {
+            new DataBlock(indexBlock, position).write(EXTENT_REFERENCES_OFFSET, readReferences(position) + delta);
+        } catch (NotEnoughFreeSpaceException e) {
+            throw new IllegalStateException("The references counter is inside the extent, it cannot be enlarged", e);
+        }
+    }
+
+    private int readExtentLength(long position) throws IOException {
+        byte[] length = new byte[Integer.BYTES];
+        indexBlock.container.getChain(position).read(EXTENT_LENGTH_OFFSET, length);
+        return ByteBuffer.wrap(length).getInt();
+    }
+
+    private byte[] readExtentHash(long position) throws IOException {
+        byte[] hash = new byte[ExtentIndex.HASH_BYTES];
+        new DataBlock(indexBlock, position).read(EXTENT_HASH_OFFSET, hash);
+        return hash;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is supported by every Java platform", e);
+        }
+    }
+
+}
@@ -1,21 +1,39 @@
 package org.jetbrains.teamcity.hire.test.filesystem.impl;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AllocationOption;
+import org.jetbrains.teamcity.hire.test.filesystem.api.CompressionOption;
+import org.jetbrains.teamcity.hire.test.filesystem.api.CreateFileOption;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DeduplicationOption;
 import org.jetbrains.teamcity.hire.test.filesystem.api.Directory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DirectoryEntry;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DirectoryVisitor;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DiskUsage;
 import org.jetbrains.teamcity.hire.test.filesystem.api.File;
-import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.IllegalFileNameException;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEmptyDirectoryException;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.QuotaExceededException;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.TooManyFilesException;
 
 import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.MAX_BYTE_ARRAY_SIZE;
@@ -23,18 +41,20 @@ import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.POSITION_BY
 
 class DirectoryImpl implements Directory {
 
-    private static final int FILE_NAME_SIZE = Integer.getInteger("fileNameSize", 42);
-    private static final int FILE_RECORD_SIZE = POSITION_BYTES + FILE_NAME_SIZE;
-    private static final int INITIAL_FILES_CAPACITY = Integer.getInteger("initialRootDirectoryCapacity", 16);
-    static final int DEFAULT_SIZE = INITIAL_FILES_CAPACITY * FILE_RECORD_SIZE;
-    private static final int MAX_FILES_IN_DIR = Math.min(
-            Integer.getInteger("maxFilesInDirectory", 2048),
-            MAX_BYTE_ARRAY_SIZE / FILE_RECORD_SIZE); // allow to load all records in one byte array
-
     private static final CharsetEncoder US_ASCII_ENCODER = StandardCharsets.US_ASCII.newEncoder();
+    private static final int LISTING_PAGE_SIZE = Integer.getInteger("listingPageSize", 256);
+    static final int SIZE_BYTES = Long.BYTES;
 
     private final String name;
     private final DataBlock contentBlock;
+    // Format parameters of the file system file
+    private final int fileNameSize;
+    private final int inlineFileSize;
+    private final int slabMaxSlotSize;
+    private final int fileRecordSize;
+    private final int sizeOffset;
+    private final int defaultSize;
+    private final int maxFilesInDir;
 
     /**
      * @param name         the directory name, should start with leading slash
@@ -46,6 +66,39 @@ class DirectoryImpl implements Directory {
             throw new IllegalArgumentException("Unexpected directory name: " + name);
         }
         this.contentBlock = Objects.requireNonNull(contentBlock, "contentBlock must be not null");
+        Superblock superblock = contentBlock.container.superblock;
+        this.fileNameSize = superblock.fileNameSize;
+        this.inlineFileSize = superblock.inlineFileSize;
+        this.slabMaxSlotSize = superblock.slabMaxSlotSize;
+        this.fileRecordSize = getFileRecordSize(superblock.fileNameSize, superblock.inlineFileSize);
+        this.sizeOffset = getSizeOffset(superblock.fileNameSize, superblock.inlineFileSize);
+        this.defaultSize = getDefaultSize(superblock.fileNameSize, superblock.inlineFileSize, superblock.initialDirectoryCapacity);
+        this.maxFilesInDir = Math.min(
+                superblock.maxFilesInDirectory,
+                MAX_BYTE_ARRAY_SIZE / fileRecordSize); // allow to load all records in one byte array
+    }
+
+    /**
+     * Size of a directory record: position of the data blocks chain, name, inline file data and the file size.
+     */
+    static int getFileRecordSize(int fileNameSize, int inlineFileSize) {
+        return getSizeOffset(fileNameSize, inlineFileSize) + SIZE_BYTES;
+    }
+
+    /**
+     * Offset of the file size in a directory record. The logical size of the file is kept in its record and is updated
+     * by every growth of the file, so the entries are listed without reading the data blocks chains of the files.
+     * The size is 0 in the records of the directories.
+     */
+    static int getSizeOffset(int fileNameSize, int inlineFileSize) {
+        return POSITION_BYTES + fileNameSize + inlineFileSize;
+    }
+
+    /**
+     * Data size of a new directory content block.
+     */
+    static int getDefaultSize(int fileNameSize, int inlineFileSize, int initialDirectoryCapacity) {
+        return initialDirectoryCapacity * getFileRecordSize(fileNameSize, inlineFileSize);
     }
 
     @Override
@@ -56,21 +109,150 @@ class DirectoryImpl implements Directory {
     @Override
     public File createFile(String fileName, int size)
             throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException {
+        return createFile(fileName, size, new CreateFileOption[0]);
+    }
+
+    @Override
+    public File createFile(String fileName, int size, CreateFileOption... options)
+            throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException {
         Objects.requireNonNull(fileName, "fileName must be not null");
+        Objects.requireNonNull(options, "options must be not null");
         if (size < 0) {
             throw new IllegalArgumentException("File size cannot be negative");
         }
-        synchronized (RootDirectory.class) {
-            checkFileNameCorrectness(fileName, FILE_NAME_SIZE);
+        contentBlock.checkWritable();
+        return contentBlock.container.locked("Directory.createFile", name, fileName, () -> {
+            checkFileNameCorrectness(fileName, fileNameSize);
             int filesCount = getFilesCount();
-            if (filesCount >= MAX_FILES_IN_DIR) {
-                throw new TooManyFilesException(name, MAX_FILES_IN_DIR);
+            if (filesCount >= maxFilesInDir) {
+                throw new TooManyFilesException(name, maxFilesInDir);
+            }
+            // the logical size is not less than the requested one, so the exceeding file is not allocated,
+            // the quota is checked once more against the logical size of the allocated one
+            contentBlock.container.usageTable.checkQuota(contentBlock.getStartPosition(), size);
+            boolean compressed = Arrays.asList(options).contains(CompressionOption.DEFLATE);
+            boolean deduplicated = Arrays.asList(options).contains(DeduplicationOption.DEDUPLICATE);
+            if (compressed && deduplicated) {
+                throw new IllegalArgumentException("Compressed file cannot be deduplicated");
+            }
+            boolean chunked = compressed || deduplicated;
+            if (!chunked && inlineFileSize > 0 && size <= inlineFileSize) {
+                return fileCreated(fileName, InlineContent.INLINE_POSITION, getCreatedFileSize(InlineContent.INLINE_POSITION, size, false), filesCount);
+            }
+            Set<AllocationOption> allocationOptions = getAllocationOptions(options);
+            if (!chunked && allocationOptions.isEmpty() && slabMaxSlotSize > 0 && size <= slabMaxSlotSize) {
+                Optional<Long> reference = allocateSlot(size);
+                if (reference.isPresent()) {
+                    return fileCreated(fileName, reference.get(), getCreatedFileSize(reference.get(), size, false), filesCount);
+                }
             }
-            DataBlock fileDataBlock = contentBlock.findFirstFreeBlock()
-                    .allocate(Math.max(size, Block.MIN_DATA_CAPACITY));
-            addFileRecord(fileName, fileDataBlock, filesCount);
-            return new FileImpl(fileDataBlock, fileName);
+            long dataCapacity = size;
+            if (compressed) {
+                dataCapacity = CompressedContent.getIndexCapacity(size);
+            } else if (deduplicated) {
+                dataCapacity = DeduplicatedContent.getIndexCapacity(size);
+            }
+            DataBlock fileDataBlock = allocate(Math.max(dataCapacity, Block.MIN_DATA_CAPACITY), allocationOptions);
+            if (compressed) {
+                CompressedContent.initialize(fileDataBlock, size);
+            } else if (deduplicated) {
+                DeduplicatedContent.initialize(fileDataBlock, size);
+            }
+            return fileCreated(fileName, fileDataBlock.getStartPosition(),
+                    getCreatedFileSize(fileDataBlock.getStartPosition(), size, chunked), filesCount);
+        });
+    }
+
+    @Override
+    public Map<String, File> createFiles(Map<String, Integer> sizes, CreateFileOption... options)
+            throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException {
+        Objects.requireNonNull(sizes, "sizes must be not null");
+        Objects.requireNonNull(options, "options must be not null");
+        for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+            Objects.requireNonNull(entry.getKey(), "fileName must be not null");
+            if (entry.getValue() == null || entry.getValue() < 0) {
+                throw new IllegalArgumentException("File size cannot be negative");
+            }
+        }
+        contentBlock.checkWritable();
+        boolean compressed = Arrays.asList(options).contains(CompressionOption.DEFLATE);
+        boolean deduplicated = Arrays.asList(options).contains(DeduplicationOption.DEDUPLICATE);
+        if (compressed && deduplicated) {
+            throw new IllegalArgumentException("Compressed file cannot be deduplicated");
         }
+        return contentBlock.container.locked("Directory.createFiles", name, null, () -> {
+            // all the names are checked against one reading of the records
+            byte[] records = readFileRecords();
+            Set<String> names = new HashSet<>();
+            for (FileRecord record : new FileRecords(records)) {
+                if (!record.isEmpty()) {
+                    names.add(record.getName());
+                }
+            }
+            int filesCount = names.size();
+            for (String fileName : sizes.keySet()) {
+                checkFileNameSyntax(fileName, fileNameSize);
+                if (!names.add(fileName)) {
+                    throw new IllegalFileNameException("A file with such name is already presented!");
+                }
+            }
+            if (filesCount + sizes.size() > maxFilesInDir) {
+                throw new TooManyFilesException(name, maxFilesInDir);
+            }
+            int recordsCapacity = records.length / fileRecordSize;
+            if (recordsCapacity - filesCount < sizes.size()) {
+                int newCapacity = Math.max(recordsCapacity, 1);
+                while (newCapacity - filesCount < sizes.size()) {
+                    newCapacity *= 2;
+                }
+                contentBlock.enlarge((long) newCapacity * fileRecordSize);
+                records = Arrays.copyOf(records, getFileRecordsCapacity() * fileRecordSize);
+            }
+            long requiredBytes = 0;
+            for (int size : sizes.values()) {
+                requiredBytes += size;
+            }
+            // the logical sizes are not less than the requested ones, see createFile
+            contentBlock.container.usageTable.checkQuota(contentBlock.getStartPosition(), requiredBytes);
+            List<String> fileNames = new ArrayList<>(sizes.keySet());
+            long[] positions = allocateContents(fileNames, sizes, options, compressed, deduplicated);
+            long[] fileSizes = new long[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                fileSizes[i] = getCreatedFileSize(positions[i], sizes.get(fileNames.get(i)), compressed || deduplicated);
+            }
+            checkCreatedQuota(positions, fileSizes);
+            // the new records are put to the empty places and the changed range is written at once
+            Map<String, File> files = new LinkedHashMap<>();
+            int first = -1;
+            int last = -1;
+            int index = 0;
+            ByteBuffer recordsBuffer = ByteBuffer.wrap(records);
+            for (int i = 0; i < fileNames.size(); i++, index++) {
+                while (recordsBuffer.getLong(index * fileRecordSize) != 0) { // zero position bytes mean empty record
+                    index++;
+                }
+                String fileName = fileNames.get(i);
+                System.arraycopy(createFileRecord(fileName, positions[i], fileSizes[i]), 0, records, index * fileRecordSize, fileRecordSize);
+                files.put(fileName, toFile(index, positions[i], fileName));
+                first = first == -1 ? index : first;
+                last = index;
+            }
+            if (first != -1) {
+                contentBlock.write((long) first * fileRecordSize,
+                        Arrays.copyOfRange(records, first * fileRecordSize, (last + 1) * fileRecordSize));
+                contentBlock.container.superblock.addFiles(files.size());
+                NameIndex nameIndex = findNameIndex();
+                if (nameIndex != null) {
+                    files.keySet().forEach(nameIndex::add);
+                }
+                long bytes = 0;
+                for (long fileSize : fileSizes) {
+                    bytes += fileSize;
+                }
+                contentBlock.container.usageTable.add(contentBlock.getStartPosition(), bytes, files.size(), 0);
+            }
+            return files;
+        });
     }
 
     @Override
@@ -80,25 +262,28 @@ class DirectoryImpl implements Directory {
         if (!isDirectoryName(directoryName)) {
             throw new IllegalFileNameException("Directory name should start with slash!");
         }
-        synchronized (RootDirectory.class) {
-            checkFileNameCorrectness(directoryName.substring(1), FILE_NAME_SIZE - 1);
+        contentBlock.checkWritable();
+        return contentBlock.container.locked("Directory.createDirectory", name, directoryName, () -> {
+            checkFileNameCorrectness(directoryName.substring(1), fileNameSize - 1);
             if (fileNameExists(directoryName)) {
                 throw new IllegalFileNameException("A directory with such name is already presented!");
             }
             int filesCount = getFilesCount();
-            if (filesCount >= MAX_FILES_IN_DIR) {
-                throw new TooManyFilesException(name, MAX_FILES_IN_DIR);
+            if (filesCount >= maxFilesInDir) {
+                throw new TooManyFilesException(name, maxFilesInDir);
             }
-            DataBlock directoryContentBlock = contentBlock.findFirstFreeBlock()
-                    .allocate(Math.max(DEFAULT_SIZE, Block.MIN_DATA_CAPACITY));
-            addFileRecord(directoryName, directoryContentBlock, filesCount);
+            DataBlock directoryContentBlock = contentBlock.allocateChain(Math.max(defaultSize, Block.MIN_DATA_CAPACITY));
+            addFileRecord(directoryName, directoryContentBlock.getStartPosition(), 0, filesCount);
+            contentBlock.container.superblock.addDirectories(1);
+            contentBlock.container.usageTable.add(contentBlock.getStartPosition(), 0, 0, 1);
+            contentBlock.container.usageTable.addDirectory(directoryContentBlock.getStartPosition(), contentBlock.getStartPosition());
             return new DirectoryImpl(directoryName, directoryContentBlock);
-        }
+        });
     }
 
     @Override
     public int getFilesCount() throws IOException {
-        synchronized (RootDirectory.class) {
+        return contentBlock.container.read("Directory.getFilesCount", name, null, () -> {
             int filesCount = 0;
             for (FileRecord fileRecord : loadFileRecords()) {
                 if (!fileRecord.isEmpty()) {
@@ -106,19 +291,17 @@ class DirectoryImpl implements Directory {
                 }
             }
             return filesCount;
-        }
+        });
     }
 
     @Override
     public boolean isEmpty() throws IOException {
-        synchronized (RootDirectory.class) {
-            return getFilesCount() == 0;
-        }
+        return getFilesCount() == 0;
     }
 
     @Override
     public List<String> getFileNames() throws IOException {
-        synchronized (RootDirectory.class) {
+        return contentBlock.container.read("Directory.getFileNames", name, null, () -> {
             List<String> fileNames = new ArrayList<>();
             for (FileRecord record : loadFileRecords()) {
                 if (!record.isEmpty()) {
@@ -126,7 +309,85 @@ class DirectoryImpl implements Directory {
                 }
             }
             return fileNames;
+        });
+    }
+
+    @Override
+    public Iterator<DirectoryEntry> listEntries() {
+        return listEntries(LISTING_PAGE_SIZE);
+    }
+
+    @Override
+    public Iterator<DirectoryEntry> listEntries(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be > 0, but is " + pageSize);
+        }
+        return new EntriesIterator(pageSize);
+    }
+
+    @Override
+    public void walk(DirectoryVisitor visitor) throws IOException {
+        Objects.requireNonNull(visitor, "visitor must be not null");
+        contentBlock.container.timed("Directory.walk", name, null, () -> {
+            TreeWalk.walk(this, contentBlock.container, visitor);
+            return null;
+        });
+    }
+
+    @Override
+    public DiskUsage diskUsage() throws IOException {
+        return contentBlock.container.timed("Directory.diskUsage", name, null, () -> TreeWalk.walk(this, contentBlock.container, null));
+    }
+
+    @Override
+    public DiskUsage getUsage() throws IOException {
+        if (contentBlock.container.snapshot != null) {
+            // the table of the snapshot is not copied on write, so it describes the current tree, not the snapshot one
+            return diskUsage();
+        }
+        long[] usage = contentBlock.container.read("Directory.getUsage", name, null,
+                () -> contentBlock.container.usageTable.get(contentBlock.getStartPosition()));
+        return new DiskUsage(usage[0], usage[1], usage[2]);
+    }
+
+    @Override
+    public long getQuota() throws IOException {
+        return contentBlock.container.read("Directory.getQuota", name, null,
+                () -> contentBlock.container.usageTable.get(contentBlock.getStartPosition())[3]);
+    }
+
+    @Override
+    public void setQuota(long bytes) throws IOException, NotEnoughFreeSpaceException {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must be >= 0, but is " + bytes);
         }
+        contentBlock.checkWritable();
+        contentBlock.container.locked("Directory.setQuota", name, null, () -> {
+            contentBlock.container.usageTable.setQuota(contentBlock.getStartPosition(), bytes);
+            return null;
+        });
+    }
+
+    /**
+     * The subdirectory of the {@code entry} listed by this directory, it is opened without the records search.
+     */
+    DirectoryImpl getSubdirectory(DirectoryEntry entry) {
+        if (!entry.isDirectory()) {
+            throw new IllegalArgumentException("Not a directory entry: " + entry);
+        }
+        return new DirectoryImpl(entry.getName(), new DataBlock(contentBlock, entry.getPosition()));
+    }
+
+    @Override
+    public Iterator<String> find(String prefix) throws IOException {
+        Objects.requireNonNull(prefix, "prefix must be not null");
+        return contentBlock.container.timed("Directory.find", name, null, () -> getNameIndex().find(prefix));
+    }
+
+    @Override
+    public Iterator<String> glob(String pattern) throws IOException {
+        Objects.requireNonNull(pattern, "pattern must be not null");
+        return contentBlock.container.timed("Directory.glob", name, null, () -> getNameIndex().glob(pattern));
     }
 
     @Nullable
@@ -136,14 +397,14 @@ class DirectoryImpl implements Directory {
         if (isDirectoryName(fileName)) {
             return null;
         }
-        synchronized (RootDirectory.class) {
+        return contentBlock.container.read("Directory.getFile", name, fileName, () -> {
             for (FileRecord record : loadFileRecords()) {
                 if (!record.isEmpty() && record.getName().equals(fileName)) {
                     return record.toFile();
                 }
             }
             return null;
-        }
+        });
     }
 
     @Nullable
@@ -153,39 +414,546 @@ class DirectoryImpl implements Directory {
         if (!isDirectoryName(directoryName)) {
             return null;
         }
-        synchronized (RootDirectory.class) {
+        return contentBlock.container.read("Directory.getDirectory", name, directoryName, () -> {
             for (FileRecord record : loadFileRecords()) {
                 if (!record.isEmpty() && record.getName().equals(directoryName)) {
                     return record.toDirectory();
                 }
             }
             return null;
-        }
+        });
     }
 
     @Override
     public void removeFile(String fileName) throws IOException, NotEmptyDirectoryException {
         Objects.requireNonNull(fileName, "fileName must be not null");
-        synchronized (RootDirectory.class) {
+        contentBlock.checkWritable();
+        contentBlock.container.locked("Directory.removeFile", name, fileName, () -> {
             for (FileRecord record : loadFileRecords()) {
                 if (!record.isEmpty() && record.getName().equals(fileName)) {
                     if (isDirectoryName(fileName) && !record.toDirectory().isEmpty()) {
                         throw new NotEmptyDirectoryException();
                     }
-                    record.getDataBlock().removeChain();
+                    long[] usage = getRecordUsage(record);
+                    removeContent(record);
                     // zero position bytes mean empty record
-                    contentBlock.write(record.getIndex() * FILE_RECORD_SIZE, new byte[POSITION_BYTES]);
-                    return;
+                    contentBlock.write(record.getIndex() * fileRecordSize, new byte[POSITION_BYTES]);
+                    recordRemoved(record);
+                    contentBlock.container.usageTable.add(contentBlock.getStartPosition(), -usage[0], -usage[1], -usage[2]);
+                    if (isDirectoryName(fileName)) {
+                        contentBlock.container.superblock.addDirectories(-1);
+                    } else {
+                        contentBlock.container.superblock.addFiles(-1);
+                    }
+                    return null;
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void removeFiles(Collection<String> fileNames) throws IOException, NotEmptyDirectoryException {
+        Objects.requireNonNull(fileNames, "fileNames must be not null");
+        contentBlock.checkWritable();
+        contentBlock.container.locked("Directory.removeFiles", name, null, () -> {
+            Set<String> names = new HashSet<>(fileNames);
+            byte[] records = readFileRecords();
+            List<FileRecord> removed = new ArrayList<>();
+            for (FileRecord record : new FileRecords(records)) {
+                if (!record.isEmpty() && names.contains(record.getName())) {
+                    // nothing is removed if any of the directories is not empty
+                    if (isDirectoryName(record.getName()) && !record.toDirectory().isEmpty()) {
+                        throw new NotEmptyDirectoryException();
+                    }
+                    removed.add(record);
+                }
+            }
+            if (removed.isEmpty()) {
+                return null;
+            }
+            int directoriesCount = 0;
+            long bytes = 0;
+            for (FileRecord record : removed) {
+                if (isDirectoryName(record.getName())) {
+                    directoriesCount++;
+                }
+                bytes += getRecordUsage(record)[0];
+                removeContent(record);
+                // zero position bytes mean empty record
+                Arrays.fill(records, record.getIndex() * fileRecordSize, record.getIndex() * fileRecordSize + POSITION_BYTES, (byte) 0);
+            }
+            int first = removed.get(0).getIndex();
+            int last = removed.get(removed.size() - 1).getIndex();
+            contentBlock.write((long) first * fileRecordSize,
+                    Arrays.copyOfRange(records, first * fileRecordSize, last * fileRecordSize + POSITION_BYTES));
+            contentBlock.container.superblock.addFiles(-(removed.size() - directoriesCount));
+            contentBlock.container.superblock.addDirectories(-directoriesCount);
+            for (FileRecord record : removed) {
+                recordRemoved(record);
+            }
+            contentBlock.container.usageTable.add(contentBlock.getStartPosition(), -bytes, -(removed.size() - directoriesCount), -directoriesCount);
+            return null;
+        });
+    }
+
+    @Override
+    public void removeRecursively(String fileName) throws IOException {
+        Objects.requireNonNull(fileName, "fileName must be not null");
+        if (!isDirectoryName(fileName)) {
+            removeFile(fileName);
+            return;
+        }
+        contentBlock.checkWritable();
+        contentBlock.container.locked("Directory.removeRecursively", name, fileName, () -> {
+            FileRecord record = findFileRecord(fileName);
+            if (record == null) {
+                return null;
+            }
+            long[] usage = getRecordUsage(record);
+            List<DataBlock> chains = new ArrayList<>();
+            List<Long> directories = new ArrayList<>();
+            long[] counts = new long[2];
+            ((DirectoryImpl) record.toDirectory()).releaseSubtree(chains, directories, counts);
+            chains.add(record.getDataBlock());
+            // the record is cleared before the freeing, so an interruption leaves unreachable blocks, not a broken record
+            contentBlock.write((long) record.getIndex() * fileRecordSize, new byte[POSITION_BYTES]);
+            DataBlock.removeChains(contentBlock.container, chains);
+            recordRemoved(record);
+            for (long directory : directories) {
+                contentBlock.container.nameIndexes.remove(directory);
+                contentBlock.container.usageTable.remove(directory);
+            }
+            contentBlock.container.superblock.addFiles(-counts[0]);
+            contentBlock.container.superblock.addDirectories(-(counts[1] + 1));
+            contentBlock.container.usageTable.add(contentBlock.getStartPosition(), -usage[0], -usage[1], -usage[2]);
+            return null;
+        });
+    }
+
+    @Override
+    public void rename(String fileName, String newName)
+            throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException {
+        move(fileName, this, newName);
+    }
+
+    @Override
+    public void move(String fileName, Directory targetDirectory, String newName)
+            throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException, TooManyFilesException {
+        Objects.requireNonNull(fileName, "fileName must be not null");
+        Objects.requireNonNull(targetDirectory, "targetDirectory must be not null");
+        Objects.requireNonNull(newName, "newName must be not null");
+        if (!(targetDirectory instanceof DirectoryImpl)
+                || ((DirectoryImpl) targetDirectory).contentBlock.container.file != contentBlock.container.file) {
+            throw new IllegalArgumentException("The target directory belongs to another file system: " + targetDirectory.getName());
+        }
+        DirectoryImpl target = (DirectoryImpl) targetDirectory;
+        boolean directory = isDirectoryName(fileName);
+        if (directory != isDirectoryName(newName)) {
+            throw new IllegalFileNameException("A file cannot be renamed to a directory name and vice versa!");
+        }
+        contentBlock.checkWritable();
+        contentBlock.container.locked("Directory.move", name, fileName, () -> {
+            FileRecord record = findFileRecord(fileName);
+            if (record == null) {
+                throw new IllegalArgumentException("There is no file with such name: " + fileName);
+            }
+            if (directory) {
+                checkFileNameSyntax(newName.substring(1), fileNameSize - 1);
+            } else {
+                checkFileNameSyntax(newName, fileNameSize);
+            }
+            boolean sameDirectory = target.contentBlock.getStartPosition() == contentBlock.getStartPosition();
+            if (sameDirectory && fileName.equals(newName)) {
+                return null;
+            }
+            if (target.fileNameExists(newName)) {
+                throw new IllegalFileNameException("A file with such name is already presented!");
+            }
+            long recordOffset = (long) record.getIndex() * fileRecordSize;
+            if (sameDirectory) {
+                // only the name is rewritten, the position and the inline data stay
+                contentBlock.write(recordOffset + POSITION_BYTES, getNameBytes(newName));
+                NameIndex nameIndex = findNameIndex();
+                if (nameIndex != null) {
+                    nameIndex.remove(fileName);
+                    nameIndex.add(newName);
+                }
+                return null;
+            }
+            if (directory && ((DirectoryImpl) record.toDirectory()).containsDirectory(target.contentBlock.getStartPosition())) {
+                throw new IllegalArgumentException("A directory cannot be moved into itself: " + fileName);
+            }
+            int targetFilesCount = target.getFilesCount();
+            if (targetFilesCount >= target.maxFilesInDir) {
+                throw new TooManyFilesException(target.name, target.maxFilesInDir);
+            }
+            // the usage is moved between the directories below the common ancestor only
+            long[] path = contentBlock.container.usageTable.getPath(contentBlock.getStartPosition());
+            long[] targetFullPath = contentBlock.container.usageTable.getPath(target.contentBlock.getStartPosition());
+            int common = 0;
+            while (common < path.length && common < targetFullPath.length && path[common] == targetFullPath[common]) {
+                common++;
+            }
+            long[] sourcePath = Arrays.copyOfRange(path, common, path.length);
+            long[] targetPath = Arrays.copyOfRange(targetFullPath, common, targetFullPath.length);
+            long[] usage = getRecordUsage(record);
+            contentBlock.container.usageTable.checkQuota(targetPath, usage[0]);
+            byte[] movedRecord = record.getBytes();
+            System.arraycopy(getNameBytes(newName), 0, movedRecord, POSITION_BYTES, fileNameSize);
+            // there is no journal: the record is added to the target before the source one is cleared,
+            // so an interruption between the writes leaves a cross-link found by the checker, but does not lose the data
+            int movedIndex = target.addFileRecord(movedRecord, targetFilesCount);
+            contentBlock.write(recordOffset, new byte[POSITION_BYTES]);
+            if (!directory && !record.isInline() && !record.isSlab()) {
+                contentBlock.container.movedRecords.put(record.getPosition(),
+                        new long[]{target.contentBlock.getStartPosition(), (long) movedIndex * fileRecordSize});
+            }
+            NameIndex nameIndex = findNameIndex();
+            if (nameIndex != null) {
+                nameIndex.remove(fileName);
+            }
+            contentBlock.container.usageTable.add(sourcePath, -usage[0], -usage[1], -usage[2]);
+            contentBlock.container.usageTable.add(targetPath, usage[0], usage[1], usage[2]);
+            if (directory) {
+                contentBlock.container.usageTable.setParent(record.getPosition(), target.contentBlock.getStartPosition());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * The sorted names of this directory. The index is in memory only, so the first search after every loading
+     * builds it by the O(n) reading of all the records of this directory.
+     */
+    private NameIndex getNameIndex() throws IOException {
+        NameIndex nameIndex = findNameIndex();
+        if (nameIndex != null) {
+            return nameIndex;
+        }
+        return contentBlock.container.read(() -> {
+            // the mapped container is read without the lock, so the index can be built by another thread
+            NameIndex built = new NameIndex(getFileNames());
+            NameIndex existing = contentBlock.container.nameIndexes.putIfAbsent(contentBlock.getStartPosition(), built);
+            return existing == null ? built : existing;
+        });
+    }
+
+    /**
+     * The sorted names of this directory if they are already indexed.
+     */
+    @Nullable
+    private NameIndex findNameIndex() {
+        return contentBlock.container.nameIndexes.get(contentBlock.getStartPosition());
+    }
+
+    /**
+     * Updates the name index after the record clearing. The index of a removed directory is dropped, its content
+     * chain position can be reused by another directory.
+     */
+    private void recordRemoved(FileRecord record) throws IOException {
+        NameIndex nameIndex = findNameIndex();
+        if (nameIndex != null) {
+            nameIndex.remove(record.getName());
+        }
+        if (isDirectoryName(record.getName())) {
+            contentBlock.container.nameIndexes.remove(record.getPosition());
+            contentBlock.container.usageTable.remove(record.getPosition());
+        } else {
+            contentBlock.container.movedRecords.remove(record.getPosition());
+        }
+    }
+
+    /**
+     * The usage of the record: bytes, files and directories of the file or of the directory with its subtree.
+     */
+    private long[] getRecordUsage(FileRecord record) throws IOException {
+        if (!isDirectoryName(record.getName())) {
+            return new long[]{record.getSize(), 1, 0};
+        }
+        long[] usage = contentBlock.container.usageTable.get(record.getPosition());
+        return new long[]{usage[0], usage[1], usage[2] + 1};
+    }
+
+    /**
+     * Adds the record of the created file and adds the file to the usage of the directories on the path.
+     *
+     * @param position the record position: the data blocks chain position, the slot reference or the inline one.
+     * @param size     the logical size of the file, see {@link #getCreatedFileSize}.
+     */
+    private File fileCreated(String fileName, long position, long size, int filesCount)
+            throws IOException, NotEnoughFreeSpaceException {
+        checkCreatedQuota(new long[]{position}, new long[]{size});
+        int recordIndex = addFileRecord(fileName, position, size, filesCount);
+        contentBlock.container.superblock.addFiles(1);
+        contentBlock.container.usageTable.add(contentBlock.getStartPosition(), size, 1, 0);
+        return toFile(recordIndex, position, fileName);
+    }
+
+    /**
+     * Checks the quotas against the logical sizes of the created files, the same sizes are added to the usage.
+     * The contents of the files are released if a quota is exceeded.
+     *
+     * @param positions the data blocks chains positions, the slot references or the inline ones of the files.
+     */
+    private void checkCreatedQuota(long[] positions, long[] fileSizes) throws IOException {
+        long bytes = 0;
+        for (long fileSize : fileSizes) {
+            bytes += fileSize;
+        }
+        try {
+            contentBlock.container.usageTable.checkQuota(contentBlock.getStartPosition(), bytes);
+        } catch (QuotaExceededException e) {
+            for (long position : positions) {
+                if (SlabAllocator.isSlabReference(position)) {
+                    contentBlock.container.slabAllocator.free(position);
+                } else if (position != InlineContent.INLINE_POSITION) {
+                    new DataBlock(contentBlock, position).freeChain();
                 }
             }
+            throw e;
         }
     }
 
+    /**
+     * The logical size of the new file of the requested {@code size}: the inline area size, the slot size,
+     * the requested size of a compressed or deduplicated file or the data capacity of the allocated chain.
+     */
+    private long getCreatedFileSize(long position, int size, boolean chunked) throws IOException {
+        if (position == InlineContent.INLINE_POSITION) {
+            return inlineFileSize;
+        }
+        if (SlabAllocator.isSlabReference(position)) {
+            return SlabAllocator.getSlotSize(size);
+        }
+        return chunked ? size : new DataBlock(contentBlock, position).getDataChainCapacity();
+    }
+
+    /**
+     * Stores the usage of every directory of the subtree to the {@code usageTable}, see {@link UsageTable#rebuild}.
+     *
+     * @param directories the content chain positions of the stored directories.
+     *
+     * @return bytes, files and directories of the subtree.
+     */
+    long[] storeUsage(UsageTable usageTable, long parent, Set<Long> directories) throws IOException {
+        long[] usage = new long[3];
+        Iterator<DirectoryEntry> entries = listEntries();
+        while (entries.hasNext()) {
+            DirectoryEntry entry = entries.next();
+            if (entry.isDirectory()) {
+                long[] subtree = getSubdirectory(entry).storeUsage(usageTable, contentBlock.getStartPosition(), directories);
+                usage[0] += subtree[0];
+                usage[1] += subtree[1];
+                usage[2] += subtree[2] + 1;
+            } else {
+                usage[0] += entry.getSize();
+                usage[1]++;
+            }
+        }
+        usageTable.set(contentBlock.getStartPosition(), parent, usage[0], usage[1], usage[2]);
+        directories.add(contentBlock.getStartPosition());
+        return usage;
+    }
+
+    /**
+     * Releases the data of the removed record: the slab slot or the data blocks chain with the extents of its chunks.
+     */
+    private void removeContent(FileRecord record) throws IOException {
+        DataBlock dataBlock = releaseContent(record);
+        if (dataBlock != null) {
+            dataBlock.removeChain();
+        }
+    }
+
+    /**
+     * Releases the slab slot or the chunks of the removed file record.
+     *
+     * @return the data blocks chain of the record to remove, null if the record does not have its own chain.
+     */
+    @Nullable
+    private DataBlock releaseContent(FileRecord record) throws IOException {
+        if (record.isSlab()) {
+            contentBlock.container.slabAllocator.free(record.getPosition());
+            return null;
+        }
+        if (record.isInline()) {
+            return null;
+        }
+        DataBlock dataBlock = record.getDataBlock();
+        if (dataBlock.isCompressed()) {
+            new CompressedContent(dataBlock).removeChunks();
+        } else if (dataBlock.isDeduplicated()) {
+            new DeduplicatedContent(dataBlock).removeChunks();
+        }
+        return dataBlock;
+    }
+
+    /**
+     * Releases the contents of all the files of the subtree and collects the chains to remove, including the chains of
+     * the nested directories.
+     *
+     * @param directories the content chain positions of the nested directories.
+     * @param counts      removed files and directories counters.
+     */
+    private void releaseSubtree(List<DataBlock> chains, List<Long> directories, long[] counts) throws IOException {
+        for (FileRecord record : loadFileRecords()) {
+            if (record.isEmpty()) {
+                continue;
+            }
+            if (isDirectoryName(record.getName())) {
+                ((DirectoryImpl) record.toDirectory()).releaseSubtree(chains, directories, counts);
+                chains.add(record.getDataBlock());
+                directories.add(record.getPosition());
+                counts[1]++;
+            } else {
+                DataBlock dataBlock = releaseContent(record);
+                if (dataBlock != null) {
+                    chains.add(dataBlock);
+                }
+                contentBlock.container.movedRecords.remove(record.getPosition());
+                counts[0]++;
+            }
+        }
+    }
+
+    /**
+     * Stores the data of the new files as {@link #createFile(String, int, CreateFileOption...)} does, but the data blocks
+     * chains of all the files are allocated together. If there is not enough free space, nothing stays allocated.
+     *
+     * @return the record positions of the files.
+     */
+    private long[] allocateContents(List<String> fileNames, Map<String, Integer> sizes, CreateFileOption[] options,
+                                    boolean compressed, boolean deduplicated) throws IOException, NotEnoughFreeSpaceException {
+        boolean chunked = compressed || deduplicated;
+        Set<AllocationOption> allocationOptions = getAllocationOptions(options);
+        long[] positions = new long[fileNames.size()];
+        List<Integer> chained = new ArrayList<>();
+        List<Long> slots = new ArrayList<>();
+        try {
+            for (int i = 0; i < fileNames.size(); i++) {
+                int size = sizes.get(fileNames.get(i));
+                if (!chunked && inlineFileSize > 0 && size <= inlineFileSize) {
+                    positions[i] = InlineContent.INLINE_POSITION;
+                    continue;
+                }
+                if (!chunked && allocationOptions.isEmpty() && slabMaxSlotSize > 0 && size <= slabMaxSlotSize) {
+                    Optional<Long> reference = allocateSlot(size);
+                    if (reference.isPresent()) {
+                        positions[i] = reference.get();
+                        slots.add(reference.get());
+                        continue;
+                    }
+                }
+                chained.add(i);
+            }
+            long[] dataCapacities = new long[chained.size()];
+            for (int i = 0; i < dataCapacities.length; i++) {
+                long size = sizes.get(fileNames.get(chained.get(i)));
+                long dataCapacity = size;
+                if (compressed) {
+                    dataCapacity = CompressedContent.getIndexCapacity(size);
+                } else if (deduplicated) {
+                    dataCapacity = DeduplicatedContent.getIndexCapacity(size);
+                }
+                dataCapacities[i] = Math.max(dataCapacity, Block.MIN_DATA_CAPACITY);
+            }
+            List<DataBlock> chains = allocateAll(dataCapacities, allocationOptions);
+            for (int i = 0; i < chains.size(); i++) {
+                DataBlock chain = chains.get(i);
+                int fileIndex = chained.get(i);
+                if (compressed) {
+                    CompressedContent.initialize(chain, sizes.get(fileNames.get(fileIndex)));
+                } else if (deduplicated) {
+                    DeduplicatedContent.initialize(chain, sizes.get(fileNames.get(fileIndex)));
+                }
+                positions[fileIndex] = chain.getStartPosition();
+            }
+            return positions;
+        } catch (NotEnoughFreeSpaceException e) {
+            for (long slot : slots) {
+                contentBlock.container.slabAllocator.free(slot);
+            }
+            throw e;
+        }
+    }
+
+    private List<DataBlock> allocateAll(long[] dataCapacities, Set<AllocationOption> options)
+            throws IOException, NotEnoughFreeSpaceException {
+        if (options.isEmpty()) {
+            return contentBlock.allocateChains(dataCapacities);
+        }
+        List<DataBlock> chains = new ArrayList<>(dataCapacities.length);
+        try {
+            for (long dataCapacity : dataCapacities) {
+                chains.add(allocate(dataCapacity, options));
+            }
+        } catch (NotEnoughFreeSpaceException e) {
+            for (DataBlock chain : chains) {
+                chain.freeChain();
+            }
+            throw e;
+        }
+        return chains;
+    }
+
+    /**
+     * Takes a slab slot for the file.
+     *
+     * @return the slot reference or nothing if a new slab does not fit, then the file gets its own data block.
+     */
+    private Optional<Long> allocateSlot(int size) throws IOException {
+        try {
+            return Optional.of(contentBlock.container.slabAllocator.allocate(size));
+        } catch (NotEnoughFreeSpaceException e) {
+            return Optional.empty();
+        }
+    }
+
+    private Set<AllocationOption> getAllocationOptions(CreateFileOption... options) {
+        Set<AllocationOption> allocationOptions = EnumSet.noneOf(AllocationOption.class);
+        for (CreateFileOption option : options) {
+            if (option instanceof AllocationOption) {
+                allocationOptions.add((AllocationOption) option);
+            }
+        }
+        return allocationOptions;
+    }
+
+    private DataBlock allocate(long dataCapacity, Set<AllocationOption> options) throws IOException, NotEnoughFreeSpaceException {
+        if (options.isEmpty()) {
+            return contentBlock.allocateChain(dataCapacity);
+        }
+        Optional<FreeBlock> fitting;
+        if (options.contains(AllocationOption.NEAR_PARENT)) {
+            fitting = contentBlock.findNearestFittingFreeBlock(dataCapacity, contentBlock.getStartPosition());
+        } else if (options.contains(AllocationOption.BEST_FIT)) {
+            fitting = contentBlock.findBestFittingFreeBlock(dataCapacity);
+        } else {
+            fitting = contentBlock.findFirstFittingFreeBlock(dataCapacity);
+        }
+        if (fitting.isPresent()) {
+            // the block is big enough, so the data is not chained
+            return fitting.get().allocate(dataCapacity);
+        }
+        if (options.contains(AllocationOption.CONTIGUOUS)) {
+            throw new NotEnoughFreeSpaceException();
+        }
+        return contentBlock.allocateChain(dataCapacity);
+    }
+
     private boolean isDirectoryName(String name) {
         return !name.isEmpty() && name.charAt(0) == '/';
     }
 
     private void checkFileNameCorrectness(String name, int maxNameLength) throws IOException, IllegalFileNameException {
+        checkFileNameSyntax(name, maxNameLength);
+        if (fileNameExists(name)) {
+            throw new IllegalFileNameException("A file with such name is already presented!");
+        }
+    }
+
+    private void checkFileNameSyntax(String name, int maxNameLength) throws IllegalFileNameException {
         if (name.isEmpty()) {
             throw new IllegalFileNameException("Name cannot be empty!");
         }
@@ -206,31 +974,56 @@ class DirectoryImpl implements Directory {
         if (chars[0] == ' ' || chars[chars.length - 1] == ' ') {
             throw new IllegalFileNameException("Name cannot begin or end with space!");
         }
-        if (fileNameExists(name)) {
-            throw new IllegalFileNameException("A file with such name is already presented!");
+    }
+
+    /**
+     * Writes the whole record: the position, the name, zeros of the inline data and the file size.
+     *
+     * @return the record index.
+     */
+    private int addFileRecord(String fileName, long position, long size, int filesCount)
+            throws IOException, NotEnoughFreeSpaceException {
+        return addFileRecord(createFileRecord(fileName, position, size), filesCount);
+    }
+
+    private int addFileRecord(byte[] record, int filesCount) throws IOException, NotEnoughFreeSpaceException {
+        int recordsCapacity = getFileRecordsCapacity();
+        if (recordsCapacity == filesCount) {
+            this.contentBlock.enlarge(2 * recordsCapacity * fileRecordSize);
+        }
+        int recordIndex = findFirstEmptyRecordIndex();
+        this.contentBlock.write((long) recordIndex * fileRecordSize, record);
+        NameIndex nameIndex = findNameIndex();
+        if (nameIndex != null) {
+            nameIndex.add(new FileRecord(recordIndex, record).getName());
         }
+        return recordIndex;
     }
 
-    private void addFileRecord(String fileName, Block dataBlock, int filesCount) throws IOException, NotEnoughFreeSpaceException {
+    /**
+     * The whole record: the position, the name, zeros of the inline data and the file size.
+     */
+    private byte[] createFileRecord(String fileName, long position, long size) {
+        return ByteBuffer.allocate(fileRecordSize).putLong(position).put(getNameBytes(fileName)).putLong(sizeOffset, size).array();
+    }
+
+    /**
+     * The name bytes of a record padded with zeros.
+     */
+    private byte[] getNameBytes(String fileName) {
         byte[] nameBytes = fileName.getBytes(StandardCharsets.US_ASCII);
-        if (nameBytes.length > FILE_NAME_SIZE) {
+        if (nameBytes.length > fileNameSize) {
             // bytes array length can be greater than string length
             throw new IllegalArgumentException(
                     String.format("Name string cannot be more than %s bytes but it is! String: %s, bytes: %s",
-                            FILE_NAME_SIZE, fileName, Arrays.toString(nameBytes)));
-        }
-        int recordsCapacity = getFileRecordsCapacity();
-        if (recordsCapacity == filesCount) {
-            this.contentBlock.enlarge(2 * recordsCapacity * FILE_RECORD_SIZE);
+                            fileNameSize, fileName, Arrays.toString(nameBytes)));
         }
-        int recordIndex = findFirstEmptyRecordIndex();
-        this.contentBlock.write(recordIndex * FILE_RECORD_SIZE, dataBlock.getStartPosition());
-        this.contentBlock.write(recordIndex * FILE_RECORD_SIZE + POSITION_BYTES, Arrays.copyOf(nameBytes, FILE_NAME_SIZE));
+        return Arrays.copyOf(nameBytes, fileNameSize);
     }
 
     private int getFileRecordsCapacity() throws IOException {
-        // expected to be <= MAX_FILES_IN_DIR => can cast to int
-        return (int) (contentBlock.getDataChainCapacity() / FILE_RECORD_SIZE);
+        // expected to be <= maxFilesInDir => can cast to int
+        return (int) (contentBlock.container.getDataChainCapacity(contentBlock) / fileRecordSize);
     }
 
     private int findFirstEmptyRecordIndex() throws IOException {
@@ -242,6 +1035,32 @@ class DirectoryImpl implements Directory {
         throw new IllegalStateException("No empty records found in root directory.");
     }
 
+    @Nullable
+    private FileRecord findFileRecord(String fileName) throws IOException {
+        for (FileRecord record : loadFileRecords()) {
+            if (!record.isEmpty() && record.getName().equals(fileName)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Is the directory with the content chain at {@code position} this one or is in the subtree of this one.
+     */
+    private boolean containsDirectory(long position) throws IOException {
+        if (contentBlock.getStartPosition() == position) {
+            return true;
+        }
+        for (FileRecord record : loadFileRecords()) {
+            if (!record.isEmpty() && isDirectoryName(record.getName())
+                    && ((DirectoryImpl) record.toDirectory()).containsDirectory(position)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean fileNameExists(String fileName) throws IOException {
         for (FileRecord record : loadFileRecords()) {
             if (!record.isEmpty() && record.getName().equals(fileName)) {
@@ -252,11 +1071,101 @@ class DirectoryImpl implements Directory {
     }
 
     private FileRecords loadFileRecords() throws IOException {
+        return new FileRecords(readFileRecords());
+    }
+
+    private byte[] readFileRecords() throws IOException {
         // loading all file records at once extremely increases performance
         int recordsCapacity = getFileRecordsCapacity();
-        byte[] allRecordsBytes = new byte[recordsCapacity * FILE_RECORD_SIZE];
-        contentBlock.read(0, allRecordsBytes);
-        return new FileRecords(allRecordsBytes);
+        byte[] allRecordsBytes = new byte[recordsCapacity * fileRecordSize];
+        // a mounted snapshot resolves the content chain at every reading, it can be preserved by a change after the previous one
+        contentBlock.container.resolve(contentBlock).read(0, allRecordsBytes);
+        contentBlock.container.metrics.fileRecordsLoaded(allRecordsBytes.length);
+        return allRecordsBytes;
+    }
+
+    private File toFile(int index, long position, String fileName) {
+        long recordOffset = (long) index * fileRecordSize;
+        if (position == InlineContent.INLINE_POSITION) {
+            return new FileImpl(new InlineContent(contentBlock, recordOffset), contentBlock, recordOffset, fileName);
+        }
+        if (SlabAllocator.isSlabReference(position)) {
+            return new FileImpl(new SlabContent(contentBlock, recordOffset, position), contentBlock, recordOffset, fileName);
+        }
+        return new FileImpl(new DataBlock(contentBlock, position), contentBlock, recordOffset, fileName);
+    }
+
+    /**
+     * Reads the records by pages. The attributes of a file entry are taken from its record only, the size of
+     * a directory entry is the data capacity of its content chain.
+     */
+    private class EntriesIterator implements Iterator<DirectoryEntry> {
+        private final int pageSize;
+        private final Deque<DirectoryEntry> page = new ArrayDeque<>();
+        private int nextIndex;
+        private boolean finished;
+
+        EntriesIterator(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (page.isEmpty() && !finished) {
+                try {
+                    contentBlock.container.read("Directory.listEntries", name, null, this::readPage);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return !page.isEmpty();
+        }
+
+        @Override
+        public DirectoryEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.poll();
+        }
+
+        private Void readPage() throws IOException {
+            // the capacity is read again, the directory can be enlarged between the pages
+            int count = Math.min(pageSize, getFileRecordsCapacity() - nextIndex);
+            if (count <= 0) {
+                finished = true;
+                return null;
+            }
+            byte[] records = new byte[count * fileRecordSize];
+            contentBlock.container.resolve(contentBlock).read((long) nextIndex * fileRecordSize, records);
+            for (int i = 0; i < count; i++) {
+                FileRecord record = new FileRecord(nextIndex + i,
+                        Arrays.copyOfRange(records, i * fileRecordSize, (i + 1) * fileRecordSize));
+                if (!record.isEmpty()) {
+                    page.add(toEntry(record));
+                }
+            }
+            nextIndex += count;
+            return null;
+        }
+
+        private DirectoryEntry toEntry(FileRecord record) throws IOException {
+            String entryName = record.getName();
+            if (isDirectoryName(entryName)) {
+                DataBlock dataBlock = record.getDataBlock();
+                return new DirectoryEntry(entryName, true, contentBlock.container.getDataChainCapacity(dataBlock),
+                        dataBlock.getStartPosition());
+            }
+            long position;
+            if (record.isInline()) {
+                position = 0;
+            } else if (record.isSlab()) {
+                position = SlabAllocator.getSlabPosition(record.getPosition());
+            } else {
+                position = record.getPosition();
+            }
+            return new DirectoryEntry(entryName, false, record.getSize(), position);
+        }
     }
 
     private class FileRecords implements Iterable<FileRecord> {
@@ -265,11 +1174,11 @@ class DirectoryImpl implements Directory {
 
         FileRecords(byte[] allRecordsBytes) {
             this.allRecordsBytes = Objects.requireNonNull(allRecordsBytes, "allRecordsBytes must be not null");
-            this.recordsCapacity = allRecordsBytes.length / FILE_RECORD_SIZE;
+            this.recordsCapacity = allRecordsBytes.length / fileRecordSize;
         }
 
         private FileRecord get(int index) {
-            byte[] bytes = Arrays.copyOfRange(allRecordsBytes, index * FILE_RECORD_SIZE, (index + 1) * FILE_RECORD_SIZE);
+            byte[] bytes = Arrays.copyOfRange(allRecordsBytes, index * fileRecordSize, (index + 1) * fileRecordSize);
             return new FileRecord(index, bytes);
         }
 
@@ -293,6 +1202,7 @@ class DirectoryImpl implements Directory {
 
     private class FileRecord {
         private final int index;
+        private final byte[] recordBytes;
         private final byte[] dataBlockPositionBytes;
         private final byte[] nameBytes;
         private final boolean empty;
@@ -300,12 +1210,13 @@ class DirectoryImpl implements Directory {
         FileRecord(int index, byte[] recordBytes) {
             this.index = index;
             Objects.requireNonNull(recordBytes, "recordBytes must be not null");
-            if (recordBytes.length != FILE_RECORD_SIZE) {
+            if (recordBytes.length != fileRecordSize) {
                 throw new IllegalArgumentException(String.format(
-                        "File recordBytes expected to be %d bytes, but is %d", FILE_RECORD_SIZE, recordBytes.length));
+                        "File recordBytes expected to be %d bytes, but is %d", fileRecordSize, recordBytes.length));
             }
+            this.recordBytes = recordBytes;
             this.dataBlockPositionBytes = Arrays.copyOfRange(recordBytes, 0, POSITION_BYTES);
-            this.nameBytes = Arrays.copyOfRange(recordBytes, POSITION_BYTES, FILE_RECORD_SIZE);
+            this.nameBytes = Arrays.copyOfRange(recordBytes, POSITION_BYTES, POSITION_BYTES + fileNameSize);
             this.empty = isAllZeros(dataBlockPositionBytes);
         }
 
@@ -313,10 +1224,36 @@ class DirectoryImpl implements Directory {
             return index;
         }
 
+        /**
+         * The whole record: the position, the name and the inline data.
+         */
+        byte[] getBytes() {
+            return recordBytes.clone();
+        }
+
         boolean isEmpty() {
             return empty;
         }
 
+        long getPosition() {
+            return ByteBuffer.wrap(dataBlockPositionBytes).getLong();
+        }
+
+        boolean isInline() {
+            return !isEmpty() && getPosition() == InlineContent.INLINE_POSITION;
+        }
+
+        boolean isSlab() {
+            return SlabAllocator.isSlabReference(getPosition());
+        }
+
+        /**
+         * The logical size of the file, 0 for a directory.
+         */
+        long getSize() {
+            return ByteBuffer.wrap(recordBytes).getLong(sizeOffset);
+        }
+
         String getName() {
             if (isEmpty()) {
                 throw new IllegalStateException("Empty file record do not have a name");
@@ -328,12 +1265,14 @@ class DirectoryImpl implements Directory {
             if (isEmpty()) {
                 throw new IllegalStateException("Empty file record do not have data block");
             }
-            long position = ByteBuffer.wrap(dataBlockPositionBytes).getLong();
-            return new DataBlock(contentBlock, position);
+            return new DataBlock(contentBlock, getPosition());
         }
 
         File toFile() {
-            return new FileImpl(getDataBlock(), getName());
+            if (isEmpty()) {
+                throw new IllegalStateException("Empty file record do not have a file");
+            }
+            return DirectoryImpl.this.toFile(index, getPosition(), getName());
         }
 
         Directory toDirectory() {
@@ -0,0 +1,209 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Persisted hash table from the SHA-256 hash of a deduplicated chunk to the extent storing it, see {@link DeduplicatedContent}.
+ * The table is stored in its own data blocks chain referred by the superblock. It uses linear probing,
+ * is doubled when it is half full and removes entries with backward shifting, so there are no tombstones.
+ */
+class ExtentIndex {
+
+    // Structure of the index chain data: COUNT, CAPACITY, then CAPACITY entries.
+
+    static final int HEADER_BYTES = 16;
+    static final int COUNT_OFFSET = 0; // count of the entries: long
+    static final int CAPACITY_OFFSET = 8; // count of the entry places, a power of two: long
+
+    // Structure of entry: hash of the chunk, position of the extent chain (0 if the place is empty): long.
+    static final int HASH_BYTES = 32;
+    static final int ENTRY_BYTES = HASH_BYTES + 8;
+
+    private static final long INITIAL_CAPACITY = 64;
+
+    private final Container container;
+
+    ExtentIndex(Container container) {
+        this.container = Objects.requireNonNull(container, "container must be not null");
+    }
+
+    /**
+     * Replaces the index with a new one containing the provided entries, the old chain is not removed.
+     *
+     * @param extents extent position -> hash.
+     */
+    static void rebuild(Container container, Map<Long, byte[]> extents) throws IOException, NotEnoughFreeSpaceException {
+        if (extents.isEmpty()) {
+            container.superblock.setExtentIndexPosition(0);
+            return;
+        }
+        ExtentIndex index = new ExtentIndex(container);
+        long capacity = INITIAL_CAPACITY;
+        while (extents.size() * 2 >= capacity) {
+            capacity *= 2;
+        }
+        index.create(capacity);
+        for (Map.Entry<Long, byte[]> extent : extents.entrySet()) {
+            index.put(extent.getValue(), extent.getKey());
+        }
+    }
+
+    /**
+     * Finds the extent storing the chunk with the {@code hash}.
+     *
+     * @return the extent position or 0 if there is no such extent.
+     */
+    long find(byte[] hash) throws IOException {
+        DataBlock table = getTable();
+        if (table == null) {
+            return 0;
+        }
+        long mask = readHeader(table).getLong(CAPACITY_OFFSET) - 1;
+        for (long place = getHomePlace(hash, mask); ; place = (place + 1) & mask) {
+            ByteBuffer entry = readEntry(table, place);
+            long position = entry.getLong(HASH_BYTES);
+            if (position == 0) {
+                return 0;
+            }
+            if (hasHash(entry, hash)) {
+                return position;
+            }
+        }
+    }
+
+    void put(byte[] hash, long position) throws IOException, NotEnoughFreeSpaceException {
+        DataBlock table = getTable();
+        if (table == null) {
+            table = create(INITIAL_CAPACITY);
+        }
+        ByteBuffer header = readHeader(table);
+        long count = header.getLong(COUNT_OFFSET);
+        long capacity = header.getLong(CAPACITY_OFFSET);
+        if ((count + 1) * 2 > capacity) {
+            grow(table, capacity * 2);
+            // the entries were written by other instances, so the cached high-water mark of the created one is stale
+            table = getTable();
+        }
+        long mask = readHeader(table).getLong(CAPACITY_OFFSET) - 1;
+        long place = getHomePlace(hash, mask);
+        while (readEntry(table, place).getLong(HASH_BYTES) != 0) {
+            place = (place + 1) & mask;
+        }
+        writeEntry(table, place, ByteBuffer.allocate(ENTRY_BYTES).put(hash).putLong(position).array());
+        writeCount(table, count + 1);
+    }
+
+    void remove(byte[] hash) throws IOException {
+        DataBlock table = getTable();
+        if (table == null) {
+            return;
+        }
+        ByteBuffer header = readHeader(table);
+        long mask = header.getLong(CAPACITY_OFFSET) - 1;
+        long place = getHomePlace(hash, mask);
+        while (true) {
+            ByteBuffer entry = readEntry(table, place);
+            if (entry.getLong(HASH_BYTES) == 0) {
+                return;
+            }
+            if (hasHash(entry, hash)) {
+                break;
+            }
+            place = (place + 1) & mask;
+        }
+        // the following entries of the cluster are shifted back if the hole is between their home and them
+        long hole = place;
+        for (long next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            ByteBuffer entry = readEntry(table, next);
+            if (entry.getLong(HASH_BYTES) == 0) {
+                break;
+            }
+            long home = getHomePlace(Arrays.copyOf(entry.array(), HASH_BYTES), mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                writeEntry(table, hole, entry.array());
+                hole = next;
+            }
+        }
+        writeEntry(table, hole, new byte[ENTRY_BYTES]);
+        writeCount(table, header.getLong(COUNT_OFFSET) - 1);
+    }
+
+    @Nullable
+    private DataBlock getTable() {
+        long position = container.superblock.getExtentIndexPosition();
+        return position == 0 ? null : new DataBlock(container, position);
+    }
+
+    private DataBlock create(long capacity) throws IOException, NotEnoughFreeSpaceException {
+        DataBlock table = new Block(container, container.firstBlockPosition).allocateChain(HEADER_BYTES + capacity * ENTRY_BYTES);
+        // the entries are beyond the high-water mark, so they are read as empty ones
+        table.write(COUNT_OFFSET, ByteBuffer.allocate(HEADER_BYTES).putLong(0).putLong(capacity).array());
+        container.superblock.setExtentIndexPosition(table.getStartPosition());
+        return table;
+    }
+
+    private void grow(DataBlock table, long capacity) throws IOException, NotEnoughFreeSpaceException {
+        long oldCapacity = readHeader(table).getLong(CAPACITY_OFFSET);
+        create(capacity);
+        long batchEntries = Block.MAX_BYTE_ARRAY_SIZE / ENTRY_BYTES;
+        for (long first = 0; first < oldCapacity; first += batchEntries) {
+            byte[] entries = new byte[(int) (Math.min(batchEntries, oldCapacity - first) * ENTRY_BYTES)];
+            table.read(HEADER_BYTES + first * ENTRY_BYTES, entries);
+            for (int offset = 0; offset < entries.length; offset += ENTRY_BYTES) {
+                long position = ByteBuffer.wrap(entries).getLong(offset + HASH_BYTES);
+                if (position != 0) {
+                    put(Arrays.copyOfRange(entries, offset, offset + HASH_BYTES), position);
+                }
+            }
+        }
+        table.freeChain();
+    }
+
+    private static long getHomePlace(byte[] hash, long mask) {
+        return ByteBuffer.wrap(hash).getLong() & mask;
+    }
+
+    private static boolean hasHash(ByteBuffer entry, byte[] hash) {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            if (entry.get(i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer readHeader(DataBlock table) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        table.read(0, header);
+        return ByteBuffer.wrap(header);
+    }
+
+    private static ByteBuffer readEntry(DataBlock table, long place) throws IOException {
+        byte[] entry = new byte[ENTRY_BYTES];
+        table.read(HEADER_BYTES + place * ENTRY_BYTES, entry);
+        return ByteBuffer.wrap(entry);
+    }
+
+    private static void writeCount(DataBlock table, long count) throws IOException {
+        write(table, COUNT_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(count).array());
+    }
+
+    private static void writeEntry(DataBlock table, long place, byte[] entry) throws IOException {
+        write(table, HEADER_BYTES + place * ENTRY_BYTES, entry);
+    }
+
+    private static void write(DataBlock table, long offset, byte[] bytes) throws IOException {
+        try {
+            table.write(offset, bytes);
+        } catch (NotEnoughFreeSpaceException e) {
+            throw new IllegalStateException("The written bytes are inside the index, it cannot be enlarged", e);
+        }
+    }
+
+}
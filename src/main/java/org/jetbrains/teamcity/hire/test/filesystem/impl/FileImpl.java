@@ -1,9 +1,10 @@
 package org.jetbrains.teamcity.hire.test.filesystem.impl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
+import javax.annotation.Nullable;
 import org.jetbrains.teamcity.hire.test.filesystem.api.File;
-import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
 
 /**
@@ -11,11 +12,41 @@ import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpace
  */
 class FileImpl implements File {
 
-    private final DataBlock dataBlock;
+    @Nullable
+    private DataBlock dataBlock; // null while the data is in the record content
+    @Nullable
+    private final RecordContent recordContent;
+    private final Container container;
+    // The record of the file, it is changed if the file is moved to another directory
+    private DataBlock directoryBlock;
+    private long recordOffset;
+    private final int sizeOffset;
     private final String name;
 
-    FileImpl(DataBlock dataBlock, String name) {
-        this.dataBlock = Objects.requireNonNull(dataBlock, "dataBlock must be not null");
+    /**
+     * @param directoryBlock the first block of the content chain of the directory storing the record
+     * @param recordOffset   offset of the file record in the directory content
+     */
+    FileImpl(DataBlock dataBlock, DataBlock directoryBlock, long recordOffset, String name) {
+        this(dataBlock, null, directoryBlock, recordOffset, name);
+    }
+
+    /**
+     * @param directoryBlock the first block of the content chain of the directory storing the record
+     * @param recordOffset   offset of the file record in the directory content
+     */
+    FileImpl(RecordContent recordContent, DataBlock directoryBlock, long recordOffset, String name) {
+        this(null, Objects.requireNonNull(recordContent, "recordContent must be not null"), directoryBlock, recordOffset, name);
+    }
+
+    private FileImpl(@Nullable DataBlock dataBlock, @Nullable RecordContent recordContent, DataBlock directoryBlock,
+                     long recordOffset, String name) {
+        this.dataBlock = dataBlock;
+        this.recordContent = recordContent;
+        this.directoryBlock = Objects.requireNonNull(directoryBlock, "directoryBlock must be not null");
+        this.container = directoryBlock.container;
+        this.recordOffset = recordOffset;
+        this.sizeOffset = DirectoryImpl.getSizeOffset(container.superblock.fileNameSize, container.superblock.inlineFileSize);
         this.name = Objects.requireNonNull(name, "name must be not null");
     }
 
@@ -29,8 +60,30 @@ class FileImpl implements File {
         return name;
     }
 
+    DataBlock getDataBlock() throws IOException {
+        DataBlock block = resolveDataBlock();
+        if (block == null) {
+            throw new IllegalStateException("The file stored in the record content does not have data block: " + name);
+        }
+        return block;
+    }
+
     /**
-     * The size of the file data space in bytes.
+     * Returns the file data block, it is changed once if the record content is moved to a data block.
+     *
+     * @return the data block or {@code null} if the data is in the record content.
+     */
+    @Nullable
+    private DataBlock resolveDataBlock() throws IOException {
+        if (dataBlock == null && recordContent != null) {
+            dataBlock = recordContent.findMovedDataBlock();
+        }
+        // a mounted snapshot sees the copy of the chain if it was changed after the snapshot
+        return dataBlock == null ? null : dataBlock.container.resolve(dataBlock);
+    }
+
+    /**
+     * The size of the file data space in bytes. For compressed files it is the size of the uncompressed data.
      *
      * @return size of the file data space in bytes
      *
@@ -38,9 +91,36 @@ class FileImpl implements File {
      */
     @Override
     public long getFileSize() throws IOException {
-        synchronized (RootDirectory.class) {
-            return dataBlock.getDataChainCapacity();
+        return container.read("File.getFileSize", name, null, this::readFileSize);
+    }
+
+    /**
+     * The same as {@link #getFileSize()}, but it is not timed and does not take the lock, the caller holds it.
+     * The size is read from the file record, the data blocks chain is read only for a removed file.
+     */
+    private long readFileSize() throws IOException {
+        DataBlock block = resolveDataBlock();
+        if (block == null || locateRecord()) {
+            return readRecordLong(sizeOffset);
         }
+        return computeFileSize(block);
+    }
+
+    /**
+     * Computes the size of the file from its data: the size of the record content, the size in the header
+     * of a compressed or deduplicated file or the data capacity of the chain.
+     */
+    private long computeFileSize(@Nullable DataBlock block) throws IOException {
+        if (block == null) {
+            return recordContent.getSize();
+        }
+        if (block.isCompressed()) {
+            return new CompressedContent(block).getSize();
+        }
+        if (block.isDeduplicated()) {
+            return new DeduplicatedContent(block).getSize();
+        }
+        return block.container.getDataChainCapacity(dataBlock);
     }
 
     /**
@@ -73,9 +153,19 @@ class FileImpl implements File {
             throw new IllegalArgumentException("offset must be >= 0");
         }
         Objects.requireNonNull(destination, "destination must be not null");
-        synchronized (RootDirectory.class) {
-            dataBlock.read(offset, destination);
-        }
+        container.read("File.read", name, null, () -> {
+            DataBlock block = resolveDataBlock();
+            if (block == null) {
+                recordContent.read(offset, destination);
+            } else if (block.isCompressed()) {
+                new CompressedContent(block).read(offset, destination);
+            } else if (block.isDeduplicated()) {
+                new DeduplicatedContent(block).read(offset, destination);
+            } else {
+                block.read(offset, destination);
+            }
+            return null;
+        });
     }
 
     /**
@@ -107,8 +197,74 @@ class FileImpl implements File {
             throw new IllegalArgumentException("offset must be >= 0");
         }
         Objects.requireNonNull(data, "data must be not null");
-        synchronized (RootDirectory.class) {
-            dataBlock.write(offset, data);
+        container.locked("File.write", name, null, () -> {
+            long size = readFileSize();
+            if ((long) offset + data.length > size) {
+                // the usage of the directory storing the record now is updated, the removed file is not counted;
+                // the quota is checked before the allocation, the usage is updated with the really grown size
+                boolean recorded = locateRecord();
+                if (recorded) {
+                    container.usageTable.checkQuota(directoryBlock.getStartPosition(), (long) offset + data.length - size);
+                }
+                writeData(offset, data);
+                long newSize = computeFileSize(resolveDataBlock());
+                if (recorded) {
+                    directoryBlock.write((int) (recordOffset + sizeOffset), newSize);
+                    container.usageTable.add(directoryBlock.getStartPosition(), newSize - size, 0, 0);
+                }
+            } else {
+                writeData(offset, data);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Checks that the record still refers to the data blocks chain of this file. The file moved to another directory
+     * is found by the chain position, see {@link Container#movedRecords}. The record of a file stored in the record
+     * content is not moved.
+     *
+     * @return {@code false} if the file is removed.
+     */
+    private boolean locateRecord() throws IOException {
+        if (dataBlock == null) {
+            return true;
+        }
+        long position = dataBlock.getStartPosition(); // the records refer to the live chain positions
+        if (readRecordLong(0) == position) {
+            return true;
+        }
+        long[] moved = container.movedRecords.get(position);
+        if (moved == null) {
+            return false;
+        }
+        directoryBlock = new DataBlock(directoryBlock, moved[0]);
+        recordOffset = moved[1];
+        return true;
+    }
+
+    private long readRecordLong(int offset) throws IOException {
+        byte[] bytes = new byte[Long.BYTES];
+        container.resolve(directoryBlock).read(recordOffset + offset, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    private void writeData(int offset, byte[] data) throws IOException, NotEnoughFreeSpaceException {
+        DataBlock block = resolveDataBlock();
+        if (block == null) {
+            if ((long) offset + data.length <= recordContent.getSize()) {
+                recordContent.write(offset, data);
+                return;
+            }
+            block = recordContent.promote((long) offset + data.length);
+            dataBlock = block;
+        }
+        if (block.isCompressed()) {
+            new CompressedContent(block).write(offset, data);
+        } else if (block.isDeduplicated()) {
+            new DeduplicatedContent(block).write(offset, data);
+        } else {
+            block.write(offset, data);
         }
     }
 
@@ -0,0 +1,102 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Operation counters of a loaded file system exposed via JMX. The loaded file system is registered with the
+ * {@code org.jetbrains.teamcity.hire.test.filesystem:type=FileSystem,path="<the file real path>"} object name
+ * and unregistered by its closing. All the counters are totals since the loading or the last {@link #reset()}.
+ */
+public interface FileSystemMetricsMXBean {
+
+    /**
+     * @return positionings of the file system file before the blocks writes and the not mapped reads.
+     */
+    long getSeeks();
+
+    /**
+     * @return data bytes read from the data chains.
+     */
+    long getBytesRead();
+
+    /**
+     * @return data bytes written to the data chains.
+     */
+    long getBytesWritten();
+
+    /**
+     * @return moves to the next block of a chain by the data chains reads and writes.
+     */
+    long getChainHops();
+
+    /**
+     * @return searches of the next free block after a data block.
+     */
+    long getFreeBlockScans();
+
+    /**
+     * @return blocks passed by all the searches of the next free block.
+     */
+    long getFreeBlockScanLength();
+
+    /**
+     * @return blocks passed by the longest search of the next free block.
+     */
+    long getMaxFreeBlockScanLength();
+
+    /**
+     * @return loadings of all the file records of a directory.
+     */
+    long getFileRecordsLoads();
+
+    /**
+     * @return bytes of the loaded directories file records.
+     */
+    long getFileRecordsBytes();
+
+    /**
+     * @return acquisitions of the file systems lock by this file system operations.
+     */
+    long getLockAcquisitions();
+
+    /**
+     * @return nanoseconds spent by the operations waiting for the file systems lock.
+     */
+    long getLockWaitNanos();
+
+    /**
+     * @return nanoseconds the operations held the file systems lock.
+     */
+    long getLockHoldNanos();
+
+    /**
+     * Latencies of the {@code File} and {@code Directory} operations by the operation names like
+     * {@code Directory.createFile}. The latency includes the lock waiting, only the outermost operation of a thread
+     * is recorded, e.g. {@code Directory.rename} is recorded as {@code Directory.move}.
+     *
+     * @return latency percentiles by the operation names.
+     */
+    Map<String, LatencySnapshot> getLatencies();
+
+    /**
+     * @return operations slower than this are logged, see {@link #getSlowOperations()}.
+     */
+    long getSlowOperationThresholdMillis();
+
+    void setSlowOperationThresholdMillis(long thresholdMillis);
+
+    /**
+     * The most recent operations slower than the threshold with their paths, the data chains blocks passed and
+     * the blocks scanned by the free blocks searches. They are logged by {@code java.util.logging} as warnings too.
+     *
+     * @return the slow operations descriptions, the oldest first.
+     */
+    List<String> getSlowOperations();
+
+    /**
+     * Resets all the counters, the latencies and the slow operations.
+     */
+    void reset();
+
+}
@@ -2,46 +2,70 @@ package org.jetbrains.teamcity.hire.test.filesystem.impl;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
 import java.util.Objects;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AllocationStrategy;
+import org.jetbrains.teamcity.hire.test.filesystem.api.CheckReport;
+import org.jetbrains.teamcity.hire.test.filesystem.api.ChecksumVerification;
 import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemsManager;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FormatOptions;
+import org.jetbrains.teamcity.hire.test.filesystem.api.LoadOptions;
 import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
 
 public class FileSystemsManagerImpl implements FileSystemsManager {
 
     private static final long MIN_DATA_SIZE = Integer.getInteger("minFileDataSize", 200);
-    private static final long MIN_FILE_SIZE = RootDirectoryImpl.DEFAULT_SIZE + MIN_DATA_SIZE;
-    private static final byte[] FILE_SYSTEM_ID = "SingleFileFileSystem_v0.01".getBytes();
 
     /**
      * Creates and formats a file at the {@code path} with the file system in a file format.
      * After file formatting, {@link RootDirectory} can be obtained with {@link #load(Path)};
      *
      * @param path     the path to the formatting file.
-     * @param fileSize file system full size. Cannot be lesser than {@link #MIN_FILE_SIZE} (1000 by default).
+     * @param fileSize file system full size. Cannot be lesser than the root directory size plus {@link #MIN_DATA_SIZE} (1000 by default).
      *
      * @throws IOException if some I/O error occurs.
      */
     @Override
-    public synchronized void createAndFormat(Path path, long fileSize) throws IOException {
+    public void createAndFormat(Path path, long fileSize) throws IOException {
+        createAndFormat(path, fileSize, FormatOptions.defaults());
+    }
+
+    /**
+     * Creates and formats a file at the {@code path} with the provided format {@code options}, the same as {@link #createAndFormat(Path, long)}.
+     * The options are persisted in the file superblock.
+     *
+     * @param path     the path to the formatting file.
+     * @param fileSize file system full size. Cannot be lesser than the root directory size plus {@link #MIN_DATA_SIZE} (1000 by default).
+     * @param options  the format options.
+     *
+     * @throws IOException if some I/O error occurs.
+     */
+    @Override
+    public synchronized void createAndFormat(Path path, long fileSize, FormatOptions options) throws IOException {
         Objects.requireNonNull(path, "path must be not null");
+        Objects.requireNonNull(options, "options must be not null");
         if (Files.isDirectory(path)) {
             throw new IllegalArgumentException("path should not be a directory");
         }
-        if (fileSize < MIN_FILE_SIZE) {
+        int rootDirectorySize = DirectoryImpl.getDefaultSize(
+                options.getFileNameSize(), options.getInlineFileSize(), options.getInitialDirectoryCapacity());
+        long minFileSize = rootDirectorySize + MIN_DATA_SIZE;
+        if (fileSize < minFileSize) {
             throw new IllegalArgumentException(String.format(
-                    "File system file cannot be less than %s bytes, but the fileSize is: %s", MIN_FILE_SIZE, fileSize));
+                    "File system file cannot be less than %s bytes, but the fileSize is: %s", minFileSize, fileSize));
         }
         Files.createDirectories(path.getParent());
         try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            // The file is extended without writing, data space stays sparse until it is written by blocks
             file.setLength(fileSize);
-            file.write(FILE_SYSTEM_ID);
-            new FreeBlock(file, FILE_SYSTEM_ID.length, file.length(), FILE_SYSTEM_ID.length)
-                    .initialize(file.length() - FILE_SYSTEM_ID.length)
-                    .allocate(RootDirectoryImpl.DEFAULT_SIZE);
+            Superblock superblock = Superblock.format(file, fileSize, options);
+            Container container = new Container(file, superblock, AllocationPolicy.create(AllocationStrategy.FIRST_FIT));
+            new FreeBlock(container, container.firstBlockPosition)
+                    .initialize(fileSize - container.firstBlockPosition)
+                    .allocate(rootDirectorySize);
+            superblock.addBlocks(1); // the initial free block, the root directory block is counted by allocation
         }
     }
 
@@ -57,16 +81,13 @@ public class FileSystemsManagerImpl implements FileSystemsManager {
     @Override
     public synchronized boolean isFormatted(Path path) throws IOException {
         Objects.requireNonNull(path, "path must be not null");
-        if (!Files.exists(path) || Files.isDirectory(path) || Files.size(path) < MIN_FILE_SIZE) {
+        if (!Files.exists(path) || Files.isDirectory(path)) {
             return false;
         }
         try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
-            byte[] readIdBytes = new byte[FILE_SYSTEM_ID.length];
-            file.read(readIdBytes);
-            if (!Arrays.equals(FILE_SYSTEM_ID, readIdBytes)) {
-                System.out.println(String.format("By path '%s' file system id is '%s', but expected is: '%s'",
-                        path, new String(readIdBytes, StandardCharsets.ISO_8859_1),
-                        new String(FILE_SYSTEM_ID, StandardCharsets.ISO_8859_1)));
+            String formatError = Superblock.findFormatError(file);
+            if (formatError != null) {
+                System.out.println(String.format("By path '%s' %s", path, formatError));
                 return false;
             }
         }
@@ -85,14 +106,143 @@ public class FileSystemsManagerImpl implements FileSystemsManager {
      * @throws IOException if the formatted file is already loaded or some another I/O error occurs.
      */
     @Override
-    public synchronized RootDirectory load(Path path) throws IOException {
+    public RootDirectory load(Path path) throws IOException {
+        return load(path, LoadOptions.defaults());
+    }
+
+    /**
+     * Loads the previously formatted file with the provided {@code options}, the same as {@link #load(Path)}.
+     *
+     * @param path    the path to the formatted file.
+     * @param options the loading options.
+     *
+     * @return {@link RootDirectory} to operate with files. Take a note that {@link RootDirectory} should be closed after using!
+     *
+     * @throws IOException if the formatted file is already loaded or some another I/O error occurs.
+     */
+    @Override
+    public synchronized RootDirectory load(Path path, LoadOptions options) throws IOException {
         Objects.requireNonNull(path, "path must be not null");
+        Objects.requireNonNull(options, "options must be not null");
         if (!isFormatted(path)) {
             throw new IllegalArgumentException("Cannot load not existing or not formatted file: " + path);
         }
         RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
-        file.getChannel().lock(); // lock is released with root directory close
-        return RootDirectoryImpl.load(file, FILE_SYSTEM_ID.length);
+        try {
+            file.getChannel().lock(); // lock is released with root directory close
+        } catch (OverlappingFileLockException e) {
+            file.close();
+            throw new IOException("The file is already loaded: " + path, e);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        Superblock superblock = Superblock.read(file);
+        if (options.getChecksumVerification() != ChecksumVerification.OFF && !superblock.blockChecksums) {
+            file.close();
+            throw new IllegalArgumentException("Cannot verify checksums of the file formatted without them: " + path);
+        }
+        AllocationStrategy allocationStrategy = options.getAllocationStrategy() != null
+                ? options.getAllocationStrategy()
+                : superblock.allocationStrategy;
+        return RootDirectoryImpl.load(path.toRealPath(), file, superblock, AllocationPolicy.create(allocationStrategy), options);
+    }
+
+    /**
+     * Loads the previously formatted file read-only, the same as {@link #load(Path)}, but the file is locked shared,
+     * so several processes can read it at the same time. The file is memory mapped and is read without locking.
+     *
+     * @param path the path to the formatted file.
+     *
+     * @return read-only {@link RootDirectory}. Take a note that {@link RootDirectory} should be closed after using!
+     *
+     * @throws IOException if the file is loaded for writing or by this process or some another I/O error occurs.
+     */
+    @Override
+    public synchronized RootDirectory loadReadOnly(Path path) throws IOException {
+        Objects.requireNonNull(path, "path must be not null");
+        if (!isFormatted(path)) {
+            throw new IllegalArgumentException("Cannot load not existing or not formatted file: " + path);
+        }
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+        try {
+            file.getChannel().lock(0, Long.MAX_VALUE, true); // lock is released with root directory close
+            Superblock superblock = Superblock.read(file);
+            return RootDirectoryImpl.loadReadOnly(path.toRealPath(), file, superblock, new MappedFile(file.getChannel(), superblock.fileSize));
+        } catch (OverlappingFileLockException e) {
+            file.close();
+            throw new IOException("The file is already loaded: " + path, e);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Mounts the snapshot of the previously formatted file read-only, see {@link RootDirectory#snapshot(String)}.
+     * If the file is loaded, the snapshot shares it with the loaded {@link RootDirectory}, so the snapshot can be read
+     * while the file system is written. Such snapshot can be used until the loaded {@link RootDirectory} is closed.
+     * Otherwise the file is locked shared, so it cannot be loaded before the snapshot will be closed.
+     *
+     * @param path         the path to the formatted file.
+     * @param snapshotName the name of the snapshot.
+     *
+     * @return read-only {@link RootDirectory} of the snapshot. Take a note that {@link RootDirectory} should be closed after using!
+     *
+     * @throws IOException              if some I/O error occurs.
+     * @throws IllegalArgumentException if there is no snapshot with such name.
+     */
+    @Override
+    public synchronized RootDirectory loadSnapshot(Path path, String snapshotName) throws IOException {
+        Objects.requireNonNull(path, "path must be not null");
+        Objects.requireNonNull(snapshotName, "snapshotName must be not null");
+        if (!isFormatted(path)) {
+            throw new IllegalArgumentException("Cannot load not existing or not formatted file: " + path);
+        }
+        RootDirectory loaded = RootDirectoryImpl.loadSnapshot(path.toRealPath(), snapshotName);
+        if (loaded != null) {
+            return loaded;
+        }
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+        try {
+            file.getChannel().lock(0, Long.MAX_VALUE, true); // lock is released with root directory close
+            return RootDirectoryImpl.loadSnapshot(file, Superblock.read(file), snapshotName);
+        } catch (OverlappingFileLockException e) {
+            file.close();
+            throw new IOException("The file is already locked: " + path, e);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks consistency of the not loaded formatted file: duplicated block lengths, data chains reachability from
+     * exactly one directory record and the superblock counters. Directory subtrees are checked in parallel.
+     * The file is locked exclusively for the repair and shared otherwise.
+     *
+     * @param path   the path to the formatted file.
+     * @param repair {@code true} to repair the found problems: leaked blocks are freed, cross-linked and broken chains are cut,
+     *               adjacent free blocks are merged and the superblock counters are recalculated.
+     *
+     * @return the check report.
+     *
+     * @throws IOException if the file is loaded or some another I/O error occurs.
+     */
+    @Override
+    public synchronized CheckReport check(Path path, boolean repair) throws IOException {
+        Objects.requireNonNull(path, "path must be not null");
+        if (!isFormatted(path)) {
+            throw new IllegalArgumentException("Cannot check not existing or not formatted file: " + path);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), repair ? "rw" : "r")) {
+            try {
+                file.getChannel().lock(0, Long.MAX_VALUE, !repair);
+            } catch (OverlappingFileLockException e) {
+                throw new IOException("The file is loaded: " + path, e);
+            }
+            return new ContainerChecker(file).check(repair);
+        }
     }
 
 }
@@ -0,0 +1,21 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Takes the first free block whatever its size is, the chain is continued with the next free blocks.
+ */
+class FirstFitAllocationPolicy implements AllocationPolicy {
+
+    @Override
+    public FreeBlock findFreeBlock(Block anyBlock, long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        return anyBlock.findFirstFreeBlock();
+    }
+
+    @Override
+    public FreeBlock findNextFreeBlock(DataBlock previous, long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        return previous.findNextFreeBlock();
+    }
+
+}
@@ -1,13 +1,12 @@
 package org.jetbrains.teamcity.hire.test.filesystem.impl;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
 
 class FreeBlock extends Block {
 
-    FreeBlock(RandomAccessFile file, long fileBegin, long fileSize, long startPosition) {
-        super(file, fileBegin, fileSize, startPosition);
+    FreeBlock(Container container, long startPosition) {
+        super(container, startPosition);
     }
 
     FreeBlock(Block base) {
@@ -38,8 +37,26 @@ class FreeBlock extends Block {
 
     /**
      * Allocates a chain of data blocks with at least {@code dataCapacity} free space, beginning from this free block.
+     * The next blocks of the chain are chosen by the allocation policy. The chain is not seen by the existing snapshots.
+     * If there is not enough free space, already allocated blocks are freed back.
      */
     DataBlock allocate(long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        DataBlock chain = allocateBlocks(dataCapacity);
+        try {
+            container.snapshots.chainAllocated(chain.getStartPosition());
+        } catch (NotEnoughFreeSpaceException e) {
+            chain.freeChain();
+            throw e;
+        }
+        return chain;
+    }
+
+    /**
+     * Allocates the data blocks the same as {@link #allocate(long)}, but they are not registered as a new chain:
+     * they continue an enlarged chain or store a service chain of the snapshots.
+     */
+    DataBlock allocateBlocks(long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        checkWritable();
         if (getDataCapacity() >= dataCapacity) {
             return cutDataBlock(dataCapacity);
         }
@@ -47,31 +64,38 @@ class FreeBlock extends Block {
         DataBlock firstInChain = transformToData();
         DataBlock current = firstInChain;
         long remainingDataCapacity = dataCapacity - firstInChain.getDataCapacity();
-        while (remainingDataCapacity > 0) {
-            FreeBlock nextFree = current.findNextFreeBlock();
-            DataBlock next = nextFree.getDataCapacity() >= remainingDataCapacity
-                    ? nextFree.cutDataBlock(remainingDataCapacity)
-                    : nextFree.transformToData();
-            current.setNextDataBlock(next);
-            current = next;
-            remainingDataCapacity -= current.getDataCapacity();
+        try {
+            while (remainingDataCapacity > 0) {
+                FreeBlock nextFree = container.allocationPolicy.findNextFreeBlock(current, remainingDataCapacity);
+                DataBlock next = nextFree.getDataCapacity() >= remainingDataCapacity
+                        ? nextFree.cutDataBlock(remainingDataCapacity)
+                        : nextFree.transformToData();
+                current.setNextDataBlock(next);
+                current = next;
+                remainingDataCapacity -= current.getDataCapacity();
+            }
+        } catch (NotEnoughFreeSpaceException e) {
+            firstInChain.freeChain();
+            throw e;
         }
         return firstInChain;
     }
 
     /**
      * Split the free block to the data block and a free smaller one, if this smaller is big enough to be a valid block.
+     * The data block length is defined by the allocation policy.
      */
     private DataBlock cutDataBlock(long dataSize) throws IOException, NotEnoughFreeSpaceException {
         if (getDataCapacity() < dataSize) {
             throw new IllegalArgumentException(String.format("Cannot cut %s data bytes, the block is too small!", dataSize));
         }
-        if (getDataCapacity() - dataSize < MIN_BLOCK_LENGTH) {
+        long dataBlockLength = Math.min(container.allocationPolicy.getDataBlockLength(dataSize), getLength());
+        if (getLength() - dataBlockLength < MIN_BLOCK_LENGTH) {
             return transformToData();
         }
-        long dataBlockLength = Math.max(SERVICE_DATA_BYTES + dataSize, MIN_BLOCK_LENGTH);
         DataBlock dataBlock = new DataBlock(this).initialize(dataBlockLength);
         new FreeBlock(this, startPosition + dataBlockLength).initialize(getLength() - dataBlockLength);
+        container.superblock.addBlocks(1);
         return dataBlock;
     }
 
@@ -0,0 +1,91 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.POSITION_BYTES;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Content of a tiny file stored inside its directory record, after the record name.
+ * The file size is the inline area size of the format. When the file grows beyond it, the data is moved to a new
+ * data blocks chain and the record position is changed from {@link #INLINE_POSITION} to the chain position.
+ */
+class InlineContent implements RecordContent {
+
+    static final long INLINE_POSITION = -1L; // the record position of an inline file
+
+    private final DataBlock directoryBlock;
+    private final long recordOffset;
+    private final long dataOffset;
+    private final int size;
+
+    /**
+     * @param directoryBlock the first block of the directory content chain
+     * @param recordOffset   offset of the file record in the directory content
+     */
+    InlineContent(DataBlock directoryBlock, long recordOffset) {
+        this.directoryBlock = Objects.requireNonNull(directoryBlock, "directoryBlock must be not null");
+        this.recordOffset = recordOffset;
+        Superblock superblock = directoryBlock.container.superblock;
+        this.dataOffset = recordOffset + POSITION_BYTES + superblock.fileNameSize;
+        this.size = superblock.inlineFileSize;
+    }
+
+    @Override
+    public Container getContainer() {
+        return directoryBlock.container;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Nullable
+    @Override
+    public DataBlock findMovedDataBlock() throws IOException {
+        byte[] position = new byte[POSITION_BYTES];
+        directoryBlock.container.resolve(directoryBlock).read(recordOffset, position);
+        long chainPosition = ByteBuffer.wrap(position).getLong();
+        return chainPosition == INLINE_POSITION ? null : new DataBlock(directoryBlock, chainPosition);
+    }
+
+    @Override
+    public void read(long offset, byte[] destination) throws IOException {
+        checkRange(offset, destination.length);
+        directoryBlock.container.resolve(directoryBlock).read(dataOffset + offset, destination);
+    }
+
+    @Override
+    public void write(long offset, byte[] source) throws IOException, NotEnoughFreeSpaceException {
+        checkRange(offset, source.length);
+        directoryBlock.write(dataOffset + offset, source);
+    }
+
+    /**
+     * Moves the data to a new data blocks chain with at least {@code dataCapacity} bytes and clears the inline area.
+     *
+     * @return the first block of the new chain.
+     */
+    @Override
+    public DataBlock promote(long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        DataBlock dataBlock = directoryBlock.allocateChain(Math.max(dataCapacity, size));
+        byte[] data = new byte[size];
+        directoryBlock.read(dataOffset, data);
+        dataBlock.write(0, data);
+        directoryBlock.write((int) recordOffset, dataBlock.getStartPosition());
+        directoryBlock.write(dataOffset, new byte[size]);
+        return dataBlock;
+    }
+
+    private void checkRange(long offset, int length) {
+        if (offset < 0 || offset + length > size) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot access %d bytes starting from %d: the inline file size is %d bytes!", length, offset, size));
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Lock-free histogram of operation latencies in nanoseconds. Buckets are logarithmic like in HdrHistogram: every power
+ * of two range is split to {@value #SUB_BUCKETS} linear sub-buckets, so a percentile is reported with at most
+ * 1/{@value #SUB_BUCKETS} relative error and all the {@code long} values fit in less than a thousand buckets.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below 2 * SUB_BUCKETS have own buckets, then every shift adds SUB_BUCKETS buckets
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(getBucket(value));
+        max.accumulate(value);
+    }
+
+    /**
+     * The percentiles of the recorded values. The values recorded while the snapshot is taken may be partially counted.
+     */
+    LatencySnapshot getSnapshot() {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        long maxValue = max.get();
+        return new LatencySnapshot(count, getPercentile(snapshot, count, 0.5, maxValue),
+                getPercentile(snapshot, count, 0.99, maxValue), getPercentile(snapshot, count, 0.999, maxValue), maxValue);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        max.reset();
+    }
+
+    /**
+     * The highest value of the bucket containing the {@code percentile} of the values, but not above the max one.
+     */
+    private static long getPercentile(long[] counts, long count, double percentile, long max) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketHighestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    static int getBucket(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        // value >>> shift is between SUB_BUCKETS and 2 * SUB_BUCKETS - 1
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long getBucketHighestValue(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        if (shift + SUB_BUCKET_BITS == Long.SIZE - 2 && subBucket == 2 * SUB_BUCKETS - 1) {
+            return Long.MAX_VALUE; // the next bucket lowest value overflows
+        }
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
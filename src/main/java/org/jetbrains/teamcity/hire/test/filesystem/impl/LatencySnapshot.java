@@ -0,0 +1,66 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Latency percentiles of an operation in nanoseconds, see {@link FileSystemMetricsMXBean#getLatencies()}.
+ * The percentiles are the highest values of their histogram buckets, so they are up to 1/16 above the real ones.
+ */
+public final class LatencySnapshot {
+
+    private final long count;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    @ConstructorProperties({"count", "p50", "p99", "p999", "max"})
+    public LatencySnapshot(long count, long p50, long p99, long p999, long max) {
+        this.count = count;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    /**
+     * @return count of the recorded operations.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return median latency in nanoseconds.
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * @return 99th percentile latency in nanoseconds.
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * @return 99.9th percentile latency in nanoseconds.
+     */
+    public long getP999() {
+        return p999;
+    }
+
+    /**
+     * @return max latency in nanoseconds.
+     */
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LatencySnapshot{count=%d, p50=%d, p99=%d, p999=%d, max=%d}", count, p50, p99, p999, max);
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+
+/**
+ * Read-only memory mapping of the whole file system file. All the reads are absolute, the buffers position is never
+ * changed, so any count of threads can read at the same time without synchronization.
+ * The file is mapped with several segments because a buffer cannot be greater than 2 GB.
+ * The mapping is released by the garbage collector after closing of the file.
+ */
+class MappedFile {
+
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private final MappedByteBuffer[] segments;
+
+    MappedFile(FileChannel channel, long size) throws IOException {
+        Objects.requireNonNull(channel, "channel must be not null");
+        segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+        for (int i = 0; i < segments.length; i++) {
+            long start = (long) i << SEGMENT_BITS;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+    }
+
+    byte readByte(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    int readInt(long position) {
+        int offset = (int) (position & (SEGMENT_SIZE - 1));
+        if (offset + Integer.BYTES <= SEGMENT_SIZE) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getInt(offset);
+        }
+        byte[] bytes = new byte[Integer.BYTES];
+        readFully(position, bytes, 0, bytes.length);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    long readLong(long position) {
+        int offset = (int) (position & (SEGMENT_SIZE - 1));
+        if (offset + Long.BYTES <= SEGMENT_SIZE) {
+            return segments[(int) (position >>> SEGMENT_BITS)].getLong(offset);
+        }
+        byte[] bytes = new byte[Long.BYTES];
+        readFully(position, bytes, 0, bytes.length);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    void readFully(long position, byte[] destination, int offset, int length) {
+        int bytesRead = 0;
+        while (bytesRead < length) {
+            long current = position + bytesRead;
+            int offsetInSegment = (int) (current & (SEGMENT_SIZE - 1));
+            int bytes = (int) Math.min(length - bytesRead, SEGMENT_SIZE - offsetInSegment);
+            // a duplicate has its own position, so the shared segment is not changed
+            ByteBuffer segment = segments[(int) (current >>> SEGMENT_BITS)].duplicate();
+            segment.position(offsetInSegment);
+            segment.get(destination, offset + bytesRead, bytes);
+            bytesRead += bytes;
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Operation counters and latencies of a container, see {@link FileSystemMetricsMXBean}. The counters are
+ * {@link LongAdder}s and the latencies are lock-free histograms, so they are cheap enough to be always on
+ * and are updated without the file systems lock by the mapped containers.
+ */
+class Metrics implements FileSystemMetricsMXBean {
+
+    static final String DOMAIN = "org.jetbrains.teamcity.hire.test.filesystem";
+
+    private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+    // Operations slower than this are logged, the threshold can be changed via JMX
+    private static final long SLOW_OPERATION_THRESHOLD_MILLIS = Long.getLong("slowOperationThresholdMillis", 1000L);
+    private static final int MAX_SLOW_OPERATIONS = Integer.getInteger("maxSlowOperations", 100);
+
+    private final LongAdder seeks = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder chainHops = new LongAdder();
+    private final LongAdder freeBlockScans = new LongAdder();
+    private final LongAdder freeBlockScanLength = new LongAdder();
+    private final LongAccumulator maxFreeBlockScanLength = new LongAccumulator(Math::max, 0);
+    private final LongAdder fileRecordsLoads = new LongAdder();
+    private final LongAdder fileRecordsBytes = new LongAdder();
+    private final LongAdder lockAcquisitions = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private final LongAdder lockHoldNanos = new LongAdder();
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Deque<String> slowOperations = new ArrayDeque<>(); // guarded by itself
+    private final ThreadLocal<Trace> traces = ThreadLocal.withInitial(Trace::new);
+    private volatile long slowOperationThresholdMillis = SLOW_OPERATION_THRESHOLD_MILLIS;
+    @Nullable
+    private ObjectName objectName; // not null while registered
+
+    void seek() {
+        seeks.increment();
+    }
+
+    void read(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    void written(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    void chainHop() {
+        chainHops.increment();
+        traces.get().chainHops++;
+    }
+
+    void freeBlockScanned(long length) {
+        traces.get().scanLength += length;
+        freeBlockScans.increment();
+        freeBlockScanLength.add(length);
+        maxFreeBlockScanLength.accumulate(length);
+    }
+
+    void fileRecordsLoaded(long bytes) {
+        fileRecordsLoads.increment();
+        fileRecordsBytes.add(bytes);
+    }
+
+    /**
+     * Counts the lock acquired at {@code acquiredNanos} after the waiting started at {@code waitStartNanos}
+     * and held until now.
+     */
+    void locked(long waitStartNanos, long acquiredNanos) {
+        lockAcquisitions.increment();
+        lockWaitNanos.add(acquiredNanos - waitStartNanos);
+        lockHoldNanos.add(System.nanoTime() - acquiredNanos);
+    }
+
+    /**
+     * Starts tracing of an operation of this thread, the nested operations are traced as a part of the outermost one.
+     *
+     * @return the operation start time for {@link #operationFinished}.
+     */
+    long operationStarted() {
+        Trace trace = traces.get();
+        if (trace.depth++ == 0) {
+            trace.chainHops = 0;
+            trace.scanLength = 0;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the latency of the outermost operation of this thread and logs it if it is slow.
+     *
+     * @param name     the name of the file or of the directory performing the operation.
+     * @param argument the name of the entry of the directory which the operation is performed with or null.
+     */
+    void operationFinished(String operation, long startNanos, String name, @Nullable String argument) {
+        long nanos = System.nanoTime() - startNanos;
+        Trace trace = traces.get();
+        if (--trace.depth > 0) {
+            return;
+        }
+        latencies.computeIfAbsent(operation, key -> new LatencyHistogram()).record(nanos);
+        if (nanos >= TimeUnit.MILLISECONDS.toNanos(slowOperationThresholdMillis)) {
+            String path = argument == null ? name : name + (argument.startsWith("/") ? "" : "/") + argument;
+            String slowOperation = String.format("%s of '%s' took %d ms: %d chain hops, %d blocks scanned for free ones",
+                    operation, path, TimeUnit.NANOSECONDS.toMillis(nanos), trace.chainHops, trace.scanLength);
+            LOGGER.warning(slowOperation);
+            synchronized (slowOperations) {
+                slowOperations.addLast(slowOperation);
+                if (slowOperations.size() > MAX_SLOW_OPERATIONS) {
+                    slowOperations.removeFirst();
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server by the file path, the file is locked by the loading, so the path
+     * is unique. A failed registration does not prevent the file system loading, the metrics are counted anyway.
+     */
+    void register(Path path) {
+        Objects.requireNonNull(path, "path must be not null");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(String.format("%s:type=FileSystem,path=%s", DOMAIN, ObjectName.quote(path.toString())));
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            objectName = null;
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // already unregistered
+        }
+        objectName = null;
+    }
+
+    @Nullable
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public long getSeeks() {
+        return seeks.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getChainHops() {
+        return chainHops.sum();
+    }
+
+    @Override
+    public long getFreeBlockScans() {
+        return freeBlockScans.sum();
+    }
+
+    @Override
+    public long getFreeBlockScanLength() {
+        return freeBlockScanLength.sum();
+    }
+
+    @Override
+    public long getMaxFreeBlockScanLength() {
+        return maxFreeBlockScanLength.get();
+    }
+
+    @Override
+    public long getFileRecordsLoads() {
+        return fileRecordsLoads.sum();
+    }
+
+    @Override
+    public long getFileRecordsBytes() {
+        return fileRecordsBytes.sum();
+    }
+
+    @Override
+    public long getLockAcquisitions() {
+        return lockAcquisitions.sum();
+    }
+
+    @Override
+    public long getLockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    @Override
+    public long getLockHoldNanos() {
+        return lockHoldNanos.sum();
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getLatencies() {
+        Map<String, LatencySnapshot> snapshots = new TreeMap<>();
+        latencies.forEach((operation, histogram) -> snapshots.put(operation, histogram.getSnapshot()));
+        return snapshots;
+    }
+
+    @Override
+    public long getSlowOperationThresholdMillis() {
+        return slowOperationThresholdMillis;
+    }
+
+    @Override
+    public void setSlowOperationThresholdMillis(long thresholdMillis) {
+        if (thresholdMillis < 0) {
+            throw new IllegalArgumentException("thresholdMillis must be >= 0, but is " + thresholdMillis);
+        }
+        slowOperationThresholdMillis = thresholdMillis;
+    }
+
+    @Override
+    public List<String> getSlowOperations() {
+        synchronized (slowOperations) {
+            return new ArrayList<>(slowOperations);
+        }
+    }
+
+    @Override
+    public void reset() {
+        seeks.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        chainHops.reset();
+        freeBlockScans.reset();
+        freeBlockScanLength.reset();
+        maxFreeBlockScanLength.reset();
+        fileRecordsLoads.reset();
+        fileRecordsBytes.reset();
+        lockAcquisitions.reset();
+        lockWaitNanos.reset();
+        lockHoldNanos.reset();
+        latencies.values().forEach(LatencyHistogram::reset);
+        synchronized (slowOperations) {
+            slowOperations.clear();
+        }
+    }
+
+    /**
+     * The operation of a thread in progress.
+     */
+    private static class Trace {
+        int depth; // of the nested operations
+        long chainHops;
+        long scanLength;
+    }
+
+}
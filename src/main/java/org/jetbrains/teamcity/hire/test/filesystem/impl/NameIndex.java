@@ -0,0 +1,143 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * Sorted names of one directory. The index is built from the directory records by the first search and then is
+ * maintained by the changes of the directory records while the file system is loaded. It is not persisted, so the
+ * first search in a directory after every loading costs O(n) of the directory records, the next ones cost O(log n).
+ * The set is concurrent, so the returned iterators are lazy and can be used after the lock releasing.
+ */
+class NameIndex {
+
+    private final NavigableSet<String> names = new ConcurrentSkipListSet<>();
+
+    NameIndex(Collection<String> names) {
+        this.names.addAll(names);
+    }
+
+    void add(String name) {
+        names.add(name);
+    }
+
+    void remove(String name) {
+        names.remove(name);
+    }
+
+    /**
+     * The names starting with the {@code prefix} in ascending order. The first one is found in O(log n),
+     * every next one is taken from the index when the iterator reaches it.
+     */
+    Iterator<String> find(String prefix) {
+        return filter(prefix, name -> true);
+    }
+
+    /**
+     * The names matching the glob {@code pattern} in ascending order, only the names starting with the literal
+     * prefix of the pattern are checked.
+     */
+    Iterator<String> glob(String pattern) {
+        Pattern regex = toRegex(pattern);
+        return filter(getLiteralPrefix(pattern), name -> regex.matcher(name).matches());
+    }
+
+    private Iterator<String> filter(String prefix, Predicate<String> predicate) {
+        Iterator<String> tail = names.tailSet(prefix, true).iterator();
+        return new Iterator<String>() {
+            @Nullable
+            private String next = findNext();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                String current = next;
+                next = findNext();
+                return current;
+            }
+
+            @Nullable
+            private String findNext() {
+                while (tail.hasNext()) {
+                    String name = tail.next();
+                    if (!name.startsWith(prefix)) {
+                        return null; // the names are sorted, so there are no more names with the prefix
+                    }
+                    if (predicate.test(name)) {
+                        return name;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    private static String getLiteralPrefix(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[\\".indexOf(pattern.charAt(i)) != -1) {
+                return pattern.substring(0, i);
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Converts the glob {@code pattern} to a regular expression: {@code *} matches any characters, {@code ?} matches
+     * one character, {@code [abc]}, {@code [a-z]} and {@code [!abc]} match one character of the class,
+     * {@code \} escapes the next character.
+     */
+    static Pattern toRegex(String pattern) {
+        Objects.requireNonNull(pattern, "pattern must be not null");
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '\\') {
+                if (++i == pattern.length()) {
+                    throw new IllegalArgumentException("Nothing to escape at the end of the pattern: " + pattern);
+                }
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(i))));
+            } else if (c == '[') {
+                int end = pattern.indexOf(']', i + 2);
+                if (end == -1) {
+                    throw new IllegalArgumentException("Not closed character class in the pattern: " + pattern);
+                }
+                String characterClass = pattern.substring(i + 1, end);
+                regex.append('[');
+                if (characterClass.startsWith("!")) {
+                    regex.append('^');
+                    characterClass = characterClass.substring(1);
+                }
+                for (char classChar : characterClass.toCharArray()) {
+                    if (classChar != '-' && !Character.isLetterOrDigit(classChar)) {
+                        regex.append('\\');
+                    }
+                    regex.append(classChar);
+                }
+                regex.append(']');
+                i = end;
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+}
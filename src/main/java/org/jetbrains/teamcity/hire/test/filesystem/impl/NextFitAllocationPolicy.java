@@ -0,0 +1,61 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.util.Optional;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Takes the first free block after the roving pointer - the last allocated block, wrapping around the file end.
+ * Spreads allocations over the file instead of crowding small remainders at its beginning.
+ */
+class NextFitAllocationPolicy implements AllocationPolicy {
+
+    private static final long UNKNOWN_POSITION = -1L;
+
+    private long rovingPosition = UNKNOWN_POSITION;
+
+    @Override
+    public FreeBlock findFreeBlock(Block anyBlock, long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        Block start = rovingPosition == UNKNOWN_POSITION
+                ? new Block(anyBlock, anyBlock.firstBlockPosition)
+                : new Block(anyBlock, rovingPosition);
+        return findFreeBlockWrapping(start);
+    }
+
+    @Override
+    public FreeBlock findNextFreeBlock(DataBlock previous, long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        return findFreeBlockWrapping(previous);
+    }
+
+    @Override
+    public void blockLengthChanged(long startPosition, long length) {
+        if (rovingPosition > startPosition && rovingPosition < startPosition + length) {
+            // the block which the pointer refers to is merged into this one
+            rovingPosition = startPosition;
+        }
+    }
+
+    private FreeBlock findFreeBlockWrapping(Block start) throws IOException, NotEnoughFreeSpaceException {
+        Optional<Block> block = Optional.of(start);
+        while (block.isPresent()) {
+            if (block.get().isFree()) {
+                return found(block.get());
+            }
+            block = block.get().getNext();
+        }
+        block = Optional.of(new Block(start, start.firstBlockPosition));
+        while (block.isPresent() && block.get().getStartPosition() < start.getStartPosition()) {
+            if (block.get().isFree()) {
+                return found(block.get());
+            }
+            block = block.get().getNext();
+        }
+        throw new NotEnoughFreeSpaceException();
+    }
+
+    private FreeBlock found(Block block) {
+        rovingPosition = block.getStartPosition();
+        return new FreeBlock(block);
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Content of a small file which does not have its own data blocks chain: the directory record refers to the place
+ * where the data is stored. When the file grows beyond the content size, the data is moved to a new data blocks chain
+ * and the record refers to the chain.
+ */
+interface RecordContent {
+
+    /**
+     * The container of the directory storing the record.
+     */
+    Container getContainer();
+
+    /**
+     * The file size: the size of the place storing the data.
+     */
+    int getSize() throws IOException;
+
+    /**
+     * Returns the data blocks chain if the file was moved out of this content, even by another file instance.
+     *
+     * @return the first block of the chain or {@code null} if the data is still here.
+     */
+    @Nullable
+    DataBlock findMovedDataBlock() throws IOException;
+
+    void read(long offset, byte[] destination) throws IOException;
+
+    void write(long offset, byte[] source) throws IOException, NotEnoughFreeSpaceException;
+
+    /**
+     * Moves the data to a new data blocks chain with at least {@code dataCapacity} bytes, the directory record refers to it.
+     *
+     * @return the first block of the new chain.
+     */
+    DataBlock promote(long dataCapacity) throws IOException, NotEnoughFreeSpaceException;
+
+}
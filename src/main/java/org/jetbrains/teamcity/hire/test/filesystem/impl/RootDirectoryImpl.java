@@ -2,32 +2,194 @@ package org.jetbrains.teamcity.hire.test.filesystem.impl;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AsyncDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AsyncOptions;
+import org.jetbrains.teamcity.hire.test.filesystem.api.ChecksumVerification;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemStats;
+import org.jetbrains.teamcity.hire.test.filesystem.api.LoadOptions;
 import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.SpaceMap;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.IllegalFileNameException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.ReadOnlyFileSystemException;
 
 class RootDirectoryImpl extends DirectoryImpl implements RootDirectory {
 
-    private static final String ROOT_DIRECTORY_NAME = "/root";
+    static final String ROOT_DIRECTORY_NAME = "/root";
 
-    private final RandomAccessFile file;
+    // Loaded file systems by the real path of the file, so their snapshots are mounted with the same container
+    private static final Map<Path, RootDirectoryImpl> LOADED = new ConcurrentHashMap<>();
 
-    private RootDirectoryImpl(RandomAccessFile file, DataBlock dataBlock) {
-        super(ROOT_DIRECTORY_NAME, dataBlock);
-        this.file = file;
+    private final Container container;
+    @Nullable
+    private final ChecksumScrubber scrubber;
+    @Nullable
+    private final Path path; // the real path of the loaded file, null for a snapshot
+    private final boolean fileOwner; // false for a snapshot sharing the file with the loaded file system
+
+    private RootDirectoryImpl(Container container, @Nullable ChecksumScrubber scrubber, @Nullable Path path, boolean fileOwner) {
+        super(ROOT_DIRECTORY_NAME, new DataBlock(container, container.firstBlockPosition));
+        this.container = container;
+        this.scrubber = scrubber;
+        this.path = path;
+        this.fileOwner = fileOwner;
+    }
+
+    static RootDirectory load(Path path, RandomAccessFile file, Superblock superblock, AllocationPolicy allocationPolicy,
+                              LoadOptions options) {
+        Objects.requireNonNull(file, "File system file must be not null");
+        Container container = new Container(file, superblock, allocationPolicy, options.getChecksumVerification());
+        if (superblock.getFilesBytes() < 0) {
+            // the usage is invalidated by the repair, it is recounted by the first writable loading
+            try {
+                UsageTable.rebuild(container);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        ChecksumScrubber scrubber = null;
+        if (options.getChecksumVerification() == ChecksumVerification.BACKGROUND) {
+            scrubber = new ChecksumScrubber(container, options.getScrubRate());
+            scrubber.start();
+        }
+        RootDirectoryImpl root = new RootDirectoryImpl(container, scrubber, path, true);
+        LOADED.put(path, root);
+        container.metrics.register(path);
+        return root;
+    }
+
+    /**
+     * Loads the file system shared read-only with other processes, the file is read through the {@code mapped} one.
+     */
+    static RootDirectory loadReadOnly(Path path, RandomAccessFile file, Superblock superblock, MappedFile mapped) {
+        Objects.requireNonNull(file, "File system file must be not null");
+        Container container = new Container(file, superblock, mapped);
+        container.metrics.register(path);
+        return new RootDirectoryImpl(container, null, null, true);
+    }
+
+    /**
+     * Mounts the snapshot of the loaded file system, the view shares the container with it.
+     *
+     * @return the snapshot root directory or {@code null} if the file system is not loaded.
+     */
+    @Nullable
+    static RootDirectory loadSnapshot(Path path, String snapshotName) throws IOException {
+        RootDirectoryImpl live = LOADED.get(path);
+        if (live == null) {
+            return null;
+        }
+        synchronized (RootDirectory.class) {
+            return mount(live.container, snapshotName, false);
+        }
     }
 
-    static RootDirectory load(RandomAccessFile file, long firstPosition) throws IOException {
+    /**
+     * Mounts the snapshot of the not loaded file system, the view owns the file.
+     */
+    static RootDirectory loadSnapshot(RandomAccessFile file, Superblock superblock, String snapshotName) throws IOException {
         Objects.requireNonNull(file, "File system file must be not null");
-        if (firstPosition < 0 || firstPosition >= file.length()) {
-            throw new IllegalArgumentException(
-                    String.format("firstPosition value '%s' is out of bounds for file %s", firstPosition, file));
+        Container container = new Container(file, superblock, AllocationPolicy.create(superblock.allocationStrategy));
+        synchronized (RootDirectory.class) {
+            return mount(container, snapshotName, true);
+        }
+    }
+
+    private static RootDirectory mount(Container live, String snapshotName, boolean fileOwner) throws IOException {
+        Snapshots.Snapshot snapshot = live.snapshots.find(snapshotName);
+        if (snapshot == null) {
+            throw new IllegalArgumentException("There is no snapshot with such name: " + snapshotName);
+        }
+        snapshot.mounts++;
+        return new RootDirectoryImpl(new Container(live, snapshot), null, null, fileOwner);
+    }
+
+    @Override
+    public FileSystemStats getStats() {
+        synchronized (RootDirectory.class) {
+            return container.superblock.getStats();
+        }
+    }
+
+    @Override
+    public List<Long> getCorruptedBlocks() {
+        List<Long> corruptedBlocks = new ArrayList<>(container.corruptedBlocks);
+        Collections.sort(corruptedBlocks);
+        return corruptedBlocks;
+    }
+
+    @Override
+    public SpaceMap spaceMap() throws IOException {
+        return container.read("RootDirectory.spaceMap", getName(), null, () -> new SpaceMapScan(container).scan(this));
+    }
+
+    @Override
+    public AsyncDirectory async(AsyncOptions options) {
+        Objects.requireNonNull(options, "options must be not null");
+        AsyncOperations operations = container.asyncOperations.updateAndGet(
+                current -> current != null ? current : new AsyncOperations(options.getMaxInFlight()));
+        if (operations.getMaxInFlight() != options.getMaxInFlight()) {
+            throw new IllegalArgumentException(String.format("The limit of the operations in flight is %d, not %d!",
+                    operations.getMaxInFlight(), options.getMaxInFlight()));
+        }
+        return new AsyncDirectoryImpl(this, operations, AsyncOperations.getExecutor(options));
+    }
+
+    @Override
+    public void snapshot(String name) throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException {
+        Objects.requireNonNull(name, "name must be not null");
+        if (container.readOnly) {
+            throw new ReadOnlyFileSystemException();
+        }
+        synchronized (RootDirectory.class) {
+            container.snapshots.create(name);
+        }
+    }
+
+    @Override
+    public List<String> getSnapshotNames() throws IOException {
+        synchronized (RootDirectory.class) {
+            return container.snapshots.getNames();
+        }
+    }
+
+    @Override
+    public void removeSnapshot(String name) throws IOException {
+        Objects.requireNonNull(name, "name must be not null");
+        if (container.readOnly) {
+            throw new ReadOnlyFileSystemException();
+        }
+        synchronized (RootDirectory.class) {
+            container.snapshots.remove(name);
         }
-        return new RootDirectoryImpl(file, new DataBlock(file, firstPosition, file.length(), firstPosition));
     }
 
     @Override
     public void close() throws IOException {
-        file.close();
+        if (scrubber != null) {
+            scrubber.stop();
+        }
+        if (container.snapshot != null) {
+            synchronized (RootDirectory.class) {
+                container.snapshot.mounts--;
+            }
+        }
+        if (path != null) {
+            LOADED.remove(path, this);
+        }
+        if (fileOwner) {
+            container.metrics.unregister();
+            container.file.close();
+        }
     }
 
 }
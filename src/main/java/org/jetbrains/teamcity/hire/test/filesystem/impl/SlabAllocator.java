@@ -0,0 +1,167 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeSet;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Packs small files into slabs: data blocks chains divided into {@link #SLOTS_COUNT} equal slots with the occupancy bitmap.
+ * Slot sizes are powers of two, a file takes a slot of the smallest fitting size class. A slab file does not have its own
+ * block, so it costs neither the block service bytes nor the min block length, and its allocation is a bitmap update.
+ * The directory record of a slab file refers to the slot with a negative reference, see {@link #toReference(long, int)}.
+ * <p>
+ * The slabs having free slots are indexed in memory, the index is built by the blocks walk at the first use.
+ * Free slots are always zeros, so a new file in a slot reads as zeros without clearing.
+ */
+class SlabAllocator {
+
+    // Structure of the slab chain data: SLOT_SIZE, reserved, BITMAP, then the slots.
+
+    static final int SLOTS_COUNT = Long.SIZE; // one bit of the bitmap for every slot
+    static final int HEADER_BYTES = 16;
+    static final int SLOT_SIZE_OFFSET = 0; // size of every slot of the slab: int
+    static final int BITMAP_OFFSET = 8; // bit i is set if the slot i is occupied: long
+    static final int MIN_SLOT_SIZE = 64;
+
+    private static final long FULL_BITMAP = -1L;
+    private static final long FIRST_REFERENCE = InlineContent.INLINE_POSITION - 1;
+
+    private final Container container;
+    // Slot size -> positions of the slabs which have free slots, null until the first use
+    private Map<Integer, NavigableSet<Long>> slabsWithFreeSlots;
+
+    SlabAllocator(Container container) {
+        this.container = Objects.requireNonNull(container, "container must be not null");
+    }
+
+    /**
+     * Size class of a file of {@code size} bytes.
+     */
+    static int getSlotSize(int size) {
+        int slotSize = MIN_SLOT_SIZE;
+        while (slotSize < size) {
+            slotSize <<= 1;
+        }
+        return slotSize;
+    }
+
+    /**
+     * Returns {@code true} if the directory record position is a slot reference, not a chain position.
+     */
+    static boolean isSlabReference(long position) {
+        return position <= FIRST_REFERENCE;
+    }
+
+    /**
+     * The directory record position of the file in the {@code slot} of the slab, it is never a chain position,
+     * an empty record or an inline file position.
+     */
+    static long toReference(long slabPosition, int slot) {
+        return FIRST_REFERENCE - (slabPosition * SLOTS_COUNT + slot);
+    }
+
+    static long getSlabPosition(long reference) {
+        return (FIRST_REFERENCE - reference) / SLOTS_COUNT;
+    }
+
+    static int getSlot(long reference) {
+        return (int) ((FIRST_REFERENCE - reference) % SLOTS_COUNT);
+    }
+
+    /**
+     * Offset of the slot in the slab chain data.
+     */
+    static long getSlotOffset(int slotSize, int slot) {
+        return HEADER_BYTES + (long) slot * slotSize;
+    }
+
+    static int readSlotSize(DataBlock slab) throws IOException {
+        byte[] slotSize = new byte[Integer.BYTES];
+        slab.read(SLOT_SIZE_OFFSET, slotSize);
+        return ByteBuffer.wrap(slotSize).getInt();
+    }
+
+    static long readBitmap(DataBlock slab) throws IOException {
+        byte[] bitmap = new byte[Long.BYTES];
+        slab.read(BITMAP_OFFSET, bitmap);
+        return ByteBuffer.wrap(bitmap).getLong();
+    }
+
+    /**
+     * Takes a free slot of the size class for {@code size} bytes, a new slab is allocated if all the slabs of the class are full.
+     * The slab with the lowest position is filled at first, so the small files stay close to each other.
+     *
+     * @return the reference to the taken slot.
+     */
+    long allocate(int size) throws IOException, NotEnoughFreeSpaceException {
+        int slotSize = getSlotSize(size);
+        NavigableSet<Long> slabs = getSlabsWithFreeSlots(slotSize);
+        DataBlock slab;
+        long bitmap;
+        if (slabs.isEmpty()) {
+            slab = new Block(container, container.firstBlockPosition).allocateChain(getSlotOffset(slotSize, SLOTS_COUNT));
+            slab.setSlab();
+            slab.write(SLOT_SIZE_OFFSET, ByteBuffer.allocate(Integer.BYTES).putInt(slotSize).array());
+            bitmap = 0;
+            slabs.add(slab.getStartPosition());
+        } else {
+            slab = new DataBlock(container, slabs.first());
+            bitmap = readBitmap(slab);
+        }
+        int slot = Long.numberOfTrailingZeros(~bitmap);
+        bitmap |= 1L << slot;
+        slab.write(BITMAP_OFFSET, bitmap);
+        if (bitmap == FULL_BITMAP) {
+            slabs.remove(slab.getStartPosition());
+        }
+        return toReference(slab.getStartPosition(), slot);
+    }
+
+    /**
+     * Releases the referenced slot, the slab is removed when its last slot is released.
+     */
+    void free(long reference) throws IOException {
+        DataBlock slab = new DataBlock(container, getSlabPosition(reference));
+        int slot = getSlot(reference);
+        int slotSize = readSlotSize(slab);
+        long bitmap = readBitmap(slab) & ~(1L << slot);
+        NavigableSet<Long> slabs = getSlabsWithFreeSlots(slotSize);
+        if (bitmap == 0) {
+            slabs.remove(slab.getStartPosition());
+            slab.removeChain();
+            return;
+        }
+        try {
+            slab.write(getSlotOffset(slotSize, slot), new byte[slotSize]);
+            slab.write(BITMAP_OFFSET, bitmap);
+        } catch (NotEnoughFreeSpaceException e) {
+            throw new IllegalStateException("The slot is inside the slab, it cannot be enlarged", e);
+        }
+        slabs.add(slab.getStartPosition());
+    }
+
+    private NavigableSet<Long> getSlabsWithFreeSlots(int slotSize) throws IOException {
+        if (slabsWithFreeSlots == null) {
+            Map<Integer, NavigableSet<Long>> index = new HashMap<>();
+            Optional<Block> block = Optional.of(new Block(container, container.firstBlockPosition));
+            while (block.isPresent()) {
+                if (block.get().isSlab()) {
+                    DataBlock slab = new DataBlock(block.get());
+                    if (readBitmap(slab) != FULL_BITMAP) {
+                        index.computeIfAbsent(readSlotSize(slab), size -> new TreeSet<>()).add(slab.getStartPosition());
+                    }
+                }
+                block = block.get().getNext();
+            }
+            slabsWithFreeSlots = index;
+        }
+        return slabsWithFreeSlots.computeIfAbsent(slotSize, size -> new TreeSet<>());
+    }
+
+}
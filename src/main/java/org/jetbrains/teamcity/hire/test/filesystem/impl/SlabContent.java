@@ -0,0 +1,100 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import static org.jetbrains.teamcity.hire.test.filesystem.impl.Block.POSITION_BYTES;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Content of a small file stored in a slot of a slab, see {@link SlabAllocator}. The file size is the slot size.
+ * When the file grows beyond it, the data is moved to a new data blocks chain and the slot is released.
+ */
+class SlabContent implements RecordContent {
+
+    private static final int UNKNOWN_SIZE = -1;
+
+    private final DataBlock directoryBlock;
+    private final long recordOffset;
+    private final long reference;
+    private final DataBlock slab;
+    private final int slot;
+    private int slotSize = UNKNOWN_SIZE;
+
+    /**
+     * @param directoryBlock the first block of the directory content chain
+     * @param recordOffset   offset of the file record in the directory content
+     * @param reference      the slot reference stored in the record
+     */
+    SlabContent(DataBlock directoryBlock, long recordOffset, long reference) {
+        this.directoryBlock = Objects.requireNonNull(directoryBlock, "directoryBlock must be not null");
+        this.recordOffset = recordOffset;
+        if (!SlabAllocator.isSlabReference(reference)) {
+            throw new IllegalArgumentException("Not a slot reference: " + reference);
+        }
+        this.reference = reference;
+        this.slab = new DataBlock(directoryBlock, SlabAllocator.getSlabPosition(reference));
+        this.slot = SlabAllocator.getSlot(reference);
+    }
+
+    @Override
+    public Container getContainer() {
+        return directoryBlock.container;
+    }
+
+    @Override
+    public int getSize() throws IOException {
+        if (slotSize == UNKNOWN_SIZE) {
+            slotSize = SlabAllocator.readSlotSize(slab.container.resolve(slab));
+        }
+        return slotSize;
+    }
+
+    @Nullable
+    @Override
+    public DataBlock findMovedDataBlock() throws IOException {
+        byte[] position = new byte[POSITION_BYTES];
+        directoryBlock.container.resolve(directoryBlock).read(recordOffset, position);
+        long chainPosition = ByteBuffer.wrap(position).getLong();
+        return chainPosition == reference ? null : new DataBlock(directoryBlock, chainPosition);
+    }
+
+    @Override
+    public void read(long offset, byte[] destination) throws IOException {
+        checkRange(offset, destination.length);
+        slab.container.resolve(slab).read(SlabAllocator.getSlotOffset(getSize(), slot) + offset, destination);
+    }
+
+    @Override
+    public void write(long offset, byte[] source) throws IOException, NotEnoughFreeSpaceException {
+        checkRange(offset, source.length);
+        slab.write(SlabAllocator.getSlotOffset(getSize(), slot) + offset, source);
+    }
+
+    /**
+     * Moves the data to a new data blocks chain with at least {@code dataCapacity} bytes and releases the slot.
+     *
+     * @return the first block of the new chain.
+     */
+    @Override
+    public DataBlock promote(long dataCapacity) throws IOException, NotEnoughFreeSpaceException {
+        int size = getSize();
+        DataBlock dataBlock = directoryBlock.allocateChain(Math.max(dataCapacity, size));
+        byte[] data = new byte[size];
+        read(0, data);
+        dataBlock.write(0, data);
+        directoryBlock.write((int) recordOffset, dataBlock.getStartPosition());
+        directoryBlock.container.slabAllocator.free(reference);
+        return dataBlock;
+    }
+
+    private void checkRange(long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > getSize()) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot access %d bytes starting from %d: the slab file size is %d bytes!", length, offset, getSize()));
+        }
+    }
+
+}
@@ -0,0 +1,351 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.IllegalFileNameException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+
+/**
+ * Copy-on-write snapshots of the whole file system. A snapshot is taken in O(1): nothing is copied, the snapshot sees
+ * the live chains. The live chains are changed in place, so the opened files and directories stay valid, and a chain is
+ * copied for the snapshots only at its first change after the snapshot. The snapshot remap table refers from the live
+ * position of the chain to its preserved copy; a removed chain is not freed, the snapshot refers to it in place.
+ * The preserved copies keep the live positions of the chains they refer to, so the snapshot view resolves every chain
+ * position with its remap table. A copy shared by several snapshots is freed with the last of them.
+ * <p>
+ * The unit of the copy is the whole chain, not the changed block: the remap table and the snapshot view resolve chain
+ * positions only, so the first write of a few bytes to a big file after a snapshot copies all its blocks.
+ * <p>
+ * A chain allocated after a snapshot is not seen by it: the remap table of the snapshot gets an entry without a copy
+ * for the chain, so the chain is never preserved for that snapshot, also after loading.
+ */
+class Snapshots {
+
+    // Structure of the snapshots table chain data: COUNT, reserved, then an entry for every snapshot.
+
+    static final int HEADER_BYTES = 16;
+    static final int COUNT_OFFSET = 0; // count of the snapshots or of the remap entries: long
+    // Structure of snapshot entry: position of the remap chain: long, then the name.
+    static final int REMAP_POSITION_BYTES = 8;
+
+    // Structure of the remap chain data: COUNT, reserved, then an entry for every preserved chain.
+
+    // Structure of remap entry: live position, copy position and data capacity of the preserved chain: long.
+    // The copy position is NOT_SEEN for the chains allocated after the snapshot.
+    static final int REMAP_ENTRY_BYTES = 24;
+    static final long NOT_SEEN = 0;
+
+    private final Container container;
+    private final int entryBytes;
+    private List<Snapshot> snapshots; // null until the first use
+    // Copy position -> count of the snapshots referring to it
+    private final Map<Long, Integer> copies = new HashMap<>();
+
+    Snapshots(Container container) {
+        this.container = Objects.requireNonNull(container, "container must be not null");
+        this.entryBytes = REMAP_POSITION_BYTES + container.superblock.fileNameSize;
+    }
+
+    List<String> getNames() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (Snapshot snapshot : getSnapshots()) {
+            names.add(snapshot.name);
+        }
+        return names;
+    }
+
+    @Nullable
+    Snapshot find(String name) throws IOException {
+        for (Snapshot snapshot : getSnapshots()) {
+            if (snapshot.name.equals(name)) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes a snapshot: all the live chains become seen by it.
+     */
+    void create(String name) throws IOException, IllegalFileNameException, NotEnoughFreeSpaceException {
+        checkName(name);
+        if (find(name) != null) {
+            throw new IllegalFileNameException("A snapshot with such name is already presented!");
+        }
+        DataBlock remap = new Block(container, container.firstBlockPosition).allocateBlocks(HEADER_BYTES);
+        remap.write(COUNT_OFFSET, new byte[HEADER_BYTES]);
+        byte[] entry = ByteBuffer.allocate(entryBytes)
+                .putLong(remap.getStartPosition())
+                .put(name.getBytes(StandardCharsets.US_ASCII))
+                .array();
+        try {
+            DataBlock table = getTable();
+            if (table == null) {
+                table = new Block(container, container.firstBlockPosition).allocateBlocks(HEADER_BYTES + entryBytes);
+                table.write(COUNT_OFFSET, new byte[HEADER_BYTES]);
+                container.superblock.setSnapshotsPosition(table.getStartPosition());
+            }
+            table.write(HEADER_BYTES + (long) snapshots.size() * entryBytes, entry);
+            table.write(COUNT_OFFSET, snapshots.size() + 1);
+        } catch (NotEnoughFreeSpaceException e) {
+            remap.freeChain();
+            throw e;
+        }
+        snapshots.add(new Snapshot(name, remap.getStartPosition()));
+    }
+
+    /**
+     * Removes the snapshot and frees the chains preserved only for it.
+     */
+    void remove(String name) throws IOException {
+        Snapshot snapshot = find(name);
+        if (snapshot == null) {
+            throw new IllegalArgumentException("There is no snapshot with such name: " + name);
+        }
+        if (snapshot.mounts > 0) {
+            throw new IllegalStateException("The snapshot is mounted: " + name);
+        }
+        for (long[] copy : snapshot.remap.values()) {
+            if (copy[0] != NOT_SEEN && copies.merge(copy[0], -1, Integer::sum) == 0) {
+                copies.remove(copy[0]);
+                new DataBlock(container, copy[0]).freeChain();
+            }
+        }
+        new DataBlock(container, snapshot.remapPosition).freeChain();
+        int index = snapshots.indexOf(snapshot);
+        int last = snapshots.size() - 1;
+        DataBlock table = Objects.requireNonNull(getTable());
+        if (last == 0) {
+            container.superblock.setSnapshotsPosition(0);
+            table.freeChain();
+        } else {
+            // the last entry takes the place of the removed one
+            byte[] lastEntry = new byte[entryBytes];
+            table.read(HEADER_BYTES + (long) last * entryBytes, lastEntry);
+            write(table, HEADER_BYTES + (long) index * entryBytes, lastEntry);
+            write(table, COUNT_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(last).array());
+            snapshots.set(index, snapshots.get(last));
+        }
+        snapshots.remove(last);
+    }
+
+    /**
+     * Registers a new chain, it is not seen by any snapshot. The remap tables are enlarged by the blocks which are not
+     * registered, see {@link FreeBlock#allocateBlocks(long)}.
+     */
+    void chainAllocated(long position) throws IOException, NotEnoughFreeSpaceException {
+        List<Snapshot> seeing = findSeeing(position);
+        for (Snapshot snapshot : seeing) {
+            snapshot.reserveEntry();
+        }
+        for (Snapshot snapshot : seeing) {
+            snapshot.addEntry(position, NOT_SEEN, 0);
+        }
+    }
+
+    /**
+     * Preserves a copy of the chain for the snapshots seeing it, it is called before every change of the chain.
+     */
+    void beforeChange(DataBlock chain) throws IOException, NotEnoughFreeSpaceException {
+        long position = chain.getStartPosition();
+        List<Snapshot> seeing = findSeeing(position);
+        if (seeing.isEmpty()) {
+            return;
+        }
+        for (Snapshot snapshot : seeing) {
+            snapshot.reserveEntry(); // so the copy is not lost if there is no space for the remap entry
+        }
+        long capacity = chain.getDataChainCapacity();
+        DataBlock copy = chain.copyChain();
+        for (Snapshot snapshot : seeing) {
+            snapshot.addEntry(position, copy.getStartPosition(), capacity);
+        }
+        copies.merge(copy.getStartPosition(), seeing.size(), Integer::sum);
+    }
+
+    /**
+     * Passes the removed chain to the snapshots seeing it instead of freeing.
+     *
+     * @return {@code true} if the chain is kept for the snapshots and must not be freed.
+     */
+    boolean retain(DataBlock chain) throws IOException, NotEnoughFreeSpaceException {
+        long position = chain.getStartPosition();
+        if (copies.containsKey(position)) {
+            return true; // already passed to the snapshots
+        }
+        List<Snapshot> seeing = findSeeing(position);
+        if (seeing.isEmpty()) {
+            return false;
+        }
+        long capacity = chain.getDataChainCapacity();
+        for (Snapshot snapshot : seeing) {
+            snapshot.reserveEntry();
+        }
+        for (Snapshot snapshot : seeing) {
+            snapshot.addEntry(position, position, capacity);
+        }
+        copies.merge(position, seeing.size(), Integer::sum);
+        return true;
+    }
+
+    /**
+     * Finds the snapshots which see the live chain and do not have its copy yet.
+     */
+    private List<Snapshot> findSeeing(long position) throws IOException {
+        if (getSnapshots().isEmpty() || isServiceChain(position)) {
+            return Collections.emptyList();
+        }
+        List<Snapshot> seeing = new ArrayList<>();
+        for (Snapshot snapshot : snapshots) {
+            if (!snapshot.remap.containsKey(position)) {
+                seeing.add(snapshot);
+            }
+        }
+        return seeing;
+    }
+
+    /**
+     * The service chains are not a part of the file system tree, so they are never preserved.
+     */
+    private boolean isServiceChain(long position) {
+        if (position == container.superblock.getSnapshotsPosition() || position == container.superblock.getExtentIndexPosition()
+                || position == container.superblock.getUsageTablePosition()) {
+            return true;
+        }
+        for (Snapshot snapshot : snapshots) {
+            if (snapshot.remapPosition == position) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Snapshot> getSnapshots() throws IOException {
+        if (snapshots == null) {
+            List<Snapshot> loaded = new ArrayList<>();
+            DataBlock table = getTable();
+            if (table != null) {
+                byte[] count = new byte[Long.BYTES];
+                table.read(COUNT_OFFSET, count);
+                byte[] entries = new byte[(int) (ByteBuffer.wrap(count).getLong() * entryBytes)];
+                table.read(HEADER_BYTES, entries);
+                for (int offset = 0; offset < entries.length; offset += entryBytes) {
+                    long remapPosition = ByteBuffer.wrap(entries, offset, REMAP_POSITION_BYTES).getLong();
+                    String name = new String(entries, offset + REMAP_POSITION_BYTES, entryBytes - REMAP_POSITION_BYTES,
+                            StandardCharsets.US_ASCII).trim();
+                    Snapshot snapshot = new Snapshot(name, remapPosition);
+                    snapshot.load();
+                    loaded.add(snapshot);
+                }
+            }
+            snapshots = loaded;
+        }
+        return snapshots;
+    }
+
+    @Nullable
+    private DataBlock getTable() {
+        long position = container.superblock.getSnapshotsPosition();
+        return position == 0 ? null : new DataBlock(container, position);
+    }
+
+    private void checkName(String name) throws IllegalFileNameException {
+        if (name.isEmpty() || name.length() > container.superblock.fileNameSize) {
+            throw new IllegalFileNameException(String.format(
+                    "Snapshot name length should be between 1 and %d, but it is %d", container.superblock.fileNameSize, name.length()));
+        }
+        for (char c : name.toCharArray()) {
+            if (c > 127 || !(Character.isLetterOrDigit(c) || c == '_' || c == ' ')) {
+                throw new IllegalFileNameException(String.format(
+                        "Snapshot name should contain only letters, digits, underscore and space, but contains: '%c'", c));
+            }
+        }
+        if (name.charAt(0) == ' ' || name.charAt(name.length() - 1) == ' ') {
+            throw new IllegalFileNameException("Snapshot name cannot begin or end with space!");
+        }
+    }
+
+    private static void write(DataBlock chain, long offset, byte[] bytes) throws IOException {
+        try {
+            chain.write(offset, bytes);
+        } catch (NotEnoughFreeSpaceException e) {
+            throw new IllegalStateException("The written bytes are inside the chain, it cannot be enlarged", e);
+        }
+    }
+
+    /**
+     * A snapshot: its name and the chains preserved for it.
+     */
+    class Snapshot {
+
+        final String name;
+        final long remapPosition;
+        int mounts; // count of the not closed read-only views sharing the container
+        // Live chain position -> the preserved copy position and the data capacity of the chain, or NOT_SEEN
+        private final Map<Long, long[]> remap = new HashMap<>();
+
+        private Snapshot(String name, long remapPosition) {
+            this.name = name;
+            this.remapPosition = remapPosition;
+        }
+
+        /**
+         * The position of the chain which the snapshot sees instead of the live chain at {@code position}.
+         */
+        long resolve(long position) {
+            long[] copy = remap.get(position);
+            return copy == null ? position : copy[0];
+        }
+
+        /**
+         * The data capacity of the chain at {@code position} at the moment of the snapshot. A copy can be a little bigger
+         * than the preserved chain, so the data capacity of the copy is not used.
+         */
+        long getDataChainCapacity(DataBlock chain) throws IOException {
+            long[] copy = remap.get(chain.getStartPosition());
+            return copy == null ? chain.getDataChainCapacity() : copy[1];
+        }
+
+        private void load() throws IOException {
+            DataBlock chain = new DataBlock(container, remapPosition);
+            byte[] count = new byte[Long.BYTES];
+            chain.read(COUNT_OFFSET, count);
+            long entriesCount = ByteBuffer.wrap(count).getLong();
+            long batchEntries = Block.MAX_BYTE_ARRAY_SIZE / REMAP_ENTRY_BYTES;
+            for (long first = 0; first < entriesCount; first += batchEntries) {
+                ByteBuffer entries = ByteBuffer.allocate((int) (Math.min(batchEntries, entriesCount - first) * REMAP_ENTRY_BYTES));
+                chain.read(HEADER_BYTES + first * REMAP_ENTRY_BYTES, entries.array());
+                while (entries.hasRemaining()) {
+                    long position = entries.getLong();
+                    long[] copy = {entries.getLong(), entries.getLong()};
+                    remap.put(position, copy);
+                    if (copy[0] != NOT_SEEN) {
+                        copies.merge(copy[0], 1, Integer::sum);
+                    }
+                }
+            }
+        }
+
+        private void reserveEntry() throws IOException, NotEnoughFreeSpaceException {
+            new DataBlock(container, remapPosition).enlarge(HEADER_BYTES + (remap.size() + 1L) * REMAP_ENTRY_BYTES);
+        }
+
+        private void addEntry(long position, long copyPosition, long capacity) throws IOException {
+            DataBlock chain = new DataBlock(container, remapPosition);
+            write(chain, HEADER_BYTES + (long) remap.size() * REMAP_ENTRY_BYTES,
+                    ByteBuffer.allocate(REMAP_ENTRY_BYTES).putLong(position).putLong(copyPosition).putLong(capacity).array());
+            remap.put(position, new long[]{copyPosition, capacity});
+            write(chain, COUNT_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(remap.size()).array());
+        }
+
+    }
+
+}
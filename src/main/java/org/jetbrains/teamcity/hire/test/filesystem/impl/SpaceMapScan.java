@@ -0,0 +1,148 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DirectoryEntry;
+import org.jetbrains.teamcity.hire.test.filesystem.api.SpaceMap;
+
+/**
+ * Builds the {@link SpaceMap} of a container. The blocks are walked sequentially once: the free ones are counted
+ * to the extents histogram and the next positions of the data ones are collected in the order of positions.
+ * Then the directories are walked in the calling thread and the chains of the files are followed by binary search
+ * in the collected positions, so no block of a file is read twice: the entries are listed from the directory records
+ * only, the sizes of the files are kept there. Must be called under the file systems lock or for the mapped container.
+ */
+class SpaceMapScan {
+
+    private static final int MOST_FRAGMENTED_FILES = Integer.getInteger("spaceMapMostFragmentedFiles", 10);
+
+    private final Container container;
+    private final SortedMap<Long, Long> freeExtents = new TreeMap<>();
+    private final SortedMap<Integer, Long> chainLengths = new TreeMap<>();
+    // The shortest of the longest chains is the head, so it is replaced by a longer one
+    private final PriorityQueue<Map.Entry<String, Integer>> mostFragmented =
+            new PriorityQueue<>(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+    private final Set<Long> slabs = new HashSet<>();
+    private long freeSpace;
+    private long largestFreeExtent;
+    // Positions of the data blocks in ascending order and the next blocks of their chains
+    private long[] positions = new long[64];
+    private long[] nextPositions = new long[64];
+    private int dataBlocksCount;
+    private long[] runs = new long[64];
+    private int runsCount;
+
+    SpaceMapScan(Container container) {
+        this.container = container;
+    }
+
+    SpaceMap scan(DirectoryImpl root) throws IOException {
+        scanBlocks();
+        scanDirectory(root, "");
+        Map<String, Integer> mostFragmentedFiles = new LinkedHashMap<>();
+        mostFragmented.stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .forEach(file -> mostFragmentedFiles.put(file.getKey(), file.getValue()));
+        return new SpaceMap(container.fileSize - container.firstBlockPosition, freeSpace, largestFreeExtent, freeExtents,
+                chainLengths, mostFragmentedFiles, container.firstBlockPosition, Arrays.copyOf(runs, runsCount));
+    }
+
+    private void scanBlocks() throws IOException {
+        boolean previousFree = true; // the first run is the used one, it is empty if the first block is free
+        Optional<Block> next = Optional.of(new Block(container, container.firstBlockPosition));
+        while (next.isPresent()) {
+            Block block = next.get();
+            long length = block.getLength();
+            boolean free = block.isFree();
+            if (free) {
+                freeSpace += length;
+                largestFreeExtent = Math.max(largestFreeExtent, length);
+                freeExtents.merge(Long.highestOneBit(length), 1L, Long::sum);
+            } else {
+                if (block.isSlab()) {
+                    slabs.add(block.getStartPosition());
+                }
+                addDataBlock(block.getStartPosition(), new DataBlock(block).getNextDataBlockPosition());
+            }
+            if (runsCount == 0 || free != previousFree) {
+                if (runsCount == 0 && free) {
+                    addRun(0);
+                }
+                addRun(length);
+            } else {
+                runs[runsCount - 1] += length;
+            }
+            previousFree = free;
+            next = block.getNext();
+        }
+    }
+
+    private void addDataBlock(long position, long nextPosition) {
+        if (dataBlocksCount == positions.length) {
+            positions = Arrays.copyOf(positions, dataBlocksCount * 2);
+            nextPositions = Arrays.copyOf(nextPositions, dataBlocksCount * 2);
+        }
+        positions[dataBlocksCount] = position;
+        nextPositions[dataBlocksCount] = nextPosition;
+        dataBlocksCount++;
+    }
+
+    private void addRun(long length) {
+        if (runsCount == runs.length) {
+            runs = Arrays.copyOf(runs, runsCount * 2);
+        }
+        runs[runsCount++] = length;
+    }
+
+    private void scanDirectory(DirectoryImpl directory, String path) throws IOException {
+        Iterator<DirectoryEntry> entries = directory.listEntries();
+        while (entries.hasNext()) {
+            DirectoryEntry entry = entries.next();
+            if (entry.isDirectory()) {
+                scanDirectory(directory.getSubdirectory(entry), path + entry.getName());
+            } else if (entry.getPosition() != 0) { // not inline
+                long position = container.getChain(entry.getPosition()).getStartPosition();
+                if (!slabs.contains(position)) {
+                    addFile(path + "/" + entry.getName(), getChainLength(position));
+                }
+            }
+        }
+    }
+
+    private void addFile(String path, int chainLength) {
+        chainLengths.merge(chainLength, 1L, Long::sum);
+        if (MOST_FRAGMENTED_FILES <= 0 || chainLength <= 1) {
+            return; // a single block is not fragmented
+        }
+        mostFragmented.add(new AbstractMap.SimpleImmutableEntry<>(path, chainLength));
+        if (mostFragmented.size() > MOST_FRAGMENTED_FILES) {
+            mostFragmented.poll();
+        }
+    }
+
+    private int getChainLength(long position) {
+        int chainLength = 0;
+        long current = position;
+        // the bound protects from a cycle of a corrupted chain
+        while (current != DataBlock.LAST_BLOCK_IN_DATA_CHAIN && chainLength <= dataBlocksCount) {
+            int index = Arrays.binarySearch(positions, 0, dataBlocksCount, current);
+            if (index < 0) {
+                break; // a broken link, the check reports it
+            }
+            chainLength++;
+            current = nextPositions[index];
+        }
+        return chainLength;
+    }
+
+}
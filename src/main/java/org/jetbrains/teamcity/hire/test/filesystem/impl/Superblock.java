@@ -0,0 +1,258 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AllocationStrategy;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemStats;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FormatOptions;
+
+/**
+ * The header of the file system file: format version, format parameters and counters maintained by all the operations.
+ */
+class Superblock {
+
+    // Structure: format parameters protected by checksum, then counters, then the positions of the service chains.
+
+    static final int SIZE = 120;
+    static final int FORMAT_VERSION = 13;
+
+    private static final byte[] MAGIC = "SingleFileFileSystem".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int VERSION_OFFSET = MAGIC.length; // int
+    private static final int FILE_SIZE_OFFSET = VERSION_OFFSET + 4; // long
+    private static final int FILE_NAME_SIZE_OFFSET = FILE_SIZE_OFFSET + 8; // int
+    private static final int MAX_FILES_IN_DIRECTORY_OFFSET = FILE_NAME_SIZE_OFFSET + 4; // int
+    private static final int INITIAL_DIRECTORY_CAPACITY_OFFSET = MAX_FILES_IN_DIRECTORY_OFFSET + 4; // int
+    private static final int ALLOCATION_STRATEGY_OFFSET = INITIAL_DIRECTORY_CAPACITY_OFFSET + 4; // byte
+    private static final int BLOCK_CHECKSUMS_OFFSET = ALLOCATION_STRATEGY_OFFSET + 1; // byte, 1 if enabled
+    private static final int INLINE_FILE_SIZE_OFFSET = BLOCK_CHECKSUMS_OFFSET + 1; // unsigned short
+    private static final int SLAB_MAX_SLOT_SIZE_OFFSET = INLINE_FILE_SIZE_OFFSET + 2; // unsigned short
+    private static final int PARAMETERS_CHECKSUM_OFFSET = 52; // int, CRC32 of all the previous bytes
+
+    private static final int USED_BYTES_OFFSET = 56; // long
+    private static final int BLOCKS_COUNT_OFFSET = USED_BYTES_OFFSET + 8; // long
+    private static final int FILES_COUNT_OFFSET = BLOCKS_COUNT_OFFSET + 8; // long
+    private static final int DIRECTORIES_COUNT_OFFSET = FILES_COUNT_OFFSET + 8; // long
+    private static final int EXTENT_INDEX_POSITION_OFFSET = DIRECTORIES_COUNT_OFFSET + 8; // long, 0 if there is no index
+    private static final int SNAPSHOTS_POSITION_OFFSET = EXTENT_INDEX_POSITION_OFFSET + 8; // long, 0 if there are no snapshots
+    private static final int USAGE_TABLE_POSITION_OFFSET = SNAPSHOTS_POSITION_OFFSET + 8; // long, 0 if there is no table
+    private static final int FILES_BYTES_OFFSET = USAGE_TABLE_POSITION_OFFSET + 8; // long, -1 if it should be recounted
+
+    private final RandomAccessFile file;
+    final long fileSize;
+    final int fileNameSize;
+    final int maxFilesInDirectory;
+    final int initialDirectoryCapacity;
+    final AllocationStrategy allocationStrategy;
+    final boolean blockChecksums;
+    final int inlineFileSize;
+    final int slabMaxSlotSize;
+
+    private long usedBytes;
+    private long blocksCount;
+    private long filesCount;
+    private long directoriesCount;
+    private long extentIndexPosition;
+    private long snapshotsPosition;
+    private long usageTablePosition;
+    private long filesBytes;
+
+    private Superblock(RandomAccessFile file, ByteBuffer bytes) {
+        this.file = Objects.requireNonNull(file, "file must be not null");
+        this.fileSize = bytes.getLong(FILE_SIZE_OFFSET);
+        this.fileNameSize = bytes.getInt(FILE_NAME_SIZE_OFFSET);
+        this.maxFilesInDirectory = bytes.getInt(MAX_FILES_IN_DIRECTORY_OFFSET);
+        this.initialDirectoryCapacity = bytes.getInt(INITIAL_DIRECTORY_CAPACITY_OFFSET);
+        this.allocationStrategy = AllocationStrategy.values()[bytes.get(ALLOCATION_STRATEGY_OFFSET)];
+        this.blockChecksums = bytes.get(BLOCK_CHECKSUMS_OFFSET) == 1;
+        this.inlineFileSize = Short.toUnsignedInt(bytes.getShort(INLINE_FILE_SIZE_OFFSET));
+        this.slabMaxSlotSize = Short.toUnsignedInt(bytes.getShort(SLAB_MAX_SLOT_SIZE_OFFSET));
+        this.usedBytes = bytes.getLong(USED_BYTES_OFFSET);
+        this.blocksCount = bytes.getLong(BLOCKS_COUNT_OFFSET);
+        this.filesCount = bytes.getLong(FILES_COUNT_OFFSET);
+        this.directoriesCount = bytes.getLong(DIRECTORIES_COUNT_OFFSET);
+        this.extentIndexPosition = bytes.getLong(EXTENT_INDEX_POSITION_OFFSET);
+        this.snapshotsPosition = bytes.getLong(SNAPSHOTS_POSITION_OFFSET);
+        this.usageTablePosition = bytes.getLong(USAGE_TABLE_POSITION_OFFSET);
+        this.filesBytes = bytes.getLong(FILES_BYTES_OFFSET);
+    }
+
+    /**
+     * Writes the superblock of the empty file system: all the counters are zeros.
+     */
+    static Superblock format(RandomAccessFile file, long fileSize, FormatOptions options) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(SIZE);
+        bytes.put(MAGIC);
+        bytes.putInt(VERSION_OFFSET, FORMAT_VERSION);
+        bytes.putLong(FILE_SIZE_OFFSET, fileSize);
+        bytes.putInt(FILE_NAME_SIZE_OFFSET, options.getFileNameSize());
+        bytes.putInt(MAX_FILES_IN_DIRECTORY_OFFSET, options.getMaxFilesInDirectory());
+        bytes.putInt(INITIAL_DIRECTORY_CAPACITY_OFFSET, options.getInitialDirectoryCapacity());
+        bytes.put(ALLOCATION_STRATEGY_OFFSET, (byte) options.getAllocationStrategy().ordinal());
+        bytes.put(BLOCK_CHECKSUMS_OFFSET, (byte) (options.isBlockChecksums() ? 1 : 0));
+        bytes.putShort(INLINE_FILE_SIZE_OFFSET, (short) options.getInlineFileSize());
+        bytes.putShort(SLAB_MAX_SLOT_SIZE_OFFSET, (short) options.getSlabMaxSlotSize());
+        bytes.putInt(PARAMETERS_CHECKSUM_OFFSET, getParametersChecksum(bytes.array()));
+        file.seek(0);
+        file.write(bytes.array());
+        return new Superblock(file, bytes);
+    }
+
+    /**
+     * Reads the superblock, it is expected to be valid, see {@link #findFormatError(RandomAccessFile)}.
+     */
+    static Superblock read(RandomAccessFile file) throws IOException {
+        byte[] bytes = new byte[SIZE];
+        file.seek(0);
+        file.readFully(bytes);
+        return new Superblock(file, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Checks the superblock of the file.
+     *
+     * @return the description of the format error or {@code null} if the superblock is valid.
+     */
+    @Nullable
+    static String findFormatError(RandomAccessFile file) throws IOException {
+        if (file.length() < SIZE) {
+            return String.format("file length %d is less than superblock size %d", file.length(), SIZE);
+        }
+        byte[] bytes = new byte[SIZE];
+        file.seek(0);
+        file.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte[] magic = Arrays.copyOf(bytes, MAGIC.length);
+        if (!Arrays.equals(MAGIC, magic)) {
+            return String.format("file system id is '%s', but expected is: '%s'",
+                    new String(magic, StandardCharsets.ISO_8859_1), new String(MAGIC, StandardCharsets.ISO_8859_1));
+        }
+        if (buffer.getInt(VERSION_OFFSET) != FORMAT_VERSION) {
+            return String.format("format version is %d, but expected is %d", buffer.getInt(VERSION_OFFSET), FORMAT_VERSION);
+        }
+        if (buffer.getInt(PARAMETERS_CHECKSUM_OFFSET) != getParametersChecksum(bytes)) {
+            return "format parameters checksum mismatch";
+        }
+        if (buffer.getLong(FILE_SIZE_OFFSET) != file.length()) {
+            return String.format("formatted size is %d, but the file length is %d", buffer.getLong(FILE_SIZE_OFFSET), file.length());
+        }
+        int allocationStrategy = buffer.get(ALLOCATION_STRATEGY_OFFSET);
+        if (allocationStrategy < 0 || allocationStrategy >= AllocationStrategy.values().length) {
+            return "unknown allocation strategy " + allocationStrategy;
+        }
+        return null;
+    }
+
+    private static int getParametersChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, PARAMETERS_CHECKSUM_OFFSET);
+        return (int) crc.getValue();
+    }
+
+    FileSystemStats getStats() {
+        return new FileSystemStats(fileSize - SIZE, usedBytes, blocksCount, filesCount, directoriesCount);
+    }
+
+    void setCounters(long usedBytes, long blocksCount, long filesCount, long directoriesCount) throws IOException {
+        this.usedBytes = usedBytes;
+        this.blocksCount = blocksCount;
+        this.filesCount = filesCount;
+        this.directoriesCount = directoriesCount;
+        writeCounter(USED_BYTES_OFFSET, usedBytes);
+        writeCounter(BLOCKS_COUNT_OFFSET, blocksCount);
+        writeCounter(FILES_COUNT_OFFSET, filesCount);
+        writeCounter(DIRECTORIES_COUNT_OFFSET, directoriesCount);
+    }
+
+    void addUsedBytes(long delta) throws IOException {
+        usedBytes += delta;
+        writeCounter(USED_BYTES_OFFSET, usedBytes);
+    }
+
+    void addBlocks(long delta) throws IOException {
+        blocksCount += delta;
+        writeCounter(BLOCKS_COUNT_OFFSET, blocksCount);
+    }
+
+    void addFiles(long delta) throws IOException {
+        filesCount += delta;
+        writeCounter(FILES_COUNT_OFFSET, filesCount);
+    }
+
+    void addDirectories(long delta) throws IOException {
+        directoriesCount += delta;
+        writeCounter(DIRECTORIES_COUNT_OFFSET, directoriesCount);
+    }
+
+    /**
+     * Position of the chain of the deduplicated extents index, see {@link ExtentIndex}.
+     *
+     * @return the chain position or 0 if no deduplicated data was written.
+     */
+    long getExtentIndexPosition() {
+        return extentIndexPosition;
+    }
+
+    void setExtentIndexPosition(long extentIndexPosition) throws IOException {
+        this.extentIndexPosition = extentIndexPosition;
+        writeCounter(EXTENT_INDEX_POSITION_OFFSET, extentIndexPosition);
+    }
+
+    /**
+     * Position of the chain of the snapshots table, see {@link Snapshots}.
+     *
+     * @return the chain position or 0 if there are no snapshots.
+     */
+    long getSnapshotsPosition() {
+        return snapshotsPosition;
+    }
+
+    void setSnapshotsPosition(long snapshotsPosition) throws IOException {
+        this.snapshotsPosition = snapshotsPosition;
+        writeCounter(SNAPSHOTS_POSITION_OFFSET, snapshotsPosition);
+    }
+
+    /**
+     * Position of the chain of the directories usage table, see {@link UsageTable}.
+     *
+     * @return the chain position or 0 if there is no table.
+     */
+    long getUsageTablePosition() {
+        return usageTablePosition;
+    }
+
+    void setUsageTablePosition(long usageTablePosition) throws IOException {
+        this.usageTablePosition = usageTablePosition;
+        writeCounter(USAGE_TABLE_POSITION_OFFSET, usageTablePosition);
+    }
+
+    /**
+     * Total size of all the files, it is the usage of the root directory, see {@link UsageTable}.
+     *
+     * @return size in bytes or -1 if the usage should be recounted by the loading.
+     */
+    long getFilesBytes() {
+        return filesBytes;
+    }
+
+    void setFilesBytes(long filesBytes) throws IOException {
+        this.filesBytes = filesBytes;
+        writeCounter(FILES_BYTES_OFFSET, filesBytes);
+    }
+
+    void addFilesBytes(long delta) throws IOException {
+        setFilesBytes(filesBytes + delta);
+    }
+
+    private void writeCounter(int offset, long value) throws IOException {
+        file.seek(offset);
+        file.writeLong(value);
+    }
+
+}
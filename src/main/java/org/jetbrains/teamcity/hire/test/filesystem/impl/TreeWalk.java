@@ -0,0 +1,95 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DirectoryEntry;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DirectoryVisitor;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DiskUsage;
+
+/**
+ * Walk of a directory subtree. Every directory is a task reading its entries by pages, the subdirectories are opened by
+ * the positions from their entries, so the parent records are not searched by the names again.
+ * <p>
+ * The mapped container is read without the lock, so its walk is parallel: the task for a subdirectory is forked
+ * to the common pool as soon as the subdirectory entry is read. Other containers read every page under the file systems
+ * lock, the forked tasks would only wait for each other on it and occupy the common pool workers, so their subtrees
+ * are walked sequentially in the calling thread.
+ */
+class TreeWalk extends RecursiveTask<DiskUsage> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DirectoryImpl directory;
+    private final String path;
+    @Nullable
+    private final DirectoryVisitor visitor;
+    private final boolean parallel;
+
+    private TreeWalk(DirectoryImpl directory, String path, @Nullable DirectoryVisitor visitor, boolean parallel) {
+        this.directory = directory;
+        this.path = path;
+        this.visitor = visitor;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Walks the subtree of the {@code directory} of the {@code container} calling the {@code visitor} for every entry
+     * if it is provided.
+     */
+    static DiskUsage walk(DirectoryImpl directory, Container container, @Nullable DirectoryVisitor visitor) throws IOException {
+        Objects.requireNonNull(directory, "directory must be not null");
+        boolean parallel = container.mapped != null;
+        TreeWalk walk = new TreeWalk(directory, "", visitor, parallel);
+        try {
+            return parallel ? ForkJoinPool.commonPool().invoke(walk) : walk.compute();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    protected DiskUsage compute() {
+        List<TreeWalk> subtrees = new ArrayList<>();
+        long size = 0;
+        long filesCount = 0;
+        long directoriesCount = 0;
+        Iterator<DirectoryEntry> entries = directory.listEntries();
+        while (entries.hasNext()) {
+            DirectoryEntry entry = entries.next();
+            if (visitor != null) {
+                visitor.visit(path, entry);
+            }
+            if (entry.isDirectory()) {
+                directoriesCount++;
+                TreeWalk subtree = new TreeWalk(directory.getSubdirectory(entry), path + entry.getName(), visitor, parallel);
+                if (parallel) {
+                    subtree.fork();
+                    subtrees.add(subtree);
+                } else {
+                    DiskUsage usage = subtree.compute();
+                    size += usage.getSize();
+                    filesCount += usage.getFilesCount();
+                    directoriesCount += usage.getDirectoriesCount();
+                }
+            } else {
+                size += entry.getSize();
+                filesCount++;
+            }
+        }
+        for (TreeWalk subtree : subtrees) {
+            DiskUsage usage = subtree.join();
+            size += usage.getSize();
+            filesCount += usage.getFilesCount();
+            directoriesCount += usage.getDirectoriesCount();
+        }
+        return new DiskUsage(size, filesCount, directoriesCount);
+    }
+
+}
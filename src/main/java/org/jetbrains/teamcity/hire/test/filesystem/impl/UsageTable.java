@@ -0,0 +1,400 @@
+package org.jetbrains.teamcity.hire.test.filesystem.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemStats;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.QuotaExceededException;
+
+/**
+ * Persisted hash table from the content chain position of a directory to the usage of its subtree: the bytes of the
+ * files, the files count and the directories count, and to the optional quota of the directory.
+ * The table is stored in its own data blocks chain referred by the superblock, it uses linear probing, is doubled
+ * when it is half full and removes entries with backward shifting, the same way as {@link ExtentIndex}.
+ * Every nested directory has an entry referring to its parent one, the entry is added by the directory creation and
+ * its parent is changed by the move of the directory. Every change of the tree walks up the parents from the changed
+ * directory and updates the entries of all the directories on the path to the root, so the usage of any directory
+ * is read without a walk and the handles of the directories and the files do not keep paths becoming stale by moves.
+ * A nested directory without an entry is removed, its changes are not counted, so an entry is not added again
+ * for its freed position. The usage of the root directory is the files bytes, the files and the directories counters
+ * of the superblock, so the table is allocated only by the nested directories and the root quota.
+ */
+class UsageTable {
+
+    // Structure of the table chain data: COUNT, CAPACITY, then CAPACITY entries.
+
+    static final int HEADER_BYTES = 16;
+    static final int COUNT_OFFSET = 0; // count of the entries: long
+    static final int CAPACITY_OFFSET = 8; // count of the entry places, a power of two: long
+
+    // Structure of entry: directory position (0 if the place is empty), parent directory position, bytes, files,
+    // directories, quota (0 if none): long.
+    static final int ENTRY_BYTES = 48;
+    private static final int PARENT_OFFSET = 8;
+    private static final int BYTES_OFFSET = 16;
+    private static final int FILES_OFFSET = 24;
+    private static final int DIRECTORIES_OFFSET = 32;
+    private static final int QUOTA_OFFSET = 40;
+
+    private static final long INITIAL_CAPACITY = 4;
+
+    private final Container container;
+
+    UsageTable(Container container) {
+        this.container = Objects.requireNonNull(container, "container must be not null");
+    }
+
+    /**
+     * The usage of the directory subtree.
+     *
+     * @return bytes, files count, directories count and quota.
+     */
+    long[] get(long directory) throws IOException {
+        long[] usage = new long[4];
+        DataBlock table = getTable();
+        long place = table == null ? -1 : find(table, directory);
+        if (place != -1) {
+            ByteBuffer entry = readEntry(table, place);
+            for (int i = 0; i < usage.length; i++) {
+                usage[i] = entry.getLong(BYTES_OFFSET + i * Long.BYTES);
+            }
+        }
+        if (directory == container.firstBlockPosition) {
+            FileSystemStats stats = container.superblock.getStats();
+            usage[0] = container.superblock.getFilesBytes();
+            usage[1] = stats.getFilesCount();
+            usage[2] = stats.getDirectoriesCount();
+        }
+        return usage;
+    }
+
+    /**
+     * The directories from the root to the {@code directory} found by the parents of the entries.
+     *
+     * @return content chain positions of the directories from the root, empty if the directory is removed.
+     */
+    long[] getPath(long directory) throws IOException {
+        List<Long> ancestors = new ArrayList<>();
+        DataBlock table = getTable();
+        long count = table == null ? 0 : readHeader(table).getLong(COUNT_OFFSET);
+        for (long current = directory; current != container.firstBlockPosition; ) {
+            long place = table == null ? -1 : find(table, current);
+            if (place == -1) {
+                return new long[0];
+            }
+            if (ancestors.size() >= count) {
+                throw new IllegalStateException("The parents of the usage table entries form a cycle at " + current);
+            }
+            ancestors.add(current);
+            current = readEntry(table, place).getLong(PARENT_OFFSET);
+        }
+        ancestors.add(container.firstBlockPosition);
+        long[] path = new long[ancestors.size()];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = ancestors.get(path.length - 1 - i);
+        }
+        return path;
+    }
+
+    /**
+     * Checks that adding {@code bytes} to the directory and to all its ancestors does not exceed their quotas.
+     *
+     * @throws QuotaExceededException if a quota is exceeded.
+     */
+    void checkQuota(long directory, long bytes) throws IOException {
+        checkQuota(getPath(directory), bytes);
+    }
+
+    /**
+     * Checks that adding {@code bytes} to every directory of the {@code path} does not exceed their quotas.
+     *
+     * @throws QuotaExceededException if a quota is exceeded.
+     */
+    void checkQuota(long[] path, long bytes) throws IOException {
+        if (bytes <= 0) {
+            return;
+        }
+        for (long directory : path) {
+            long[] usage = get(directory);
+            if (usage[3] > 0 && usage[0] + bytes > usage[3]) {
+                throw new QuotaExceededException(usage[3], usage[0] + bytes);
+            }
+        }
+    }
+
+    /**
+     * Adds the deltas to the usage of the directory and of all its ancestors.
+     */
+    void add(long directory, long bytes, long files, long directories) throws IOException {
+        if (bytes == 0 && files == 0 && directories == 0) {
+            return;
+        }
+        add(getPath(directory), bytes, files, directories);
+    }
+
+    /**
+     * Adds the deltas to the usage of every directory of the {@code path}, see {@link #getPath}. The root files
+     * and directories counters are maintained by the superblock itself, only the files bytes are added.
+     */
+    void add(long[] path, long bytes, long files, long directories) throws IOException {
+        if (bytes == 0 && files == 0 && directories == 0) {
+            return;
+        }
+        DataBlock table = getTable();
+        for (long directory : path) {
+            if (directory == container.firstBlockPosition) {
+                container.superblock.addFilesBytes(bytes);
+                continue;
+            }
+            long place = find(table, directory);
+            ByteBuffer entry = readEntry(table, place);
+            entry.putLong(BYTES_OFFSET, entry.getLong(BYTES_OFFSET) + bytes);
+            entry.putLong(FILES_OFFSET, entry.getLong(FILES_OFFSET) + files);
+            entry.putLong(DIRECTORIES_OFFSET, entry.getLong(DIRECTORIES_OFFSET) + directories);
+            writeEntry(table, place, entry.array());
+        }
+    }
+
+    /**
+     * Adds the zero usage entry of the created directory, so its later changes do not enlarge the table.
+     */
+    void addDirectory(long directory, long parent) throws IOException, NotEnoughFreeSpaceException {
+        findOrCreate(directory, parent);
+    }
+
+    /**
+     * Changes the parent of the moved directory.
+     */
+    void setParent(long directory, long parent) throws IOException {
+        DataBlock table = getTable();
+        long place = table == null ? -1 : find(table, directory);
+        if (place != -1) {
+            ByteBuffer entry = readEntry(table, place);
+            entry.putLong(PARENT_OFFSET, parent);
+            writeEntry(table, place, entry.array());
+        }
+    }
+
+    /**
+     * Sets the parent and the usage of the directory subtree, the quota is not changed.
+     */
+    void set(long directory, long parent, long bytes, long files, long directories)
+            throws IOException, NotEnoughFreeSpaceException {
+        if (directory == container.firstBlockPosition) {
+            container.superblock.setFilesBytes(bytes);
+            return;
+        }
+        long place = findOrCreate(directory, parent);
+        DataBlock table = getTable();
+        ByteBuffer entry = readEntry(table, place);
+        entry.putLong(PARENT_OFFSET, parent)
+                .putLong(BYTES_OFFSET, bytes).putLong(FILES_OFFSET, files).putLong(DIRECTORIES_OFFSET, directories);
+        writeEntry(table, place, entry.array());
+    }
+
+    /**
+     * Sets the quota of the directory, the quota of a removed directory is not set.
+     *
+     * @param quota the maximum bytes of the directory subtree files, 0 if there is no quota.
+     */
+    void setQuota(long directory, long quota) throws IOException, NotEnoughFreeSpaceException {
+        DataBlock existing = getTable();
+        if (directory != container.firstBlockPosition && (existing == null || find(existing, directory) == -1)) {
+            return;
+        }
+        long place = findOrCreate(directory, 0);
+        DataBlock table = getTable();
+        ByteBuffer entry = readEntry(table, place);
+        entry.putLong(QUOTA_OFFSET, quota);
+        writeEntry(table, place, entry.array());
+    }
+
+    /**
+     * Removes the entry of the removed directory, its content chain position can be reused by another directory.
+     * The table without entries is freed.
+     */
+    void remove(long directory) throws IOException {
+        DataBlock table = getTable();
+        if (table == null) {
+            return;
+        }
+        long place = find(table, directory);
+        if (place == -1) {
+            return;
+        }
+        ByteBuffer header = readHeader(table);
+        if (header.getLong(COUNT_OFFSET) == 1) {
+            container.superblock.setUsageTablePosition(0);
+            table.freeChain();
+            return;
+        }
+        long mask = header.getLong(CAPACITY_OFFSET) - 1;
+        // the following entries of the cluster are shifted back if the hole is between their home and them
+        long hole = place;
+        for (long next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+            ByteBuffer entry = readEntry(table, next);
+            if (entry.getLong(0) == 0) {
+                break;
+            }
+            long home = getHomePlace(entry.getLong(0), mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                writeEntry(table, hole, entry.array());
+                hole = next;
+            }
+        }
+        writeEntry(table, hole, new byte[ENTRY_BYTES]);
+        writeCount(table, header.getLong(COUNT_OFFSET) - 1);
+    }
+
+    /**
+     * Recounts the usage of all the directories by the walk of the whole tree, the quotas are kept.
+     * The entries of the directories which are not in the tree anymore are removed.
+     */
+    static void rebuild(Container container) throws IOException, NotEnoughFreeSpaceException {
+        Set<Long> directories = new HashSet<>();
+        new DirectoryImpl(RootDirectoryImpl.ROOT_DIRECTORY_NAME, new DataBlock(container, container.firstBlockPosition))
+                .storeUsage(container.usageTable, 0, directories);
+        DataBlock table = container.usageTable.getTable();
+        if (table == null) {
+            return;
+        }
+        List<Long> stale = new ArrayList<>();
+        long capacity = readHeader(table).getLong(CAPACITY_OFFSET);
+        for (long place = 0; place < capacity; place++) {
+            long directory = readEntry(table, place).getLong(0);
+            if (directory != 0 && !directories.contains(directory)) {
+                stale.add(directory);
+            }
+        }
+        for (long directory : stale) {
+            container.usageTable.remove(directory);
+        }
+    }
+
+    /**
+     * @return the place of the directory entry, a new empty entry with the {@code parent} is added if there is no such one.
+     */
+    private long findOrCreate(long directory, long parent) throws IOException, NotEnoughFreeSpaceException {
+        DataBlock table = getTable();
+        if (table == null) {
+            table = create(INITIAL_CAPACITY);
+        }
+        long place = find(table, directory);
+        if (place != -1) {
+            return place;
+        }
+        ByteBuffer header = readHeader(table);
+        long count = header.getLong(COUNT_OFFSET);
+        long capacity = header.getLong(CAPACITY_OFFSET);
+        if ((count + 1) * 2 > capacity) {
+            grow(table, capacity * 2);
+            table = getTable();
+        }
+        long mask = readHeader(table).getLong(CAPACITY_OFFSET) - 1;
+        place = getHomePlace(directory, mask);
+        while (readEntry(table, place).getLong(0) != 0) {
+            place = (place + 1) & mask;
+        }
+        writeEntry(table, place, ByteBuffer.allocate(ENTRY_BYTES).putLong(0, directory).putLong(PARENT_OFFSET, parent).array());
+        writeCount(table, count + 1);
+        return place;
+    }
+
+    /**
+     * @return the place of the directory entry or -1 if there is no such entry.
+     */
+    private static long find(DataBlock table, long directory) throws IOException {
+        long mask = readHeader(table).getLong(CAPACITY_OFFSET) - 1;
+        for (long place = getHomePlace(directory, mask); ; place = (place + 1) & mask) {
+            long position = readEntry(table, place).getLong(0);
+            if (position == 0) {
+                return -1;
+            }
+            if (position == directory) {
+                return place;
+            }
+        }
+    }
+
+    @Nullable
+    private DataBlock getTable() {
+        long position = container.superblock.getUsageTablePosition();
+        return position == 0 ? null : new DataBlock(container, position);
+    }
+
+    private DataBlock create(long capacity) throws IOException, NotEnoughFreeSpaceException {
+        DataBlock table = new Block(container, container.firstBlockPosition).allocateChain(HEADER_BYTES + capacity * ENTRY_BYTES);
+        // the entries are beyond the high-water mark, so they are read as empty ones
+        table.write(COUNT_OFFSET, ByteBuffer.allocate(HEADER_BYTES).putLong(0).putLong(capacity).array());
+        container.superblock.setUsageTablePosition(table.getStartPosition());
+        return table;
+    }
+
+    private void grow(DataBlock table, long capacity) throws IOException, NotEnoughFreeSpaceException {
+        long oldCapacity = readHeader(table).getLong(CAPACITY_OFFSET);
+        DataBlock grown = create(capacity);
+        long mask = capacity - 1;
+        long count = 0;
+        long batchEntries = Block.MAX_BYTE_ARRAY_SIZE / ENTRY_BYTES;
+        for (long first = 0; first < oldCapacity; first += batchEntries) {
+            byte[] entries = new byte[(int) (Math.min(batchEntries, oldCapacity - first) * ENTRY_BYTES)];
+            table.read(HEADER_BYTES + first * ENTRY_BYTES, entries);
+            for (int offset = 0; offset < entries.length; offset += ENTRY_BYTES) {
+                long directory = ByteBuffer.wrap(entries).getLong(offset);
+                if (directory == 0) {
+                    continue;
+                }
+                long place = getHomePlace(directory, mask);
+                while (readEntry(grown, place).getLong(0) != 0) {
+                    place = (place + 1) & mask;
+                }
+                byte[] entry = new byte[ENTRY_BYTES];
+                System.arraycopy(entries, offset, entry, 0, ENTRY_BYTES);
+                writeEntry(grown, place, entry);
+                count++;
+            }
+        }
+        writeCount(grown, count);
+        table.freeChain();
+    }
+
+    private static long getHomePlace(long directory, long mask) {
+        long hash = directory * 0x9E3779B97F4A7C15L;
+        return (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static ByteBuffer readHeader(DataBlock table) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        table.read(0, header);
+        return ByteBuffer.wrap(header);
+    }
+
+    private static ByteBuffer readEntry(DataBlock table, long place) throws IOException {
+        byte[] entry = new byte[ENTRY_BYTES];
+        table.read(HEADER_BYTES + place * ENTRY_BYTES, entry);
+        return ByteBuffer.wrap(entry);
+    }
+
+    private static void writeCount(DataBlock table, long count) throws IOException {
+        write(table, COUNT_OFFSET, ByteBuffer.allocate(Long.BYTES).putLong(count).array());
+    }
+
+    private static void writeEntry(DataBlock table, long place, byte[] entry) throws IOException {
+        write(table, HEADER_BYTES + place * ENTRY_BYTES, entry);
+    }
+
+    private static void write(DataBlock table, long offset, byte[] bytes) throws IOException {
+        try {
+            table.write(offset, bytes);
+        } catch (NotEnoughFreeSpaceException e) {
+            throw new IllegalStateException("The written bytes are inside the table, it cannot be enlarged", e);
+        }
+    }
+
+}
@@ -1,10 +1,32 @@
 package org.jetbrains.teamcity.hire.test;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.jetbrains.teamcity.hire.test.filesystem.api.CheckReport;
+import org.jetbrains.teamcity.hire.test.filesystem.api.Directory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FormatOptions;
 import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.IllegalFileNameException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.ReadOnlyFileSystemException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.TooManyFilesException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -25,7 +47,7 @@ public class FileSystemsManagerTest extends RootTest {
     @Test
     @DisplayName("Try to create and format a file system file, check that it is formatted")
     public void testFileSystemFileFormat() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 1000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 1128);
         Assertions.assertTrue(fileSystemsManager.isFormatted(fileSystemPath));
     }
 
@@ -33,7 +55,7 @@ public class FileSystemsManagerTest extends RootTest {
     @Test
     @DisplayName("Try to load root directory of the same file sequentially")
     public void testSequentialRootDirectoryLoad() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 1000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 1128);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
         }
         Assertions.assertDoesNotThrow(() -> {
@@ -54,4 +76,248 @@ public class FileSystemsManagerTest extends RootTest {
         }
     }
 
+    @SuppressWarnings({"EmptyTryBlock", "unused"})
+    @Test
+    @DisplayName("Load a file system file read-only, read its files by several threads, check that it cannot be changed")
+    public void testReadOnlyLoad() throws Exception {
+        fileSystemsManager.createAndFormat(fileSystemPath, 100_000);
+        Random random = new Random(37);
+        List<byte[]> contents = new ArrayList<>();
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            Directory nested = directory.createDirectory("/Nested");
+            for (int i = 0; i < 16; i++) {
+                byte[] content = new byte[1000 + i];
+                random.nextBytes(content);
+                nested.createFile("File" + i, content.length).write(content);
+                contents.add(content);
+            }
+        }
+        try (RootDirectory directory = fileSystemsManager.loadReadOnly(fileSystemPath)) {
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<byte[]>> reads = new ArrayList<>();
+                for (int i = 0; i < 16; i++) {
+                    String name = "File" + i;
+                    int size = contents.get(i).length;
+                    reads.add(executor.submit(() -> {
+                        byte[] content = new byte[size];
+                        directory.getDirectory("/Nested").getFile(name).read(content);
+                        return content;
+                    }));
+                }
+                for (int i = 0; i < 16; i++) {
+                    Assertions.assertArrayEquals(contents.get(i), reads.get(i).get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+            File file = directory.getDirectory("/Nested").getFile("File0");
+            Assertions.assertThrows(ReadOnlyFileSystemException.class, () -> file.write(new byte[1]));
+            Assertions.assertThrows(ReadOnlyFileSystemException.class, () -> directory.createFile("Other", 0));
+            Assertions.assertThrows(ReadOnlyFileSystemException.class, () -> directory.removeFile("/Nested"));
+            Assertions.assertThrows(IOException.class, () -> {
+                try (RootDirectory writable = fileSystemsManager.load(fileSystemPath)) {
+                }
+            });
+        }
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            Assertions.assertDoesNotThrow(() -> directory.createFile("Other", 0));
+        }
+    }
+
+    @Test
+    @DisplayName("Format a file system file with not default options, check they are used after loading")
+    public void testFormatOptions() throws IOException {
+        FormatOptions options = FormatOptions.defaults().withFileNameSize(10).withMaxFilesInDirectory(2);
+        fileSystemsManager.createAndFormat(fileSystemPath, 4096, options);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            Assertions.assertThrows(IllegalFileNameException.class, () -> directory.createFile("Eleven char", 0));
+            directory.createFile("Ten chars", 0);
+            Directory full = directory.createDirectory("/Full");
+            Assertions.assertThrows(TooManyFilesException.class, () -> directory.createFile("Third", 0));
+            full.createFile("First", 0);
+            full.createFile("Second", 0);
+            Assertions.assertThrows(TooManyFilesException.class, () -> directory.move("Ten chars", full, "Ten chars"));
+            Assertions.assertEquals(2, directory.getFilesCount());
+            Assertions.assertEquals(2, full.getFilesCount());
+        }
+    }
+
+    @Test
+    @DisplayName("Corrupt the format parameters of a file system file, check that it is not formatted")
+    public void testCorruptedSuperblock() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 1128);
+        try (RandomAccessFile file = new RandomAccessFile(fileSystemPath.toFile(), "rw")) {
+            file.seek(32); // file name size
+            file.writeInt(100);
+        }
+        Assertions.assertFalse(fileSystemsManager.isFormatted(fileSystemPath));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> fileSystemsManager.load(fileSystemPath));
+    }
+
+    @Test
+    @DisplayName("Check a file system file with nested directories, check that it is consistent")
+    public void testCheckConsistentFile() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 10_000);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            directory.createFile("First", 100).write(new byte[300]);
+            Directory nested = directory.createDirectory("/Nested");
+            nested.createFile("Second", 200);
+            nested.createDirectory("/Deeper").createFile("Third", 50);
+            directory.createFile("Fourth", 10).write(new byte[500]);
+        }
+        CheckReport report = fileSystemsManager.check(fileSystemPath, false);
+        Assertions.assertTrue(report.isConsistent(), report.toString());
+        Assertions.assertFalse(report.isRepaired());
+    }
+
+    @Test
+    @DisplayName("Corrupt directory records of a file system file, check the problems are found and repaired")
+    public void testCheckRepair() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 2128);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            directory.createFile("A", 100);
+            directory.createFile("B", 100);
+            directory.createFile("C", 100);
+        }
+        long firstRecordPosition = 120 + 29; // superblock and block header before the root directory content
+        int recordSize = 58;
+        try (RandomAccessFile file = new RandomAccessFile(fileSystemPath.toFile(), "rw")) {
+            file.seek(firstRecordPosition);
+            long firstFilePosition = file.readLong();
+            file.seek(firstRecordPosition + recordSize);
+            file.writeLong(firstFilePosition); // "B" refers to "A" data
+            file.seek(firstRecordPosition + 2 * recordSize);
+            file.writeLong(0); // "C" record is removed
+        }
+
+        CheckReport report = fileSystemsManager.check(fileSystemPath, false);
+        Assertions.assertFalse(report.isConsistent());
+        Assertions.assertEquals(2, report.getLeakedBlocks().size());
+        Assertions.assertEquals(1, report.getCrossLinkedBlocks().size());
+
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, true).isRepaired());
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            Assertions.assertEquals(Collections.singletonList("A"), directory.getFileNames());
+            Assertions.assertEquals(1, directory.getStats().getFilesCount());
+            Assertions.assertEquals(3, directory.getStats().getBlocksCount()); // root directory, "A" and the free block
+            Assertions.assertThrows(IOException.class, () -> fileSystemsManager.check(fileSystemPath, false));
+        }
+    }
+
+    @Test
+    @DisplayName("Corrupt the end length of a block, check the mismatch is found and repaired")
+    public void testCheckBlockLengthMismatch() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 2128);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            directory.createFile("File", 100);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(fileSystemPath.toFile(), "rw")) {
+            file.seek(120 + 1); // the root directory block length
+            long rootLength = file.readLong();
+            file.seek(120 + rootLength - 8);
+            file.writeLong(rootLength + 1);
+        }
+        CheckReport report = fileSystemsManager.check(fileSystemPath, false);
+        Assertions.assertEquals(1, report.getProblems().size(), report.toString());
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, true).isRepaired());
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
+    @Test
+    @DisplayName("Corrupt the file size in a record, check the mismatch is found and repaired")
+    public void testCheckRecordSize() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 2128);
+        long fileSize;
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            fileSize = directory.createFile("File", 100).getFileSize();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(fileSystemPath.toFile(), "rw")) {
+            file.seek(120 + 29 + 50); // the size at the end of the first record of the root directory
+            Assertions.assertEquals(fileSize, file.readLong());
+            file.seek(120 + 29 + 50);
+            file.writeLong(fileSize + 1);
+        }
+        CheckReport report = fileSystemsManager.check(fileSystemPath, false);
+        Assertions.assertEquals(1, report.getProblems().size(), report.toString());
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, true).isRepaired());
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            Assertions.assertEquals(fileSize, directory.getFile("File").getFileSize());
+        }
+    }
+
+    @Test
+    @DisplayName("Load a file system file, check its operation metrics are exposed via JMX while it is loaded")
+    public void testMetrics() throws Exception {
+        fileSystemsManager.createAndFormat(fileSystemPath, 100_000);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("org.jetbrains.teamcity.hire.test.filesystem:type=FileSystem,path="
+                + ObjectName.quote(fileSystemPath.toRealPath().toString()));
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            Set<ObjectName> names = server.queryNames(pattern, null);
+            Assertions.assertEquals(1, names.size());
+            ObjectName name = names.iterator().next();
+
+            File file = directory.createFile("File", 1000);
+            directory.createFile("Next", 100);
+            file.write(new byte[3000]); // the file cannot be extended in place, so it grows by a chained block
+            file.read(0, new byte[3000]);
+            Assertions.assertNotNull(directory.getFile("File"));
+
+            Assertions.assertTrue((Long) server.getAttribute(name, "Seeks") > 0);
+            Assertions.assertTrue((Long) server.getAttribute(name, "BytesRead") >= 3000);
+            Assertions.assertTrue((Long) server.getAttribute(name, "BytesWritten") >= 3000);
+            Assertions.assertTrue((Long) server.getAttribute(name, "ChainHops") >= 2);
+            Assertions.assertTrue((Long) server.getAttribute(name, "FileRecordsLoads") > 0);
+            Assertions.assertTrue((Long) server.getAttribute(name, "FileRecordsBytes") > 0);
+            Assertions.assertTrue((Long) server.getAttribute(name, "LockAcquisitions") >= 4);
+            Assertions.assertTrue((Long) server.getAttribute(name, "LockHoldNanos") > 0);
+
+            server.invoke(name, "reset", null, null);
+            Assertions.assertEquals(0L, server.getAttribute(name, "Seeks"));
+            file.write(0, new byte[10]); // the nested size readings do not take the lock again
+            Assertions.assertEquals(1L, server.getAttribute(name, "LockAcquisitions"));
+        }
+        Assertions.assertTrue(server.queryNames(pattern, null).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Perform operations, check their latency percentiles and that the slow ones are logged with their paths")
+    public void testLatencies() throws Exception {
+        fileSystemsManager.createAndFormat(fileSystemPath, 100_000);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.jetbrains.teamcity.hire.test.filesystem:type=FileSystem,path="
+                + ObjectName.quote(fileSystemPath.toRealPath().toString()));
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            Directory nested = directory.createDirectory("/Nested");
+            for (int i = 0; i < 10; i++) {
+                nested.createFile("File " + i, 100).write(new byte[200]);
+            }
+            TabularData latencies = (TabularData) server.getAttribute(name, "Latencies");
+            CompositeData createFile = (CompositeData) latencies.get(new Object[]{"Directory.createFile"}).get("value");
+            Assertions.assertEquals(10L, createFile.get("count"));
+            Assertions.assertTrue((Long) createFile.get("p50") > 0);
+            Assertions.assertTrue((Long) createFile.get("p50") <= (Long) createFile.get("p99"));
+            Assertions.assertTrue((Long) createFile.get("p99") <= (Long) createFile.get("p999"));
+            Assertions.assertTrue((Long) createFile.get("p999") <= (Long) createFile.get("max"));
+            CompositeData write = (CompositeData) latencies.get(new Object[]{"File.write"}).get("value");
+            Assertions.assertEquals(10L, write.get("count")); // the nested size reading is not recorded
+            Assertions.assertNull(latencies.get(new Object[]{"File.getFileSize"}));
+            Assertions.assertEquals(0, ((String[]) server.getAttribute(name, "SlowOperations")).length);
+
+            server.setAttribute(name, new Attribute("SlowOperationThresholdMillis", 0L));
+            nested.removeFile("File 0");
+            String[] slowOperations = (String[]) server.getAttribute(name, "SlowOperations");
+            Assertions.assertEquals(1, slowOperations.length);
+            Assertions.assertTrue(slowOperations[0].startsWith("Directory.removeFile of '/Nested/File 0' took"), slowOperations[0]);
+
+            server.invoke(name, "reset", null, null);
+            Assertions.assertEquals(0, ((String[]) server.getAttribute(name, "SlowOperations")).length);
+            latencies = (TabularData) server.getAttribute(name, "Latencies");
+            Assertions.assertEquals(0L, ((CompositeData) latencies.get(new Object[]{"Directory.createFile"}).get("value")).get("count"));
+        }
+    }
+
 }
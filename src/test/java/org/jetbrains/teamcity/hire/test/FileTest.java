@@ -1,12 +1,22 @@
 package org.jetbrains.teamcity.hire.test;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import org.jetbrains.teamcity.hire.test.filesystem.api.ChecksumVerification;
+import org.jetbrains.teamcity.hire.test.filesystem.api.CompressionOption;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DeduplicationOption;
 import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemStats;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FormatOptions;
+import org.jetbrains.teamcity.hire.test.filesystem.api.LoadOptions;
 import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.CorruptedDataException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -16,7 +26,7 @@ public class FileTest extends RootTest {
     @Test
     @DisplayName("Create a file, write simple content, read it")
     public void testWriteReadOneFile() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 1000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 1144);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
             String name = "First file";
             File file = directory.createFile(name, 10);
@@ -79,4 +89,337 @@ public class FileTest extends RootTest {
         }
     }
 
+    @Test
+    @DisplayName("Write data after a gap, check that the gap and the not written tail are read as zeros")
+    public void testReadNotWrittenSpace() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 10_000);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            File file = directory.createFile("Sparse file", 300);
+            byte[] writtenData = {5, 6, 7, 8};
+            file.write(100, writtenData);
+            byte[] readData = new byte[300];
+            file.read(readData);
+            byte[] expectedData = new byte[300];
+            System.arraycopy(writtenData, 0, expectedData, 100, writtenData.length);
+            Assertions.assertArrayEquals(expectedData, readData);
+        }
+    }
+
+    @Test
+    @DisplayName("Remove a file with data, create a new one at its place, check that the new one is empty")
+    public void testReusedSpaceIsEmpty() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 10_000);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            byte[] writtenData = new byte[500];
+            Arrays.fill(writtenData, (byte) 42);
+            directory.createFile("Old file", writtenData.length).write(writtenData);
+            directory.removeFile("Old file");
+            File file = directory.createFile("New file", writtenData.length);
+            byte[] readData = new byte[writtenData.length];
+            file.read(readData);
+            Assertions.assertArrayEquals(new byte[writtenData.length], readData);
+        }
+    }
+
+    @Test
+    @DisplayName("Overwrite parts of files with block checksums, check that verified reads pass and corruption is detected")
+    public void testBlockChecksums() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 20_000, FormatOptions.defaults().withBlockChecksums(true));
+        byte[] content = new byte[3000];
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            File file = directory.createFile("Checked", 100);
+            directory.createFile("Neighbour", 100); // the checked file grows into a chain
+            file.write(content.length - 1, new byte[1]);
+            Random random = new Random(0);
+            for (int i = 0; i < 200; i++) {
+                byte[] data = new byte[1 + random.nextInt(300)];
+                random.nextBytes(data);
+                int offset = random.nextInt(content.length - data.length);
+                file.write(offset, data);
+                System.arraycopy(data, 0, content, offset, data.length);
+            }
+        }
+        LoadOptions verifyOnRead = LoadOptions.defaults().withChecksumVerification(ChecksumVerification.ON_READ);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath, verifyOnRead)) {
+            byte[] readData = new byte[content.length];
+            File file = directory.getFile("Checked");
+            file.read(readData);
+            Assertions.assertArrayEquals(content, readData);
+            // the changed blocks are verified again by the next read
+            byte[] data = new byte[500];
+            new Random(1).nextBytes(data);
+            file.write(1000, data);
+            System.arraycopy(data, 0, content, 1000, data.length);
+            file.read(readData);
+            Assertions.assertArrayEquals(content, readData);
+        }
+
+        long firstFileDataPosition = 120 + (928 + 37) + 29; // superblock, root directory block, block header
+        try (RandomAccessFile file = new RandomAccessFile(fileSystemPath.toFile(), "rw")) {
+            file.seek(firstFileDataPosition + 10);
+            file.writeByte(content[10] + 1);
+        }
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath, verifyOnRead)) {
+            Assertions.assertThrows(CorruptedDataException.class, () -> directory.getFile("Checked").read(new byte[1]));
+            // a corrupted block is not remembered as verified
+            Assertions.assertThrows(CorruptedDataException.class, () -> directory.getFile("Checked").read(new byte[1]));
+            Assertions.assertEquals(Collections.singletonList(firstFileDataPosition - 29), directory.getCorruptedBlocks());
+        }
+        LoadOptions scrubbing = LoadOptions.defaults().withChecksumVerification(ChecksumVerification.BACKGROUND).withScrubRate(100);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath, scrubbing)) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (directory.getCorruptedBlocks().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            Assertions.assertEquals(Collections.singletonList(firstFileDataPosition - 29), directory.getCorruptedBlocks());
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> {
+            fileSystemsManager.createAndFormat(fileSystemPath, 1128);
+            fileSystemsManager.load(fileSystemPath, verifyOnRead);
+        });
+    }
+
+    @Test
+    @DisplayName("Write compressible and random data into a compressed file, check content, size and used space")
+    public void testCompressedFile() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 200_000);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            long emptyUsedSpace = directory.getStats().getUsedSpace();
+            File file = directory.createFile("Compressed", 100_000, CompressionOption.DEFLATE);
+            Assertions.assertEquals(100_000, file.getFileSize());
+            byte[] content = new byte[150_000];
+            byte[] line = "{\"name\": \"manifest\", \"version\": 42, \"files\": [\"a.json\", \"b.log\"]}\n".getBytes("US-ASCII");
+            for (int offset = 0; offset < 100_000; offset += line.length) {
+                System.arraycopy(line, 0, content, offset, Math.min(line.length, 100_000 - offset));
+            }
+            file.write(Arrays.copyOf(content, 100_000));
+            Assertions.assertTrue(directory.getStats().getUsedSpace() - emptyUsedSpace < 100_000 / 5);
+
+            Random random = new Random(0);
+            byte[] noise = new byte[5000];
+            random.nextBytes(noise);
+            System.arraycopy(noise, 0, content, 40_000, noise.length);
+            file.write(40_000, noise);
+            System.arraycopy(line, 0, content, 140_000, line.length); // extends the file
+            file.write(140_000, line);
+            Assertions.assertEquals(140_000 + line.length, file.getFileSize());
+
+            byte[] readData = new byte[(int) file.getFileSize()];
+            file.read(readData);
+            Assertions.assertArrayEquals(Arrays.copyOf(content, readData.length), readData);
+            for (int i = 0; i < 20; i++) {
+                int offset = random.nextInt(readData.length - 1000);
+                byte[] range = new byte[1 + random.nextInt(1000)];
+                file.read(offset, range);
+                Assertions.assertArrayEquals(Arrays.copyOfRange(content, offset, offset + range.length), range);
+            }
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            long usedSpace = directory.getStats().getUsedSpace();
+            directory.createFile("Plain", 0);
+            directory.removeFile("Compressed");
+            directory.removeFile("Plain");
+            Assertions.assertTrue(directory.getStats().getUsedSpace() < usedSpace);
+            Assertions.assertEquals(2, directory.getStats().getBlocksCount());
+        }
+    }
+
+    @Test
+    @DisplayName("Fill the container in the middle of a compressed file write, check the old content is read back")
+    public void testCompressedFileFailedWrite() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 300_000);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            File file = directory.createFile("Compressed", 0, CompressionOption.DEFLATE);
+            byte[] content = new byte[4 * 32 * 1024]; // 4 chunks
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) (i % 7 + 1);
+            }
+            file.write(content);
+            // the compressed chunks are small, the random ones are stored not compressed and do not fit the rest
+            directory.createFile("Filler", (int) (directory.getStats().getFreeSpace() - 50_000));
+            long usedSpace = directory.getStats().getUsedSpace();
+            byte[] noise = new byte[content.length - 1000];
+            new Random(0).nextBytes(noise);
+            Assertions.assertThrows(NotEnoughFreeSpaceException.class, () -> file.write(1000, noise));
+            Assertions.assertEquals(usedSpace, directory.getStats().getUsedSpace());
+            Assertions.assertEquals(content.length, file.getFileSize());
+            byte[] readData = new byte[content.length];
+            file.read(readData);
+            Assertions.assertArrayEquals(content, readData);
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
+    @Test
+    @DisplayName("Fill the container in the middle of a deduplicated file write, check the old content and the references are kept")
+    public void testDeduplicatedFileFailedWrite() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 100_000);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            File file = directory.createFile("Deduplicated", 0, DeduplicationOption.DEDUPLICATE);
+            byte[] content = new byte[8 * 4 * 1024]; // 8 chunks of the same content sharing one extent
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) (i % 4096 % 7 + 1);
+            }
+            file.write(content);
+            directory.createFile("Filler", (int) (directory.getStats().getFreeSpace() - 20_000));
+            long usedSpace = directory.getStats().getUsedSpace();
+            byte[] noise = new byte[content.length - 1000];
+            new Random(0).nextBytes(noise);
+            Assertions.assertThrows(NotEnoughFreeSpaceException.class, () -> file.write(1000, noise));
+            Assertions.assertEquals(usedSpace, directory.getStats().getUsedSpace());
+            byte[] readData = new byte[content.length];
+            file.read(readData);
+            Assertions.assertArrayEquals(content, readData);
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
+    @Test
+    @DisplayName("Write tiny files stored inline in directory records, grow one of them, check content and used blocks")
+    public void testInlineFiles() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 5000, FormatOptions.defaults().withInlineFileSize(64));
+        byte[] flag = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            FileSystemStats emptyStats = directory.getStats();
+            File tiny = directory.createFile("Tiny", flag.length);
+            tiny.write(20, flag);
+            directory.createFile("Growing", 0).write(flag);
+            Assertions.assertEquals(64, tiny.getFileSize());
+            Assertions.assertEquals(emptyStats.getBlocksCount(), directory.getStats().getBlocksCount());
+            Assertions.assertEquals(emptyStats.getUsedSpace(), directory.getStats().getUsedSpace());
+        }
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            byte[] readData = new byte[30];
+            directory.getFile("Tiny").read(readData);
+            Assertions.assertArrayEquals(flag, Arrays.copyOfRange(readData, 20, 30));
+
+            File growing = directory.getFile("Growing");
+            File sameGrowing = directory.getFile("Growing");
+            byte[] tail = new byte[100];
+            Arrays.fill(tail, (byte) 7);
+            growing.write(50, tail);
+            Assertions.assertTrue(growing.getFileSize() >= 150);
+            readData = new byte[150];
+            sameGrowing.read(readData);
+            Assertions.assertArrayEquals(flag, Arrays.copyOf(readData, flag.length));
+            Assertions.assertArrayEquals(tail, Arrays.copyOfRange(readData, 50, 150));
+            Assertions.assertEquals(3, directory.getStats().getBlocksCount()); // root directory, growing file and free block
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            directory.removeFile("Tiny");
+            directory.removeFile("Growing");
+            Assertions.assertEquals(2, directory.getStats().getBlocksCount());
+            byte[] readData = new byte[64];
+            directory.createFile("Reused record", 1).read(readData);
+            Assertions.assertArrayEquals(new byte[64], readData);
+        }
+    }
+
+    @Test
+    @DisplayName("Write a lot of small files packed into slabs, grow one of them, remove all, check content and used space")
+    public void testSlabFiles() throws IOException {
+        int filesCount = 128;
+        int fileSize = 120;
+        FileSystemStats chainsStats = null;
+        for (FormatOptions options : Arrays.asList(FormatOptions.defaults(), FormatOptions.defaults().withSlabMaxSlotSize(512))) {
+            fileSystemsManager.createAndFormat(fileSystemPath, 100_000, options);
+            try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+                for (int i = 0; i < filesCount; i++) {
+                    byte[] data = new byte[fileSize];
+                    Arrays.fill(data, (byte) i);
+                    directory.createFile("File" + i, fileSize).write(data);
+                }
+                if (chainsStats == null) {
+                    chainsStats = directory.getStats();
+                    continue;
+                }
+                Assertions.assertEquals(128, directory.getFile("File0").getFileSize()); // the size class of the file
+                FileSystemStats stats = directory.getStats();
+                // two full slabs of 64 slots instead of a block for every file
+                Assertions.assertTrue(stats.getBlocksCount() < 10, "blocks count: " + stats.getBlocksCount());
+                Assertions.assertTrue(stats.getUsedSpace() < chainsStats.getUsedSpace(), "used space: " + stats.getUsedSpace());
+            }
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            for (int i = 0; i < filesCount; i++) {
+                byte[] expected = new byte[128];
+                Arrays.fill(expected, 0, fileSize, (byte) i);
+                byte[] readData = new byte[128];
+                directory.getFile("File" + i).read(readData);
+                Assertions.assertArrayEquals(expected, readData, "File" + i);
+            }
+
+            File growing = directory.getFile("File7");
+            File sameGrowing = directory.getFile("File7");
+            byte[] tail = new byte[1000];
+            Arrays.fill(tail, (byte) -1);
+            growing.write(fileSize, tail);
+            byte[] readData = new byte[fileSize + tail.length];
+            sameGrowing.read(readData);
+            byte[] expected = new byte[fileSize + tail.length];
+            Arrays.fill(expected, 0, fileSize, (byte) 7);
+            Arrays.fill(expected, fileSize, expected.length, (byte) -1);
+            Assertions.assertArrayEquals(expected, readData);
+
+            byte[] reusedSlot = new byte[128];
+            directory.createFile("Reused slot", fileSize).read(reusedSlot);
+            Assertions.assertArrayEquals(new byte[128], reusedSlot);
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            for (String fileName : directory.getFileNames()) {
+                directory.removeFile(fileName);
+            }
+            Assertions.assertEquals(0, directory.getStats().getFilesCount());
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
+    @Test
+    @DisplayName("Write the same content into deduplicated files, change one of them, remove them, check content and used space")
+    public void testDeduplicatedFiles() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 200_000);
+        byte[] content = new byte[20 * 1024 + 100];
+        new Random(42).nextBytes(content);
+        String[] names = {"A", "B", "C", "D", "E"};
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            directory.createFile(names[0], content.length, DeduplicationOption.DEDUPLICATE).write(content);
+            long usedSpace = directory.getStats().getUsedSpace();
+            for (String name : Arrays.copyOfRange(names, 1, names.length)) {
+                directory.createFile(name, 0, DeduplicationOption.DEDUPLICATE).write(content);
+            }
+            // only the chunk indexes of the files are written, the data is shared
+            Assertions.assertTrue(directory.getStats().getUsedSpace() - usedSpace < 1000,
+                    "used space: " + directory.getStats().getUsedSpace());
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+        byte[] changed = Arrays.copyOf(content, content.length);
+        Arrays.fill(changed, 5000, 5010, (byte) 0);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            directory.getFile("B").write(5000, new byte[10]);
+            for (String name : names) {
+                byte[] readData = new byte[content.length];
+                directory.getFile(name).read(readData);
+                Assertions.assertArrayEquals(name.equals("B") ? changed : content, readData, name);
+            }
+            for (String name : names) {
+                if (!name.equals("B")) {
+                    directory.removeFile(name);
+                }
+            }
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            File file = directory.getFile("B");
+            byte[] readData = new byte[content.length];
+            file.read(readData);
+            Assertions.assertArrayEquals(changed, readData);
+            directory.removeFile("B");
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
 }
@@ -2,12 +2,25 @@ package org.jetbrains.teamcity.hire.test;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jetbrains.teamcity.hire.test.filesystem.api.CompressionOption;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DeduplicationOption;
 import org.jetbrains.teamcity.hire.test.filesystem.api.Directory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DiskUsage;
+import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemStats;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FormatOptions;
 import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.IllegalFileNameException;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEmptyDirectoryException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.QuotaExceededException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -20,7 +33,7 @@ public class NestedDirectoriesTest extends RootTest {
     @Test
     @DisplayName("Try to remove empty / not empty directory")
     public void testRemoveDirectory() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 3000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 3400);
         try (RootDirectory root = fileSystemsManager.load(fileSystemPath)) {
             Directory nestedDir = root.createDirectory("/nested");
             nestedDir.createDirectory("/subdir");
@@ -53,6 +66,206 @@ public class NestedDirectoriesTest extends RootTest {
         }
     }
 
+    @Test
+    @DisplayName("Remove a directory with its subtree, check that the freed blocks are coalesced")
+    public void testRemoveRecursively() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 1000_000,
+                FormatOptions.defaults().withInlineFileSize(32).withSlabMaxSlotSize(128));
+        try (RootDirectory root = fileSystemsManager.load(fileSystemPath)) {
+            root.createFile("Kept", 100).write(new byte[100]);
+            FileSystemStats before = root.getStats();
+            Directory removed = root.createDirectory("/Removed");
+            for (int i = 0; i < 5; i++) {
+                Directory nested = removed.createDirectory("/Nested " + i);
+                nested.createFile("Plain", 1000).write(new byte[1000]);
+                nested.createFile("Inline", 20).write(new byte[20]);
+                nested.createFile("Slab", 100).write(new byte[100]);
+                nested.createFile("Compressed", 5000, CompressionOption.DEFLATE).write(new byte[5000]);
+                nested.createFile("Deduplicated", 5000, DeduplicationOption.DEDUPLICATE).write(new byte[5000]);
+                nested.createDirectory("/Empty");
+                removed.createFile("File " + i, 300).write(new byte[300]);
+            }
+            root.removeRecursively("/Missing");
+            root.removeRecursively("/Removed");
+            root.removeRecursively("Kept");
+            Assertions.assertEquals(0, root.getFilesCount());
+            FileSystemStats after = root.getStats();
+            Assertions.assertEquals(0, after.getFilesCount());
+            Assertions.assertEquals(0, after.getDirectoriesCount());
+            Assertions.assertTrue(after.getUsedSpace() < before.getUsedSpace());
+            // the root directory and the free rest, slabs are kept by the allocator
+            Assertions.assertTrue(after.getBlocksCount() <= before.getBlocksCount(), after.toString());
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
+    @Test
+    @DisplayName("Walk the tree sequentially and in parallel, compare the visited entries and the disk usage with the created ones")
+    public void testWalkAndDiskUsage() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 1000_000);
+        Set<String> created = new HashSet<>();
+        long createdSize = 0;
+        try (RootDirectory root = fileSystemsManager.load(fileSystemPath)) {
+            for (int i = 0; i < 4; i++) {
+                Directory nested = root.createDirectory("/Nested " + i);
+                created.add("/Nested " + i);
+                for (int j = 0; j < 4; j++) {
+                    Directory deeper = nested.createDirectory("/Deeper " + j);
+                    created.add("/Nested " + i + "/Deeper " + j);
+                    for (int k = 0; k < 5; k++) {
+                        createdSize += deeper.createFile("File " + k, 100 * k).getFileSize();
+                        created.add("/Nested " + i + "/Deeper " + j + "/File " + k);
+                    }
+                }
+            }
+            Set<String> visited = ConcurrentHashMap.newKeySet();
+            Set<Thread> threads = ConcurrentHashMap.newKeySet();
+            root.walk((parentPath, entry) -> {
+                threads.add(Thread.currentThread());
+                visited.add(entry.isDirectory() ? parentPath + entry.getName() : parentPath + "/" + entry.getName());
+            });
+            Assertions.assertEquals(created, visited);
+            // the writable file system is read under the lock, so it is walked in the calling thread
+            Assertions.assertEquals(Collections.singleton(Thread.currentThread()), threads);
+            DiskUsage usage = root.diskUsage();
+            Assertions.assertEquals(80, usage.getFilesCount());
+            Assertions.assertEquals(20, usage.getDirectoriesCount());
+            Assertions.assertEquals(createdSize, usage.getSize());
+            Assertions.assertEquals(20, root.getDirectory("/Nested 0").diskUsage().getFilesCount());
+        }
+        try (RootDirectory root = fileSystemsManager.loadReadOnly(fileSystemPath)) {
+            Assertions.assertEquals(80, root.diskUsage().getFilesCount());
+            Set<String> visited = ConcurrentHashMap.newKeySet();
+            root.walk((parentPath, entry) ->
+                    visited.add(entry.isDirectory() ? parentPath + entry.getName() : parentPath + "/" + entry.getName()));
+            Assertions.assertEquals(created, visited);
+        }
+    }
+
+    @Test
+    @DisplayName("Rename and move files and directories, check that the data is kept in place")
+    public void testRenameAndMove() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 100_000, FormatOptions.defaults().withInlineFileSize(64));
+        byte[] plain = new byte[1000];
+        Arrays.fill(plain, (byte) 7);
+        byte[] inline = new byte[50];
+        Arrays.fill(inline, (byte) 9);
+        try (RootDirectory root = fileSystemsManager.load(fileSystemPath)) {
+            root.createFile("Plain", plain.length).write(plain);
+            root.createFile("Inline", inline.length).write(inline);
+            Directory nested = root.createDirectory("/Nested");
+            Directory deeper = nested.createDirectory("/Deeper");
+            long usedSpace = root.getStats().getUsedSpace();
+
+            root.rename("Plain", "Renamed");
+            root.rename("/Nested", "/Other");
+            Assertions.assertEquals(Arrays.asList("Renamed", "Inline", "/Other"), root.getFileNames());
+            assertContent(plain, root.getFile("Renamed"));
+
+            root.move("Renamed", deeper, "Moved");
+            root.move("Inline", nested, "Inline");
+            Assertions.assertEquals(Arrays.asList("/Other"), root.getFileNames());
+            Assertions.assertEquals(Arrays.asList("Moved"), root.getDirectory("/Other").getDirectory("/Deeper").getFileNames());
+            assertContent(plain, deeper.getFile("Moved"));
+            assertContent(inline, nested.getFile("Inline"));
+            Assertions.assertEquals(usedSpace, root.getStats().getUsedSpace());
+
+            Assertions.assertThrows(IllegalFileNameException.class, () -> nested.rename("Inline", "/Deeper"));
+            Assertions.assertThrows(IllegalFileNameException.class, () -> nested.move("/Deeper", root, "/Other"));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> root.move("/Other", deeper, "/Loop"));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> root.rename("Missing", "Other"));
+            nested.move("/Deeper", root, "/Deeper");
+            Assertions.assertEquals(Arrays.asList("Moved"), root.getDirectory("/Deeper").getFileNames());
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
+    @Test
+    @DisplayName("Track the usage of the directories by the tree changes, compare it with the walk, exceed the quotas")
+    public void testUsageAndQuotas() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 200_000);
+        try (RootDirectory root = fileSystemsManager.load(fileSystemPath)) {
+            Directory nested = root.createDirectory("/Nested");
+            Directory deeper = nested.createDirectory("/Deeper");
+            root.createFile("Top", 100);
+            File growing = deeper.createFile("Growing", 200);
+            growing.write(1000, new byte[500]);
+            deeper.createFile("Removed", 300);
+            nested.createFiles(new HashMap<String, Integer>() {{
+                put("First", 400);
+                put("Second", 600);
+            }});
+            Assertions.assertEquals(1500, growing.getFileSize());
+            assertUsage(deeper, 1800, 2, 0);
+            assertUsage(nested, 2800, 4, 1);
+            assertUsage(root, 2900, 5, 2);
+
+            deeper.removeFile("Removed");
+            nested.move("First", root, "First");
+            assertUsage(deeper, 1500, 1, 0);
+            assertUsage(nested, 2100, 2, 1);
+            assertUsage(root, 2600, 4, 2);
+
+            nested.setQuota(2400);
+            Assertions.assertEquals(2400, nested.getQuota());
+            Assertions.assertEquals(0, deeper.getQuota());
+            Assertions.assertThrows(QuotaExceededException.class, () -> deeper.createFile("Big", 500));
+            Assertions.assertThrows(QuotaExceededException.class, () -> growing.write(1500, new byte[500]));
+            Assertions.assertThrows(QuotaExceededException.class, () -> root.move("First", deeper, "First"));
+            Assertions.assertDoesNotThrow(() -> growing.write(0, new byte[1500]));
+            Assertions.assertDoesNotThrow(() -> deeper.createFile("Small", 300));
+            assertUsage(nested, 2400, 3, 1);
+            nested.setQuota(0);
+            Assertions.assertDoesNotThrow(() -> deeper.createFile("Big", 500));
+        }
+        try (RootDirectory root = fileSystemsManager.load(fileSystemPath)) {
+            Directory nested = root.getDirectory("/Nested");
+            Assertions.assertNotNull(nested);
+            assertUsage(nested, 2900, 4, 1);
+
+            // the handles obtained before the move count the changes to the new ancestors of the directory
+            Directory deeper = nested.getDirectory("/Deeper");
+            Assertions.assertNotNull(deeper);
+            File growing = deeper.getFile("Growing");
+            Assertions.assertNotNull(growing);
+            nested.move("/Deeper", root, "/Deeper");
+            deeper.createFile("Moved", 100);
+            growing.write(1500, new byte[500]);
+            assertUsage(deeper, 900 + growing.getFileSize(), 4, 0);
+            assertUsage(nested, 600, 1, 0);
+            assertUsage(root, 1100 + 900 + growing.getFileSize(), 7, 2);
+            root.removeRecursively("/Deeper");
+
+            // the empty file is in the quota by its requested size, but not by its logical one, the minimal data capacity
+            Directory quoted = root.createDirectory("/Quoted");
+            quoted.setQuota(4);
+            long usedSpace = root.getStats().getUsedSpace();
+            Assertions.assertThrows(QuotaExceededException.class, () -> quoted.createFile("Empty", 0));
+            Assertions.assertEquals(usedSpace, root.getStats().getUsedSpace());
+            assertUsage(quoted, 0, 0, 0);
+            root.removeFile("/Quoted");
+
+            root.removeRecursively("/Nested");
+            assertUsage(root, 500, 2, 0);
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
+    private static void assertUsage(Directory directory, long size, long filesCount, long directoriesCount) throws IOException {
+        DiskUsage usage = directory.getUsage();
+        Assertions.assertEquals(size, usage.getSize(), usage.toString());
+        Assertions.assertEquals(filesCount, usage.getFilesCount(), usage.toString());
+        Assertions.assertEquals(directoriesCount, usage.getDirectoriesCount(), usage.toString());
+        Assertions.assertEquals(directory.diskUsage().toString(), usage.toString());
+    }
+
+    private static void assertContent(byte[] expected, File file) throws IOException {
+        Assertions.assertNotNull(file);
+        byte[] actual = new byte[expected.length];
+        file.read(actual);
+        Assertions.assertArrayEquals(expected, actual);
+    }
+
     private void createNestedFilesAndDirs(Directory parent, int filesAndDirs, int depth) throws IOException {
         List<String> names = new ArrayList<>(filesAndDirs * 2);
         dirName2content.put(parent.getName(), names);
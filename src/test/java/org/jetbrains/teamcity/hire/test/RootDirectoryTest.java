@@ -3,13 +3,36 @@ package org.jetbrains.teamcity.hire.test;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AllocationOption;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AllocationStrategy;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AsyncDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AsyncFile;
+import org.jetbrains.teamcity.hire.test.filesystem.api.AsyncOptions;
+import org.jetbrains.teamcity.hire.test.filesystem.api.CompressionOption;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DeduplicationOption;
+import org.jetbrains.teamcity.hire.test.filesystem.api.Directory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.DirectoryEntry;
 import org.jetbrains.teamcity.hire.test.filesystem.api.File;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FileSystemStats;
+import org.jetbrains.teamcity.hire.test.filesystem.api.FormatOptions;
+import org.jetbrains.teamcity.hire.test.filesystem.api.LoadOptions;
 import org.jetbrains.teamcity.hire.test.filesystem.api.RootDirectory;
+import org.jetbrains.teamcity.hire.test.filesystem.api.SpaceMap;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.IllegalFileNameException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEmptyDirectoryException;
 import org.jetbrains.teamcity.hire.test.filesystem.exceptions.NotEnoughFreeSpaceException;
+import org.jetbrains.teamcity.hire.test.filesystem.exceptions.ReadOnlyFileSystemException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -19,12 +42,12 @@ public class RootDirectoryTest extends RootTest {
     @Test
     @DisplayName("Create a file with size of all the free data space size")
     public void testMaxFileSizeCreating() throws IOException {
-        int fileSystemFileSize = 1000;
+        int fileSystemFileSize = 1144;
         fileSystemsManager.createAndFormat(fileSystemPath, fileSystemFileSize);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
-            int rootStartPosition = 26;
-            int serviceBytes = 25;
-            int rootBlockLength = 800 + serviceBytes;
+            int rootStartPosition = 120;
+            int serviceBytes = 37;
+            int rootBlockLength = 928 + serviceBytes;
             int maxFileSize = fileSystemFileSize - (rootStartPosition + rootBlockLength + serviceBytes);
             Assertions.assertDoesNotThrow(() -> directory.createFile("First", maxFileSize));
         }
@@ -33,12 +56,12 @@ public class RootDirectoryTest extends RootTest {
     @Test
     @DisplayName("Create too big file")
     public void testNotEnoughFreeSpace() throws IOException {
-        int fileSystemFileSize = 1000;
+        int fileSystemFileSize = 1144;
         fileSystemsManager.createAndFormat(fileSystemPath, fileSystemFileSize);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
-            int rootStartPosition = 26;
-            int serviceBytes = 25;
-            int rootBlockLength = 800 + serviceBytes;
+            int rootStartPosition = 120;
+            int serviceBytes = 37;
+            int rootBlockLength = 928 + serviceBytes;
             int maxFileSize = fileSystemFileSize - (rootStartPosition + rootBlockLength + serviceBytes);
             Assertions.assertThrows(NotEnoughFreeSpaceException.class, () -> directory.createFile("First", maxFileSize + 1));
         }
@@ -47,7 +70,7 @@ public class RootDirectoryTest extends RootTest {
     @Test
     @DisplayName("Create a few files in the root directory, compare read file names with the written ones")
     public void testGetFileNames() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 1000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 1222);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
             String name0 = "AAAbbbCCCddd 1";
             String name1 = "eeeFFFgggHHH_2";
@@ -66,7 +89,7 @@ public class RootDirectoryTest extends RootTest {
     @Test
     @DisplayName("Create several files in the root directory, remove some of them")
     public void testRemoveFiles() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 1000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 1222);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
             String name0 = "AAAbbbCCCddd 1";
             String name1 = "eeeFFFgggHHH_2";
@@ -85,7 +108,7 @@ public class RootDirectoryTest extends RootTest {
     @Test
     @DisplayName("Create second file with name of first")
     public void testFileNamesCorrectness() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 1000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 1144);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
             String validName = "Correct file_name 1";
             Assertions.assertDoesNotThrow(() -> directory.createFile(validName, 0));
@@ -105,7 +128,7 @@ public class RootDirectoryTest extends RootTest {
     @Test
     @DisplayName("Create second file with name of first")
     public void testFileNameDuplication() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 1000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 1144);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
             String name = "AAA_bbb CCC 111_ddd 97";
             directory.createFile(name, 0);
@@ -116,7 +139,7 @@ public class RootDirectoryTest extends RootTest {
     @Test
     @DisplayName("Create a lot of files in the root directory, compare gotten names with written")
     public void testRootDirectoryGrowing() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 100_000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 110_000);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
             int filesCount = 1000;
             List<String> names = new ArrayList<>(filesCount);
@@ -132,7 +155,7 @@ public class RootDirectoryTest extends RootTest {
     @Test
     @DisplayName("Create/remove files with equal size, check their content")
     public void testWriteReadRemoveSimpleDataFile() throws IOException {
-        fileSystemsManager.createAndFormat(fileSystemPath, 30_000);
+        fileSystemsManager.createAndFormat(fileSystemPath, 32_000);
         try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
             int dataSize = 200;
             int maxFiles = 100;
@@ -208,6 +231,459 @@ public class RootDirectoryTest extends RootTest {
         }
     }
 
+    @Test
+    @DisplayName("Create a contiguous file when the free space is fragmented")
+    public void testContiguousFileCreating() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 2222);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            // 1137 bytes of free space after the root directory: two 337 bytes blocks and the rest 463 bytes
+            directory.createFile("First", 300);
+            directory.createFile("Second", 300);
+            directory.createFile("Third", 463 - 37);
+            directory.removeFile("First");
+            directory.removeFile("Third");
+            Assertions.assertThrows(NotEnoughFreeSpaceException.class,
+                    () -> directory.createFile("Big", 600, AllocationOption.CONTIGUOUS));
+            Assertions.assertDoesNotThrow(() -> directory.createFile("Big", 600, AllocationOption.PREFER_CONTIGUOUS));
+        }
+    }
+
+    @Test
+    @DisplayName("Create a best fit file, check that the bigger free block is kept")
+    public void testBestFitFileCreating() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 2222);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            // 1137 bytes of free space after the root directory: 437 and 337 bytes blocks and the rest 363 bytes
+            directory.createFile("First", 400);
+            directory.createFile("Second", 300);
+            directory.createFile("Third", 363 - 37);
+            directory.removeFile("First");
+            directory.removeFile("Third");
+            directory.createFile("Small", 300, AllocationOption.BEST_FIT);
+            Assertions.assertDoesNotThrow(() -> directory.createFile("Big", 400, AllocationOption.CONTIGUOUS));
+        }
+    }
+
+    @Test
+    @DisplayName("Create/remove/grow files with every allocation strategy, check their content")
+    public void testAllocationStrategies() throws IOException {
+        for (AllocationStrategy strategy : AllocationStrategy.values()) {
+            fileSystemsManager.createAndFormat(fileSystemPath, 300_000);
+            LoadOptions options = LoadOptions.defaults().withAllocationStrategy(strategy);
+            try (RootDirectory directory = fileSystemsManager.load(fileSystemPath, options)) {
+                int maxFiles = 50;
+                int maxBlockSize = 1000;
+                List<NameAndData> nameAndDataList = new ArrayList<>();
+                int counter = 1;
+                Random random = new Random(0);
+                while (nameAndDataList.size() < maxFiles) {
+                    // Add a file, grow a file, remove a file
+                    if (counter % 3 == 1) {
+                        String name = "File num " + counter;
+                        byte[] data = new byte[random.nextInt(maxBlockSize)];
+                        random.nextBytes(data);
+                        directory.createFile(name, data.length).write(data);
+                        nameAndDataList.add(new NameAndData(name, data));
+                    } else if (counter % 3 == 2) {
+                        NameAndData grown = nameAndDataList.remove(random.nextInt(nameAndDataList.size()));
+                        byte[] data = Arrays.copyOf(grown.data, grown.data.length + random.nextInt(maxBlockSize));
+                        random.nextBytes(data);
+                        File file = directory.getFile(grown.name);
+                        Assertions.assertNotNull(file);
+                        file.write(data);
+                        nameAndDataList.add(new NameAndData(grown.name, data));
+                        String name = "File num " + counter;
+                        directory.createFile(name, 0);
+                        nameAndDataList.add(new NameAndData(name, new byte[0]));
+                    } else {
+                        directory.removeFile(nameAndDataList.remove(random.nextInt(nameAndDataList.size())).name);
+                    }
+                    counter++;
+                }
+                for (NameAndData nameAndData : nameAndDataList) {
+                    File file = directory.getFile(nameAndData.name);
+                    Assertions.assertNotNull(file);
+                    byte[] readData = new byte[nameAndData.data.length];
+                    file.read(readData);
+                    Assertions.assertArrayEquals(nameAndData.data, readData, strategy + " " + nameAndData.name);
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Create/remove files and directories, check the file system statistics before and after reloading")
+    public void testStats() throws IOException {
+        int fileSystemFileSize = 10_000;
+        fileSystemsManager.createAndFormat(fileSystemPath, fileSystemFileSize);
+        int superblockSize = 120;
+        int serviceBytes = 37;
+        int rootBlockLength = 928 + serviceBytes;
+        int usageTableLength = 16 + 4 * 48 + serviceBytes; // allocated by the nested directory creating
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            FileSystemStats stats = directory.getStats();
+            Assertions.assertEquals(fileSystemFileSize - superblockSize, stats.getTotalSpace());
+            Assertions.assertEquals(rootBlockLength, stats.getUsedSpace());
+            Assertions.assertEquals(2, stats.getBlocksCount());
+            Assertions.assertEquals(0, stats.getFilesCount());
+            Assertions.assertEquals(0, stats.getDirectoriesCount());
+
+            directory.createFile("First", 100);
+            directory.createFile("Second", 200);
+            directory.createDirectory("/Nested").createFile("Third", 0);
+            directory.removeFile("First");
+        }
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            FileSystemStats stats = directory.getStats();
+            // the removed file block is free, it is not merged with the neighbours
+            int usedSpace = rootBlockLength + (200 + serviceBytes) + (928 + serviceBytes) + usageTableLength + (8 + serviceBytes);
+            Assertions.assertEquals(usedSpace, stats.getUsedSpace());
+            Assertions.assertEquals(fileSystemFileSize - superblockSize - usedSpace, stats.getFreeSpace());
+            Assertions.assertEquals(7, stats.getBlocksCount());
+            Assertions.assertEquals(2, stats.getFilesCount());
+            Assertions.assertEquals(1, stats.getDirectoriesCount());
+
+            directory.removeFile("Second"); // merged with the previous free block
+            Assertions.assertEquals(6, directory.getStats().getBlocksCount());
+            Directory nested = directory.getDirectory("/Nested");
+            Assertions.assertNotNull(nested);
+            nested.removeFile("Third"); // merged with the next free block
+            Assertions.assertEquals(5, directory.getStats().getBlocksCount());
+            Assertions.assertEquals(rootBlockLength + 928 + serviceBytes + usageTableLength, directory.getStats().getUsedSpace());
+        }
+    }
+
+    @Test
+    @DisplayName("Take a snapshot, change the files, read the snapshot mounted during the changes and after them, remove it")
+    public void testSnapshots() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 200_000,
+                FormatOptions.defaults().withInlineFileSize(64).withSlabMaxSlotSize(512));
+        Random random = new Random(36);
+        byte[] plain = randomBytes(random, 3000);
+        byte[] inline = randomBytes(random, 40);
+        byte[] slab = randomBytes(random, 300);
+        byte[] compressed = new byte[20_000];
+        Arrays.fill(compressed, (byte) 7);
+        byte[] deduplicated = randomBytes(random, 10_000);
+        byte[] nested = randomBytes(random, 500);
+        byte[] removed = randomBytes(random, 1000);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            directory.createFile("Plain", plain.length).write(plain);
+            directory.createFile("Inline", inline.length).write(inline);
+            directory.createFile("Slab", slab.length).write(slab);
+            directory.createFile("Compressed", compressed.length, CompressionOption.DEFLATE).write(compressed);
+            directory.createFile("Deduplicated", deduplicated.length, DeduplicationOption.DEDUPLICATE).write(deduplicated);
+            directory.createDirectory("/Nested").createFile("Inner", nested.length).write(nested);
+            directory.createFile("Removed", removed.length).write(removed);
+            long usedSpace = directory.getStats().getUsedSpace();
+            directory.snapshot("First");
+            // the snapshot does not copy anything until the first change
+            Assertions.assertTrue(directory.getStats().getUsedSpace() - usedSpace < 200);
+            Assertions.assertThrows(IllegalFileNameException.class, () -> directory.snapshot("First"));
+            Assertions.assertEquals(Arrays.asList("First"), directory.getSnapshotNames());
+
+            directory.getFile("Plain").write(randomBytes(random, plain.length));
+            directory.getFile("Inline").write(randomBytes(random, inline.length));
+            directory.getFile("Slab").write(randomBytes(random, slab.length));
+            directory.getFile("Compressed").write(randomBytes(random, 5000));
+            directory.getFile("Deduplicated").write(1000, randomBytes(random, 5000));
+            directory.getDirectory("/Nested").getFile("Inner").write(randomBytes(random, nested.length));
+            directory.removeFile("Removed");
+            directory.createFile("Created", 20_000).write(randomBytes(random, 20_000));
+
+            try (RootDirectory snapshot = fileSystemsManager.loadSnapshot(fileSystemPath, "First")) {
+                Assertions.assertEquals(Arrays.asList("Plain", "Inline", "Slab", "Compressed", "Deduplicated", "/Nested", "Removed"),
+                        snapshot.getFileNames());
+                File snapshotPlain = snapshot.getFile("Plain");
+                assertContent(plain, snapshotPlain);
+                assertContent(inline, snapshot.getFile("Inline"));
+                assertContent(slab, snapshot.getFile("Slab"));
+                assertContent(compressed, snapshot.getFile("Compressed"));
+                assertContent(deduplicated, snapshot.getFile("Deduplicated"));
+                assertContent(nested, snapshot.getDirectory("/Nested").getFile("Inner"));
+                assertContent(removed, snapshot.getFile("Removed"));
+                Assertions.assertThrows(ReadOnlyFileSystemException.class, () -> snapshot.createFile("Other", 0));
+                Assertions.assertThrows(ReadOnlyFileSystemException.class, () -> snapshotPlain.write(new byte[1]));
+                Assertions.assertThrows(IllegalStateException.class, () -> directory.removeSnapshot("First"));
+
+                // the handles of the mounted snapshot are not affected by the following live changes
+                directory.getFile("Plain").write(randomBytes(random, plain.length));
+                directory.getFile("Inline").write(randomBytes(random, 200));
+                assertContent(plain, snapshotPlain);
+                assertContent(inline, snapshot.getFile("Inline"));
+            }
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+        try (RootDirectory snapshot = fileSystemsManager.loadSnapshot(fileSystemPath, "First")) {
+            assertContent(plain, snapshot.getFile("Plain"));
+            assertContent(removed, snapshot.getFile("Removed"));
+            Assertions.assertNull(snapshot.getFile("Created"));
+        }
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            long usedSpace = directory.getStats().getUsedSpace();
+            // the chain created after the snapshot is not seen by it, so it is not copied after loading too
+            directory.getFile("Created").write(randomBytes(random, 20_000));
+            Assertions.assertEquals(usedSpace, directory.getStats().getUsedSpace());
+            Assertions.assertThrows(IllegalArgumentException.class, () -> directory.removeSnapshot("Second"));
+            directory.removeSnapshot("First");
+            Assertions.assertTrue(directory.getSnapshotNames().isEmpty());
+            Assertions.assertTrue(directory.getStats().getUsedSpace() < usedSpace - removed.length);
+            Assertions.assertNull(directory.getFile("Removed"));
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
+    @Test
+    @DisplayName("Create, write and read files with the asynchronous facade, check the limit of the operations in flight")
+    public void testAsync() throws Exception {
+        fileSystemsManager.createAndFormat(fileSystemPath, 100_000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Random random = new Random(38);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            // the executor runs nothing by itself, so only the operations in flight are submitted to it
+            List<Runnable> submitted = new ArrayList<>();
+            AsyncDirectory limited = directory.async(AsyncOptions.defaults().withMaxInFlight(2).withExecutor(submitted::add));
+            // the limit is shared with the first facade, a different one is rejected
+            Assertions.assertThrows(IllegalArgumentException.class,
+                    () -> directory.async(AsyncOptions.defaults().withMaxInFlight(10).withExecutor(submitted::add)));
+            AsyncDirectory other = directory.async(AsyncOptions.defaults().withMaxInFlight(2).withExecutor(submitted::add));
+            List<CompletableFuture<Integer>> counts = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                counts.add(limited.getFilesCount());
+                counts.add(other.getFilesCount());
+            }
+            Assertions.assertEquals(2, submitted.size());
+            submitted.remove(0).run();
+            Assertions.assertEquals(2, submitted.size());
+            while (!submitted.isEmpty()) {
+                submitted.remove(0).run();
+            }
+            for (CompletableFuture<Integer> count : counts) {
+                Assertions.assertEquals(0, (int) count.getNow(-1));
+            }
+
+            AsyncDirectory async = directory.async(AsyncOptions.defaults().withMaxInFlight(2).withExecutor(executor));
+            AsyncDirectory nested = async.createDirectory("/Nested").get();
+            List<byte[]> contents = new ArrayList<>();
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                byte[] content = randomBytes(random, 500 + i);
+                contents.add(content);
+                writes.add(nested.createFile("File" + i, content.length).thenCompose(file -> file.write(0, content)));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+            Assertions.assertEquals(20, (int) nested.getFilesCount().get());
+            for (int i = 0; i < 20; i++) {
+                AsyncFile file = async.getDirectory("/Nested").get().getFile("File" + i).get();
+                Assertions.assertArrayEquals(contents.get(i), file.read(0, contents.get(i).length).get());
+            }
+            Assertions.assertNull(nested.getFile("Missing").get());
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> nested.createFile("File0", 0).get());
+            Assertions.assertTrue(e.getCause() instanceof IllegalFileNameException);
+            nested.removeFile("File0").get();
+            Assertions.assertNull(directory.getDirectory("/Nested").getFile("File0"));
+
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("List the entries with their attributes by pages, compare with the names and the files")
+    public void testListEntries() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 200_000,
+                FormatOptions.defaults().withInlineFileSize(16).withSlabMaxSlotSize(128));
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            for (int i = 0; i < 30; i++) {
+                directory.createFile("Plain " + i, 200 + i);
+                directory.createFile("Inline " + i, 10);
+                directory.createFile("Slab " + i, 100);
+                directory.createDirectory("/Directory " + i);
+            }
+            directory.removeFile("Plain 7");
+            directory.createFile("Compressed", 5000, CompressionOption.DEFLATE);
+            List<String> names = new ArrayList<>();
+            Iterator<DirectoryEntry> entries = directory.listEntries(7);
+            while (entries.hasNext()) {
+                DirectoryEntry entry = entries.next();
+                names.add(entry.getName());
+                Assertions.assertEquals(entry.getName().startsWith("/"), entry.isDirectory());
+                if (!entry.isDirectory()) {
+                    File file = directory.getFile(entry.getName());
+                    Assertions.assertNotNull(file);
+                    Assertions.assertEquals(file.getFileSize(), entry.getSize());
+                    Assertions.assertEquals(entry.getName().startsWith("Inline"), entry.getPosition() == 0);
+                }
+            }
+            Assertions.assertEquals(directory.getFileNames(), names);
+            Assertions.assertFalse(entries.hasNext());
+            Assertions.assertThrows(IllegalArgumentException.class, () -> directory.listEntries(0));
+            Assertions.assertFalse(directory.getDirectory("/Directory 0").listEntries().hasNext());
+        }
+    }
+
+    @Test
+    @DisplayName("Find names by prefix and by glob pattern, check that the index follows the directory changes")
+    public void testFindAndGlob() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 200_000);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            for (int i = 0; i < 12; i++) {
+                directory.createFile("build_" + (2020 + i) + "_log", 0);
+            }
+            directory.createFile("other", 0);
+            directory.createDirectory("/build_dir");
+            Assertions.assertEquals(Arrays.asList("build_2024_log", "build_2025_log"), toList(directory.find("build_202")).subList(4, 6));
+            Assertions.assertEquals(Arrays.asList("build_2030_log", "build_2031_log"), toList(directory.find("build_203")));
+            Assertions.assertEquals(Arrays.asList("build_2021_log", "build_2023_log"), toList(directory.glob("build_202[13]_*")));
+            Assertions.assertEquals(Arrays.asList("build_2030_log", "build_2031_log"), toList(directory.glob("*_203?_log")));
+            Assertions.assertEquals(Arrays.asList("/build_dir"), toList(directory.glob("/*")));
+            Assertions.assertFalse(directory.find("missing").hasNext());
+            Assertions.assertThrows(IllegalArgumentException.class, () -> directory.glob("build_[2"));
+
+            // the index is shared by the directory objects and is updated by every change of the records
+            directory.removeFile("build_2030_log");
+            directory.rename("build_2031_log", "build_2032_log");
+            directory.createFiles(Collections.singletonMap("build_2033_log", 0));
+            directory.createFile("build_2034_log", 0);
+            Directory nested = directory.getDirectory("/build_dir");
+            Assertions.assertNotNull(nested);
+            nested.createFile("build_2035_log", 0);
+            Assertions.assertFalse(nested.find("build_2034").hasNext());
+            directory.move("build_2034_log", nested, "build_2034_log");
+            Assertions.assertEquals(Arrays.asList("build_2032_log", "build_2033_log"), toList(directory.find("build_203")));
+            Assertions.assertEquals(Arrays.asList("build_2034_log", "build_2035_log"),
+                    toList(directory.getDirectory("/build_dir").find("build_203")));
+            directory.removeRecursively("/build_dir");
+            Directory recreated = directory.createDirectory("/build_dir");
+            Assertions.assertFalse(recreated.find("").hasNext());
+        }
+    }
+
+    private static List<String> toList(Iterator<String> names) {
+        List<String> list = new ArrayList<>();
+        names.forEachRemaining(list::add);
+        return list;
+    }
+
+    @Test
+    @DisplayName("Create and remove a lot of files by batches, check their content, a failed batch does not change anything")
+    public void testBatches() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 1_000_000);
+        Random random = new Random(39);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            directory.createFile("Existing", 10);
+            Map<String, Integer> sizes = new LinkedHashMap<>();
+            for (int i = 0; i < 1000; i++) {
+                sizes.put("File" + i, random.nextInt(500));
+            }
+            Map<String, File> files = directory.createFiles(sizes);
+            Assertions.assertEquals(new ArrayList<>(sizes.keySet()), new ArrayList<>(files.keySet()));
+            Assertions.assertEquals(1001, directory.getFilesCount());
+            Assertions.assertEquals(1001, directory.getStats().getFilesCount());
+            Map<String, byte[]> contents = new LinkedHashMap<>();
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                Assertions.assertTrue(file.getValue().getFileSize() >= sizes.get(file.getKey()));
+                byte[] content = randomBytes(random, sizes.get(file.getKey()));
+                file.getValue().write(content);
+                contents.put(file.getKey(), content);
+            }
+
+            long usedSpace = directory.getStats().getUsedSpace();
+            Map<String, Integer> duplicated = new LinkedHashMap<>();
+            duplicated.put("New", 10);
+            duplicated.put("Existing", 10);
+            Assertions.assertThrows(IllegalFileNameException.class, () -> directory.createFiles(duplicated));
+            Map<String, Integer> tooBig = new LinkedHashMap<>();
+            tooBig.put("Small", 100);
+            tooBig.put("Big", 1_000_000);
+            Assertions.assertThrows(NotEnoughFreeSpaceException.class, () -> directory.createFiles(tooBig));
+            Assertions.assertEquals(usedSpace, directory.getStats().getUsedSpace());
+            Assertions.assertNull(directory.getFile("New"));
+            Assertions.assertNull(directory.getFile("Small"));
+
+            directory.createDirectory("/Nested").createFile("Inner", 0);
+            List<String> removed = new ArrayList<>();
+            for (int i = 0; i < 1000; i += 2) {
+                removed.add("File" + i);
+            }
+            removed.add("/Nested");
+            Assertions.assertThrows(NotEmptyDirectoryException.class, () -> directory.removeFiles(removed));
+            Assertions.assertEquals(1002, directory.getFilesCount());
+            removed.remove("/Nested");
+            removed.add("Missing");
+            directory.removeFiles(removed);
+            Assertions.assertEquals(502, directory.getFilesCount());
+            for (int i = 0; i < 1000; i++) {
+                String name = "File" + i;
+                if (i % 2 == 0) {
+                    Assertions.assertNull(directory.getFile(name));
+                } else {
+                    byte[] content = new byte[contents.get(name).length];
+                    directory.getFile(name).read(content);
+                    Assertions.assertArrayEquals(contents.get(name), content);
+                }
+            }
+        }
+        Assertions.assertTrue(fileSystemsManager.check(fileSystemPath, false).isConsistent());
+    }
+
+    @Test
+    @DisplayName("Fragment a file and the free space, check the space map describes them")
+    public void testSpaceMap() throws IOException {
+        fileSystemsManager.createAndFormat(fileSystemPath, 20_000);
+        try (RootDirectory directory = fileSystemsManager.load(fileSystemPath)) {
+            File first = directory.createFile("First", 1000);
+            directory.createFile("Second", 1000);
+            directory.createDirectory("/Nested").createFile("Third", 500);
+            first.write(new byte[3000]); // "Second" is after "First", so the rest is chained at the end
+            directory.removeFile("Second"); // the free space is split to the hole and the tail
+
+            SpaceMap spaceMap = directory.spaceMap();
+            FileSystemStats stats = directory.getStats();
+            Assertions.assertEquals(stats.getTotalSpace(), spaceMap.getTotalSpace());
+            Assertions.assertEquals(stats.getFreeSpace(), spaceMap.getFreeSpace());
+            Assertions.assertEquals(2, spaceMap.getFreeExtents().values().stream().mapToLong(Long::longValue).sum());
+            Assertions.assertTrue(spaceMap.getLargestFreeExtent() < spaceMap.getFreeSpace());
+            Assertions.assertTrue(spaceMap.getFragmentation() > 0);
+            Map<Integer, Long> expectedChainLengths = new LinkedHashMap<>();
+            expectedChainLengths.put(1, 1L);
+            expectedChainLengths.put(2, 1L);
+            Assertions.assertEquals(expectedChainLengths, spaceMap.getChainLengths());
+            Assertions.assertEquals(Collections.singletonMap("/First", 2), spaceMap.getMostFragmentedFiles());
+
+            StringBuilder csv = new StringBuilder();
+            spaceMap.writeTo(csv);
+            String[] lines = csv.toString().split("\n");
+            Assertions.assertEquals("position,length,state", lines[0]);
+            long position = 120;
+            long freeSpace = 0;
+            for (int i = 1; i < lines.length; i++) {
+                String[] run = lines[i].split(",");
+                Assertions.assertEquals(position, Long.parseLong(run[0]));
+                Assertions.assertEquals(i % 2 == 1 ? "used" : "free", run[2]);
+                position += Long.parseLong(run[1]);
+                freeSpace += i % 2 == 1 ? 0 : Long.parseLong(run[1]);
+            }
+            Assertions.assertEquals(20_000, position);
+            Assertions.assertEquals(spaceMap.getFreeSpace(), freeSpace);
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void assertContent(byte[] expected, File file) throws IOException {
+        Assertions.assertNotNull(file);
+        // inline, slab and plain files can be bigger than the written data
+        Assertions.assertTrue(file.getFileSize() >= expected.length);
+        byte[] actual = new byte[expected.length];
+        file.read(actual);
+        Assertions.assertArrayEquals(expected, actual);
+    }
+
     private static class NameAndData {
         final String name;
         final byte[] data;